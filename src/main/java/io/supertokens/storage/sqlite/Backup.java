@@ -0,0 +1,306 @@
+/*
+ *    Copyright (c) 2020, VRAI Labs and/or its affiliates. All rights reserved.
+ *
+ *    This software is licensed under the Apache License, Version 2.0 (the
+ *    "License") as published by the Apache Software Foundation.
+ *
+ *    You may not use this file except in compliance with the License. You may
+ *    obtain a copy of the License at http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *    Unless required by applicable law or agreed to in writing, software
+ *    distributed under the License is distributed on an "AS IS" BASIS, WITHOUT
+ *    WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied. See the
+ *    License for the specific language governing permissions and limitations
+ *    under the License.
+ *
+ */
+
+package io.supertokens.storage.sqlite;
+
+import io.supertokens.pluginInterface.exceptions.StorageQueryException;
+import io.supertokens.storage.sqlite.config.Config;
+import io.supertokens.storage.sqlite.config.SQLiteConfig;
+import io.supertokens.storage.sqlite.output.Logging;
+import io.supertokens.storage.sqlite.utils.Utils;
+import org.sqlite.ProgressHandler;
+import org.sqlite.SQLiteConnection;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.channels.FileChannel;
+import java.nio.file.Files;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
+import java.sql.ResultSet;
+import java.sql.SQLException;
+import java.sql.Statement;
+import java.util.List;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.LongAdder;
+
+// Writes a copy of every database file into a folder while the database stays in use. Each file is copied with VACUUM
+// INTO, which reads it in one read transaction. In WAL mode that does not block the writer, so the copy is a
+// consistent snapshot and nothing has to be paused for it. sqlite-jdbc's backup command is not used, since it copies
+// the whole file in one step and starts again whenever another connection writes.
+//
+// So that the copy does not take the disk away from requests, it sleeps for sqlite_backup_step_sleep_millis after
+// about every sqlite_backup_pages_per_step pages that it has written. It can only tell how far it has got from the
+// size of the file it is writing, which grows a few pages at a time. Its read transaction is open while it sleeps, so
+// this is only done in WAL mode, where that does not block writers. Even then, checkpoints cannot reset the WAL until
+// the copy is done, so it stops sleeping once the WAL file has grown by more than sqlite_wal_truncate_size_bytes
+// since the copy started. Nor is it done with sqlite_in_memory, where the copy runs on the writer.
+//
+// A copy is written next to the previous one, synced to disk and then renamed over it, so the folder always has a
+// complete backup. With more than one database file, each file is a snapshot of its own moment.
+public class Backup extends ResourceDistributor.SingletonResource {
+
+    private static final ResourceDistributor.Key<Backup> RESOURCE_KEY = ResourceDistributor.newKey(Backup.class);
+    // how often, in SQLite VM instructions, a copy looks at how many pages it has written
+    private static final int PROGRESS_CHECK_INSTRUCTIONS = 1000;
+    private static final int WAIT_FOR_STOP_SECONDS = 10;
+
+    // 0 if backups do not sleep
+    private final int pagesPerStep;
+    private final long stepSleepMillis;
+    // 0 if the growth of the WAL does not stop the sleeps
+    private final long maxWalGrowthBytes;
+    // one backup at a time
+    private final Object backupLock = new Object();
+    // null if backups are not scheduled
+    private ScheduledExecutorService scheduler;
+    // set once the storage is closing. A copy that is running then stops.
+    private volatile boolean stopped = false;
+
+    private final LongAdder backups = new LongAdder();
+    private final LongAdder failedBackups = new LongAdder();
+    private final LongAdder sleeps = new LongAdder();
+    private volatile long lastBackupTime = 0;
+    private volatile long lastBackupDurationMillis = 0;
+    private volatile long lastBackupBytes = 0;
+    // of the backup that is running, or else of the last one
+    private volatile long pagesCopied = 0;
+    private volatile long totalPages = 0;
+
+    private Backup(SQLiteConfig config) {
+        boolean canSleep = config.getJournalMode().equals("WAL") && !config.isInMemoryEnabled();
+        this.pagesPerStep = canSleep ? config.getBackupPagesPerStep() : 0;
+        this.stepSleepMillis = config.getBackupStepSleepMillis();
+        this.maxWalGrowthBytes = config.getWalTruncateSizeBytes();
+    }
+
+    public static Backup getInstance(Start start) {
+        Backup instance = start.getResourceDistributor().getResource(RESOURCE_KEY);
+        if (instance == null) {
+            instance = start.getResourceDistributor().setResource(RESOURCE_KEY,
+                    new Backup(Config.getConfig(start)));
+        }
+        return instance;
+    }
+
+    // starts the backups every sqlite_backup_interval_minutes, if that is set
+    static void init(Start start) {
+        SQLiteConfig config = Config.getConfig(start);
+        Backup instance = getInstance(start);
+        if (config.getBackupPagesPerStep() > 0 && instance.pagesPerStep == 0) {
+            Logging.info(start, "SQLite backups will not pause, since the database is not in WAL mode or is in memory");
+        }
+        if (config.getBackupIntervalMinutes() == 0 || instance.scheduler != null) {
+            return;
+        }
+        instance.scheduler = Executors.newSingleThreadScheduledExecutor(runnable -> {
+            Thread thread = new Thread(runnable, "SuperTokens-sqlite-backup-" + start.getProcessId());
+            thread.setDaemon(true);
+            return thread;
+        });
+        instance.scheduler.scheduleWithFixedDelay(() -> {
+            try {
+                instance.run(start, config.getBackupLocation());
+            } catch (SQLException | IOException | RuntimeException e) {
+                if (!instance.stopped) {
+                    Logging.error(start, "Scheduled SQLite backup failed", false, e);
+                }
+            }
+        }, config.getBackupIntervalMinutes(), config.getBackupIntervalMinutes(), TimeUnit.MINUTES);
+    }
+
+    // stops any backup that is running, and waits for it, so that it does not outlive the connection pool
+    static void stop(Start start) {
+        Backup instance = start.getResourceDistributor().getResource(RESOURCE_KEY);
+        if (instance == null) {
+            return;
+        }
+        instance.stopped = true;
+        if (instance.scheduler != null) {
+            instance.scheduler.shutdownNow();
+            try {
+                instance.scheduler.awaitTermination(WAIT_FOR_STOP_SECONDS, TimeUnit.SECONDS);
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+            }
+        }
+        // a backup that was not started by the scheduler holds this until its copy has stopped
+        synchronized (instance.backupLock) {
+            instance.stopped = true;
+        }
+    }
+
+    // backs up to sqlite_backup_folder_location
+    public static void backup(Start start) throws StorageQueryException {
+        String folder = Config.getConfig(start).getBackupLocation();
+        if (folder == null) {
+            throw new StorageQueryException(new SQLException("'sqlite_backup_folder_location' is not set"));
+        }
+        backup(start, folder);
+    }
+
+    // Writes a copy of each database file, with the same name, into the folder, replacing any earlier backup there.
+    // The folder cannot be the database folder. Returns once all of them are written.
+    public static void backup(Start start, String folder) throws StorageQueryException {
+        // a backup has the name of the database file, and would be moved over it
+        if (Utils.isSameFolder(folder, Config.getConfig(start).getDatabaseLocation())) {
+            throw new StorageQueryException(new SQLException("Cannot back up into the database folder"));
+        }
+        try {
+            getInstance(start).run(start, Utils.normaliseLocationPath(folder));
+        } catch (SQLException | IOException e) {
+            throw new StorageQueryException(e);
+        }
+    }
+
+    private void run(Start start, String folder) throws SQLException, IOException {
+        synchronized (backupLock) {
+            if (stopped) {
+                throw new SQLException("The storage is closing");
+            }
+            long startTime = System.currentTimeMillis();
+            try {
+                List<String> paths = ConnectionPool.getDatabasePaths(Config.getConfig(start));
+                pagesCopied = 0;
+                totalPages = 0;
+                long[] pagesPerDatabase = new long[paths.size()];
+                for (int database = 0; database < paths.size(); database++) {
+                    pagesPerDatabase[database] = ConnectionPool.read(start, database, con -> {
+                        try (Statement stmt = con.createStatement();
+                             ResultSet pageCount = stmt.executeQuery("PRAGMA page_count")) {
+                            long pages = pageCount.getLong(1);
+                            try (ResultSet freelistCount = stmt.executeQuery("PRAGMA freelist_count")) {
+                                return pages - freelistCount.getLong(1);
+                            }
+                        }
+                    });
+                    totalPages += pagesPerDatabase[database];
+                }
+
+                long bytes = 0;
+                for (int database = 0; database < paths.size(); database++) {
+                    File backupFile = new File(folder + new File(paths.get(database)).getName());
+                    bytes += copy(start, database, new File(paths.get(database) + "-wal"), backupFile,
+                            pagesPerDatabase[database]);
+                }
+                backups.increment();
+                lastBackupTime = System.currentTimeMillis();
+                lastBackupDurationMillis = lastBackupTime - startTime;
+                lastBackupBytes = bytes;
+                Logging.info(start, "SQLite backup to " + folder + " took " + lastBackupDurationMillis + " ms");
+            } catch (SQLException | IOException | RuntimeException e) {
+                failedBackups.increment();
+                throw e;
+            }
+        }
+    }
+
+    // returns the size of the copy
+    private long copy(Start start, int database, File walFile, File backupFile, long pagesOfDatabase)
+            throws SQLException, IOException {
+        File tempFile = new File(backupFile.getPath() + ".tmp");
+        // VACUUM INTO does not write over a file, such as one left by a backup that did not finish
+        Files.deleteIfExists(tempFile.toPath());
+        long pagesCopiedBefore = pagesCopied;
+        ConnectionPool.runOnOwnConnection(start, database, con -> {
+            long pageSize;
+            try (Statement stmt = con.createStatement();
+                 ResultSet result = stmt.executeQuery("PRAGMA page_size")) {
+                pageSize = result.getLong(1);
+            }
+            long[] pagesAtLastSleep = {0};
+            long walSizeAtStart = walFile.length();
+            // the connection can be the writer, which is wrapped by the pool
+            SQLiteConnection sqliteCon = con.unwrap(SQLiteConnection.class);
+            ProgressHandler.setHandler(sqliteCon, PROGRESS_CHECK_INSTRUCTIONS, new ProgressHandler() {
+                @Override
+                protected int progress() {
+                    if (stopped || Thread.currentThread().isInterrupted()) {
+                        // stops the copy
+                        return 1;
+                    }
+                    long pages = tempFile.length() / pageSize;
+                    pagesCopied = pagesCopiedBefore + Math.min(pages, pagesOfDatabase);
+                    if (pagesPerStep > 0 && pages - pagesAtLastSleep[0] >= pagesPerStep) {
+                        pagesAtLastSleep[0] = pages;
+                        if (maxWalGrowthBytes > 0 && walFile.length() - walSizeAtStart > maxWalGrowthBytes) {
+                            return 0;
+                        }
+                        sleeps.increment();
+                        try {
+                            Thread.sleep(stepSleepMillis);
+                        } catch (InterruptedException e) {
+                            Thread.currentThread().interrupt();
+                            // stops the copy
+                            return 1;
+                        }
+                    }
+                    return 0;
+                }
+            });
+            try (Statement stmt = con.createStatement()) {
+                stmt.execute("VACUUM INTO '" + tempFile.getPath().replace("'", "''") + "'");
+            } finally {
+                ProgressHandler.clearHandler(sqliteCon);
+            }
+            return null;
+        });
+        long size = tempFile.length();
+        pagesCopied = pagesCopiedBefore + pagesOfDatabase;
+        try (FileChannel channel = FileChannel.open(tempFile.toPath(), StandardOpenOption.WRITE)) {
+            channel.force(true);
+        }
+        Files.move(tempFile.toPath(), backupFile.toPath(), StandardCopyOption.REPLACE_EXISTING,
+                StandardCopyOption.ATOMIC_MOVE);
+        return size;
+    }
+
+    public long getBackupCount() {
+        return backups.sum();
+    }
+
+    public long getFailedBackupCount() {
+        return failedBackups.sum();
+    }
+
+    // number of times that a backup slept to leave the disk to other work
+    public long getSleepCount() {
+        return sleeps.sum();
+    }
+
+    // the time at which the last backup that succeeded finished, or 0
+    public long getLastBackupTime() {
+        return lastBackupTime;
+    }
+
+    public long getLastBackupDurationMillis() {
+        return lastBackupDurationMillis;
+    }
+
+    // total size of the files of the last backup that succeeded
+    public long getLastBackupBytes() {
+        return lastBackupBytes;
+    }
+
+    // between 0 and 1, for the backup that is running, or else the last one
+    public double getProgress() {
+        long total = totalPages;
+        return total == 0 ? 0 : Math.min(1, (double) pagesCopied / total);
+    }
+}
@@ -0,0 +1,95 @@
+/*
+ *    Copyright (c) 2020, VRAI Labs and/or its affiliates. All rights reserved.
+ *
+ *    This software is licensed under the Apache License, Version 2.0 (the
+ *    "License") as published by the Apache Software Foundation.
+ *
+ *    You may not use this file except in compliance with the License. You may
+ *    obtain a copy of the License at http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *    Unless required by applicable law or agreed to in writing, software
+ *    distributed under the License is distributed on an "AS IS" BASIS, WITHOUT
+ *    WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied. See the
+ *    License for the specific language governing permissions and limitations
+ *    under the License.
+ *
+ */
+
+package io.supertokens.storage.sqlite;
+
+import java.util.concurrent.atomic.AtomicLongArray;
+
+// A Bloom filter of strings that can be added to from many threads at once. It never says that an added string is
+// missing, but it may say that a missing one might be present.
+class BloomFilter {
+
+    private static final int MAX_NUMBER_OF_HASHES = 16;
+
+    private final AtomicLongArray words;
+    private final long numberOfBits;
+    private final int numberOfHashes;
+
+    private BloomFilter(long numberOfBits, int numberOfHashes) {
+        this.words = new AtomicLongArray((int) ((numberOfBits + 63) / 64));
+        this.numberOfBits = numberOfBits;
+        this.numberOfHashes = numberOfHashes;
+    }
+
+    // creates a filter sized for the given number of strings and false positive rate, but never larger than maxBits
+    static BloomFilter create(long expectedNumberOfItems, double falsePositiveRate, long maxBits) {
+        long items = Math.max(1, expectedNumberOfItems);
+        double idealBits = -items * Math.log(falsePositiveRate) / (Math.log(2) * Math.log(2));
+        long numberOfBits = Math.max(64, Math.min(maxBits, (long) Math.ceil(idealBits)));
+        int numberOfHashes = (int) Math.round((double) numberOfBits / items * Math.log(2));
+        return new BloomFilter(numberOfBits, Math.max(1, Math.min(MAX_NUMBER_OF_HASHES, numberOfHashes)));
+    }
+
+    void put(String value) {
+        long hash1 = hash(value);
+        long hash2 = mix(hash1 ^ 0x9E3779B97F4A7C15L) | 1;
+        for (int i = 0; i < numberOfHashes; i++) {
+            long bit = Math.floorMod(hash1 + i * hash2, numberOfBits);
+            int index = (int) (bit >>> 6);
+            long mask = 1L << bit;
+            long word = words.get(index);
+            while ((word & mask) == 0 && !words.compareAndSet(index, word, word | mask)) {
+                word = words.get(index);
+            }
+        }
+    }
+
+    boolean mightContain(String value) {
+        long hash1 = hash(value);
+        long hash2 = mix(hash1 ^ 0x9E3779B97F4A7C15L) | 1;
+        for (int i = 0; i < numberOfHashes; i++) {
+            long bit = Math.floorMod(hash1 + i * hash2, numberOfBits);
+            if ((words.get((int) (bit >>> 6)) & (1L << bit)) == 0) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    long getSizeInBytes() {
+        return words.length() * 8L;
+    }
+
+    // 64 bit FNV-1a, followed by a final mix so that all bits depend on the whole string
+    private static long hash(String value) {
+        long hash = 0xcbf29ce484222325L;
+        for (int i = 0; i < value.length(); i++) {
+            hash ^= value.charAt(i);
+            hash *= 0x100000001b3L;
+        }
+        return mix(hash);
+    }
+
+    private static long mix(long hash) {
+        hash ^= hash >>> 33;
+        hash *= 0xff51afd7ed558ccdL;
+        hash ^= hash >>> 33;
+        hash *= 0xc4ceb9fe1a85ec53L;
+        hash ^= hash >>> 33;
+        return hash;
+    }
+}
@@ -0,0 +1,211 @@
+/*
+ *    Copyright (c) 2020, VRAI Labs and/or its affiliates. All rights reserved.
+ *
+ *    This software is licensed under the Apache License, Version 2.0 (the
+ *    "License") as published by the Apache Software Foundation.
+ *
+ *    You may not use this file except in compliance with the License. You may
+ *    obtain a copy of the License at http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *    Unless required by applicable law or agreed to in writing, software
+ *    distributed under the License is distributed on an "AS IS" BASIS, WITHOUT
+ *    WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied. See the
+ *    License for the specific language governing permissions and limitations
+ *    under the License.
+ *
+ */
+
+package io.supertokens.storage.sqlite;
+
+import com.google.gson.JsonElement;
+import com.google.gson.JsonObject;
+import com.google.gson.JsonParseException;
+import com.google.gson.JsonParser;
+import io.supertokens.pluginInterface.exceptions.StorageQueryException;
+import io.supertokens.storage.sqlite.config.Config;
+import io.supertokens.storage.sqlite.output.Logging;
+
+import java.io.BufferedReader;
+import java.io.IOException;
+import java.io.Reader;
+import java.io.UncheckedIOException;
+import java.io.Writer;
+import java.sql.SQLException;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.function.Consumer;
+
+// Moves the key_value, session_info and past_tokens tables in and out of the database as NDJSON: one JSON object per
+// line, with the table that it is a row of in "table" and one field for each column. The configured table names are
+// not in it, so it can be imported into a database whose tables are named differently, or that has a different
+// number of shards.
+//
+// An export reads each table with one forward only cursor and writes each row as soon as it is read, so it needs as
+// little memory for a billion rows as for ten. An import collects the rows for each table of each database file and
+// inserts them sqlite_import_transaction_size at a time, with multi row inserts in one transaction that is not synced
+// to disk. With sqlite_import_defer_indexes, the secondary indexes are dropped for the import and built again at the
+// end, which is much faster than updating them for every row. Queries that need them are slow until then, so that is
+// meant for a database that is not in use yet.
+public class BulkTransfer {
+
+    // returns the number of rows written
+    public static long exportRows(Start start, Writer out) throws StorageQueryException, IOException {
+        QueryCatalog queries = QueryCatalog.getInstance(start);
+        long[] numberOfRows = {0};
+        Consumer<JsonObject> writeRow = row -> {
+            try {
+                out.write(row.toString());
+                out.write('\n');
+                numberOfRows[0]++;
+            } catch (IOException e) {
+                throw new UncheckedIOException(e);
+            }
+        };
+        try {
+            Queries.forEachRow(start, 0, queries.keyValueTransfer, queries.keyValueTable, writeRow);
+            for (int database : ConnectionPool.getSessionsDatabases(start)) {
+                Queries.forEachRow(start, database, queries.sessionInfoTransfer, queries.sessionInfoTable, writeRow);
+            }
+            PastTokenPartitions.withPartitions(start, partitions -> {
+                for (int database : ConnectionPool.getPastTokensDatabases(start)) {
+                    Queries.forEachRow(start, database, queries.pastTokensTransfer, queries.pastTokensTable,
+                            writeRow);
+                    for (QueryCatalog.PastTokensPartition partition : partitions) {
+                        Queries.forEachRow(start, database, queries.pastTokensTransfer, partition.tableName,
+                                writeRow);
+                    }
+                }
+            });
+        } catch (UncheckedIOException e) {
+            throw e.getCause();
+        } catch (SQLException e) {
+            throw new StorageQueryException(e);
+        }
+        out.flush();
+        Logging.info(start, "Exported " + numberOfRows[0] + " row(s)");
+        return numberOfRows[0];
+    }
+
+    // Imports what exportRows wrote. Rows whose key is already in the database are left as they are. Past tokens go
+    // into the past tokens table, and not into a partition. Returns the number of rows that were inserted.
+    public static long importRows(Start start, Reader in) throws StorageQueryException, IOException {
+        QueryCatalog queries = QueryCatalog.getInstance(start);
+        int transactionSize = Config.getConfig(start).getImportTransactionSize();
+        boolean deferIndexes = Config.getConfig(start).isImportDeferIndexesEnabled();
+        Map<String, QueryCatalog.TransferredTable> tables = new HashMap<>();
+        for (QueryCatalog.TransferredTable table : new QueryCatalog.TransferredTable[]{queries.keyValueTransfer,
+                queries.sessionInfoTransfer, queries.pastTokensTransfer}) {
+            tables.put(table.name, table);
+        }
+
+        long startTime = System.currentTimeMillis();
+        long numberOfRowsInserted = 0;
+        try {
+            if (deferIndexes) {
+                Queries.dropIndexes(start);
+            }
+            try {
+                Map<String, PendingRows> pendingRows = new HashMap<>();
+                BufferedReader reader = new BufferedReader(in);
+                long lineNumber = 0;
+                String line;
+                while ((line = reader.readLine()) != null) {
+                    lineNumber++;
+                    if (line.trim().isEmpty()) {
+                        continue;
+                    }
+                    JsonObject row;
+                    QueryCatalog.TransferredTable table;
+                    try {
+                        row = new JsonParser().parse(line).getAsJsonObject();
+                        JsonElement tableName = row.get("table");
+                        table = tableName == null ? null : tables.get(tableName.getAsString());
+                    } catch (JsonParseException | IllegalStateException | UnsupportedOperationException e) {
+                        throw new SQLException("Line " + lineNumber + " of the import is not a JSON object", e);
+                    }
+                    if (table == null) {
+                        throw new SQLException("Line " + lineNumber + " of the import is not from a known table");
+                    }
+                    int database = getDatabase(start, table, row, lineNumber);
+                    PendingRows pending = pendingRows.computeIfAbsent(table.name + "/" + database,
+                            key -> new PendingRows(table, database));
+                    pending.rows.add(row);
+                    if (pending.rows.size() >= transactionSize) {
+                        numberOfRowsInserted += pending.insert(start);
+                    }
+                }
+                for (PendingRows pending : pendingRows.values()) {
+                    numberOfRowsInserted += pending.insert(start);
+                }
+                // the rows can come from a database whose signs are UUIDs
+                if (queries.integerLastUpdatedSigns) {
+                    Queries.setIntegerLastUpdatedSigns(start);
+                }
+            } finally {
+                if (deferIndexes) {
+                    Queries.migrateSchema(start);
+                }
+            }
+        } catch (SQLException e) {
+            throw new StorageQueryException(e);
+        } finally {
+            // the past tokens filter was sized for the tokens there were before
+            PastTokenFilter.resize(start);
+        }
+        Logging.info(start, "Imported " + numberOfRowsInserted + " row(s) in " +
+                (System.currentTimeMillis() - startTime) + " ms");
+        return numberOfRowsInserted;
+    }
+
+    // sessions and past tokens go to the shard of their session handle
+    private static int getDatabase(Start start, QueryCatalog.TransferredTable table, JsonObject row, long lineNumber)
+            throws SQLException {
+        QueryCatalog queries = QueryCatalog.getInstance(start);
+        if (table == queries.keyValueTransfer) {
+            return 0;
+        }
+        JsonElement sessionHandle = row.get("session_handle");
+        if (sessionHandle == null || !sessionHandle.isJsonPrimitive()) {
+            throw new SQLException("Line " + lineNumber + " of the import has no session_handle");
+        }
+        return table == queries.sessionInfoTransfer ?
+                ConnectionPool.getSessionsDatabase(start, sessionHandle.getAsString()) :
+                ConnectionPool.getPastTokensDatabase(start, sessionHandle.getAsString());
+    }
+
+    private static class PendingRows {
+        final QueryCatalog.TransferredTable table;
+        final int database;
+        final List<JsonObject> rows = new ArrayList<>();
+
+        PendingRows(QueryCatalog.TransferredTable table, int database) {
+            this.table = table;
+            this.database = database;
+        }
+
+        // inserts the rows and forgets them
+        int insert(Start start) throws SQLException {
+            if (rows.isEmpty()) {
+                return 0;
+            }
+            int numberOfRowsInserted;
+            if (table == QueryCatalog.getInstance(start).pastTokensTransfer) {
+                List<String> refreshTokenHashes = new ArrayList<>();
+                for (JsonObject row : rows) {
+                    JsonElement refreshTokenHash2 = row.get("refresh_token_hash_2");
+                    if (refreshTokenHash2 != null && refreshTokenHash2.isJsonPrimitive()) {
+                        refreshTokenHashes.add(refreshTokenHash2.getAsString());
+                    }
+                }
+                numberOfRowsInserted = PastTokenFilter.insertPastTokens(start, refreshTokenHashes,
+                        () -> Queries.insertRows(start, database, table, rows));
+            } else {
+                numberOfRowsInserted = Queries.insertRows(start, database, table, rows);
+            }
+            rows.clear();
+            return numberOfRowsInserted;
+        }
+    }
+}
@@ -0,0 +1,139 @@
+/*
+ *    Copyright (c) 2020, VRAI Labs and/or its affiliates. All rights reserved.
+ *
+ *    This software is licensed under the Apache License, Version 2.0 (the
+ *    "License") as published by the Apache Software Foundation.
+ *
+ *    You may not use this file except in compliance with the License. You may
+ *    obtain a copy of the License at http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *    Unless required by applicable law or agreed to in writing, software
+ *    distributed under the License is distributed on an "AS IS" BASIS, WITHOUT
+ *    WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied. See the
+ *    License for the specific language governing permissions and limitations
+ *    under the License.
+ *
+ */
+
+package io.supertokens.storage.sqlite;
+
+import io.supertokens.storage.sqlite.config.Config;
+import io.supertokens.storage.sqlite.output.Logging;
+
+import java.sql.SQLException;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.atomic.LongAdder;
+
+// SQLite reports lock contention as SQLITE_BUSY or SQLITE_LOCKED. Some of these are returned without waiting for
+// busy_timeout (for example when a read transaction cannot be upgraded to a write one in WAL mode), so we retry them
+// here with jittered exponential backoff, until the time budget in sqlite_busy_retry_budget_millis runs out. A failed
+// attempt never commits anything, so retrying it is safe.
+public class BusyRetry extends ResourceDistributor.SingletonResource {
+
+    private static final ResourceDistributor.Key<BusyRetry> RESOURCE_KEY = ResourceDistributor.newKey(BusyRetry.class);
+    private static final int SQLITE_BUSY = 5;
+    private static final int SQLITE_LOCKED = 6;
+    private static final long INITIAL_BACKOFF_MILLIS = 2;
+    private static final long MAX_BACKOFF_MILLIS = 100;
+
+    private final LongAdder retries = new LongAdder();
+    private final LongAdder recovered = new LongAdder();
+    private final LongAdder exhausted = new LongAdder();
+
+    private BusyRetry() {
+
+    }
+
+    public static BusyRetry getInstance(Start start) {
+        BusyRetry instance = start.getResourceDistributor().getResource(RESOURCE_KEY);
+        if (instance == null) {
+            instance = start.getResourceDistributor().setResource(RESOURCE_KEY, new BusyRetry());
+        }
+        return instance;
+    }
+
+    static <T> T run(Start start, Attempt<T> attempt) throws SQLException {
+        try {
+            return attempt.run();
+        } catch (SQLException e) {
+            if (!isBusyOrLocked(e)) {
+                throw e;
+            }
+            return retry(start, attempt, e);
+        }
+    }
+
+    private static <T> T retry(Start start, Attempt<T> attempt, SQLException firstError) throws SQLException {
+        BusyRetry instance = getInstance(start);
+        long deadline = System.currentTimeMillis() + Config.getConfig(start).getBusyRetryBudgetMillis();
+        SQLException lastError = firstError;
+        for (int attemptNumber = 0; ; attemptNumber++) {
+            long remaining = deadline - System.currentTimeMillis();
+            if (remaining <= 0) {
+                instance.exhausted.increment();
+                throw lastError;
+            }
+            instance.retries.increment();
+            OperationMetrics.Context metrics = OperationMetrics.current(start);
+            if (metrics != null) {
+                metrics.recordRetry();
+            }
+            ProcessState.getInstance(start).addState(ProcessState.PROCESS_STATE.DEADLOCK_FOUND, lastError);
+            Logging.debug(start, "SQLite database is busy, retrying: " + lastError.getMessage());
+
+            long backoff = Math.min(MAX_BACKOFF_MILLIS, INITIAL_BACKOFF_MILLIS << Math.min(attemptNumber, 16));
+            try {
+                Thread.sleep(Math.min(remaining, ThreadLocalRandom.current().nextLong(backoff) + 1));
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+                throw lastError;
+            }
+
+            try {
+                T result = attempt.run();
+                instance.recovered.increment();
+                return result;
+            } catch (SQLException e) {
+                if (!isBusyOrLocked(e)) {
+                    throw e;
+                }
+                lastError = e;
+            }
+        }
+    }
+
+    static boolean isBusyOrLocked(SQLException e) {
+        Throwable curr = e;
+        while (curr != null) {
+            if (curr instanceof SQLException) {
+                // extended result codes keep the primary code in the lowest byte
+                int primaryCode = ((SQLException) curr).getErrorCode() & 0xff;
+                if (primaryCode == SQLITE_BUSY || primaryCode == SQLITE_LOCKED) {
+                    return true;
+                }
+            }
+            curr = curr.getCause();
+        }
+        return false;
+    }
+
+    // number of times an operation was retried because the database was busy or locked
+    public long getRetryCount() {
+        return retries.sum();
+    }
+
+    // number of operations that succeeded after at least one retry
+    public long getRecoveredCount() {
+        return recovered.sum();
+    }
+
+    // number of operations that still failed once the retry budget was used up
+    public long getExhaustedCount() {
+        return exhausted.sum();
+    }
+
+    @FunctionalInterface
+    interface Attempt<T> {
+        T run() throws SQLException;
+    }
+}
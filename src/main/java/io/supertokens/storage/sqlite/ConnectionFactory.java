@@ -0,0 +1,123 @@
+/*
+ *    Copyright (c) 2020, VRAI Labs and/or its affiliates. All rights reserved.
+ *
+ *    This software is licensed under the Apache License, Version 2.0 (the
+ *    "License") as published by the Apache Software Foundation.
+ *
+ *    You may not use this file except in compliance with the License. You may
+ *    obtain a copy of the License at http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *    Unless required by applicable law or agreed to in writing, software
+ *    distributed under the License is distributed on an "AS IS" BASIS, WITHOUT
+ *    WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied. See the
+ *    License for the specific language governing permissions and limitations
+ *    under the License.
+ *
+ */
+
+package io.supertokens.storage.sqlite;
+
+import javax.sql.DataSource;
+import java.io.PrintWriter;
+import java.sql.Connection;
+import java.sql.Driver;
+import java.sql.SQLException;
+import java.sql.SQLFeatureNotSupportedException;
+import java.sql.Statement;
+import java.util.List;
+import java.util.Properties;
+import java.util.logging.Logger;
+
+// This is the data source that Hikari uses to open new physical connections to SQLite. We open them ourselves, rather
+// than letting Hikari do it from a JDBC url, so that each connection can be given its own statement cache. initQueries
+// are run on each new connection before anything else, which is how other database files are ATTACHed to it. With
+// sqlite_slow_query_log_enabled, the statements that a connection prepares are timed, under its statement cache.
+class ConnectionFactory implements DataSource {
+
+    private final Driver driver;
+    private final String url;
+    private final Properties properties;
+    private final List<String> initQueries;
+    private final int statementCacheSize;
+    private final StatementCache.Stats statementCacheStats;
+    // null if statements are not timed
+    private final SlowQueryLog slowQueryLog;
+
+    ConnectionFactory(String url, Properties properties, List<String> initQueries, int statementCacheSize,
+                      StatementCache.Stats statementCacheStats, SlowQueryLog slowQueryLog) {
+        try {
+            this.driver = (Driver) Class.forName("org.sqlite.JDBC").newInstance();
+        } catch (ReflectiveOperationException e) {
+            throw new RuntimeException(e);
+        }
+        this.url = url;
+        this.properties = properties;
+        this.initQueries = initQueries;
+        this.statementCacheSize = statementCacheSize;
+        this.statementCacheStats = statementCacheStats;
+        this.slowQueryLog = slowQueryLog;
+    }
+
+    @Override
+    public Connection getConnection() throws SQLException {
+        Connection con = driver.connect(url, properties);
+        if (!initQueries.isEmpty()) {
+            try (Statement stmt = con.createStatement()) {
+                for (String query : initQueries) {
+                    stmt.execute(query);
+                }
+            } catch (SQLException e) {
+                con.close();
+                throw e;
+            }
+        }
+        if (slowQueryLog != null) {
+            con = slowQueryLog.wrap(con);
+        }
+        if (statementCacheSize == 0) {
+            return con;
+        }
+        return StatementCache.wrap(con, statementCacheSize, statementCacheStats);
+    }
+
+    @Override
+    public Connection getConnection(String username, String password) throws SQLException {
+        return getConnection();
+    }
+
+    @Override
+    public PrintWriter getLogWriter() {
+        return null;
+    }
+
+    @Override
+    public void setLogWriter(PrintWriter out) {
+    }
+
+    @Override
+    public void setLoginTimeout(int seconds) {
+    }
+
+    @Override
+    public int getLoginTimeout() {
+        return 0;
+    }
+
+    @Override
+    public Logger getParentLogger() throws SQLFeatureNotSupportedException {
+        throw new SQLFeatureNotSupportedException();
+    }
+
+    @Override
+    public <T> T unwrap(Class<T> iface) throws SQLException {
+        if (iface.isInstance(this)) {
+            return iface.cast(this);
+        }
+        throw new SQLException("Cannot unwrap to " + iface.getName());
+    }
+
+    @Override
+    public boolean isWrapperFor(Class<?> iface) {
+        return iface.isInstance(this);
+    }
+}
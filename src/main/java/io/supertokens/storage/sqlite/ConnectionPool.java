@@ -24,40 +24,206 @@ import io.supertokens.storage.sqlite.config.Config;
 import io.supertokens.storage.sqlite.config.SQLiteConfig;
 import io.supertokens.storage.sqlite.output.Logging;
 import io.supertokens.storage.sqlite.utils.Utils;
+import org.sqlite.SQLiteConnection;
 
+import java.io.File;
 import java.sql.Connection;
+import java.sql.ResultSet;
 import java.sql.SQLException;
+import java.sql.Statement;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.Properties;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.LongAdder;
 
 class ConnectionPool extends ResourceDistributor.SingletonResource {
 
-    private static final String RESOURCE_KEY = "io.supertokens.storage.sqlite.ConnectionPool";
-    private final HikariDataSource ds;
+    private static final ResourceDistributor.Key<ConnectionPool> RESOURCE_KEY =
+            ResourceDistributor.newKey(ConnectionPool.class);
+    private static final int SQLITE_OK = 0;
+    // the name under which the sessions database of a shard is ATTACHed to the connections of its past tokens database
+    static final String SESSIONS_SCHEMA = "sessions_db";
+
+    // Sessions and past tokens can be spread over sqlite_number_of_shards shards, by a hash of their session handle,
+    // so that writes to different shards do not wait for each other. Normally each shard is one database file, and
+    // shard 0 is the usual database file, which also holds the key_value table.
+    //
+    // With sqlite_separate_table_files, the sessions and the past tokens of each shard are kept in database files of
+    // their own, and the usual database file only holds the key_value table. Writes to the three tables then do not
+    // wait for each other either.
+    //
+    // A database is referred to by its index in this array, in the order of getDatabasePaths.
+    private final Database[] databases;
+    // the database that keeps the sessions, and the one that keeps the past tokens, of each shard
+    private final int[] sessionsDatabases;
+    private final int[] pastTokensDatabases;
+    // runs queries on all shards at once. null if there is only one shard.
+    private final ExecutorService fanOutExecutor;
+    // null if SQLite checkpoints the WALs itself
+    private final WalCheckpointer walCheckpointer;
+    // With sqlite_in_memory, each database is a shared cache in-memory database named this, followed by its index. It
+    // is loaded from its file when the pool starts, and snapshots writes it back. null otherwise.
+    private final String inMemoryName;
+    private final InMemorySnapshots snapshots;
+    private final StatementCache.Stats statementCacheStats = new StatementCache.Stats();
+    // null without sqlite_metrics_enabled
+    private final PoolMetrics poolMetrics;
+    // null without sqlite_slow_query_log_enabled
+    private final SlowQueryLog slowQueryLog;
 
     private ConnectionPool(Start start) {
         if (!start.enabled) {
             throw new RuntimeException("Connection to refused");   // emulates exception thrown by Hikari
         }
-        HikariConfig config = new HikariConfig();
         SQLiteConfig userConfig = Config.getConfig(start);
+        // before the pools are created, which is when they ask for a tracker
+        poolMetrics = userConfig.isMetricsEnabled() ? new PoolMetrics() : null;
+        slowQueryLog = userConfig.isSlowQueryLogEnabled() ? new SlowQueryLog(start, userConfig) : null;
+        int numberOfShards = userConfig.getNumberOfShards();
+        boolean separateTableFiles = userConfig.isSeparateTableFilesEnabled();
+        sessionsDatabases = new int[numberOfShards];
+        pastTokensDatabases = new int[numberOfShards];
+        for (int shard = 0; shard < numberOfShards; shard++) {
+            sessionsDatabases[shard] = separateTableFiles ? 1 + shard : shard;
+            pastTokensDatabases[shard] = separateTableFiles ? 1 + numberOfShards + shard : shard;
+        }
+        List<String> paths = getDatabasePaths(userConfig);
+        databases = new Database[paths.size()];
+        // unique, so that two pools in the same JVM never share an in-memory database
+        inMemoryName = userConfig.isInMemoryEnabled() ? "supertokens-" + Utils.getUUID() + "-" : null;
+        boolean newTableFiles = separateTableFiles && !new File(paths.get(sessionsDatabases[0])).exists();
+        boolean newShards = numberOfShards > 1 &&
+                !new File(paths.get(sessionsDatabases[numberOfShards - 1])).exists();
+        try {
+            databases[0] = openDatabase(start, userConfig, paths, 0);
+            // Sessions that are already in the usual database file would not be found in the files of their own, nor
+            // would sessions that are already in shard 0 be found in another shard. This is checked before the new
+            // files are created, so that the next start with the old config still works.
+            if (newTableFiles && databases[0].hasSessions(userConfig)) {
+                throw new QuitProgramFromPluginException(
+                        "The database was used without 'sqlite_separate_table_files' in the config.yaml file");
+            }
+            if (databases[sessionsDatabases[0]] == null) {
+                databases[sessionsDatabases[0]] = openDatabase(start, userConfig, paths, sessionsDatabases[0]);
+            }
+            if (newShards && databases[sessionsDatabases[0]].hasSessions(userConfig)) {
+                throw new QuitProgramFromPluginException(
+                        "The database was used with fewer shards than 'sqlite_number_of_shards' in the config.yaml " +
+                                "file");
+            }
+            // the sessions databases are opened before the past tokens databases that ATTACH them
+            for (int i = 1; i < databases.length; i++) {
+                if (databases[i] == null) {
+                    databases[i] = openDatabase(start, userConfig, paths, i);
+                }
+            }
+        } catch (RuntimeException e) {
+            closeDatabases();
+            throw e;
+        }
+        fanOutExecutor = numberOfShards == 1 ? null : Executors.newFixedThreadPool(numberOfShards - 1, runnable -> {
+            Thread thread = new Thread(runnable, "SuperTokens-sqlite-shard-reader-" + start.getProcessId());
+            thread.setDaemon(true);
+            return thread;
+        });
+        walCheckpointer = usesWalCheckpointer(userConfig) ?
+                new WalCheckpointer(start, databases, userConfig.getWalCheckpointIntervalMillis(),
+                        userConfig.getWalTruncateSizeBytes()) : null;
+        snapshots = userConfig.isInMemoryEnabled() ?
+                new InMemorySnapshots(start, databases, userConfig.getInMemoryFlushIntervalSeconds()) : null;
+    }
+
+    // in-memory databases have no WAL
+    private static boolean usesWalCheckpointer(SQLiteConfig userConfig) {
+        return userConfig.getJournalMode().equals("WAL") && userConfig.getWalCheckpointIntervalMillis() > 0 &&
+                !userConfig.isInMemoryEnabled();
+    }
 
-        config.setDriverClassName("org.sqlite.JDBC");
+    // The paths of all the database files, in the order of their index. These are the files of shards 0 to n - 1, or
+    // with sqlite_separate_table_files, the usual database file, then the sessions files of shards 0 to n - 1 and then
+    // their past tokens files.
+    static List<String> getDatabasePaths(SQLiteConfig userConfig) {
+        List<String> paths = new ArrayList<>();
+        if (!userConfig.isSeparateTableFilesEnabled()) {
+            for (int shard = 0; shard < userConfig.getNumberOfShards(); shard++) {
+                paths.add(Utils.getDatabasePath(userConfig, shard));
+            }
+            return paths;
+        }
+        paths.add(Utils.getDatabasePath(userConfig));
+        for (String tables : new String[]{"sessions", "past_tokens"}) {
+            for (int shard = 0; shard < userConfig.getNumberOfShards(); shard++) {
+                paths.add(Utils.getDatabasePath(userConfig, tables, shard));
+            }
+        }
+        return paths;
+    }
+
+    private Database openDatabase(Start start, SQLiteConfig userConfig, List<String> paths, int database) {
+        int numberOfShards = sessionsDatabases.length;
+        if (database == 0 || !userConfig.isSeparateTableFilesEnabled()) {
+            return new Database(start, userConfig, paths.get(database), getLocation(paths, database),
+                    database == 0 ? "" : "-shard" + database, userConfig.getSynchronous(), Collections.emptyList());
+        }
+        String shardSuffix = (database - 1) % numberOfShards == 0 ? "" : "-shard" + (database - 1) % numberOfShards;
+        if (database <= numberOfShards) {
+            return new Database(start, userConfig, paths.get(database), getLocation(paths, database),
+                    "-sessions" + shardSuffix, userConfig.getSynchronous(), Collections.emptyList());
+        }
+        // the orphaned past tokens are found by looking for their session in the sessions database of the shard
+        String sessionsLocation = getLocation(paths, database - numberOfShards);
+        return new Database(start, userConfig, paths.get(database), getLocation(paths, database),
+                "-past-tokens" + shardSuffix, userConfig.getPastTokensSynchronous(), Collections.singletonList(
+                "ATTACH DATABASE '" + sessionsLocation.replace("'", "''") + "' AS " + SESSIONS_SCHEMA));
+    }
+
+    // what SQLite opens for the database: its file, or the URI of its in-memory database
+    private String getLocation(List<String> paths, int database) {
+        if (inMemoryName == null) {
+            return paths.get(database);
+        }
+        return "file:" + inMemoryName + database + "?mode=memory&cache=shared";
+    }
+
+    private HikariConfig getBaseConfig(SQLiteConfig userConfig, String location, String synchronous,
+                                       List<String> initQueries) {
+        HikariConfig config = new HikariConfig();
+        config.setDataSource(getConnectionFactory(userConfig, location, synchronous, initQueries,
+                userConfig.getStatementCacheSize()));
+        config.setConnectionTimeout(userConfig.getConnectionTimeoutMillis());
+        config.setMaxLifetime(userConfig.getMaxLifetimeMillis());
+        config.setIdleTimeout(userConfig.getIdleTimeoutMillis());
+        if (poolMetrics != null) {
+            config.setMetricsTrackerFactory(poolMetrics);
+        }
+        return config;
+    }
+
+    private ConnectionFactory getConnectionFactory(SQLiteConfig userConfig, String location, String synchronous,
+                                                   List<String> initQueries, int statementCacheSize) {
+        // these are read by sqlite-jdbc when it opens a connection and are applied as PRAGMAs to it.
+        Properties properties = new Properties();
+        // an in-memory database can only keep its journal in memory
+        properties.setProperty("journal_mode", inMemoryName != null ? "MEMORY" : userConfig.getJournalMode());
+        properties.setProperty("synchronous", synchronous);
+        properties.setProperty("mmap_size", String.valueOf(userConfig.getMmapSize()));
+        properties.setProperty("cache_size", String.valueOf(userConfig.getCacheSize()));
+        properties.setProperty("temp_store", userConfig.getTempStore());
+        properties.setProperty("busy_timeout", String.valueOf(userConfig.getBusyTimeout()));
         //have to set the connection url to the file path of the database
-        config.setJdbcUrl("jdbc:sqlite:" + Utils.getDatabasePath(userConfig));
-        config.setMaximumPoolSize(userConfig.getConnectionPoolSize());
-        config.addDataSourceProperty("cachePrepStmts", "true");
-        config.addDataSourceProperty("prepStmtCacheSize", "250");
-        config.addDataSourceProperty("prepStmtCacheSqlLimit", "2048");
-        // TODO: set maxLifetimeValue to lesser than 10 mins so that the following error doesnt happen:
-        // io.supertokens.storage.sqlite.HikariLoggingAppender.doAppend(HikariLoggingAppender.java:117) |
-        // SuperTokens
-        // - Failed to validate connection org.mariadb.jdbc.MariaDbConnection@79af83ae (Connection.setNetworkTimeout
-        // cannot be called on a closed connection). Possibly consider using a shorter maxLifetime value.
-        config.setPoolName("SuperTokens");
-        ds = new HikariDataSource(config);
+        return new ConnectionFactory("jdbc:sqlite:" + location, properties, initQueries, statementCacheSize,
+                statementCacheStats, slowQueryLog);
     }
 
     private static ConnectionPool getInstance(Start start) {
-        return (ConnectionPool) start.getResourceDistributor().getResource(RESOURCE_KEY);
+        return start.getResourceDistributor().getResource(RESOURCE_KEY);
     }
 
     static void initPool(Start start) {
@@ -68,23 +234,408 @@ class ConnectionPool extends ResourceDistributor.SingletonResource {
             throw new QuitProgramFromPluginException("Should not come here");
         }
         Logging.info(start, "Setting up SQLite connection pool.");
+        SQLiteConfig userConfig = Config.getConfig(start);
+        Logging.info(start, "SQLite pragmas: journal_mode=" + userConfig.getJournalMode() + ", synchronous=" +
+                userConfig.getSynchronous() + ", mmap_size=" + userConfig.getMmapSize() + ", cache_size=" +
+                userConfig.getCacheSize() + ", temp_store=" + userConfig.getTempStore() + ", busy_timeout=" +
+                userConfig.getBusyTimeout() + ", wal_autocheckpoint=" +
+                (usesWalCheckpointer(userConfig) ? "0 (checkpointed every " +
+                        userConfig.getWalCheckpointIntervalMillis() + " ms)" : userConfig.getWalAutoCheckpoint()));
+        if (userConfig.isInMemoryEnabled()) {
+            Logging.info(start, "SQLite databases are kept in memory and written to disk every " +
+                    userConfig.getInMemoryFlushIntervalSeconds() + " seconds.");
+        }
+        // a database that was used with more shards would have sessions that can no longer be found
+        String tables = userConfig.isSeparateTableFilesEnabled() ? "sessions" : null;
+        if (new File(Utils.getDatabasePath(userConfig, tables, userConfig.getNumberOfShards())).exists()) {
+            throw new QuitProgramFromPluginException(
+                    "The database was used with more shards than 'sqlite_number_of_shards' in the config.yaml file");
+        }
+        // and so would one whose sessions are in files of their own
+        if (!userConfig.isSeparateTableFilesEnabled() &&
+                new File(Utils.getDatabasePath(userConfig, "sessions", 0)).exists()) {
+            throw new QuitProgramFromPluginException(
+                    "The database was used with 'sqlite_separate_table_files' in the config.yaml file");
+        }
         start.getResourceDistributor().setResource(RESOURCE_KEY, new ConnectionPool(start));
     }
 
-    static Connection getConnection(Start start) throws SQLException {
-        if (getInstance(start) == null) {
+    private static ConnectionPool getInstanceOrThrow(Start start) throws SQLException {
+        ConnectionPool instance = getInstance(start);
+        if (instance == null) {
             throw new QuitProgramFromPluginException("Please call initPool before getConnection");
         }
         if (!start.enabled) {
             throw new SQLException("Storage layer disabled");
         }
-        return getInstance(start).ds.getConnection();
+        return instance;
+    }
+
+    static int getNumberOfShards(Start start) throws SQLException {
+        return getInstanceOrThrow(start).sessionsDatabases.length;
+    }
+
+    // the shard that keeps the session with this handle and its past tokens. This must never change for a database,
+    // so it only uses String.hashCode, which is the same on every JVM.
+    static int getShard(Start start, String sessionHandle) throws SQLException {
+        return Math.floorMod(sessionHandle.hashCode(), getNumberOfShards(start));
+    }
+
+    static int getNumberOfDatabases(Start start) throws SQLException {
+        return getInstanceOrThrow(start).databases.length;
+    }
+
+    static int getSessionsDatabase(Start start, int shard) throws SQLException {
+        return getInstanceOrThrow(start).sessionsDatabases[shard];
+    }
+
+    static int getSessionsDatabase(Start start, String sessionHandle) throws SQLException {
+        return getSessionsDatabase(start, getShard(start, sessionHandle));
+    }
+
+    // the sessions database of every shard. The array must not be changed.
+    static int[] getSessionsDatabases(Start start) throws SQLException {
+        return getInstanceOrThrow(start).sessionsDatabases;
+    }
+
+    static int getPastTokensDatabase(Start start, int shard) throws SQLException {
+        return getInstanceOrThrow(start).pastTokensDatabases[shard];
+    }
+
+    static int getPastTokensDatabase(Start start, String sessionHandle) throws SQLException {
+        return getPastTokensDatabase(start, getShard(start, sessionHandle));
+    }
+
+    // the past tokens database of every shard. The array must not be changed.
+    static int[] getPastTokensDatabases(Start start) throws SQLException {
+        return getInstanceOrThrow(start).pastTokensDatabases;
+    }
+
+    // runs work that only reads from the usual database file, which holds the key_value table
+    static <T> T read(Start start, Work<T> work) throws SQLException {
+        return read(start, 0, work);
+    }
+
+    // runs work that only reads from the database on one of the query only connections. Both read and write are
+    // retried if SQLite reports that the database is busy or locked.
+    static <T> T read(Start start, int database, Work<T> work) throws SQLException {
+        Database instance = getInstanceOrThrow(start).databases[database];
+        return BusyRetry.run(start, () -> {
+            OperationMetrics.Context metrics = OperationMetrics.current(start);
+            long requestedNanos = metrics == null ? 0 : System.nanoTime();
+            try (Connection con = instance.readDs.getConnection()) {
+                return runMeasured(metrics, requestedNanos, con, work);
+            }
+        });
+    }
+
+    // runs work that only reads on each of the given databases at the same time, and returns what it returned for
+    // each of them
+    static <T> List<T> readFromAll(Start start, int[] databases, Work<T> work) throws SQLException {
+        ConnectionPool instance = getInstanceOrThrow(start);
+        if (instance.fanOutExecutor == null || databases.length == 1) {
+            List<T> results = new ArrayList<>();
+            for (int database : databases) {
+                results.add(read(start, database, work));
+            }
+            return results;
+        }
+        List<Future<T>> futures = new ArrayList<>();
+        for (int i = 1; i < databases.length; i++) {
+            int database = databases[i];
+            futures.add(instance.fanOutExecutor.submit(() -> read(start, database, work)));
+        }
+        List<T> results = new ArrayList<>();
+        try {
+            results.add(read(start, databases[0], work));
+            for (Future<T> future : futures) {
+                results.add(future.get());
+            }
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new SQLException(e);
+        } catch (ExecutionException e) {
+            Throwable cause = e.getCause();
+            if (cause instanceof SQLException) {
+                throw (SQLException) cause;
+            }
+            if (cause instanceof RuntimeException) {
+                throw (RuntimeException) cause;
+            }
+            throw new SQLException(cause);
+        } finally {
+            for (Future<T> future : futures) {
+                future.cancel(false);
+            }
+        }
+        return results;
+    }
+
+    // runs work that modifies the usual database file, which holds the key_value table
+    static <T> T write(Start start, Work<T> work) throws SQLException {
+        return write(start, 0, work);
+    }
+
+    // runs work that modifies the database on the writer connection, once all earlier writers are done with it. If
+    // write batching is enabled, the work is committed together with other concurrent writes.
+    static <T> T write(Start start, int database, Work<T> work) throws SQLException {
+        Database instance = getInstanceOrThrow(start).databases[database];
+        return BusyRetry.run(start, () -> {
+            if (instance.writeBatcher != null) {
+                return instance.writeBatcher.submit(work);
+            }
+            return instance.runOnWriter(work);
+        });
+    }
+
+    // Runs work on a new connection that is closed afterwards. It is in no pool and is not query only, so that long
+    // running statements like VACUUM INTO neither take a connection from the readers nor wait for the writer. It has
+    // no statement cache.
+    //
+    // With sqlite_in_memory, the work runs on the writer instead. Connections to a shared cache lock whole tables, so
+    // a long read on another connection would keep the writer from writing to them until it is done, and every write
+    // would fail and be retried meanwhile.
+    static <T> T runOnOwnConnection(Start start, int database, Work<T> work) throws SQLException {
+        ConnectionPool pool = getInstanceOrThrow(start);
+        Database instance = pool.databases[database];
+        if (pool.inMemoryName != null) {
+            return BusyRetry.run(start, () -> instance.runOnWriter(work));
+        }
+        OperationMetrics.Context metrics = OperationMetrics.current(start);
+        long requestedNanos = metrics == null ? 0 : System.nanoTime();
+        try (Connection con = instance.ownConnections.getConnection()) {
+            return runMeasured(metrics, requestedNanos, con, work);
+        }
+    }
+
+    // runs work on con, and with metrics, counts the time since requestedNanos as waiting for the connection and the
+    // time that work takes as executing
+    private static <T> T runMeasured(OperationMetrics.Context metrics, long requestedNanos, Connection con,
+                                     Work<T> work) throws SQLException {
+        if (metrics == null) {
+            return work.doWork(con);
+        }
+        long begunNanos = System.nanoTime();
+        try {
+            return work.doWork(con);
+        } finally {
+            metrics.recordConnectionUse(requestedNanos, begunNanos, System.nanoTime());
+        }
+    }
+
+    // runs work on the writer connection like write, but never in a write batch, for work that has to run outside of
+    // a transaction
+    static <T> T writeOutsideBatch(Start start, int database, Work<T> work) throws SQLException {
+        Database instance = getInstanceOrThrow(start).databases[database];
+        return BusyRetry.run(start, () -> instance.runOnWriter(work));
+    }
+
+    static WalCheckpointer getWalCheckpointer(Start start) {
+        ConnectionPool instance = getInstance(start);
+        return instance == null ? null : instance.walCheckpointer;
+    }
+
+    static InMemorySnapshots getInMemorySnapshots(Start start) {
+        ConnectionPool instance = getInstance(start);
+        return instance == null ? null : instance.snapshots;
+    }
+
+    static PoolMetrics getPoolMetrics(Start start) {
+        ConnectionPool instance = getInstance(start);
+        return instance == null ? null : instance.poolMetrics;
+    }
+
+    static SlowQueryLog getSlowQueryLog(Start start) {
+        ConnectionPool instance = getInstance(start);
+        return instance == null ? null : instance.slowQueryLog;
+    }
+
+    static StatementCache.Stats getStatementCacheStats(Start start) {
+        ConnectionPool instance = getInstance(start);
+        return instance == null ? null : instance.statementCacheStats;
     }
 
     static void close(Start start) {
-        if (getInstance(start) == null) {
+        ConnectionPool instance = getInstance(start);
+        if (instance == null) {
             return;
         }
-        getInstance(start).ds.close();
+        if (instance.fanOutExecutor != null) {
+            instance.fanOutExecutor.shutdownNow();
+        }
+        if (instance.walCheckpointer != null) {
+            instance.walCheckpointer.stop();
+        }
+        if (instance.snapshots != null) {
+            // the last chance to keep what was written since the last snapshot
+            instance.snapshots.stop();
+        }
+        instance.closeDatabases();
+    }
+
+    private void closeDatabases() {
+        for (Database database : databases) {
+            if (database != null) {
+                database.close();
+            }
+        }
+    }
+
+    // One database file, with its own pool of read connections and its own writer.
+    //
+    // SQLite allows only one writer per database file. So all writes go through a single connection and callers
+    // queue for it in FIFO order instead of racing each other for the file lock. Reads use their own pool of query
+    // only connections so that they never wait behind this queue.
+    class Database {
+        // the file of the database, or with sqlite_in_memory, the file that it is loaded from and written back to
+        final String path;
+        private final Start start;
+        private final long writeLockTimeoutMillis;
+        private final HikariDataSource readDs;
+        private final HikariDataSource writeDs;
+        private final Semaphore writeLock = new Semaphore(1, true);
+        private final WriteBatcher writeBatcher;
+        private final ConnectionFactory ownConnections;
+        private final LongAdder writes = new LongAdder();
+        // keeps an in-memory database from being deleted when the pools happen to close all their connections to it.
+        // null for a database file.
+        private final Connection inMemoryKeeper;
+
+        private Database(Start start, SQLiteConfig userConfig, String path, String location, String poolNameSuffix,
+                         String synchronous, List<String> initQueries) {
+            this.path = path;
+            this.start = start;
+            // waiting for the lock is how callers wait for the writer, so it is bounded like waiting for a connection
+            this.writeLockTimeoutMillis = userConfig.getConnectionTimeoutMillis();
+            ownConnections = getConnectionFactory(userConfig, location, synchronous, initQueries, 0);
+            inMemoryKeeper = inMemoryName == null ? null : openInMemory(start);
+
+            HikariConfig readConfig = getBaseConfig(userConfig, location, synchronous, initQueries);
+            readConfig.setMaximumPoolSize(userConfig.getConnectionPoolSize());
+            readConfig.setConnectionInitSql("PRAGMA query_only = true");
+            readConfig.setPoolName("SuperTokens-read" + poolNameSuffix);
+
+            HikariConfig writeConfig = getBaseConfig(userConfig, location, synchronous, initQueries);
+            writeConfig.setMaximumPoolSize(1);
+            // sqlite-jdbc does not know about this one, so we set it ourselves on every new connection. The writer is
+            // the only connection that commits, so it is the only one that would checkpoint.
+            writeConfig.setConnectionInitSql("PRAGMA wal_autocheckpoint = " +
+                    (usesWalCheckpointer(userConfig) ? 0 : userConfig.getWalAutoCheckpoint()));
+            writeConfig.setPoolName("SuperTokens-write" + poolNameSuffix);
+
+            try {
+                readDs = new HikariDataSource(readConfig);
+                try {
+                    writeDs = new HikariDataSource(writeConfig);
+                } catch (RuntimeException e) {
+                    readDs.close();
+                    throw e;
+                }
+            } catch (RuntimeException e) {
+                closeInMemoryKeeper();
+                throw e;
+            }
+
+            writeBatcher = userConfig.isWriteBatchingEnabled() ?
+                    new WriteBatcher(start, this, poolNameSuffix, userConfig.getWriteBatchMaxSize(),
+                            userConfig.getWriteBatchMaxDelayMicros()) : null;
+        }
+
+        // creates the in-memory database, with what is in its file if there is one
+        private Connection openInMemory(Start start) {
+            Connection con = null;
+            try {
+                con = ownConnections.getConnection();
+                if (new File(path).exists()) {
+                    long startTime = System.currentTimeMillis();
+                    int result = con.unwrap(SQLiteConnection.class).getDatabase().restore("main", path, null);
+                    if (result != SQLITE_OK) {
+                        throw new SQLException("Failed to load " + path + " into memory, SQLite error " + result);
+                    }
+                    Logging.info(start, "Loaded " + path + " into memory in " +
+                            (System.currentTimeMillis() - startTime) + " ms");
+                }
+                return con;
+            } catch (SQLException e) {
+                if (con != null) {
+                    try {
+                        con.close();
+                    } catch (SQLException ignored) {
+                    }
+                }
+                throw new QuitProgramFromPluginException(e);
+            }
+        }
+
+        private void closeInMemoryKeeper() {
+            if (inMemoryKeeper != null) {
+                try {
+                    inMemoryKeeper.close();
+                } catch (SQLException ignored) {
+                }
+            }
+        }
+
+        private boolean hasSessions(SQLiteConfig userConfig) {
+            try (Connection con = readDs.getConnection(); Statement stmt = con.createStatement()) {
+                for (String tableName : new String[]{userConfig.getSessionInfoTable(),
+                        userConfig.getPastTokensTable()}) {
+                    try (ResultSet result = stmt.executeQuery("SELECT 1 FROM " + tableName + " LIMIT 1")) {
+                        if (result.next()) {
+                            return true;
+                        }
+                    } catch (SQLException ignored) {
+                        // the table does not exist yet
+                    }
+                }
+                return false;
+            } catch (SQLException e) {
+                throw new QuitProgramFromPluginException(e);
+            }
+        }
+
+        <T> T runOnWriter(Work<T> work) throws SQLException {
+            // null on the threads of the write batcher and the other background work
+            OperationMetrics.Context metrics = OperationMetrics.current(start);
+            long requestedNanos = metrics == null ? 0 : System.nanoTime();
+            try {
+                if (!writeLock.tryAcquire(writeLockTimeoutMillis, TimeUnit.MILLISECONDS)) {
+                    throw new SQLException("Timed out waiting for the SQLite write connection");
+                }
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+                throw new SQLException(e);
+            }
+            try (Connection con = writeDs.getConnection()) {
+                writes.increment();
+                return runMeasured(metrics, requestedNanos, con, work);
+            } finally {
+                writeLock.release();
+            }
+        }
+
+        // number of times the writer has been used
+        long getWriteCount() {
+            return writes.sum();
+        }
+
+        // a new connection like those of runOnOwnConnection, which the caller has to close
+        Connection getOwnConnection() throws SQLException {
+            return ownConnections.getConnection();
+        }
+
+        private void close() {
+            if (writeBatcher != null) {
+                writeBatcher.stop();
+            }
+            readDs.close();
+            writeDs.close();
+            closeInMemoryKeeper();
+        }
+    }
+
+    @FunctionalInterface
+    interface Work<T> {
+        T doWork(Connection con) throws SQLException;
     }
 }
@@ -0,0 +1,145 @@
+/*
+ *    Copyright (c) 2020, VRAI Labs and/or its affiliates. All rights reserved.
+ *
+ *    This software is licensed under the Apache License, Version 2.0 (the
+ *    "License") as published by the Apache Software Foundation.
+ *
+ *    You may not use this file except in compliance with the License. You may
+ *    obtain a copy of the License at http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *    Unless required by applicable law or agreed to in writing, software
+ *    distributed under the License is distributed on an "AS IS" BASIS, WITHOUT
+ *    WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied. See the
+ *    License for the specific language governing permissions and limitations
+ *    under the License.
+ *
+ */
+
+package io.supertokens.storage.sqlite;
+
+import io.supertokens.storage.sqlite.config.Config;
+import io.supertokens.storage.sqlite.config.SQLiteConfig;
+
+import java.sql.SQLException;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.LongAdder;
+
+// Deletes expired sessions a chunk at a time. Each chunk is its own short write, so the writer is free for other
+// writes between chunks instead of being held for the whole delete. A run stops early once it has used up
+// sqlite_expired_sessions_delete_time_budget_millis or sqlite_expired_sessions_delete_row_budget, and the next cron
+// run carries on from there.
+public class ExpiredSessionReaper extends ResourceDistributor.SingletonResource {
+
+    private static final ResourceDistributor.Key<ExpiredSessionReaper> RESOURCE_KEY =
+            ResourceDistributor.newKey(ExpiredSessionReaper.class);
+
+    private final int chunkSize;
+    private final long timeBudgetNanos;
+    private final long rowBudget;
+
+    private final LongAdder rowsDeleted = new LongAdder();
+    private final LongAdder chunks = new LongAdder();
+    private final LongAdder runs = new LongAdder();
+    private final LongAdder runsStoppedByBudget = new LongAdder();
+    private final AtomicLong maxChunkNanos = new AtomicLong();
+
+    private ExpiredSessionReaper(SQLiteConfig config) {
+        this.chunkSize = config.getExpiredSessionsDeleteChunkSize();
+        this.timeBudgetNanos = TimeUnit.MILLISECONDS.toNanos(config.getExpiredSessionsDeleteTimeBudgetMillis());
+        this.rowBudget = config.getExpiredSessionsDeleteRowBudget();
+    }
+
+    public static ExpiredSessionReaper getInstance(Start start) {
+        ExpiredSessionReaper instance = start.getResourceDistributor().getResource(RESOURCE_KEY);
+        if (instance == null) {
+            instance = start.getResourceDistributor().setResource(RESOURCE_KEY,
+                    new ExpiredSessionReaper(Config.getConfig(start)));
+        }
+        return instance;
+    }
+
+    // returns the number of sessions deleted by this run
+    static int deleteAllExpiredSessions(Start start) throws SQLException {
+        return getInstance(start).run(start);
+    }
+
+    private int run(Start start) throws SQLException {
+        runs.increment();
+        // fixed for the whole run, so that sessions expiring while it runs do not keep it going
+        long expiredAt = System.currentTimeMillis();
+        int numberOfShards = ConnectionPool.getNumberOfShards(start);
+        int total = 0;
+        if (chunkSize == 0) {
+            for (int shard = 0; shard < numberOfShards; shard++) {
+                long startTime = System.nanoTime();
+                int deleted = Queries.deleteAllExpiredSessions(start, shard, expiredAt);
+                recordChunk(deleted, System.nanoTime() - startTime);
+                total += deleted;
+            }
+            return total;
+        }
+
+        // the budgets are for the whole run, over all the shards
+        long runStartTime = System.nanoTime();
+        for (int shard = 0; shard < numberOfShards; shard++) {
+            while (true) {
+                int limit = chunkSize;
+                if (rowBudget > 0) {
+                    limit = (int) Math.min(limit, rowBudget - total);
+                }
+                long startTime = System.nanoTime();
+                int deleted = Queries.deleteExpiredSessionsChunk(start, shard, expiredAt, limit);
+                recordChunk(deleted, System.nanoTime() - startTime);
+                total += deleted;
+                boolean shardDone = deleted < limit;
+                if (shardDone && shard == numberOfShards - 1) {
+                    return total;
+                }
+                if ((rowBudget > 0 && total >= rowBudget) ||
+                        (timeBudgetNanos > 0 && System.nanoTime() - runStartTime >= timeBudgetNanos)) {
+                    runsStoppedByBudget.increment();
+                    return total;
+                }
+                if (shardDone) {
+                    break;
+                }
+                // lets threads waiting for the writer get it before the next chunk
+                Thread.yield();
+            }
+        }
+        return total;
+    }
+
+    private void recordChunk(int deleted, long nanos) {
+        rowsDeleted.add(deleted);
+        chunks.increment();
+        long max = maxChunkNanos.get();
+        while (nanos > max && !maxChunkNanos.compareAndSet(max, nanos)) {
+            max = maxChunkNanos.get();
+        }
+    }
+
+    public long getRowsDeletedCount() {
+        return rowsDeleted.sum();
+    }
+
+    public long getChunkCount() {
+        return chunks.sum();
+    }
+
+    public long getRunCount() {
+        return runs.sum();
+    }
+
+    // number of runs that stopped before deleting every expired session
+    public long getRunsStoppedByBudgetCount() {
+        return runsStoppedByBudget.sum();
+    }
+
+    // longest time taken by one chunk, including the wait for the writer. This is an upper bound on how long a chunk
+    // held the write lock.
+    public long getMaxChunkNanos() {
+        return maxChunkNanos.get();
+    }
+}
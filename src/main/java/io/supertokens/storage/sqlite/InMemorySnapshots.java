@@ -0,0 +1,232 @@
+/*
+ *    Copyright (c) 2020, VRAI Labs and/or its affiliates. All rights reserved.
+ *
+ *    This software is licensed under the Apache License, Version 2.0 (the
+ *    "License") as published by the Apache Software Foundation.
+ *
+ *    You may not use this file except in compliance with the License. You may
+ *    obtain a copy of the License at http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *    Unless required by applicable law or agreed to in writing, software
+ *    distributed under the License is distributed on an "AS IS" BASIS, WITHOUT
+ *    WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied. See the
+ *    License for the specific language governing permissions and limitations
+ *    under the License.
+ *
+ */
+
+package io.supertokens.storage.sqlite;
+
+import io.supertokens.pluginInterface.exceptions.StorageQueryException;
+import io.supertokens.storage.sqlite.output.Logging;
+import org.sqlite.SQLiteConnection;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.channels.FileChannel;
+import java.nio.file.Files;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
+import java.sql.SQLException;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.LongAdder;
+
+// With sqlite_in_memory, writes the in-memory databases back to their files every
+// sqlite_in_memory_flush_interval_seconds and when the storage is closed. What was written after the last snapshot is
+// lost if the process dies.
+//
+// Each database is copied with SQLite's backup API on its writer, so writes to it wait until the copy is done, while
+// reads go on. It is copied next to its file, synced to disk and then renamed over the file, so the file always has a
+// complete snapshot.
+//
+// The copy is one backup step, so the writer is held for as long as it takes to copy and sync the whole database. It
+// cannot be copied from a read connection instead: connections to a shared cache lock whole tables, so writes would
+// fail and be retried for as long as the copy reads, rather than wait. How long the writer was held is kept, and a
+// warning is logged once it is more than WARN_WRITER_STALL_MILLIS.
+public class InMemorySnapshots {
+
+    private static final long WAIT_FOR_STOP_SECONDS = 30;
+    private static final int SQLITE_OK = 0;
+    private static final long WARN_WRITER_STALL_MILLIS = 1000;
+
+    private final Start start;
+    private final ConnectionPool.Database[] databases;
+    // null if snapshots are only written at close
+    private final ScheduledExecutorService scheduler;
+    // writes counted by each database's writer at its last snapshot, so that unchanged databases are not written
+    private final long[] writesAtLastSnapshot;
+    // one snapshot at a time
+    private final Object snapshotLock = new Object();
+    // set by deleteAllInformation, whose deleted files must not be written again
+    private volatile boolean discarded = false;
+
+    private final LongAdder snapshots = new LongAdder();
+    private final LongAdder failedSnapshots = new LongAdder();
+    private volatile long lastSnapshotTime = 0;
+    private volatile long lastSnapshotDurationMillis = 0;
+    private volatile long lastWriterStallMillis = 0;
+    private volatile long maxWriterStallMillis = 0;
+
+    InMemorySnapshots(Start start, ConnectionPool.Database[] databases, long intervalSeconds) {
+        this.start = start;
+        this.databases = databases;
+        this.writesAtLastSnapshot = new long[databases.length];
+        for (int database = 0; database < databases.length; database++) {
+            // what is loaded at startup is already in the file
+            writesAtLastSnapshot[database] = databases[database].getWriteCount();
+        }
+        if (intervalSeconds == 0) {
+            this.scheduler = null;
+            return;
+        }
+        this.scheduler = Executors.newSingleThreadScheduledExecutor(runnable -> {
+            Thread thread = new Thread(runnable, "SuperTokens-sqlite-in-memory-snapshots-" + start.getProcessId());
+            thread.setDaemon(true);
+            return thread;
+        });
+        this.scheduler.scheduleWithFixedDelay(() -> {
+            try {
+                run();
+            } catch (SQLException | RuntimeException e) {
+                Logging.error(start, "Failed to write the in-memory SQLite database to disk", false, e);
+            }
+        }, intervalSeconds, intervalSeconds, TimeUnit.SECONDS);
+    }
+
+    // null if the databases are not in memory
+    public static InMemorySnapshots getInstance(Start start) {
+        return ConnectionPool.getInMemorySnapshots(start);
+    }
+
+    // writes the in-memory databases to their files now
+    public static void flush(Start start) throws StorageQueryException {
+        InMemorySnapshots instance = getInstance(start);
+        if (instance == null) {
+            return;
+        }
+        try {
+            instance.run();
+        } catch (SQLException e) {
+            throw new StorageQueryException(e);
+        }
+    }
+
+    // stops the scheduled snapshots and writes the last one
+    void stop() {
+        if (scheduler != null) {
+            scheduler.shutdownNow();
+            try {
+                scheduler.awaitTermination(WAIT_FOR_STOP_SECONDS, TimeUnit.SECONDS);
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+            }
+        }
+        try {
+            run();
+        } catch (SQLException | RuntimeException e) {
+            Logging.error(start, "Failed to write the in-memory SQLite database to disk", false, e);
+        }
+    }
+
+    void discard() {
+        discarded = true;
+    }
+
+    private void run() throws SQLException {
+        synchronized (snapshotLock) {
+            if (discarded) {
+                return;
+            }
+            long startTime = System.currentTimeMillis();
+            long longestStallMillis = 0;
+            try {
+                for (int database = 0; database < databases.length; database++) {
+                    ConnectionPool.Database instance = databases[database];
+                    if (instance.getWriteCount() == writesAtLastSnapshot[database] &&
+                            new File(instance.path).exists()) {
+                        continue;
+                    }
+                    int index = database;
+                    long stallMillis = BusyRetry.run(start, () -> instance.runOnWriter(con -> {
+                        long copyStartTime = System.currentTimeMillis();
+                        // counted while no other write can run, so that none is counted without being copied. Only
+                        // once the copy is in place, so that a database whose copy failed is written next time.
+                        long writes = instance.getWriteCount();
+                        copy(con.unwrap(SQLiteConnection.class), instance.path);
+                        writesAtLastSnapshot[index] = writes;
+                        return System.currentTimeMillis() - copyStartTime;
+                    }));
+                    longestStallMillis = Math.max(longestStallMillis, stallMillis);
+                }
+                snapshots.increment();
+                lastSnapshotTime = System.currentTimeMillis();
+                lastSnapshotDurationMillis = lastSnapshotTime - startTime;
+                lastWriterStallMillis = longestStallMillis;
+                maxWriterStallMillis = Math.max(maxWriterStallMillis, longestStallMillis);
+                String message = "In-memory SQLite snapshot took " + lastSnapshotDurationMillis +
+                        " ms, and writes waited for it for up to " + longestStallMillis + " ms";
+                if (longestStallMillis > WARN_WRITER_STALL_MILLIS) {
+                    Logging.warn(start, message);
+                } else {
+                    Logging.debug(start, message);
+                }
+            } catch (SQLException | RuntimeException e) {
+                failedSnapshots.increment();
+                throw e;
+            }
+        }
+    }
+
+    private static void copy(SQLiteConnection con, String path) throws SQLException {
+        File tempFile = new File(path + ".tmp");
+        try {
+            Files.deleteIfExists(tempFile.toPath());
+            int result = con.getDatabase().backup("main", tempFile.getPath(), null);
+            if (result != SQLITE_OK) {
+                throw new SQLException("Failed to write " + path + ", SQLite error " + result);
+            }
+            try (FileChannel channel = FileChannel.open(tempFile.toPath(), StandardOpenOption.WRITE)) {
+                channel.force(true);
+            }
+            // A WAL left next to the file would be applied to the new file when it is next opened. Once the file is
+            // loaded, there never is one, but if there is, it belongs to the old file.
+            Files.deleteIfExists(new File(path + "-wal").toPath());
+            Files.deleteIfExists(new File(path + "-shm").toPath());
+            Files.move(tempFile.toPath(), new File(path).toPath(), StandardCopyOption.REPLACE_EXISTING,
+                    StandardCopyOption.ATOMIC_MOVE);
+        } catch (IOException e) {
+            throw new SQLException(e);
+        }
+    }
+
+    // number of snapshots of all the databases that were written
+    public long getSnapshotCount() {
+        return snapshots.sum();
+    }
+
+    public long getFailedSnapshotCount() {
+        return failedSnapshots.sum();
+    }
+
+    // the time at which the last snapshot that succeeded finished, or 0. Writes after it are not on disk yet.
+    public long getLastSnapshotTime() {
+        return lastSnapshotTime;
+    }
+
+    public long getLastSnapshotDurationMillis() {
+        return lastSnapshotDurationMillis;
+    }
+
+    // the longest time that the last snapshot that succeeded held the writer of one database, which writes to it
+    // waited for
+    public long getLastWriterStallMillis() {
+        return lastWriterStallMillis;
+    }
+
+    // the longest time that any snapshot held the writer of one database
+    public long getMaxWriterStallMillis() {
+        return maxWriterStallMillis;
+    }
+}
@@ -0,0 +1,212 @@
+/*
+ *    Copyright (c) 2020, VRAI Labs and/or its affiliates. All rights reserved.
+ *
+ *    This software is licensed under the Apache License, Version 2.0 (the
+ *    "License") as published by the Apache Software Foundation.
+ *
+ *    You may not use this file except in compliance with the License. You may
+ *    obtain a copy of the License at http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *    Unless required by applicable law or agreed to in writing, software
+ *    distributed under the License is distributed on an "AS IS" BASIS, WITHOUT
+ *    WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied. See the
+ *    License for the specific language governing permissions and limitations
+ *    under the License.
+ *
+ */
+
+package io.supertokens.storage.sqlite;
+
+import io.supertokens.pluginInterface.KeyValueInfo;
+import io.supertokens.pluginInterface.KeyValueInfoWithLastUpdated;
+import io.supertokens.storage.sqlite.config.Config;
+
+import java.sql.SQLException;
+import java.util.Objects;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.LongAdder;
+
+// A read-through cache of the key_value table. This holds the app id and the signing keys, which are read on every
+// token verification but almost never change. Writes from this process go through here and drop the cached entry.
+// Writes from another process using the same database file are noticed once an entry is older than
+// sqlite_key_value_cache_ttl_millis, when its last_updated_sign is compared with the one in the database.
+// The _Transaction reads always go to the database, since the core compares and sets against their last_updated_sign.
+public class KeyValueCache extends ResourceDistributor.SingletonResource {
+
+    private static final ResourceDistributor.Key<KeyValueCache> RESOURCE_KEY =
+            ResourceDistributor.newKey(KeyValueCache.class);
+
+    private final long ttlNanos;
+    private final ConcurrentHashMap<String, Entry> entries = new ConcurrentHashMap<>();
+
+    // bumped by every write. A read that raced with a write does not put what it read into the cache.
+    private final AtomicLong writeCount = new AtomicLong();
+
+    private final LongAdder hits = new LongAdder();
+    private final LongAdder misses = new LongAdder();
+    private final LongAdder revalidations = new LongAdder();
+    private final LongAdder refreshNanos = new LongAdder();
+    private final AtomicLong maxRefreshNanos = new AtomicLong();
+
+    private KeyValueCache(long ttlMillis) {
+        this.ttlNanos = TimeUnit.MILLISECONDS.toNanos(ttlMillis);
+    }
+
+    public static KeyValueCache getInstance(Start start) {
+        KeyValueCache instance = start.getResourceDistributor().getResource(RESOURCE_KEY);
+        if (instance == null) {
+            instance = start.getResourceDistributor().setResource(RESOURCE_KEY,
+                    new KeyValueCache(Config.getConfig(start).getKeyValueCacheTtlMillis()));
+        }
+        return instance;
+    }
+
+    static KeyValueInfoWithLastUpdated get(Start start, String key) throws SQLException {
+        KeyValueCache cache = getInstance(start);
+        if (cache.ttlNanos == 0) {
+            return Queries.getKeyValue_Transaction(start, key);
+        }
+        Entry entry = cache.entries.get(key);
+        if (entry != null && System.nanoTime() - entry.checkedAt < cache.ttlNanos) {
+            cache.hits.increment();
+            return copy(entry.info);
+        }
+        return copy(cache.refresh(start, key, entry));
+    }
+
+    // reads the row from the database, and puts it into the cache for the reads that come after it
+    static KeyValueInfoWithLastUpdated get_Transaction(Start start, String key) throws SQLException {
+        KeyValueCache cache = getInstance(start);
+        if (cache.ttlNanos == 0) {
+            return Queries.getKeyValue_Transaction(start, key);
+        }
+        long writeCountBefore = cache.writeCount.get();
+        long startTime = System.nanoTime();
+        KeyValueInfoWithLastUpdated info = Queries.getKeyValue_Transaction(start, key);
+        cache.store(key, info, writeCountBefore, startTime);
+        return copy(info);
+    }
+
+    static void set(Start start, String key, KeyValueInfo info) throws SQLException {
+        try {
+            Queries.setKeyValue(start, key, info);
+        } finally {
+            getInstance(start).invalidate(key);
+        }
+    }
+
+    static boolean set_Transaction(Start start, String key, KeyValueInfoWithLastUpdated info) throws SQLException {
+        try {
+            return Queries.setKeyValue_Transaction(start, key, info);
+        } finally {
+            getInstance(start).invalidate(key);
+        }
+    }
+
+    // to be used in testing only
+    static void clear(Start start) {
+        KeyValueCache cache = start.getResourceDistributor().getResource(RESOURCE_KEY);
+        if (cache != null) {
+            cache.writeCount.incrementAndGet();
+            cache.entries.clear();
+        }
+    }
+
+    private KeyValueInfoWithLastUpdated refresh(Start start, String key, Entry entry) throws SQLException {
+        long writeCountBefore = writeCount.get();
+        long startTime = System.nanoTime();
+        KeyValueInfoWithLastUpdated info;
+        if (entry != null) {
+            revalidations.increment();
+            // the value is almost always unchanged, so we only read its sign to check that
+            String lastUpdatedSign = Queries.getKeyValueLastUpdatedSign(start, key);
+            if (lastUpdatedSign != null && Objects.equals(lastUpdatedSign, entry.info.lastUpdatedSign)) {
+                info = entry.info;
+            } else {
+                info = Queries.getKeyValue_Transaction(start, key);
+            }
+        } else {
+            misses.increment();
+            info = Queries.getKeyValue_Transaction(start, key);
+        }
+        recordRefreshLatency(System.nanoTime() - startTime);
+        store(key, info, writeCountBefore, startTime);
+        return info;
+    }
+
+    private void store(String key, KeyValueInfoWithLastUpdated info, long writeCountBefore, long readAt) {
+        // this runs under the same lock as invalidate for this key, so a write cannot slip in between the check and
+        // the update.
+        entries.compute(key, (k, current) -> {
+            if (writeCount.get() != writeCountBefore) {
+                return current;
+            }
+            return info == null ? null : new Entry(info, readAt);
+        });
+    }
+
+    private void invalidate(String key) {
+        entries.compute(key, (k, current) -> {
+            writeCount.incrementAndGet();
+            return null;
+        });
+    }
+
+    private void recordRefreshLatency(long nanos) {
+        refreshNanos.add(nanos);
+        long max = maxRefreshNanos.get();
+        while (nanos > max && !maxRefreshNanos.compareAndSet(max, nanos)) {
+            max = maxRefreshNanos.get();
+        }
+    }
+
+    private static KeyValueInfoWithLastUpdated copy(KeyValueInfoWithLastUpdated info) {
+        if (info == null) {
+            return null;
+        }
+        return new KeyValueInfoWithLastUpdated(info.value, info.createdAtTime, info.lastUpdatedSign);
+    }
+
+    public long getHitCount() {
+        return hits.sum();
+    }
+
+    // number of reads of entries that were not in the cache
+    public long getMissCount() {
+        return misses.sum();
+    }
+
+    // number of reads that checked an expired entry against the database
+    public long getRevalidationCount() {
+        return revalidations.sum();
+    }
+
+    // fraction of reads that did not go to the database
+    public double getHitRatio() {
+        long hitCount = getHitCount();
+        long total = hitCount + getMissCount() + getRevalidationCount();
+        return total == 0 ? 0 : (double) hitCount / total;
+    }
+
+    // average time taken by a read that went to the database, including revalidations
+    public long getAverageRefreshLatencyNanos() {
+        long refreshes = getMissCount() + getRevalidationCount();
+        return refreshes == 0 ? 0 : refreshNanos.sum() / refreshes;
+    }
+
+    public long getMaxRefreshLatencyNanos() {
+        return maxRefreshNanos.get();
+    }
+
+    private static class Entry {
+        final KeyValueInfoWithLastUpdated info;
+        final long checkedAt;
+
+        Entry(KeyValueInfoWithLastUpdated info, long checkedAt) {
+            this.info = info;
+            this.checkedAt = checkedAt;
+        }
+    }
+}
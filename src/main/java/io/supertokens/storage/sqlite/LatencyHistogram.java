@@ -0,0 +1,141 @@
+/*
+ *    Copyright (c) 2020, VRAI Labs and/or its affiliates. All rights reserved.
+ *
+ *    This software is licensed under the Apache License, Version 2.0 (the
+ *    "License") as published by the Apache Software Foundation.
+ *
+ *    You may not use this file except in compliance with the License. You may
+ *    obtain a copy of the License at http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *    Unless required by applicable law or agreed to in writing, software
+ *    distributed under the License is distributed on an "AS IS" BASIS, WITHOUT
+ *    WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied. See the
+ *    License for the specific language governing permissions and limitations
+ *    under the License.
+ *
+ */
+
+package io.supertokens.storage.sqlite;
+
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicLongArray;
+import java.util.concurrent.atomic.LongAdder;
+
+// A histogram of durations in nanoseconds, laid out like HdrHistogram's: values below 2^SUB_BUCKET_BITS each have a
+// bucket of their own, and every power of two above that is split into 2^SUB_BUCKET_BITS buckets of equal width. A
+// value is then known to within about 3%, and all of it fits in 8 KB. Recording takes no lock and allocates nothing.
+// Values above MAX_VALUE are counted as MAX_VALUE.
+public class LatencyHistogram {
+
+    private static final int SUB_BUCKET_BITS = 5;
+    private static final int SUB_BUCKET_COUNT = 1 << SUB_BUCKET_BITS;
+    // about 68 seconds
+    static final long MAX_VALUE = (1L << 36) - 1;
+    private static final int NUMBER_OF_BUCKETS = getIndex(MAX_VALUE) + 1;
+
+    private final AtomicLongArray counts = new AtomicLongArray(NUMBER_OF_BUCKETS);
+    private final LongAdder sum = new LongAdder();
+    private final AtomicLong max = new AtomicLong();
+
+    public void record(long nanos) {
+        long value = Math.min(Math.max(nanos, 0), MAX_VALUE);
+        counts.incrementAndGet(getIndex(value));
+        sum.add(value);
+        long currentMax = max.get();
+        while (value > currentMax && !max.compareAndSet(currentMax, value)) {
+            currentMax = max.get();
+        }
+    }
+
+    // The counts are read one by one while values may be recorded, so a snapshot can miss the last few of them. It is
+    // never off by more than that.
+    public Snapshot getSnapshot() {
+        long[] snapshotCounts = new long[NUMBER_OF_BUCKETS];
+        long count = 0;
+        for (int i = 0; i < NUMBER_OF_BUCKETS; i++) {
+            snapshotCounts[i] = counts.get(i);
+            count += snapshotCounts[i];
+        }
+        return new Snapshot(snapshotCounts, count, sum.sum(), max.get());
+    }
+
+    private static int getIndex(long value) {
+        if (value < SUB_BUCKET_COUNT) {
+            return (int) value;
+        }
+        int shift = 63 - Long.numberOfLeadingZeros(value) - SUB_BUCKET_BITS;
+        return ((shift + 1) << SUB_BUCKET_BITS) + (int) (value >>> shift) - SUB_BUCKET_COUNT;
+    }
+
+    // the largest value that is counted in the bucket
+    private static long getHighestValue(int index) {
+        if (index < SUB_BUCKET_COUNT) {
+            return index;
+        }
+        int shift = (index >> SUB_BUCKET_BITS) - 1;
+        long lowestValue = (long) ((index & (SUB_BUCKET_COUNT - 1)) + SUB_BUCKET_COUNT) << shift;
+        return lowestValue + (1L << shift) - 1;
+    }
+
+    public static class Snapshot {
+        private final long[] counts;
+        private final long count;
+        private final long sumNanos;
+        private final long maxNanos;
+
+        private Snapshot(long[] counts, long count, long sumNanos, long maxNanos) {
+            this.counts = counts;
+            this.count = count;
+            this.sumNanos = sumNanos;
+            this.maxNanos = maxNanos;
+        }
+
+        // what was recorded after the earlier snapshot of the same histogram. Its max is only known to within the
+        // width of its bucket.
+        public Snapshot since(Snapshot earlier) {
+            long[] newCounts = new long[NUMBER_OF_BUCKETS];
+            long newCount = 0;
+            long newMax = 0;
+            for (int i = 0; i < NUMBER_OF_BUCKETS; i++) {
+                newCounts[i] = Math.max(counts[i] - earlier.counts[i], 0);
+                newCount += newCounts[i];
+                if (newCounts[i] > 0) {
+                    newMax = Math.min(getHighestValue(i), maxNanos);
+                }
+            }
+            return new Snapshot(newCounts, newCount, Math.max(sumNanos - earlier.sumNanos, 0), newMax);
+        }
+
+        public long getCount() {
+            return count;
+        }
+
+        public long getSumNanos() {
+            return sumNanos;
+        }
+
+        public long getMeanNanos() {
+            return count == 0 ? 0 : sumNanos / count;
+        }
+
+        public long getMaxNanos() {
+            return maxNanos;
+        }
+
+        // the smallest value that the given percent of the values are at most, or 0 if there are none
+        public long getValueAtPercentile(double percentile) {
+            if (count == 0) {
+                return 0;
+            }
+            long rank = Math.max(1, (long) Math.ceil(percentile / 100 * count));
+            long seen = 0;
+            for (int i = 0; i < NUMBER_OF_BUCKETS; i++) {
+                seen += counts[i];
+                if (seen >= rank) {
+                    return Math.min(getHighestValue(i), maxNanos);
+                }
+            }
+            return maxNanos;
+        }
+    }
+}
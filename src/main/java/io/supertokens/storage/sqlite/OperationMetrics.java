@@ -0,0 +1,366 @@
+/*
+ *    Copyright (c) 2020, VRAI Labs and/or its affiliates. All rights reserved.
+ *
+ *    This software is licensed under the Apache License, Version 2.0 (the
+ *    "License") as published by the Apache Software Foundation.
+ *
+ *    You may not use this file except in compliance with the License. You may
+ *    obtain a copy of the License at http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *    Unless required by applicable law or agreed to in writing, software
+ *    distributed under the License is distributed on an "AS IS" BASIS, WITHOUT
+ *    WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied. See the
+ *    License for the specific language governing permissions and limitations
+ *    under the License.
+ *
+ */
+
+package io.supertokens.storage.sqlite;
+
+import io.supertokens.pluginInterface.exceptions.StorageQueryException;
+import io.supertokens.storage.sqlite.config.Config;
+import io.supertokens.storage.sqlite.config.SQLiteConfig;
+import io.supertokens.storage.sqlite.output.Logging;
+
+import java.sql.SQLException;
+import java.util.EnumMap;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.LongAdder;
+
+// With sqlite_metrics_enabled, keeps a latency histogram and error and retry counts for each storage operation of
+// Start. The time of an operation is split into:
+// - checkout: waiting for a connection, which is the read pool, the writer or the write batch queue
+// - execute: running its work on the connection. Rows are turned into results while the connection is held, so that
+//   is counted here too, as is the commit of a write batch.
+// - other: the rest, such as the caches, the past tokens filter and backing off from a busy database
+//
+// The phases are added up in a Context of the calling thread, so work that runs on other threads, like the reads of
+// readFromAll on the other shards, counts as other. Without sqlite_metrics_enabled, an operation costs one lookup of
+// this resource, which is not there.
+//
+// The summary that is logged every sqlite_metrics_log_interval_seconds also has the connection pools, from PoolMetrics.
+public class OperationMetrics extends ResourceDistributor.SingletonResource {
+
+    private static final ResourceDistributor.Key<OperationMetrics> RESOURCE_KEY =
+            ResourceDistributor.newKey(OperationMetrics.class);
+    private static final long WAIT_FOR_STOP_SECONDS = 10;
+
+    public enum Operation {
+        GET_APP_ID("getAppId"),
+        SET_APP_ID("setAppId"),
+        GET_ACCESS_TOKEN_SIGNING_KEY("getAccessTokenSigningKey_Transaction"),
+        SET_ACCESS_TOKEN_SIGNING_KEY("setAccessTokenSigningKey_Transaction"),
+        GET_REFRESH_TOKEN_SIGNING_KEY("getRefreshTokenSigningKey_Transaction"),
+        SET_REFRESH_TOKEN_SIGNING_KEY("setRefreshTokenSigningKey_Transaction"),
+        GET_PAST_TOKEN_INFO("getPastTokenInfo"),
+        INSERT_PAST_TOKEN("insertPastToken"),
+        GET_NUMBER_OF_PAST_TOKENS("getNumberOfPastTokens"),
+        CREATE_NEW_SESSION("createNewSession"),
+        GET_NUMBER_OF_SESSIONS("getNumberOfSessions"),
+        DELETE_SESSION("deleteSession"),
+        GET_ALL_SESSION_HANDLES_FOR_USER("getAllSessionHandlesForUser"),
+        DELETE_ALL_EXPIRED_SESSIONS("deleteAllExpiredSessions"),
+        DELETE_PAST_ORPHANED_TOKENS("deletePastOrphanedTokens"),
+        GET_KEY_VALUE("getKeyValue"),
+        SET_KEY_VALUE("setKeyValue"),
+        GET_SESSION("getSession"),
+        UPDATE_SESSION("updateSession"),
+        GET_SESSION_INFO("getSessionInfo_Transaction"),
+        UPDATE_SESSION_INFO("updateSessionInfo_Transaction"),
+        SET_KEY_VALUE_TRANSACTION("setKeyValue_Transaction"),
+        GET_KEY_VALUE_TRANSACTION("getKeyValue_Transaction");
+
+        // of Start
+        public final String methodName;
+
+        Operation(String methodName) {
+            this.methodName = methodName;
+        }
+    }
+
+    private final Start start;
+    // indexed by Operation.ordinal()
+    private final OperationStats[] stats = new OperationStats[Operation.values().length];
+    private final ThreadLocal<Context> contexts = ThreadLocal.withInitial(Context::new);
+    // null if the summary is not logged
+    private final ScheduledExecutorService scheduler;
+    // for the scheduler thread only
+    private Map<Operation, OperationSnapshot> lastLogged;
+    private Map<String, PoolMetrics.PoolSnapshot> lastLoggedPools = new HashMap<>();
+
+    private OperationMetrics(Start start, SQLiteConfig config) {
+        this.start = start;
+        for (int i = 0; i < stats.length; i++) {
+            stats[i] = new OperationStats();
+        }
+        long intervalSeconds = config.getMetricsLogIntervalSeconds();
+        if (intervalSeconds == 0) {
+            this.scheduler = null;
+            return;
+        }
+        this.lastLogged = getSnapshot();
+        this.scheduler = Executors.newSingleThreadScheduledExecutor(runnable -> {
+            Thread thread = new Thread(runnable, "SuperTokens-sqlite-metrics-" + start.getProcessId());
+            thread.setDaemon(true);
+            return thread;
+        });
+        this.scheduler.scheduleWithFixedDelay(() -> {
+            try {
+                logSummary();
+            } catch (RuntimeException e) {
+                Logging.error(start, "Failed to log the SQLite operation metrics", false, e);
+            }
+        }, intervalSeconds, intervalSeconds, TimeUnit.SECONDS);
+    }
+
+    // null without sqlite_metrics_enabled
+    public static OperationMetrics getInstance(Start start) {
+        return start.getResourceDistributor().getResource(RESOURCE_KEY);
+    }
+
+    static void init(Start start) {
+        SQLiteConfig config = Config.getConfig(start);
+        if (!config.isMetricsEnabled() || getInstance(start) != null) {
+            return;
+        }
+        start.getResourceDistributor().setResource(RESOURCE_KEY, new OperationMetrics(start, config));
+    }
+
+    static void stop(Start start) {
+        OperationMetrics instance = getInstance(start);
+        if (instance != null && instance.scheduler != null) {
+            instance.scheduler.shutdownNow();
+            try {
+                instance.scheduler.awaitTermination(WAIT_FOR_STOP_SECONDS, TimeUnit.SECONDS);
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+            }
+        }
+    }
+
+    // Runs the work of an operation of Start, and turns an SQLException that it throws into a StorageQueryException.
+    // The operation is measured unless sqlite_metrics_enabled is off or another operation is measured on this thread.
+    static <T> T measure(Start start, Operation operation, Measured<T> work) throws StorageQueryException {
+        Context context = begin(start, operation);
+        try {
+            return work.run();
+        } catch (SQLException e) {
+            if (context != null) {
+                context.failed = true;
+            }
+            throw new StorageQueryException(e);
+        } finally {
+            end(context);
+        }
+    }
+
+    // Starts measuring an operation on this thread, which end must be called for. Returns null, and nothing is
+    // measured, without sqlite_metrics_enabled or while another operation is measured on this thread.
+    private static Context begin(Start start, Operation operation) {
+        OperationMetrics instance = getInstance(start);
+        if (instance == null) {
+            return null;
+        }
+        Context context = instance.contexts.get();
+        if (context.operation != null) {
+            return null;
+        }
+        context.operation = operation;
+        context.checkoutNanos = 0;
+        context.executeNanos = 0;
+        context.retries = 0;
+        context.failed = false;
+        context.startNanos = System.nanoTime();
+        return context;
+    }
+
+    private static void end(Context context) {
+        if (context == null) {
+            return;
+        }
+        long totalNanos = System.nanoTime() - context.startNanos;
+        context.owner().stats[context.operation.ordinal()].record(context, totalNanos);
+        context.operation = null;
+    }
+
+    // the context of the operation that is measured on this thread, or null
+    static Context current(Start start) {
+        OperationMetrics instance = getInstance(start);
+        if (instance == null) {
+            return null;
+        }
+        Context context = instance.contexts.get();
+        return context.operation == null ? null : context;
+    }
+
+    // of every operation, since the storage was started
+    public Map<Operation, OperationSnapshot> getSnapshot() {
+        Map<Operation, OperationSnapshot> snapshot = new EnumMap<>(Operation.class);
+        for (Operation operation : Operation.values()) {
+            snapshot.put(operation, stats[operation.ordinal()].getSnapshot());
+        }
+        return snapshot;
+    }
+
+    // one line for each operation that ran since the last summary
+    private void logSummary() {
+        Map<Operation, OperationSnapshot> snapshot = getSnapshot();
+        for (Operation operation : Operation.values()) {
+            OperationSnapshot interval = snapshot.get(operation).since(lastLogged.get(operation));
+            if (interval.getCalls() == 0) {
+                continue;
+            }
+            Logging.info(start, "SQLite " + operation.methodName + ": " + interval.getCalls() + " call(s), " +
+                    interval.getErrors() + " error(s), " + interval.getRetries() + " retry(ies). Total " +
+                    describe(interval.getTotal()) + ". Checkout " + describe(interval.getCheckout()) +
+                    ". Execute " + describe(interval.getExecute()) + ". Other " + describe(interval.getOther()));
+        }
+        lastLogged = snapshot;
+
+        PoolMetrics poolMetrics = PoolMetrics.getInstance(start);
+        if (poolMetrics == null) {
+            return;
+        }
+        Map<String, PoolMetrics.PoolSnapshot> poolSnapshot = poolMetrics.getSnapshot();
+        for (Map.Entry<String, PoolMetrics.PoolSnapshot> pool : poolSnapshot.entrySet()) {
+            PoolMetrics.PoolSnapshot earlier = lastLoggedPools.get(pool.getKey());
+            PoolMetrics.PoolSnapshot interval = earlier == null ? pool.getValue() : pool.getValue().since(earlier);
+            if (interval.getAcquired().getCount() == 0 && interval.getTimeouts() == 0) {
+                continue;
+            }
+            Logging.info(start, "SQLite pool " + pool.getKey() + ": " + interval.getAcquired().getCount() +
+                    " checkout(s), " + interval.getTimeouts() + " timeout(s), " + interval.getActiveConnections() +
+                    " of " + interval.getTotalConnections() + " connection(s) in use, at most " +
+                    interval.getMaxPendingThreads() + " thread(s) waiting. Acquire " +
+                    describe(interval.getAcquired()) + ". Usage " + describe(interval.getUsage()));
+        }
+        lastLoggedPools = poolSnapshot;
+    }
+
+    private static String describe(LatencyHistogram.Snapshot histogram) {
+        return "p50 " + toMillis(histogram.getValueAtPercentile(50)) + " ms, p99 " +
+                toMillis(histogram.getValueAtPercentile(99)) + " ms, max " + toMillis(histogram.getMaxNanos()) +
+                " ms";
+    }
+
+    private static String toMillis(long nanos) {
+        return String.format("%.3f", nanos / 1e6);
+    }
+
+    @FunctionalInterface
+    interface Measured<T> {
+        T run() throws SQLException;
+    }
+
+    // what one thread has measured of the operation that it is running
+    final class Context {
+        private Operation operation;
+        private long startNanos;
+        private long checkoutNanos;
+        private long executeNanos;
+        private int retries;
+        private boolean failed;
+
+        private OperationMetrics owner() {
+            return OperationMetrics.this;
+        }
+
+        // work that asked for a connection at requestedNanos got it at begunNanos and was done at endedNanos
+        void recordConnectionUse(long requestedNanos, long begunNanos, long endedNanos) {
+            checkoutNanos += begunNanos - requestedNanos;
+            executeNanos += endedNanos - begunNanos;
+        }
+
+        void recordRetry() {
+            retries++;
+        }
+    }
+
+    private static class OperationStats {
+        final LatencyHistogram total = new LatencyHistogram();
+        final LatencyHistogram checkout = new LatencyHistogram();
+        final LatencyHistogram execute = new LatencyHistogram();
+        final LatencyHistogram other = new LatencyHistogram();
+        final LongAdder errors = new LongAdder();
+        final LongAdder retries = new LongAdder();
+
+        void record(Context context, long totalNanos) {
+            total.record(totalNanos);
+            checkout.record(context.checkoutNanos);
+            execute.record(context.executeNanos);
+            other.record(totalNanos - context.checkoutNanos - context.executeNanos);
+            if (context.failed) {
+                errors.increment();
+            }
+            if (context.retries > 0) {
+                retries.add(context.retries);
+            }
+        }
+
+        OperationSnapshot getSnapshot() {
+            return new OperationSnapshot(errors.sum(), retries.sum(), total.getSnapshot(), checkout.getSnapshot(),
+                    execute.getSnapshot(), other.getSnapshot());
+        }
+    }
+
+    public static class OperationSnapshot {
+        private final long errors;
+        private final long retries;
+        private final LatencyHistogram.Snapshot total;
+        private final LatencyHistogram.Snapshot checkout;
+        private final LatencyHistogram.Snapshot execute;
+        private final LatencyHistogram.Snapshot other;
+
+        private OperationSnapshot(long errors, long retries, LatencyHistogram.Snapshot total,
+                                  LatencyHistogram.Snapshot checkout, LatencyHistogram.Snapshot execute,
+                                  LatencyHistogram.Snapshot other) {
+            this.errors = errors;
+            this.retries = retries;
+            this.total = total;
+            this.checkout = checkout;
+            this.execute = execute;
+            this.other = other;
+        }
+
+        // what was recorded after the earlier snapshot
+        public OperationSnapshot since(OperationSnapshot earlier) {
+            return new OperationSnapshot(errors - earlier.errors, retries - earlier.retries,
+                    total.since(earlier.total), checkout.since(earlier.checkout), execute.since(earlier.execute),
+                    other.since(earlier.other));
+        }
+
+        public long getCalls() {
+            return total.getCount();
+        }
+
+        // calls that failed with an SQLException
+        public long getErrors() {
+            return errors;
+        }
+
+        // times that the calls were retried because the database was busy or locked
+        public long getRetries() {
+            return retries;
+        }
+
+        public LatencyHistogram.Snapshot getTotal() {
+            return total;
+        }
+
+        public LatencyHistogram.Snapshot getCheckout() {
+            return checkout;
+        }
+
+        public LatencyHistogram.Snapshot getExecute() {
+            return execute;
+        }
+
+        public LatencyHistogram.Snapshot getOther() {
+            return other;
+        }
+    }
+}
@@ -0,0 +1,236 @@
+/*
+ *    Copyright (c) 2020, VRAI Labs and/or its affiliates. All rights reserved.
+ *
+ *    This software is licensed under the Apache License, Version 2.0 (the
+ *    "License") as published by the Apache Software Foundation.
+ *
+ *    You may not use this file except in compliance with the License. You may
+ *    obtain a copy of the License at http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *    Unless required by applicable law or agreed to in writing, software
+ *    distributed under the License is distributed on an "AS IS" BASIS, WITHOUT
+ *    WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied. See the
+ *    License for the specific language governing permissions and limitations
+ *    under the License.
+ *
+ */
+
+package io.supertokens.storage.sqlite;
+
+import io.supertokens.pluginInterface.tokenInfo.PastTokenInfo;
+import io.supertokens.storage.sqlite.config.Config;
+import io.supertokens.storage.sqlite.config.SQLiteConfig;
+import io.supertokens.storage.sqlite.output.Logging;
+
+import java.sql.SQLException;
+import java.util.List;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.concurrent.locks.ReentrantReadWriteLock;
+
+// Most lookups in past_tokens are for tokens that are not there. This keeps a Bloom filter of all the
+// refresh_token_hash_2 values in that table, so that those lookups can return without going to the database.
+//
+// The filter only learns the tokens that this process inserts, so it assumes that no other process writes to the same
+// database file. A token that another process inserted would not be found, which would hide the reuse of a refresh
+// token. So it is off unless sqlite_past_tokens_filter_max_bytes is set.
+//
+// The filter is built from the table in initStorage, and built again once deletePastOrphanedTokens has deleted a
+// quarter of the tokens it was built with, so that deleted tokens stop taking up space in it. While a new filter is
+// being built, inserts go into both filters. An insert holds the read lock until its row is committed, and a rebuild
+// takes the write lock before it starts reading the table. So every token is either in the rows that the rebuild
+// reads or was added to the new filter directly.
+public class PastTokenFilter extends ResourceDistributor.SingletonResource {
+
+    private static final ResourceDistributor.Key<PastTokenFilter> RESOURCE_KEY =
+            ResourceDistributor.newKey(PastTokenFilter.class);
+
+    // the filter is sized for this many tokens, or twice the number in the table, whichever is more
+    private static final long MIN_CAPACITY = 10000;
+    // the share of the tokens that the filter was built with that have to be deleted before it is built again
+    private static final double REBUILD_AFTER_DELETED_SHARE = 0.25;
+
+    private final double falsePositiveRate;
+    private final long maxBits;
+    private final ReentrantReadWriteLock lock = new ReentrantReadWriteLock();
+    private final Object rebuildLock = new Object();
+    private volatile BloomFilter current = null;
+    private BloomFilter pending = null;
+    private volatile long tokensAtLastBuild = 0;
+    private final AtomicLong deletedSinceLastBuild = new AtomicLong();
+
+    private final LongAdder lookups = new LongAdder();
+    private final LongAdder skips = new LongAdder();
+    private final LongAdder falsePositives = new LongAdder();
+
+    private PastTokenFilter(SQLiteConfig config) {
+        this.falsePositiveRate = config.getPastTokensFilterFalsePositiveRate();
+        this.maxBits = config.getPastTokensFilterMaxBytes() * 8;
+    }
+
+    static void init(Start start) throws SQLException {
+        if (start.getResourceDistributor().getResource(RESOURCE_KEY) != null) {
+            return;
+        }
+        PastTokenFilter filter = new PastTokenFilter(Config.getConfig(start));
+        if (filter.maxBits > 0) {
+            filter.rebuild(start);
+        }
+        start.getResourceDistributor().setResource(RESOURCE_KEY, filter);
+    }
+
+    public static PastTokenFilter getInstance(Start start) {
+        return start.getResourceDistributor().getResource(RESOURCE_KEY);
+    }
+
+    static PastTokenInfo getPastTokenInfo(Start start, String refreshTokenHash2) throws SQLException {
+        PastTokenFilter instance = getInstance(start);
+        BloomFilter filter = instance == null ? null : instance.current;
+        if (filter == null) {
+            return PastTokenPartitions.getPastTokenInfo(start, refreshTokenHash2);
+        }
+        instance.lookups.increment();
+        if (!filter.mightContain(refreshTokenHash2)) {
+            instance.skips.increment();
+            return null;
+        }
+        PastTokenInfo info = PastTokenPartitions.getPastTokenInfo(start, refreshTokenHash2);
+        if (info == null) {
+            instance.falsePositives.increment();
+        }
+        return info;
+    }
+
+    static void insertPastTokenInfo(Start start, PastTokenInfo info) throws SQLException {
+        PastTokenFilter instance = getInstance(start);
+        if (instance == null || instance.current == null) {
+            PastTokenPartitions.insertPastTokenInfo(start, info);
+            return;
+        }
+        instance.lock.readLock().lock();
+        try {
+            // this is added before the row is committed, so that no reader can see the row but miss it here. If the
+            // insert fails, this only causes a false positive.
+            instance.current.put(info.refreshTokenHash2);
+            if (instance.pending != null) {
+                instance.pending.put(info.refreshTokenHash2);
+            }
+            PastTokenPartitions.insertPastTokenInfo(start, info);
+        } finally {
+            instance.lock.readLock().unlock();
+        }
+    }
+
+    // For tokens that are inserted in another way than insertPastTokenInfo, like an import. As there, they are added
+    // to the filter before the insert commits them, and the read lock is held until then.
+    static <T> T insertPastTokens(Start start, List<String> refreshTokenHashes, BusyRetry.Attempt<T> insert)
+            throws SQLException {
+        PastTokenFilter instance = getInstance(start);
+        if (instance == null || instance.current == null) {
+            return insert.run();
+        }
+        instance.lock.readLock().lock();
+        try {
+            for (String refreshTokenHash2 : refreshTokenHashes) {
+                instance.current.put(refreshTokenHash2);
+                if (instance.pending != null) {
+                    instance.pending.put(refreshTokenHash2);
+                }
+            }
+            return insert.run();
+        } finally {
+            instance.lock.readLock().unlock();
+        }
+    }
+
+    // builds the filter again, sized for the tokens there are now, such as after an import of many tokens
+    static void resize(Start start) {
+        PastTokenFilter instance = getInstance(start);
+        if (instance == null || instance.current == null) {
+            return;
+        }
+        try {
+            instance.rebuild(start);
+        } catch (SQLException e) {
+            // the old filter is still correct, it just has more false positives
+            Logging.error(start, "Failed to rebuild the past tokens filter", false, e);
+        }
+    }
+
+    static void deletePastOrphanedTokens(Start start, long createdBefore) throws SQLException {
+        int numberOfTokensDeleted = PastTokenPartitions.deletePastOrphanedTokens(start, createdBefore);
+        PastTokenFilter instance = getInstance(start);
+        if (instance == null || instance.current == null) {
+            return;
+        }
+        // a rebuild reads the whole table, which is not worth it for a few deleted tokens
+        long deleted = instance.deletedSinceLastBuild.addAndGet(numberOfTokensDeleted);
+        if (deleted == 0 || deleted < REBUILD_AFTER_DELETED_SHARE * instance.tokensAtLastBuild) {
+            return;
+        }
+        try {
+            instance.rebuild(start);
+        } catch (SQLException e) {
+            // the old filter is still correct, it just has more false positives
+            Logging.error(start, "Failed to rebuild the past tokens filter", false, e);
+        }
+    }
+
+    private void rebuild(Start start) throws SQLException {
+        synchronized (rebuildLock) {
+            long numberOfTokens = Queries.getNumberOfPastTokens(start);
+            long deletedBefore = deletedSinceLastBuild.get();
+            BloomFilter filter = BloomFilter.create(Math.max(MIN_CAPACITY, 2 * numberOfTokens), falsePositiveRate,
+                    maxBits);
+            lock.writeLock().lock();
+            try {
+                pending = filter;
+            } finally {
+                lock.writeLock().unlock();
+            }
+            boolean built = false;
+            try {
+                PastTokenPartitions.forEachPastTokenHash(start, filter::put);
+                built = true;
+            } finally {
+                lock.writeLock().lock();
+                try {
+                    if (built) {
+                        current = filter;
+                        tokensAtLastBuild = numberOfTokens;
+                        // the tokens that were deleted while this was built count towards the next rebuild
+                        deletedSinceLastBuild.addAndGet(-deletedBefore);
+                    }
+                    pending = null;
+                } finally {
+                    lock.writeLock().unlock();
+                }
+            }
+        }
+    }
+
+    // number of getPastTokenInfo calls that checked the filter
+    public long getLookupCount() {
+        return lookups.sum();
+    }
+
+    // number of getPastTokenInfo calls that returned without going to the database
+    public long getSkipCount() {
+        return skips.sum();
+    }
+
+    // number of times the filter said a token might be present, but it was not in the database
+    public long getFalsePositiveCount() {
+        return falsePositives.sum();
+    }
+
+    public double getSkipRate() {
+        long lookupCount = getLookupCount();
+        return lookupCount == 0 ? 0 : (double) getSkipCount() / lookupCount;
+    }
+
+    public long getSizeInBytes() {
+        BloomFilter filter = current;
+        return filter == null ? 0 : filter.getSizeInBytes();
+    }
+}
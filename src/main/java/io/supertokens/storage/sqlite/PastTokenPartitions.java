@@ -0,0 +1,406 @@
+/*
+ *    Copyright (c) 2020, VRAI Labs and/or its affiliates. All rights reserved.
+ *
+ *    This software is licensed under the Apache License, Version 2.0 (the
+ *    "License") as published by the Apache Software Foundation.
+ *
+ *    You may not use this file except in compliance with the License. You may
+ *    obtain a copy of the License at http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *    Unless required by applicable law or agreed to in writing, software
+ *    distributed under the License is distributed on an "AS IS" BASIS, WITHOUT
+ *    WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied. See the
+ *    License for the specific language governing permissions and limitations
+ *    under the License.
+ *
+ */
+
+package io.supertokens.storage.sqlite;
+
+import io.supertokens.pluginInterface.tokenInfo.PastTokenInfo;
+import io.supertokens.storage.sqlite.config.Config;
+import io.supertokens.storage.sqlite.output.Logging;
+
+import java.sql.SQLException;
+import java.time.LocalDate;
+import java.time.format.DateTimeFormatter;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.concurrent.locks.ReentrantReadWriteLock;
+import java.util.function.Consumer;
+import java.util.regex.Matcher;
+import java.util.regex.Pattern;
+
+// When sqlite_past_tokens_partition_period is "day" or "week", new past tokens go into one table per period, named
+// like past_tokens_d20200521 or past_tokens_w20200518 after the first day of the period. Once a whole period is older
+// than the time that deletePastOrphanedTokens is given, its table is dropped, which is much cheaper than deleting its
+// rows one by one. The few tokens in it that a session still refers to are copied into the current period first.
+//
+// The past tokens table itself is still read, and cleaned up row by row, so tokens from before partitioning was
+// turned on are not lost. Partitions are also still read and dropped if it is turned off again.
+//
+// Partitions are only added to and taken out of the list under the write lock, and are only dropped once they are out
+// of it. Every query that uses them holds the read lock, so no query ever sees a table that has just been dropped.
+// This assumes that no other process writes to the same database file.
+//
+// A token is usually looked up soon after it was inserted, when it is refreshed. So the partition and shard of the
+// last MAX_INDEXED_TOKENS inserted tokens are kept, and a lookup of one of them reads only that partition. Any other
+// lookup, or one that does not find the token there because its partition has been dropped since, looks in every
+// partition of every shard.
+public class PastTokenPartitions extends ResourceDistributor.SingletonResource {
+
+    private static final ResourceDistributor.Key<PastTokenPartitions> RESOURCE_KEY =
+            ResourceDistributor.newKey(PastTokenPartitions.class);
+    private static final long DAY_MILLIS = TimeUnit.DAYS.toMillis(1);
+    private static final int MAX_INDEXED_TOKENS = 10000;
+
+    private final QueryCatalog queries;
+    private final Pattern partitionName;
+    // 0 if partitioning is off
+    private final int periodDays;
+    private final ReentrantReadWriteLock lock = new ReentrantReadWriteLock();
+    // held by deletePastOrphanedTokens while it drops partitions
+    private final Object dropLock = new Object();
+
+    // newest first. Both lists are only replaced while holding the write lock.
+    private List<Partition> partitions = Collections.emptyList();
+    private List<QueryCatalog.PastTokensPartition> partitionQueries = Collections.emptyList();
+
+    // refresh_token_hash_2 of recently inserted tokens -> where they were inserted. Guarded by itself.
+    private final Map<String, IndexedToken> recentTokens = new LinkedHashMap<String, IndexedToken>(16, 0.75f, true) {
+        @Override
+        protected boolean removeEldestEntry(Map.Entry<String, IndexedToken> eldest) {
+            return size() > MAX_INDEXED_TOKENS;
+        }
+    };
+
+    private final LongAdder indexedLookups = new LongAdder();
+    private final LongAdder droppedPartitions = new LongAdder();
+    private final LongAdder droppedTokens = new LongAdder();
+
+    private PastTokenPartitions(QueryCatalog queries, String period) {
+        this.queries = queries;
+        this.partitionName = Pattern.compile(Pattern.quote(queries.pastTokensTable) + "_([dw])(\\d{8})");
+        this.periodDays = period.equals("DAY") ? 1 : period.equals("WEEK") ? 7 : 0;
+    }
+
+    static void init(Start start) throws SQLException {
+        if (start.getResourceDistributor().getResource(RESOURCE_KEY) != null) {
+            return;
+        }
+        PastTokenPartitions instance = new PastTokenPartitions(QueryCatalog.getInstance(start),
+                Config.getConfig(start).getPastTokensPartitionPeriod());
+        List<Partition> partitions = new ArrayList<>();
+        for (String name : Queries.getPastTokensPartitionNames(start)) {
+            Partition partition = instance.parse(name);
+            if (partition != null) {
+                partitions.add(partition);
+            }
+        }
+        instance.setPartitions(partitions);
+        start.getResourceDistributor().setResource(RESOURCE_KEY, instance);
+    }
+
+    public static PastTokenPartitions getInstance(Start start) {
+        return start.getResourceDistributor().getResource(RESOURCE_KEY);
+    }
+
+    static PastTokenInfo getPastTokenInfo(Start start, String refreshTokenHash2) throws SQLException {
+        PastTokenPartitions instance = getInstance(start);
+        if (instance == null) {
+            return Queries.getPastTokenInfo(start, refreshTokenHash2);
+        }
+        IndexedToken indexed;
+        synchronized (instance.recentTokens) {
+            indexed = instance.recentTokens.get(refreshTokenHash2);
+        }
+        instance.lock.readLock().lock();
+        try {
+            if (indexed != null && instance.partitions.contains(indexed.partition)) {
+                instance.indexedLookups.increment();
+                PastTokenInfo info = Queries.getPastTokenInfo(start, indexed.database, indexed.partition.queries,
+                        refreshTokenHash2);
+                if (info != null) {
+                    return info;
+                }
+            }
+            return Queries.getPastTokenInfo(start, instance.partitionQueries, refreshTokenHash2);
+        } finally {
+            instance.lock.readLock().unlock();
+        }
+    }
+
+    static void insertPastTokenInfo(Start start, PastTokenInfo info) throws SQLException {
+        PastTokenPartitions instance = getInstance(start);
+        if (instance == null || instance.periodDays == 0) {
+            Queries.insertPastTokenInfo(start, info);
+            return;
+        }
+        String name = instance.getPartitionName(info.createdTime);
+        instance.lock.readLock().lock();
+        try {
+            Partition partition = instance.find(name);
+            if (partition != null) {
+                Queries.insertPastTokenInfo(start, partition.queries, info);
+                instance.remember(start, info, partition);
+                return;
+            }
+        } finally {
+            instance.lock.readLock().unlock();
+        }
+        // the first token of a period
+        instance.lock.writeLock().lock();
+        try {
+            Partition partition = instance.getOrCreate(start, name);
+            Queries.insertPastTokenInfo(start, partition.queries, info);
+            instance.remember(start, info, partition);
+        } finally {
+            instance.lock.writeLock().unlock();
+        }
+    }
+
+    static void forEachPastTokenHash(Start start, Consumer<String> consumer) throws SQLException {
+        PastTokenPartitions instance = getInstance(start);
+        if (instance == null) {
+            Queries.forEachPastTokenHash(start, consumer);
+            return;
+        }
+        instance.lock.readLock().lock();
+        try {
+            Queries.forEachPastTokenHash(start, instance.partitionQueries, consumer);
+        } finally {
+            instance.lock.readLock().unlock();
+        }
+    }
+
+    // runs work with the partitions there are now, none of which are dropped until it returns
+    static void withPartitions(Start start, PartitionsWork work) throws SQLException {
+        PastTokenPartitions instance = getInstance(start);
+        if (instance == null) {
+            work.run(Collections.emptyList());
+            return;
+        }
+        instance.lock.readLock().lock();
+        try {
+            work.run(instance.partitionQueries);
+        } finally {
+            instance.lock.readLock().unlock();
+        }
+    }
+
+    // Deletes the orphaned tokens in the past tokens table that were created before createdBefore, and drops the
+    // partitions whose whole period is before it. Returns the number of tokens deleted.
+    //
+    // The live tokens of the expired partitions are copied out while they are still in use. Then the partitions are
+    // taken out of the list under the write lock, which only waits for the queries that are reading them, and they are
+    // dropped after that. A token that is in both tables until then is the same token, so it does not matter which
+    // one a query finds.
+    static int deletePastOrphanedTokens(Start start, long createdBefore) throws SQLException {
+        int numberOfTokensDeleted = Queries.deletePastOrphanedTokens(start, createdBefore);
+        PastTokenPartitions instance = getInstance(start);
+        if (instance == null) {
+            return numberOfTokensDeleted;
+        }
+        // so that no two runs drop the same partitions
+        synchronized (instance.dropLock) {
+            List<Partition> expired = new ArrayList<>();
+            instance.lock.readLock().lock();
+            try {
+                for (Partition partition : instance.partitions) {
+                    if (partition.endTime <= createdBefore) {
+                        expired.add(partition);
+                    }
+                }
+            } finally {
+                instance.lock.readLock().unlock();
+            }
+            if (expired.isEmpty()) {
+                return numberOfTokensDeleted;
+            }
+            String copyLiveTokensTo = instance.queries.pastTokensTable;
+            if (instance.periodDays != 0) {
+                Partition current;
+                instance.lock.writeLock().lock();
+                try {
+                    current = instance.getOrCreate(start, instance.getPartitionName(System.currentTimeMillis()));
+                } finally {
+                    instance.lock.writeLock().unlock();
+                }
+                expired.remove(current);
+                copyLiveTokensTo = current.queries.tableName;
+            }
+
+            // If this fails, the partitions stay, and copying their live tokens again next time copies nothing new.
+            int[] numberOfLiveTokens = new int[expired.size()];
+            for (int i = 0; i < expired.size(); i++) {
+                numberOfLiveTokens[i] = Queries.copyLivePastTokens(start, expired.get(i).queries, copyLiveTokensTo);
+            }
+            instance.lock.writeLock().lock();
+            try {
+                List<Partition> remaining = new ArrayList<>(instance.partitions);
+                remaining.removeAll(expired);
+                instance.setPartitions(remaining);
+            } finally {
+                instance.lock.writeLock().unlock();
+            }
+            for (int i = 0; i < expired.size(); i++) {
+                Partition partition = expired.get(i);
+                int numberOfTokensDropped = Queries.dropPastTokensPartition(start, partition.queries) -
+                        numberOfLiveTokens[i];
+                numberOfTokensDeleted += numberOfTokensDropped;
+                instance.droppedPartitions.increment();
+                instance.droppedTokens.add(numberOfTokensDropped);
+                Logging.debug(start, "Dropped past tokens partition " + partition.queries.tableName + " with "
+                        + numberOfTokensDropped + " orphaned token(s)");
+            }
+            return numberOfTokensDeleted;
+        }
+    }
+
+    static int recountRows(Start start) throws SQLException {
+        PastTokenPartitions instance = getInstance(start);
+        if (instance == null) {
+            return Queries.recountRows(start, Collections.emptyList());
+        }
+        instance.lock.readLock().lock();
+        try {
+            return Queries.recountRows(start, instance.partitionQueries);
+        } finally {
+            instance.lock.readLock().unlock();
+        }
+    }
+
+    // to be used in testing only
+    static void clear(Start start) {
+        PastTokenPartitions instance = getInstance(start);
+        if (instance != null) {
+            instance.lock.writeLock().lock();
+            try {
+                instance.setPartitions(Collections.emptyList());
+            } finally {
+                instance.lock.writeLock().unlock();
+            }
+            synchronized (instance.recentTokens) {
+                instance.recentTokens.clear();
+            }
+        }
+    }
+
+    private void remember(Start start, PastTokenInfo info, Partition partition) throws SQLException {
+        IndexedToken indexed = new IndexedToken(partition,
+                ConnectionPool.getPastTokensDatabase(start, info.sessionHandle));
+        synchronized (recentTokens) {
+            recentTokens.put(info.refreshTokenHash2, indexed);
+        }
+    }
+
+    private String getPartitionName(long time) {
+        long day = Math.floorDiv(time, DAY_MILLIS);
+        if (periodDays == 7) {
+            // weeks start on a Monday. The 1st of January 1970 was a Thursday.
+            day = Math.floorDiv(day + 3, 7) * 7 - 3;
+        }
+        return queries.pastTokensTable + "_" + (periodDays == 7 ? "w" : "d")
+                + LocalDate.ofEpochDay(day).format(DateTimeFormatter.BASIC_ISO_DATE);
+    }
+
+    // returns null if this is not the name of a partition
+    private Partition parse(String tableName) {
+        Matcher matcher = partitionName.matcher(tableName);
+        if (!matcher.matches()) {
+            return null;
+        }
+        long startDay = LocalDate.parse(matcher.group(2), DateTimeFormatter.BASIC_ISO_DATE).toEpochDay();
+        long days = matcher.group(1).equals("w") ? 7 : 1;
+        return new Partition(queries.getPastTokensPartition(tableName.substring(queries.pastTokensTable.length() + 1)),
+                startDay * DAY_MILLIS, (startDay + days) * DAY_MILLIS);
+    }
+
+    private Partition find(String tableName) {
+        for (Partition partition : partitions) {
+            if (partition.queries.tableName.equals(tableName)) {
+                return partition;
+            }
+        }
+        return null;
+    }
+
+    // must be called with the write lock held
+    private Partition getOrCreate(Start start, String tableName) throws SQLException {
+        Partition partition = find(tableName);
+        if (partition == null) {
+            partition = parse(tableName);
+            Queries.createPastTokensPartition(start, partition.queries);
+            List<Partition> updated = new ArrayList<>(partitions);
+            updated.add(partition);
+            setPartitions(updated);
+        }
+        return partition;
+    }
+
+    private void setPartitions(List<Partition> updated) {
+        List<Partition> sorted = new ArrayList<>(updated);
+        sorted.sort((a, b) -> Long.compare(b.startTime, a.startTime));
+        List<QueryCatalog.PastTokensPartition> sortedQueries = new ArrayList<>();
+        for (Partition partition : sorted) {
+            sortedQueries.add(partition.queries);
+        }
+        partitions = Collections.unmodifiableList(sorted);
+        partitionQueries = Collections.unmodifiableList(sortedQueries);
+    }
+
+    public int getPartitionCount() {
+        lock.readLock().lock();
+        try {
+            return partitions.size();
+        } finally {
+            lock.readLock().unlock();
+        }
+    }
+
+    // number of getPastTokenInfo calls that read only the partition a token was inserted into
+    public long getIndexedLookupCount() {
+        return indexedLookups.sum();
+    }
+
+    public long getDroppedPartitionCount() {
+        return droppedPartitions.sum();
+    }
+
+    // number of orphaned tokens removed by dropping partitions
+    public long getDroppedTokenCount() {
+        return droppedTokens.sum();
+    }
+
+    @FunctionalInterface
+    interface PartitionsWork {
+        void run(List<QueryCatalog.PastTokensPartition> partitions) throws SQLException;
+    }
+
+    private static class Partition {
+        final QueryCatalog.PastTokensPartition queries;
+        final long startTime;
+        final long endTime;
+
+        Partition(QueryCatalog.PastTokensPartition queries, long startTime, long endTime) {
+            this.queries = queries;
+            this.startTime = startTime;
+            this.endTime = endTime;
+        }
+    }
+
+    private static class IndexedToken {
+        final Partition partition;
+        final int database;
+
+        IndexedToken(Partition partition, int database) {
+            this.partition = partition;
+            this.database = database;
+        }
+    }
+}
@@ -0,0 +1,183 @@
+/*
+ *    Copyright (c) 2020, VRAI Labs and/or its affiliates. All rights reserved.
+ *
+ *    This software is licensed under the Apache License, Version 2.0 (the
+ *    "License") as published by the Apache Software Foundation.
+ *
+ *    You may not use this file except in compliance with the License. You may
+ *    obtain a copy of the License at http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *    Unless required by applicable law or agreed to in writing, software
+ *    distributed under the License is distributed on an "AS IS" BASIS, WITHOUT
+ *    WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied. See the
+ *    License for the specific language governing permissions and limitations
+ *    under the License.
+ *
+ */
+
+package io.supertokens.storage.sqlite;
+
+import com.zaxxer.hikari.metrics.IMetricsTracker;
+import com.zaxxer.hikari.metrics.MetricsTrackerFactory;
+import com.zaxxer.hikari.metrics.PoolStats;
+
+import java.util.Map;
+import java.util.TreeMap;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.LongAdder;
+
+// With sqlite_metrics_enabled, Hikari reports to this how long it took to hand out, create and get back each
+// connection of the read and write pools, and when a caller gave up waiting for one. Together with the number of
+// threads that were waiting, that shows whether sqlite_connection_pool_size is too small.
+//
+// The writer is guarded by a lock of the plugin's own before it is taken from its pool, so waiting for the writer
+// shows as waiting for that lock, in the checkout time of OperationMetrics, and not here.
+public class PoolMetrics implements MetricsTrackerFactory {
+
+    // by pool name
+    private final Map<String, Tracker> trackers = new ConcurrentHashMap<>();
+
+    // null without sqlite_metrics_enabled
+    public static PoolMetrics getInstance(Start start) {
+        return ConnectionPool.getPoolMetrics(start);
+    }
+
+    @Override
+    public IMetricsTracker create(String poolName, PoolStats poolStats) {
+        Tracker tracker = new Tracker(poolStats);
+        trackers.put(poolName, tracker);
+        return tracker;
+    }
+
+    // of every pool, by pool name, since the storage was started
+    public Map<String, PoolSnapshot> getSnapshot() {
+        Map<String, PoolSnapshot> snapshot = new TreeMap<>();
+        for (Map.Entry<String, Tracker> tracker : trackers.entrySet()) {
+            snapshot.put(tracker.getKey(), tracker.getValue().getSnapshot());
+        }
+        return snapshot;
+    }
+
+    private static class Tracker implements IMetricsTracker {
+        private final PoolStats poolStats;
+        private final LatencyHistogram acquired = new LatencyHistogram();
+        private final LatencyHistogram usage = new LatencyHistogram();
+        private final LatencyHistogram created = new LatencyHistogram();
+        private final LongAdder timeouts = new LongAdder();
+        private final AtomicInteger maxPendingThreads = new AtomicInteger();
+
+        Tracker(PoolStats poolStats) {
+            this.poolStats = poolStats;
+        }
+
+        @Override
+        public void recordConnectionAcquiredNanos(long elapsedAcquiredNanos) {
+            acquired.record(elapsedAcquiredNanos);
+            // Hikari refreshes these at most once a second, so this is cheap
+            int pendingThreads = poolStats.getPendingThreads();
+            int max = maxPendingThreads.get();
+            while (pendingThreads > max && !maxPendingThreads.compareAndSet(max, pendingThreads)) {
+                max = maxPendingThreads.get();
+            }
+        }
+
+        @Override
+        public void recordConnectionUsageMillis(long elapsedBorrowedMillis) {
+            usage.record(TimeUnit.MILLISECONDS.toNanos(elapsedBorrowedMillis));
+        }
+
+        @Override
+        public void recordConnectionCreatedMillis(long connectionCreatedMillis) {
+            created.record(TimeUnit.MILLISECONDS.toNanos(connectionCreatedMillis));
+        }
+
+        @Override
+        public void recordConnectionTimeout() {
+            timeouts.increment();
+        }
+
+        PoolSnapshot getSnapshot() {
+            return new PoolSnapshot(acquired.getSnapshot(), usage.getSnapshot(), created.getSnapshot(),
+                    timeouts.sum(), poolStats.getTotalConnections(), poolStats.getActiveConnections(),
+                    poolStats.getIdleConnections(), poolStats.getPendingThreads(), maxPendingThreads.get());
+        }
+    }
+
+    public static class PoolSnapshot {
+        private final LatencyHistogram.Snapshot acquired;
+        private final LatencyHistogram.Snapshot usage;
+        private final LatencyHistogram.Snapshot created;
+        private final long timeouts;
+        private final int totalConnections;
+        private final int activeConnections;
+        private final int idleConnections;
+        private final int pendingThreads;
+        private final int maxPendingThreads;
+
+        private PoolSnapshot(LatencyHistogram.Snapshot acquired, LatencyHistogram.Snapshot usage,
+                             LatencyHistogram.Snapshot created, long timeouts, int totalConnections,
+                             int activeConnections, int idleConnections, int pendingThreads,
+                             int maxPendingThreads) {
+            this.acquired = acquired;
+            this.usage = usage;
+            this.created = created;
+            this.timeouts = timeouts;
+            this.totalConnections = totalConnections;
+            this.activeConnections = activeConnections;
+            this.idleConnections = idleConnections;
+            this.pendingThreads = pendingThreads;
+            this.maxPendingThreads = maxPendingThreads;
+        }
+
+        // what was recorded after the earlier snapshot. The numbers of connections and threads are those of this one.
+        public PoolSnapshot since(PoolSnapshot earlier) {
+            return new PoolSnapshot(acquired.since(earlier.acquired), usage.since(earlier.usage),
+                    created.since(earlier.created), timeouts - earlier.timeouts, totalConnections,
+                    activeConnections, idleConnections, pendingThreads, maxPendingThreads);
+        }
+
+        // how long callers waited for a connection
+        public LatencyHistogram.Snapshot getAcquired() {
+            return acquired;
+        }
+
+        // how long connections were used before they were given back, to within a millisecond
+        public LatencyHistogram.Snapshot getUsage() {
+            return usage;
+        }
+
+        // how long it took to open new connections, to within a millisecond
+        public LatencyHistogram.Snapshot getCreated() {
+            return created;
+        }
+
+        // number of callers that gave up after sqlite_connection_timeout_millis
+        public long getTimeouts() {
+            return timeouts;
+        }
+
+        public int getTotalConnections() {
+            return totalConnections;
+        }
+
+        public int getActiveConnections() {
+            return activeConnections;
+        }
+
+        public int getIdleConnections() {
+            return idleConnections;
+        }
+
+        // threads that were waiting for a connection when the pool was last looked at
+        public int getPendingThreads() {
+            return pendingThreads;
+        }
+
+        // the most threads that were seen waiting at once, since the storage was started
+        public int getMaxPendingThreads() {
+            return maxPendingThreads;
+        }
+    }
+}
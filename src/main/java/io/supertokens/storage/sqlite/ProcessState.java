@@ -22,7 +22,8 @@ import java.util.List;
 
 public class ProcessState extends ResourceDistributor.SingletonResource {
 
-    private static final String RESOURCE_KEY = "io.supertokens.storage.sqlite.ProcessState";
+    private static final ResourceDistributor.Key<ProcessState> RESOURCE_KEY =
+            ResourceDistributor.newKey(ProcessState.class);
     private final List<EventAndException> history = new ArrayList<>();
 
     private ProcessState() {
@@ -30,11 +31,11 @@ public class ProcessState extends ResourceDistributor.SingletonResource {
     }
 
     public static ProcessState getInstance(Start main) {
-        ResourceDistributor.SingletonResource instance = main.getResourceDistributor().getResource(RESOURCE_KEY);
+        ProcessState instance = main.getResourceDistributor().getResource(RESOURCE_KEY);
         if (instance == null) {
             instance = main.getResourceDistributor().setResource(RESOURCE_KEY, new ProcessState());
         }
-        return (ProcessState) instance;
+        return instance;
     }
 
     public synchronized EventAndException getLastEventByName(PROCESS_STATE processState) {
@@ -54,10 +55,11 @@ public class ProcessState extends ResourceDistributor.SingletonResource {
 
     /**
      * CREATING_NEW_TABLE: When the program is attempting to create new tables.
-     * DEADLOCK_FOUND: In case of a deadlock situation, we put this event
+     * DEADLOCK_FOUND: When a query is retried because the database was busy or locked, we put this event
+     * MIGRATING_SCHEMA: When a schema migration, like adding indexes, is run on the database
      */
     public enum PROCESS_STATE {
-        CREATING_NEW_TABLE, DEADLOCK_FOUND
+        CREATING_NEW_TABLE, DEADLOCK_FOUND, MIGRATING_SCHEMA
     }
 
     public static class EventAndException {
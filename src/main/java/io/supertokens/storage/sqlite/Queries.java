@@ -17,6 +17,8 @@
 
 package io.supertokens.storage.sqlite;
 
+import com.google.gson.JsonElement;
+import com.google.gson.JsonNull;
 import com.google.gson.JsonObject;
 import com.google.gson.JsonParser;
 import io.supertokens.pluginInterface.KeyValueInfo;
@@ -25,6 +27,7 @@ import io.supertokens.pluginInterface.noSqlStorage.NoSQLStorage_1;
 import io.supertokens.pluginInterface.sqlStorage.SQLStorage;
 import io.supertokens.pluginInterface.tokenInfo.PastTokenInfo;
 import io.supertokens.storage.sqlite.config.Config;
+import io.supertokens.storage.sqlite.output.Logging;
 import io.supertokens.storage.sqlite.utils.Utils;
 
 import java.io.File;
@@ -32,77 +35,388 @@ import java.sql.Connection;
 import java.sql.PreparedStatement;
 import java.sql.ResultSet;
 import java.sql.SQLException;
+import java.sql.Statement;
+import java.sql.Types;
 import java.util.ArrayList;
+import java.util.Collections;
+import java.util.LinkedHashSet;
 import java.util.List;
+import java.util.Set;
+import java.util.function.Consumer;
 
 public class Queries {
 
-    private static boolean doesTableExists(Start start, String tableName) {
+    private static boolean doesTableExists(Start start, int database, String tableName) {
         try {
-            String QUERY = "SELECT 1 FROM " + tableName + " LIMIT 1";
-            try (Connection con = ConnectionPool.getConnection(start);
-                 PreparedStatement pst = con.prepareStatement(QUERY)) {
-                pst.executeQuery();
-            }
+            // not a table of the same name in an ATTACHed database
+            String QUERY = "SELECT 1 FROM main." + tableName + " LIMIT 1";
+            ConnectionPool.read(start, database, con -> {
+                try (PreparedStatement pst = con.prepareStatement(QUERY)) {
+                    pst.executeQuery();
+                }
+                return null;
+            });
             return true;
         } catch (SQLException e) {
             return false;
         }
     }
 
-    private static String getQueryToCreateKeyValueTable(Start start) {
-        return "CREATE TABLE IF NOT EXISTS " + Config.getConfig(start).getKeyValueTable() + " (" + "name VARCHAR(128),"
-                + "value TEXT," + "last_updated_sign TEXT," + "created_at_time BIGINT ," +
-                "PRIMARY KEY(name)" + " );";
+    // every database file has all the tables, though only the key_value table of the usual database file is used, and
+    // with sqlite_separate_table_files, only one of the other tables in each of the other files
+    static void createTablesIfNotExists(Start start) throws SQLException {
+        for (int database = 0; database < ConnectionPool.getNumberOfDatabases(start); database++) {
+            createTablesIfNotExists(start, database);
+        }
     }
 
-    private static String getQueryToCreateSessionInfoTable(Start start) {
-        return "CREATE TABLE IF NOT EXISTS " + Config.getConfig(start).getSessionInfoTable() + " ("
-                + "session_handle VARCHAR(255) NOT NULL," + "user_id VARCHAR(128) NOT NULL,"
-                + "refresh_token_hash_2 VARCHAR(128) NOT NULL," + "session_data TEXT,"
-                + "expires_at BIGINT  NOT NULL," + "created_at_time BIGINT NOT NULL," +
-                "jwt_user_payload TEXT," + "last_updated_sign TEXT ," + "PRIMARY KEY(session_handle)" + " );";
+    private static void createTablesIfNotExists(Start start, int database) throws SQLException {
+        QueryCatalog queries = QueryCatalog.getInstance(start);
+        if (!doesTableExists(start, database, queries.keyValueTable)) {
+            ProcessState.getInstance(start).addState(ProcessState.PROCESS_STATE.CREATING_NEW_TABLE, null);
+            ConnectionPool.write(start, database, con -> {
+                try (PreparedStatement pst = con.prepareStatement(queries.createKeyValueTable)) {
+                    return pst.executeUpdate();
+                }
+            });
+        }
+
+        if (!doesTableExists(start, database, queries.sessionInfoTable)) {
+            ProcessState.getInstance(start).addState(ProcessState.PROCESS_STATE.CREATING_NEW_TABLE, null);
+            ConnectionPool.write(start, database, con -> {
+                try (PreparedStatement pst = con.prepareStatement(queries.createSessionInfoTable)) {
+                    return pst.executeUpdate();
+                }
+            });
+        }
+
+        if (!doesTableExists(start, database, queries.pastTokensTable)) {
+            ProcessState.getInstance(start).addState(ProcessState.PROCESS_STATE.CREATING_NEW_TABLE, null);
+            ConnectionPool.write(start, database, con -> {
+                try (PreparedStatement pst = con.prepareStatement(queries.createPastTokensTable)) {
+                    return pst.executeUpdate();
+                }
+            });
+        }
 
+        if (!doesTableExists(start, database, queries.rowCountsTable)) {
+            ProcessState.getInstance(start).addState(ProcessState.PROCESS_STATE.CREATING_NEW_TABLE, null);
+            ConnectionPool.write(start, database, con -> {
+                try (PreparedStatement pst = con.prepareStatement(queries.createRowCountsTable)) {
+                    return pst.executeUpdate();
+                }
+            });
+        }
+        createRowCountIfNotExists(start, database, queries.sessionInfoRowCount);
+        createRowCountIfNotExists(start, database, queries.pastTokensRowCount);
+        // this also creates the indexes again if an import that dropped them did not finish
+        migrateSchema(start, database);
+        if (queries.integerLastUpdatedSigns) {
+            setIntegerLastUpdatedSigns(start, database);
+        }
     }
 
-    private static String getQueryToCreatePastTokensTable(Start start) {
-        return "CREATE TABLE IF NOT EXISTS " + Config.getConfig(start).getPastTokensTable() + " ("
-                + "refresh_token_hash_2 VARCHAR(128) NOT NULL," + "parent_refresh_token_hash_2 VARCHAR(128) NOT NULL,"
-                + "session_handle VARCHAR(255) NOT NULL," + "created_at_time BIGINT NOT NULL,"
-                + "PRIMARY KEY(refresh_token_hash_2)" + " );";
+    static void migrateSchema(Start start) throws SQLException {
+        for (int database = 0; database < ConnectionPool.getNumberOfDatabases(start); database++) {
+            migrateSchema(start, database);
+        }
+    }
 
+    // Runs the migrations that this database has not had yet, each in its own savepoint together with the update of
+    // user_version. The version is read inside the same savepoint, so two processes starting at once cannot both
+    // run a migration.
+    private static void migrateSchema(Start start, int database) throws SQLException {
+        String[][] migrations = QueryCatalog.getInstance(start).migrations;
+        for (int version = 0; version < migrations.length; version++) {
+            int fromVersion = version;
+            inSavepoint(start, database, con -> {
+                try (Statement stmt = con.createStatement()) {
+                    int currentVersion;
+                    try (ResultSet result = stmt.executeQuery("PRAGMA user_version")) {
+                        currentVersion = result.next() ? result.getInt(1) : 0;
+                    }
+                    if (currentVersion != fromVersion) {
+                        return null;
+                    }
+                    ProcessState.getInstance(start).addState(ProcessState.PROCESS_STATE.MIGRATING_SCHEMA, null);
+                    Logging.info(start, "Migrating the SQLite schema to version " + (fromVersion + 1));
+                    for (String query : migrations[fromVersion]) {
+                        stmt.execute(query);
+                    }
+                    stmt.execute("PRAGMA user_version = " + (fromVersion + 1));
+                }
+                return null;
+            });
+        }
     }
 
-    static void createTablesIfNotExists(Start start) throws SQLException {
-        if (!doesTableExists(start, Config.getConfig(start).getKeyValueTable())) {
-            ProcessState.getInstance(start).addState(ProcessState.PROCESS_STATE.CREATING_NEW_TABLE, null);
-            try (Connection con = ConnectionPool.getConnection(start);
-                 PreparedStatement pst = con.prepareStatement(getQueryToCreateKeyValueTable(start))) {
-                pst.executeUpdate();
+    static void setIntegerLastUpdatedSigns(Start start) throws SQLException {
+        for (int database = 0; database < ConnectionPool.getNumberOfDatabases(start); database++) {
+            setIntegerLastUpdatedSigns(start, database);
+        }
+    }
+
+    // Gives the rows that were written with a UUID as their last_updated_sign, before sqlite_integer_last_updated_sign
+    // was set, version 1. Rows that already have a version keep it. A sign that was read before this is then out of
+    // date, as it would be after any other write.
+    private static void setIntegerLastUpdatedSigns(Start start, int database) throws SQLException {
+        String[] QUERIES = QueryCatalog.getInstance(start).setIntegerLastUpdatedSigns;
+        int numberOfRows = inSavepoint(start, database, con -> {
+            int updated = 0;
+            try (Statement stmt = con.createStatement()) {
+                for (String query : QUERIES) {
+                    updated += stmt.executeUpdate(query);
+                }
             }
+            return updated;
+        });
+        if (numberOfRows > 0) {
+            Logging.info(start, "Gave " + numberOfRows + " row(s) an integer last_updated_sign");
         }
+    }
 
-        if (!doesTableExists(start, Config.getConfig(start).getSessionInfoTable())) {
-            ProcessState.getInstance(start).addState(ProcessState.PROCESS_STATE.CREATING_NEW_TABLE, null);
-            try (Connection con = ConnectionPool.getConnection(start);
-                 PreparedStatement pst = con.prepareStatement(getQueryToCreateSessionInfoTable(start))) {
-                pst.executeUpdate();
+    // Sets up the triggers that keep the number of rows of a table in the row counts table. The table is counted only
+    // the first time, in the same transaction that creates the triggers, so no row can be missed.
+    private static void createRowCountIfNotExists(Start start, int database, QueryCatalog.CountedTable table)
+            throws SQLException {
+        String GET = QueryCatalog.getInstance(start).getRowCount;
+        inSavepoint(start, database, con -> {
+            try (PreparedStatement pst = con.prepareStatement(GET)) {
+                pst.setString(1, table.tableName);
+                try (ResultSet result = pst.executeQuery()) {
+                    if (!result.next()) {
+                        long numberOfRows = countRows(con, table);
+                        try (PreparedStatement insert = con.prepareStatement(table.insertRowCount)) {
+                            insert.setString(1, table.tableName);
+                            insert.setLong(2, numberOfRows);
+                            insert.executeUpdate();
+                        }
+                    }
+                }
             }
+            try (Statement stmt = con.createStatement()) {
+                stmt.execute(table.createInsertTrigger);
+                stmt.execute(table.createDeleteTrigger);
+            }
+            return null;
+        });
+    }
+
+    // Counts the rows of the session info and past tokens tables, with the given partitions of the past tokens table,
+    // and corrects the stored numbers if they are wrong. This runs as a write, so that no other write can change the
+    // tables while they are being counted. Returns the number of stored counts that were corrected.
+    static int recountRows(Start start, List<QueryCatalog.PastTokensPartition> pastTokensPartitions)
+            throws SQLException {
+        QueryCatalog queries = QueryCatalog.getInstance(start);
+        int numberOfCorrections = 0;
+        for (int shard = 0; shard < ConnectionPool.getNumberOfShards(start); shard++) {
+            numberOfCorrections += recountRows(start, ConnectionPool.getSessionsDatabase(start, shard),
+                    queries.sessionInfoRowCount, Collections.emptyList());
+            numberOfCorrections += recountRows(start, ConnectionPool.getPastTokensDatabase(start, shard),
+                    queries.pastTokensRowCount, pastTokensPartitions);
         }
+        return numberOfCorrections;
+    }
 
-        if (!doesTableExists(start, Config.getConfig(start).getPastTokensTable())) {
-            ProcessState.getInstance(start).addState(ProcessState.PROCESS_STATE.CREATING_NEW_TABLE, null);
-            try (Connection con = ConnectionPool.getConnection(start);
-                 PreparedStatement pst = con.prepareStatement(getQueryToCreatePastTokensTable(start))) {
-                pst.executeUpdate();
+    private static int recountRows(Start start, int database, QueryCatalog.CountedTable table,
+                                   List<QueryCatalog.PastTokensPartition> partitions) throws SQLException {
+        return inSavepoint(start, database, con -> {
+            long numberOfRows = countRows(con, table);
+            for (QueryCatalog.PastTokensPartition partition : partitions) {
+                try (PreparedStatement pst = con.prepareStatement(partition.countRows);
+                     ResultSet result = pst.executeQuery()) {
+                    numberOfRows += result.next() ? result.getLong("num") : 0;
+                }
+            }
+            try (PreparedStatement pst = con.prepareStatement(table.setRowCount)) {
+                pst.setLong(1, numberOfRows);
+                pst.setString(2, table.tableName);
+                pst.setLong(3, numberOfRows);
+                return pst.executeUpdate();
+            }
+        });
+    }
+
+    private static long countRows(Connection con, QueryCatalog.CountedTable table) throws SQLException {
+        try (PreparedStatement pst = con.prepareStatement(table.countRows);
+             ResultSet result = pst.executeQuery()) {
+            if (result.next()) {
+                return result.getLong("num");
             }
+            throw new SQLException("Should not have come here.");
         }
     }
 
+    private static long getRowCount(Start start, int[] databases, QueryCatalog.CountedTable table)
+            throws SQLException {
+        String QUERY = QueryCatalog.getInstance(start).getRowCount;
+
+        List<Long> counts = ConnectionPool.readFromAll(start, databases, con -> {
+            PreparedStatement pst = StatementCache.prepare(con, QUERY);
+            pst.setString(1, table.tableName);
+            try (ResultSet result = pst.executeQuery()) {
+                if (result.next()) {
+                    return result.getLong("num");
+                }
+                throw new SQLException("Row count for " + table.tableName + " is missing");
+            }
+        });
+        long total = 0;
+        for (long count : counts) {
+            total += count;
+        }
+        return total;
+    }
+
+    // runs the work as one write that either fully happens or not at all. A savepoint is used instead of BEGIN, since
+    // it also works inside the transaction of a write batch.
+    private static <T> T inSavepoint(Start start, int database, ConnectionPool.Work<T> work) throws SQLException {
+        return ConnectionPool.write(start, database, con -> inSavepoint(con, work));
+    }
+
+    private static <T> T inSavepoint(Connection con, ConnectionPool.Work<T> work) throws SQLException {
+        try (Statement stmt = con.createStatement()) {
+            stmt.execute("SAVEPOINT queries_work");
+            try {
+                T result = work.doWork(con);
+                stmt.execute("RELEASE queries_work");
+                return result;
+            } catch (SQLException | RuntimeException e) {
+                stmt.execute("ROLLBACK TO queries_work");
+                stmt.execute("RELEASE queries_work");
+                throw e;
+            }
+        }
+    }
+
+    // Drops the secondary indexes and sets user_version back to before they were added, in one savepoint, so that
+    // migrateSchema creates them again. If the process stops before that, the next start does it.
+    static void dropIndexes(Start start) throws SQLException {
+        String[] QUERIES = QueryCatalog.getInstance(start).dropIndexes;
+        for (int database = 0; database < ConnectionPool.getNumberOfDatabases(start); database++) {
+            inSavepoint(start, database, con -> {
+                try (Statement stmt = con.createStatement()) {
+                    for (String QUERY : QUERIES) {
+                        stmt.execute(QUERY);
+                    }
+                    stmt.execute("PRAGMA user_version = " + QueryCatalog.VERSION_WITHOUT_INDEXES);
+                }
+                return null;
+            });
+        }
+    }
+
+    // Reads every row of a table, or of a partition of it, with one forward only cursor, so that any number of rows
+    // can be read without holding them all. This uses a connection of its own, since it can take a long time.
+    static void forEachRow(Start start, int database, QueryCatalog.TransferredTable table, String fromTableName,
+                           Consumer<JsonObject> consumer) throws SQLException {
+        String QUERY = table.getSelectAll(fromTableName);
+        ConnectionPool.runOnOwnConnection(start, database, con -> {
+            try (PreparedStatement pst = con.prepareStatement(QUERY);
+                 ResultSet result = pst.executeQuery()) {
+                while (result.next()) {
+                    JsonObject row = new JsonObject();
+                    row.addProperty("table", table.name);
+                    for (int i = 0; i < table.columns.length; i++) {
+                        Object value = result.getObject(i + 1);
+                        if (value instanceof Number) {
+                            row.addProperty(table.columns[i], (Number) value);
+                        } else if (value != null) {
+                            row.addProperty(table.columns[i], value.toString());
+                        } else {
+                            row.add(table.columns[i], JsonNull.INSTANCE);
+                        }
+                    }
+                    consumer.accept(row);
+                }
+            }
+            return null;
+        });
+    }
+
+    // Inserts the rows with multi row inserts in one transaction, and returns the number of them that were not there
+    // yet. The transaction is not synced to disk, which makes it a lot faster, but a crash of the machine can lose
+    // it. This is meant for imports, which can just be run again. It runs outside of any write batch, since the
+    // synchronous PRAGMA cannot be changed inside a transaction.
+    static int insertRows(Start start, int database, QueryCatalog.TransferredTable table, List<JsonObject> rows)
+            throws SQLException {
+        return ConnectionPool.writeOutsideBatch(start, database, con -> {
+            try (Statement stmt = con.createStatement()) {
+                int synchronous;
+                try (ResultSet result = stmt.executeQuery("PRAGMA synchronous")) {
+                    synchronous = result.getInt(1);
+                }
+                stmt.execute("PRAGMA synchronous = OFF");
+                try {
+                    return inSavepoint(con, savepointCon -> {
+                        int numberOfRowsInserted = 0;
+                        for (int from = 0; from < rows.size(); from += table.rowsPerInsert) {
+                            int numberOfRows = Math.min(table.rowsPerInsert, rows.size() - from);
+                            String QUERY = numberOfRows == table.rowsPerInsert ? table.insertRows :
+                                    table.getInsertRows(numberOfRows);
+                            PreparedStatement pst = StatementCache.prepare(savepointCon, QUERY);
+                            int parameter = 1;
+                            for (JsonObject row : rows.subList(from, from + numberOfRows)) {
+                                for (String column : table.columns) {
+                                    JsonElement value = row.get(column);
+                                    if (value == null || value.isJsonNull()) {
+                                        pst.setNull(parameter, Types.NULL);
+                                    } else if (value.isJsonPrimitive() && value.getAsJsonPrimitive().isNumber()) {
+                                        pst.setLong(parameter, value.getAsLong());
+                                    } else if (value.isJsonPrimitive()) {
+                                        pst.setString(parameter, value.getAsString());
+                                    } else {
+                                        pst.setString(parameter, value.toString());
+                                    }
+                                    parameter++;
+                                }
+                            }
+                            numberOfRowsInserted += pst.executeUpdate();
+                        }
+                        return numberOfRowsInserted;
+                    });
+                } finally {
+                    stmt.execute("PRAGMA synchronous = " + synchronous);
+                }
+            }
+        });
+    }
+
+    // to be used in testing only. Reads a pragma of the usual database file on a connection from the read pool, or on
+    // the writer.
+    static String getPragma(Start start, String pragma, boolean onWriter) throws SQLException {
+        ConnectionPool.Work<String> work = con -> {
+            try (Statement stmt = con.createStatement(); ResultSet result = stmt.executeQuery("PRAGMA " + pragma)) {
+                return result.next() ? result.getString(1) : null;
+            }
+        };
+        return onWriter ? ConnectionPool.write(start, work) : ConnectionPool.read(start, work);
+    }
+
     // to be used in testing only
     static void deleteAllTables(Start start) {
-        File file = new File(Utils.getDatabasePath(Config.getConfig(start)));
-        boolean ignored = file.delete();
+        // or closing the storage would write the in-memory databases back to the deleted files
+        InMemorySnapshots snapshots = ConnectionPool.getInMemorySnapshots(start);
+        if (snapshots != null) {
+            snapshots.discard();
+        }
+        for (String databasePath : ConnectionPool.getDatabasePaths(Config.getConfig(start))) {
+            boolean ignored = new File(databasePath).delete();
+            // in WAL or rollback journal mode, SQLite keeps these next to the database file. If they are left
+            // behind, they would be applied to the fresh database that is created in place of the deleted one.
+            ignored = new File(databasePath + "-wal").delete();
+            ignored = new File(databasePath + "-shm").delete();
+            ignored = new File(databasePath + "-journal").delete();
+        }
+    }
+
+    // binds what a write sets last_updated_sign to, or adds to it; see QueryCatalog.integerLastUpdatedSigns
+    private static void setNewLastUpdatedSign(Start start, PreparedStatement pst, int index) throws SQLException {
+        if (QueryCatalog.getInstance(start).integerLastUpdatedSigns) {
+            pst.setLong(index, 1);
+        } else {
+            pst.setString(index, Utils.getUUID());
+        }
     }
 
     static boolean setKeyValue_Transaction(Start start, String key, KeyValueInfoWithLastUpdated info)
@@ -113,102 +427,133 @@ public class Queries {
         // do an update if that is not null. Else we do an insert.
 
         if (info.lastUpdatedSign != null) {
-            String UPDATE = "UPDATE " + Config.getConfig(start).getKeyValueTable() +
-                    " SET value = ?, created_at_time = ?, last_updated_sign = ? WHERE name = ? AND last_updated_sign " +
-                    "= ?";
-            try (Connection con = ConnectionPool.getConnection(start);
-                 PreparedStatement pst = con.prepareStatement(UPDATE)) {
+            String UPDATE = QueryCatalog.getInstance(start).updateKeyValueIfSignMatches;
+            return ConnectionPool.write(start, con -> {
+                PreparedStatement pst = StatementCache.prepare(con, UPDATE);
                 pst.setString(1, info.value);
                 pst.setLong(2, info.createdAtTime);
-                pst.setString(3, Utils.getUUID());
+                setNewLastUpdatedSign(start, pst, 3);
                 pst.setString(4, key);
                 pst.setString(5, info.lastUpdatedSign);
                 int numberOfRowsAffected = pst.executeUpdate();
                 return numberOfRowsAffected == 1;
-            }
+            });
 
         } else {
-            String INSERT = "INSERT INTO " + Config.getConfig(start).getKeyValueTable()
-                    + "(name, value, created_at_time, last_updated_sign) VALUES(?, ?, ?, ?) ";
-            try (Connection con = ConnectionPool.getConnection(start);
-                 PreparedStatement pst = con.prepareStatement(INSERT)) {
-                pst.setString(1, key);
-                pst.setString(2, info.value);
-                pst.setLong(3, info.createdAtTime);
-                pst.setString(4, Utils.getUUID());
-                pst.executeUpdate();
-                return true;
-            } catch (SQLException e) {
-                if (e.getErrorCode() != 19) {
-                    throw e;
+            String INSERT = QueryCatalog.getInstance(start).insertKeyValue;
+            return ConnectionPool.write(start, con -> {
+                try {
+                    PreparedStatement pst = StatementCache.prepare(con, INSERT);
+                    pst.setString(1, key);
+                    pst.setString(2, info.value);
+                    pst.setLong(3, info.createdAtTime);
+                    setNewLastUpdatedSign(start, pst, 4);
+                    pst.executeUpdate();
+                    return true;
+                } catch (SQLException e) {
+                    if (e.getErrorCode() != 19) {
+                        throw e;
+                    }
                 }
-            }
-            return false;
+                return false;
+            });
         }
 
     }
 
     static void setKeyValue(Start start, String key, KeyValueInfo info)
             throws SQLException {
-        String QUERY = "INSERT INTO " + Config.getConfig(start).getKeyValueTable()
-                + "(name, value, created_at_time, last_updated_sign) VALUES(?, ?, ?, ?) "
-                + "ON CONFLICT (name) DO UPDATE SET value = ?, created_at_time = ?, last_updated_sign = ?";
+        String QUERY = QueryCatalog.getInstance(start).upsertKeyValue;
 
-        try (Connection con = ConnectionPool.getConnection(start);
-             PreparedStatement pst = con.prepareStatement(QUERY)) {
+        ConnectionPool.write(start, con -> {
+            PreparedStatement pst = StatementCache.prepare(con, QUERY);
             pst.setString(1, key);
             pst.setString(2, info.value);
             pst.setLong(3, info.createdAtTime);
-            pst.setString(4, Utils.getUUID());
+            setNewLastUpdatedSign(start, pst, 4);
             pst.setString(5, info.value);
             pst.setLong(6, info.createdAtTime);
-            pst.setString(7, Utils.getUUID());
-            pst.executeUpdate();
-        }
+            setNewLastUpdatedSign(start, pst, 7);
+            return pst.executeUpdate();
+        });
     }
 
 
-    static KeyValueInfo getKeyValue(Start start, String key) throws SQLException {
-        String QUERY = "SELECT value, created_at_time FROM "
-                + Config.getConfig(start).getKeyValueTable() + " WHERE name = ?";
+    static KeyValueInfoWithLastUpdated getKeyValue_Transaction(Start start, String key)
+            throws SQLException {
+
+        String QUERY = QueryCatalog.getInstance(start).getKeyValueWithSign;
 
-        try (Connection con = ConnectionPool.getConnection(start);
-             PreparedStatement pst = con.prepareStatement(QUERY)) {
+        return ConnectionPool.read(start, con -> {
+            PreparedStatement pst = StatementCache.prepare(con, QUERY);
             pst.setString(1, key);
-            ResultSet result = pst.executeQuery();
-            if (result.next()) {
-                return new KeyValueInfo(result.getString("value"), result.getLong("created_at_time"));
+            try (ResultSet result = pst.executeQuery()) {
+                if (result.next()) {
+                    return new KeyValueInfoWithLastUpdated(result.getString("value"),
+                            result.getLong("created_at_time"),
+                            result.getString("last_updated_sign"));
+                }
+                return null;
             }
-        }
-        return null;
+        });
     }
 
-    static KeyValueInfoWithLastUpdated getKeyValue_Transaction(Start start, String key)
-            throws SQLException {
-
-        String QUERY = "SELECT value, created_at_time, last_updated_sign FROM "
-                + Config.getConfig(start).getKeyValueTable() + " WHERE name = ? ";
+    // returns null if there is no entry with this key
+    static String getKeyValueLastUpdatedSign(Start start, String key) throws SQLException {
+        String QUERY = QueryCatalog.getInstance(start).getKeyValueSign;
 
-        try (Connection con = ConnectionPool.getConnection(start);
-             PreparedStatement pst = con.prepareStatement(QUERY)) {
+        return ConnectionPool.read(start, con -> {
+            PreparedStatement pst = StatementCache.prepare(con, QUERY);
             pst.setString(1, key);
-            ResultSet result = pst.executeQuery();
-            if (result.next()) {
-                return new KeyValueInfoWithLastUpdated(result.getString("value"), result.getLong("created_at_time"),
-                        result.getString("last_updated_sign"));
+            try (ResultSet result = pst.executeQuery()) {
+                if (result.next()) {
+                    return result.getString("last_updated_sign");
+                }
+                return null;
+            }
+        });
+    }
+
+    static PastTokenInfo getPastTokenInfo(Start start, String refreshTokenHash2) throws SQLException {
+        return getPastTokenInfo(start, Collections.emptyList(), refreshTokenHash2);
+    }
+
+    // looks in each of the partitions, in the given order, and then in the past tokens table. A token can be in any
+    // shard, since only its hash is known, so all of them are searched at once.
+    static PastTokenInfo getPastTokenInfo(Start start, List<QueryCatalog.PastTokensPartition> partitions,
+                                          String refreshTokenHash2) throws SQLException {
+        String QUERY = QueryCatalog.getInstance(start).getPastTokenInfo;
+
+        List<PastTokenInfo> results = ConnectionPool.readFromAll(start, ConnectionPool.getPastTokensDatabases(start),
+                con -> {
+            for (QueryCatalog.PastTokensPartition partition : partitions) {
+                PastTokenInfo info = getPastTokenInfo(con, partition.getPastTokenInfo, refreshTokenHash2);
+                if (info != null) {
+                    return info;
+                }
+            }
+            return getPastTokenInfo(con, QUERY, refreshTokenHash2);
+        });
+        for (PastTokenInfo info : results) {
+            if (info != null) {
+                return info;
             }
         }
         return null;
     }
 
-    static PastTokenInfo getPastTokenInfo(Start start, String refreshTokenHash2) throws SQLException {
-        String QUERY = "SELECT parent_refresh_token_hash_2, session_handle, created_at_time FROM "
-                + Config.getConfig(start).getPastTokensTable() + " WHERE refresh_token_hash_2 = ? ";
+    // looks only in the given partition of the given database
+    static PastTokenInfo getPastTokenInfo(Start start, int database, QueryCatalog.PastTokensPartition partition,
+                                          String refreshTokenHash2) throws SQLException {
+        return ConnectionPool.read(start, database,
+                con -> getPastTokenInfo(con, partition.getPastTokenInfo, refreshTokenHash2));
+    }
 
-        try (Connection con = ConnectionPool.getConnection(start);
-             PreparedStatement pst = con.prepareStatement(QUERY)) {
-            pst.setString(1, refreshTokenHash2);
-            ResultSet result = pst.executeQuery();
+    private static PastTokenInfo getPastTokenInfo(Connection con, String QUERY, String refreshTokenHash2)
+            throws SQLException {
+        PreparedStatement pst = StatementCache.prepare(con, QUERY);
+        pst.setString(1, refreshTokenHash2);
+        try (ResultSet result = pst.executeQuery()) {
             if (result.next()) {
                 return new PastTokenInfo(refreshTokenHash2, result.getString("session_handle"),
                         result.getString("parent_refresh_token_hash_2"), result.getLong("created_at_time"));
@@ -218,44 +563,138 @@ public class Queries {
     }
 
     static void insertPastTokenInfo(Start start, PastTokenInfo info) throws SQLException {
-        String QUERY = "INSERT INTO " + Config.getConfig(start).getPastTokensTable()
-                + "(refresh_token_hash_2, parent_refresh_token_hash_2, session_handle, created_at_time)"
-                + " VALUES(?, ?, ?, ?)";
+        insertPastTokenInfo(start, QueryCatalog.getInstance(start).insertPastTokenInfo, info);
+    }
+
+    static void insertPastTokenInfo(Start start, QueryCatalog.PastTokensPartition partition, PastTokenInfo info)
+            throws SQLException {
+        insertPastTokenInfo(start, partition.insertPastTokenInfo, info);
+    }
 
-        try (Connection con = ConnectionPool.getConnection(start);
-             PreparedStatement pst = con.prepareStatement(QUERY)) {
+    private static void insertPastTokenInfo(Start start, String QUERY, PastTokenInfo info) throws SQLException {
+        ConnectionPool.write(start, ConnectionPool.getPastTokensDatabase(start, info.sessionHandle), con -> {
+            PreparedStatement pst = StatementCache.prepare(con, QUERY);
             pst.setString(1, info.refreshTokenHash2);
             pst.setString(2, info.parentRefreshTokenHash2);
             pst.setString(3, info.sessionHandle);
             pst.setLong(4, info.createdTime);
-            pst.executeUpdate();
-        }
+            return pst.executeUpdate();
+        });
     }
 
     static int getNumberOfPastTokens(Start start) throws SQLException {
-        String QUERY = "SELECT count(*) as num FROM " + Config.getConfig(start).getPastTokensTable();
+        return (int) getRowCount(start, ConnectionPool.getPastTokensDatabases(start),
+                QueryCatalog.getInstance(start).pastTokensRowCount);
+    }
 
-        try (Connection con = ConnectionPool.getConnection(start);
-             PreparedStatement pst = con.prepareStatement(QUERY)) {
-            ResultSet result = pst.executeQuery();
-            if (result.next()) {
-                return result.getInt("num");
+    static void forEachPastTokenHash(Start start, Consumer<String> consumer) throws SQLException {
+        forEachPastTokenHash(start, Collections.emptyList(), consumer);
+    }
+
+    // goes over the past tokens table and then all the given partitions
+    static void forEachPastTokenHash(Start start, List<QueryCatalog.PastTokensPartition> partitions,
+                                     Consumer<String> consumer) throws SQLException {
+        List<String> queries = new ArrayList<>();
+        queries.add(QueryCatalog.getInstance(start).getAllPastTokenHashes);
+        for (QueryCatalog.PastTokensPartition partition : partitions) {
+            queries.add(partition.getAllPastTokenHashes);
+        }
+
+        for (int database : ConnectionPool.getPastTokensDatabases(start)) {
+            ConnectionPool.read(start, database, con -> {
+                for (String QUERY : queries) {
+                    PreparedStatement pst = StatementCache.prepare(con, QUERY);
+                    try (ResultSet result = pst.executeQuery()) {
+                        while (result.next()) {
+                            consumer.accept(result.getString("refresh_token_hash_2"));
+                        }
+                    }
+                }
+                return null;
+            });
+        }
+    }
+
+    static List<String> getPastTokensPartitionNames(Start start) throws SQLException {
+        String QUERY = QueryCatalog.getInstance(start).getPastTokensPartitionNames;
+
+        List<List<String>> namesInEachShard = ConnectionPool.readFromAll(start,
+                ConnectionPool.getPastTokensDatabases(start), con -> {
+            List<String> names = new ArrayList<>();
+            try (PreparedStatement pst = con.prepareStatement(QUERY);
+                 ResultSet result = pst.executeQuery()) {
+                while (result.next()) {
+                    names.add(result.getString("name"));
+                }
             }
-            throw new SQLException("Should not have come here.");
+            return names;
+        });
+        Set<String> names = new LinkedHashSet<>();
+        for (List<String> namesInShard : namesInEachShard) {
+            names.addAll(namesInShard);
         }
+        return new ArrayList<>(names);
+    }
+
+    static void createPastTokensPartition(Start start, QueryCatalog.PastTokensPartition partition)
+            throws SQLException {
+        for (int database : ConnectionPool.getPastTokensDatabases(start)) {
+            inSavepoint(start, database, con -> {
+                try (Statement stmt = con.createStatement()) {
+                    stmt.execute(partition.createTable);
+                    stmt.execute(partition.createIndex);
+                    stmt.execute(partition.createInsertTrigger);
+                    stmt.execute(partition.createDeleteTrigger);
+                }
+                return null;
+            });
+        }
+    }
+
+    // Copies the tokens of a partition that sessions still refer to into another table, before the partition is
+    // dropped. Returns the number of tokens copied, which the row count includes twice until the partition is dropped.
+    static int copyLivePastTokens(Start start, QueryCatalog.PastTokensPartition partition, String copyLiveTokensTo)
+            throws SQLException {
+        int numberOfLiveTokens = 0;
+        for (int database : ConnectionPool.getPastTokensDatabases(start)) {
+            numberOfLiveTokens += inSavepoint(start, database, con -> {
+                // a plain Statement would also count the rows changed by the row count trigger
+                try (PreparedStatement pst = con.prepareStatement(partition.getCopyLiveTokens(copyLiveTokensTo))) {
+                    return pst.executeUpdate();
+                }
+            });
+        }
+        return numberOfLiveTokens;
+    }
+
+    // Drops a partition, whose live tokens copyLivePastTokens has copied out. Returns the number of tokens that were in
+    // it.
+    static int dropPastTokensPartition(Start start, QueryCatalog.PastTokensPartition partition) throws SQLException {
+        int numberOfTokens = 0;
+        for (int database : ConnectionPool.getPastTokensDatabases(start)) {
+            numberOfTokens += inSavepoint(start, database, con -> {
+                try (Statement stmt = con.createStatement()) {
+                    long numberOfRows;
+                    try (ResultSet result = stmt.executeQuery(partition.countRows)) {
+                        numberOfRows = result.next() ? result.getLong("num") : 0;
+                    }
+                    stmt.executeUpdate(partition.subtractRowCount);
+                    stmt.execute(partition.dropTable);
+                    return (int) numberOfRows;
+                }
+            });
+        }
+        return numberOfTokens;
     }
 
     static void createNewSession(Start start, String sessionHandle, String userId, String refreshTokenHash2,
                                  JsonObject userDataInDatabase, long expiry, JsonObject userDataInJWT,
                                  long createdAtTime)
             throws SQLException {
-        String QUERY = "INSERT INTO " + Config.getConfig(start).getSessionInfoTable()
-                + "(session_handle, user_id, refresh_token_hash_2, session_data, expires_at, jwt_user_payload, " +
-                "created_at_time, last_updated_sign)"
-                + " VALUES(?, ?, ?, ?, ?, ?, ?, ?)";
+        String QUERY = QueryCatalog.getInstance(start).createNewSession;
 
-        try (Connection con = ConnectionPool.getConnection(start);
-             PreparedStatement pst = con.prepareStatement(QUERY)) {
+        ConnectionPool.write(start, ConnectionPool.getSessionsDatabase(start, sessionHandle), con -> {
+            PreparedStatement pst = StatementCache.prepare(con, QUERY);
             pst.setString(1, sessionHandle);
             pst.setString(2, userId);
             pst.setString(3, refreshTokenHash2);
@@ -263,45 +702,43 @@ public class Queries {
             pst.setLong(5, expiry);
             pst.setString(6, userDataInJWT.toString());
             pst.setLong(7, createdAtTime);
-            pst.setString(8, Utils.getUUID());
-            pst.executeUpdate();
-        }
+            setNewLastUpdatedSign(start, pst, 8);
+            return pst.executeUpdate();
+        });
     }
 
     static boolean isSessionBlacklisted(Start start, String sessionHandle) throws SQLException {
-        String QUERY = "SELECT session_handle FROM " + Config.getConfig(start).getSessionInfoTable()
-                + " WHERE session_handle = ?";
+        String QUERY = QueryCatalog.getInstance(start).isSessionBlacklisted;
 
-        try (Connection con = ConnectionPool.getConnection(start);
-             PreparedStatement pst = con.prepareStatement(QUERY)) {
+        return ConnectionPool.read(start, ConnectionPool.getSessionsDatabase(start, sessionHandle), con -> {
+            PreparedStatement pst = StatementCache.prepare(con, QUERY);
             pst.setString(1, sessionHandle);
-            ResultSet result = pst.executeQuery();
-            return !result.next();
-        }
+            try (ResultSet result = pst.executeQuery()) {
+                return !result.next();
+            }
+        });
     }
 
     static NoSQLStorage_1.SessionInfoWithLastUpdated getSessionInfo_Transaction(Start start,
                                                                                 String sessionHandle)
             throws SQLException {
-        String QUERY =
-                "SELECT session_handle, user_id, refresh_token_hash_2, session_data, expires_at, last_updated_sign," +
-                        "created_at_time, jwt_user_payload FROM "
-                        + Config.getConfig(start).getSessionInfoTable() + " WHERE session_handle = ? ";
-        try (Connection con = ConnectionPool.getConnection(start);
-             PreparedStatement pst = con.prepareStatement(QUERY)) {
+        String QUERY = QueryCatalog.getInstance(start).getSessionInfoWithSign;
+        return ConnectionPool.read(start, ConnectionPool.getSessionsDatabase(start, sessionHandle), con -> {
+            PreparedStatement pst = StatementCache.prepare(con, QUERY);
             pst.setString(1, sessionHandle);
-            ResultSet result = pst.executeQuery();
-            if (result.next()) {
-                return new NoSQLStorage_1.SessionInfoWithLastUpdated(sessionHandle, result.getString("user_id"),
-                        result.getString("refresh_token_hash_2"),
-                        new JsonParser().parse(result.getString("session_data")).getAsJsonObject(),
-                        result.getLong("expires_at"),
-                        new JsonParser().parse(result.getString("jwt_user_payload")).getAsJsonObject(),
-                        result.getLong("created_at_time"),
-                        result.getString("last_updated_sign"));
+            try (ResultSet result = pst.executeQuery()) {
+                if (result.next()) {
+                    return new NoSQLStorage_1.SessionInfoWithLastUpdated(sessionHandle, result.getString("user_id"),
+                            result.getString("refresh_token_hash_2"),
+                            new JsonParser().parse(result.getString("session_data")).getAsJsonObject(),
+                            result.getLong("expires_at"),
+                            new JsonParser().parse(result.getString("jwt_user_payload")).getAsJsonObject(),
+                            result.getLong("created_at_time"),
+                            result.getString("last_updated_sign"));
+                }
+                return null;
             }
-        }
-        return null;
+        });
     }
 
     static boolean updateSessionInfo_Transaction(Start start, String sessionHandle,
@@ -310,96 +747,116 @@ public class Queries {
         if (lastUpdatedSign == null) {
             throw new SQLException(new Exception("lastUpdatedSign cannot be null for this update operation"));
         }
-        String QUERY = "UPDATE " + Config.getConfig(start).getSessionInfoTable()
-                + " SET refresh_token_hash_2 = ?, expires_at = ?, last_updated_sign = ?"
-                + " WHERE session_handle = ? AND last_updated_sign = ?";
+        String QUERY = QueryCatalog.getInstance(start).updateSessionInfoIfSignMatches;
 
-        try (Connection con = ConnectionPool.getConnection(start);
-             PreparedStatement pst = con.prepareStatement(QUERY)) {
+        return ConnectionPool.write(start, ConnectionPool.getSessionsDatabase(start, sessionHandle), con -> {
+            PreparedStatement pst = StatementCache.prepare(con, QUERY);
             pst.setString(1, refreshTokenHash2);
             pst.setLong(2, expiry);
-            pst.setString(3, Utils.getUUID());
+            setNewLastUpdatedSign(start, pst, 3);
             pst.setString(4, sessionHandle);
             pst.setString(5, lastUpdatedSign);
             int numberOfRowsAffected = pst.executeUpdate();
             return numberOfRowsAffected == 1;
-        }
+        });
     }
 
     static int getNumberOfSessions(Start start) throws SQLException {
-        String QUERY = "SELECT count(*) as num FROM " + Config.getConfig(start).getSessionInfoTable();
-
-        try (Connection con = ConnectionPool.getConnection(start);
-             PreparedStatement pst = con.prepareStatement(QUERY)) {
-            ResultSet result = pst.executeQuery();
-            if (result.next()) {
-                return result.getInt("num");
-            }
-            throw new SQLException("Should not have come here.");
-        }
+        return (int) getRowCount(start, ConnectionPool.getSessionsDatabases(start),
+                QueryCatalog.getInstance(start).sessionInfoRowCount);
     }
 
     static int deleteSession(Start start, String[] sessionHandles) throws SQLException {
         if (sessionHandles.length == 0) {
             return 0;
         }
-        StringBuilder QUERY = new StringBuilder("DELETE FROM " + Config.getConfig(start).getSessionInfoTable() +
-                " WHERE session_handle IN (");
-        for (int i = 0; i < sessionHandles.length; i++) {
-            if (i == sessionHandles.length - 1) {
-                QUERY.append("?)");
-            } else {
-                QUERY.append("?, ");
+        int numberOfShards = ConnectionPool.getNumberOfShards(start);
+        if (numberOfShards == 1) {
+            return deleteSession(start, 0, sessionHandles);
+        }
+        List<List<String>> handlesInEachShard = new ArrayList<>();
+        for (int shard = 0; shard < numberOfShards; shard++) {
+            handlesInEachShard.add(new ArrayList<>());
+        }
+        for (String sessionHandle : sessionHandles) {
+            handlesInEachShard.get(ConnectionPool.getShard(start, sessionHandle)).add(sessionHandle);
+        }
+        int numberOfRowsDeleted = 0;
+        for (int shard = 0; shard < numberOfShards; shard++) {
+            List<String> handles = handlesInEachShard.get(shard);
+            if (!handles.isEmpty()) {
+                numberOfRowsDeleted += deleteSession(start, shard, handles.toArray(new String[0]));
             }
         }
+        return numberOfRowsDeleted;
+    }
 
-        try (Connection con = ConnectionPool.getConnection(start);
-             PreparedStatement pst = con.prepareStatement(QUERY.toString())) {
-            for (int i = 0; i < sessionHandles.length; i++) {
-                pst.setString(i + 1, sessionHandles[i]);
+    private static int deleteSession(Start start, int shard, String[] sessionHandles) throws SQLException {
+        QueryCatalog queries = QueryCatalog.getInstance(start);
+        int maxInListSize = QueryCatalog.IN_LIST_SIZES[QueryCatalog.IN_LIST_SIZES.length - 1];
+
+        // the handles are deleted in chunks that each use one of the fixed size IN lists from the catalog, so that
+        // the statements can be reused. Unused slots are filled with the chunk's last handle, which does not change
+        // what gets deleted.
+        return inSavepoint(start, ConnectionPool.getSessionsDatabase(start, shard), con -> {
+            int numberOfRowsDeleted = 0;
+            for (int from = 0; from < sessionHandles.length; from += maxInListSize) {
+                int chunkLength = Math.min(maxInListSize, sessionHandles.length - from);
+                int sizeIndex = QueryCatalog.getInListSizeIndex(chunkLength);
+                PreparedStatement pst = StatementCache.prepare(con, queries.getDeleteSessions(sizeIndex));
+                for (int i = 0; i < QueryCatalog.IN_LIST_SIZES[sizeIndex]; i++) {
+                    pst.setString(i + 1, sessionHandles[from + Math.min(i, chunkLength - 1)]);
+                }
+                numberOfRowsDeleted += pst.executeUpdate();
             }
-            return pst.executeUpdate();
-        }
+            return numberOfRowsDeleted;
+        });
     }
 
     static String[] getAllSessionHandlesForUser(Start start, String userId) throws SQLException {
-        String QUERY = "SELECT session_handle FROM " + Config.getConfig(start).getSessionInfoTable() +
-                " WHERE user_id = ?";
+        String QUERY = QueryCatalog.getInstance(start).getAllSessionHandlesForUser;
 
-        try (Connection con = ConnectionPool.getConnection(start);
-             PreparedStatement pst = con.prepareStatement(QUERY)) {
+        List<List<String>> handlesInEachShard = ConnectionPool.readFromAll(start,
+                ConnectionPool.getSessionsDatabases(start), con -> {
+            PreparedStatement pst = StatementCache.prepare(con, QUERY);
             pst.setString(1, userId);
-            ResultSet result = pst.executeQuery();
-            List<String> temp = new ArrayList<>();
-            while (result.next()) {
-                temp.add(result.getString("session_handle"));
-            }
-            String[] finalResult = new String[temp.size()];
-            for (int i = 0; i < temp.size(); i++) {
-                finalResult[i] = temp.get(i);
+            try (ResultSet result = pst.executeQuery()) {
+                List<String> temp = new ArrayList<>();
+                while (result.next()) {
+                    temp.add(result.getString("session_handle"));
+                }
+                return temp;
             }
-            return finalResult;
+        });
+        List<String> temp = new ArrayList<>();
+        for (List<String> handles : handlesInEachShard) {
+            temp.addAll(handles);
         }
+        String[] finalResult = new String[temp.size()];
+        for (int i = 0; i < temp.size(); i++) {
+            finalResult[i] = temp.get(i);
+        }
+        return finalResult;
     }
 
     static SQLStorage.SessionInfo getSession(Start start, String sessionHandle) throws SQLException {
-        String QUERY = "SELECT session_handle, user_id, refresh_token_hash_2, session_data, expires_at, " +
-                "created_at_time, jwt_user_payload FROM "
-                + Config.getConfig(start).getSessionInfoTable() + " WHERE session_handle = ?";
-        try (Connection con = ConnectionPool.getConnection(start);
-             PreparedStatement pst = con.prepareStatement(QUERY)) {
+        String QUERY = QueryCatalog.getInstance(start).getSession;
+        return ConnectionPool.read(start, ConnectionPool.getSessionsDatabase(start, sessionHandle), con -> {
+            PreparedStatement pst = StatementCache.prepare(con, QUERY);
             pst.setString(1, sessionHandle);
-            ResultSet result = pst.executeQuery();
-            if (result.next()) {
-                return new SQLStorage.SessionInfo(result.getString("session_handle"), result.getString("user_id"),
-                        result.getString("refresh_token_hash_2"),
-                        new JsonParser().parse(result.getString("session_data")).getAsJsonObject(),
-                        result.getLong("expires_at"),
-                        new JsonParser().parse(result.getString("jwt_user_payload")).getAsJsonObject(),
-                        result.getLong("created_at_time"));
+            try (ResultSet result = pst.executeQuery()) {
+                if (result.next()) {
+                    return new SQLStorage.SessionInfo(result.getString("session_handle"),
+                            result.getString("user_id"),
+                            result.getString("refresh_token_hash_2"),
+                            new JsonParser().parse(result.getString("session_data")).getAsJsonObject(),
+                            result.getLong("expires_at"),
+                            new JsonParser().parse(result.getString("jwt_user_payload")).getAsJsonObject(),
+                            result.getLong("created_at_time"));
+                }
+                return null;
             }
-        }
-        return null;
+        });
     }
 
 
@@ -408,23 +865,12 @@ public class Queries {
         if (sessionData == null && jwtPayload == null) {
             throw new SQLException("sessionData and jwtPayload are null when updating session info");
         }
-        String QUERY = "UPDATE " + Config.getConfig(start).getSessionInfoTable() + " SET";
-        QUERY += " last_updated_sign = ?";
-
-        if (sessionData != null) {
-            QUERY += ", session_data = ?";
-        }
-
-        if (jwtPayload != null) {
-            QUERY += ", jwt_user_payload = ?";
-        }
+        String QUERY = QueryCatalog.getInstance(start).getUpdateSession(sessionData != null, jwtPayload != null);
 
-        QUERY += " WHERE session_handle = ?";
-
-        int currIndex = 1;
-        try (Connection con = ConnectionPool.getConnection(start);
-             PreparedStatement pst = con.prepareStatement(QUERY)) {
-            pst.setString(currIndex, Utils.getUUID());
+        return ConnectionPool.write(start, ConnectionPool.getSessionsDatabase(start, sessionHandle), con -> {
+            int currIndex = 1;
+            PreparedStatement pst = StatementCache.prepare(con, QUERY);
+            setNewLastUpdatedSign(start, pst, currIndex);
             currIndex++;
             if (sessionData != null) {
                 pst.setString(currIndex, sessionData.toString());
@@ -436,32 +882,107 @@ public class Queries {
             }
             pst.setString(currIndex, sessionHandle);
             return pst.executeUpdate();
-        }
+        });
 
     }
 
-    static void deleteAllExpiredSessions(Start start) throws SQLException {
-        String QUERY = "DELETE FROM " + Config.getConfig(start).getSessionInfoTable() +
-                " WHERE expires_at <= ?";
+    static int deleteAllExpiredSessions(Start start, int shard, long expiredAt) throws SQLException {
+        String QUERY = QueryCatalog.getInstance(start).deleteAllExpiredSessions;
+
+        return ConnectionPool.write(start, ConnectionPool.getSessionsDatabase(start, shard), con -> {
+            PreparedStatement pst = StatementCache.prepare(con, QUERY);
+            pst.setLong(1, expiredAt);
+            return pst.executeUpdate();
+        });
+    }
+
+    // deletes at most chunkSize sessions that expired at or before expiredAt, and returns how many were deleted
+    static int deleteExpiredSessionsChunk(Start start, int shard, long expiredAt, int chunkSize)
+            throws SQLException {
+        String QUERY = QueryCatalog.getInstance(start).deleteExpiredSessionsChunk;
 
-        try (Connection con = ConnectionPool.getConnection(start);
-             PreparedStatement pst = con.prepareStatement(QUERY)) {
-            pst.setLong(1, System.currentTimeMillis());
-            pst.executeUpdate();
+        return ConnectionPool.write(start, ConnectionPool.getSessionsDatabase(start, shard), con -> {
+            PreparedStatement pst = StatementCache.prepare(con, QUERY);
+            pst.setLong(1, expiredAt);
+            pst.setInt(2, chunkSize);
+            return pst.executeUpdate();
+        });
+    }
+
+    // a past token is always in the same shard as its session, so each shard is cleaned up on its own
+    static int deletePastOrphanedTokens(Start start, long createdBefore) throws SQLException {
+        int numberOfTokensDeleted = 0;
+        for (int database : ConnectionPool.getPastTokensDatabases(start)) {
+            numberOfTokensDeleted += deletePastOrphanedTokens(start, database, createdBefore);
         }
+        return numberOfTokensDeleted;
     }
 
-    static void deletePastOrphanedTokens(Start start, long createdBefore) throws SQLException {
-        String QUERY = "DELETE FROM " + Config.getConfig(start).getPastTokensTable() +
-                " WHERE created_at_time < ? AND parent_refresh_token_hash_2 NOT IN (" +
-                "SELECT refresh_token_hash_2 FROM " + Config.getConfig(start).getSessionInfoTable() + ") " +
-                "AND refresh_token_hash_2 NOT IN (" +
-                "SELECT refresh_token_hash_2 FROM " + Config.getConfig(start).getSessionInfoTable() + ")";
+    private static int deletePastOrphanedTokens(Start start, int database, long createdBefore) throws SQLException {
+        int batchSize = Config.getConfig(start).getPastTokensCleanupBatchSize();
+        if (batchSize == 0) {
+            String QUERY = QueryCatalog.getInstance(start).deletePastOrphanedTokens;
+            return ConnectionPool.write(start, database, con -> {
+                PreparedStatement pst = StatementCache.prepare(con, QUERY);
+                pst.setLong(1, createdBefore);
+                return pst.executeUpdate();
+            });
+        }
 
-        try (Connection con = ConnectionPool.getConnection(start);
-             PreparedStatement pst = con.prepareStatement(QUERY)) {
-            pst.setLong(1, createdBefore);
-            pst.executeUpdate();
+        // walks the tokens older than createdBefore in created_at_time order, a batch at a time. The end of each
+        // batch is found with a read, so the writer is only held while the rows of one batch are checked against
+        // session_info and deleted.
+        long[] after = {Long.MIN_VALUE, Long.MIN_VALUE};
+        int total = 0;
+        while (true) {
+            long[] end = getPastTokensBatchEnd(start, database, createdBefore, after, batchSize);
+            // the last batch runs up to createdBefore
+            long[] batchEnd = end == null ? new long[]{createdBefore, Long.MAX_VALUE} : end;
+            total += deletePastOrphanedTokensBatch(start, database, createdBefore, after, batchEnd);
+            if (end == null) {
+                return total;
+            }
+            after = end;
+            Thread.yield();
         }
     }
+
+    // returns the key (created_at_time, rowid) of the last row in the batch after the given key, or null if there are
+    // fewer than batchSize rows left
+    private static long[] getPastTokensBatchEnd(Start start, int database, long createdBefore, long[] after,
+                                                int batchSize) throws SQLException {
+        String QUERY = QueryCatalog.getInstance(start).getPastTokensBatchEnd;
+
+        return ConnectionPool.read(start, database, con -> {
+            PreparedStatement pst = StatementCache.prepare(con, QUERY);
+            pst.setLong(1, createdBefore);
+            pst.setLong(2, after[0]);
+            pst.setLong(3, after[0]);
+            pst.setLong(4, after[1]);
+            pst.setInt(5, batchSize - 1);
+            try (ResultSet result = pst.executeQuery()) {
+                if (result.next()) {
+                    return new long[]{result.getLong(1), result.getLong(2)};
+                }
+            }
+            return null;
+        });
+    }
+
+    private static int deletePastOrphanedTokensBatch(Start start, int database, long createdBefore, long[] after,
+                                                     long[] end) throws SQLException {
+        String QUERY = QueryCatalog.getInstance(start).deletePastOrphanedTokensBatch;
+
+        return ConnectionPool.write(start, database, con -> {
+            PreparedStatement pst = StatementCache.prepare(con, QUERY);
+            pst.setLong(1, createdBefore);
+            pst.setLong(2, after[0]);
+            pst.setLong(3, after[0]);
+            pst.setLong(4, after[1]);
+            pst.setLong(5, end[0]);
+            pst.setLong(6, end[0]);
+            pst.setLong(7, end[1]);
+            return pst.executeUpdate();
+        });
+    }
 }
@@ -0,0 +1,400 @@
+/*
+ *    Copyright (c) 2020, VRAI Labs and/or its affiliates. All rights reserved.
+ *
+ *    This software is licensed under the Apache License, Version 2.0 (the
+ *    "License") as published by the Apache Software Foundation.
+ *
+ *    You may not use this file except in compliance with the License. You may
+ *    obtain a copy of the License at http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *    Unless required by applicable law or agreed to in writing, software
+ *    distributed under the License is distributed on an "AS IS" BASIS, WITHOUT
+ *    WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied. See the
+ *    License for the specific language governing permissions and limitations
+ *    under the License.
+ *
+ */
+
+package io.supertokens.storage.sqlite;
+
+import io.supertokens.pluginInterface.exceptions.QuitProgramFromPluginException;
+import io.supertokens.storage.sqlite.config.Config;
+import io.supertokens.storage.sqlite.config.SQLiteConfig;
+
+// All the SQL that Queries runs, built once from the configured table names when the storage is initialised. This
+// way, running a query does not need to look up the config or build any SQL strings.
+class QueryCatalog extends ResourceDistributor.SingletonResource {
+
+    private static final ResourceDistributor.Key<QueryCatalog> RESOURCE_KEY =
+            ResourceDistributor.newKey(QueryCatalog.class);
+
+    // deleteSession uses the smallest of these that fits the number of handles, so only a few distinct statements
+    // ever need to be prepared. Larger inputs are split into chunks of the biggest size.
+    static final int[] IN_LIST_SIZES = {1, 2, 4, 8, 16, 32, 64, 128};
+
+    final String keyValueTable;
+    final String sessionInfoTable;
+    final String pastTokensTable;
+    final String rowCountsTable;
+    // the session info table as seen from a connection to the past tokens table. With sqlite_separate_table_files,
+    // it is in another database file that is ATTACHed to that connection.
+    final String pastTokensSessionInfoTable;
+
+    final String createKeyValueTable;
+    final String createSessionInfoTable;
+    final String createPastTokensTable;
+    final String createRowCountsTable;
+    final String getRowCount;
+    final CountedTable sessionInfoRowCount;
+    final CountedTable pastTokensRowCount;
+
+    // The statements that bring the schema of a database from one version to the next. The version of a database is
+    // kept in its user_version, and migrations[i] takes it from version i to i + 1. Only ever add to the end of this.
+    // An import that drops the indexes sets the version back to VERSION_WITHOUT_INDEXES, so the migrations from there
+    // on run again after it, and they must be safe to run twice.
+    final String[][] migrations;
+    static final int VERSION_WITHOUT_INDEXES = 0;
+    // every secondary index. Only the migrations create them.
+    final String[] createIndexes;
+    final String[] dropIndexes;
+
+    // the tables that BulkTransfer moves, and the names that it uses for them
+    final TransferredTable keyValueTransfer;
+    final TransferredTable sessionInfoTransfer;
+    final TransferredTable pastTokensTransfer;
+
+    // With sqlite_integer_last_updated_sign, last_updated_sign is a version number. A write then sets it to what it
+    // was plus its parameter, which is 1, and an insert sets it to 1. Otherwise the parameter is a new random UUID.
+    final boolean integerLastUpdatedSigns;
+    // give every row of the key value and the session info table that has a UUID as its sign version 1
+    final String[] setIntegerLastUpdatedSigns;
+
+    final String updateKeyValueIfSignMatches;
+    final String insertKeyValue;
+    final String upsertKeyValue;
+    final String getKeyValueWithSign;
+    final String getKeyValueSign;
+
+    final String getPastTokenInfo;
+    final String insertPastTokenInfo;
+    final String getAllPastTokenHashes;
+    final String deletePastOrphanedTokens;
+    final String getPastTokensBatchEnd;
+    final String deletePastOrphanedTokensBatch;
+    final String getPastTokensPartitionNames;
+
+    final String createNewSession;
+    final String isSessionBlacklisted;
+    final String getSessionInfoWithSign;
+    final String updateSessionInfoIfSignMatches;
+    final String getAllSessionHandlesForUser;
+    final String getSession;
+    final String deleteAllExpiredSessions;
+    final String deleteExpiredSessionsChunk;
+
+    // indexed by (sessionData != null ? 1 : 0) | (jwtPayload != null ? 2 : 0)
+    private final String[] updateSession = new String[4];
+
+    // indexed in the same way as IN_LIST_SIZES
+    private final String[] deleteSessions = new String[IN_LIST_SIZES.length];
+
+    private QueryCatalog(SQLiteConfig config) {
+        keyValueTable = config.getKeyValueTable();
+        sessionInfoTable = config.getSessionInfoTable();
+        pastTokensTable = config.getPastTokensTable();
+        rowCountsTable = config.getRowCountsTable();
+        pastTokensSessionInfoTable = config.isSeparateTableFilesEnabled() ?
+                ConnectionPool.SESSIONS_SCHEMA + "." + sessionInfoTable : sessionInfoTable;
+
+        createKeyValueTable = "CREATE TABLE IF NOT EXISTS " + keyValueTable + " (" + "name VARCHAR(128),"
+                + "value TEXT," + "last_updated_sign TEXT," + "created_at_time BIGINT ," +
+                "PRIMARY KEY(name)" + " );";
+        createSessionInfoTable = "CREATE TABLE IF NOT EXISTS " + sessionInfoTable + " ("
+                + "session_handle VARCHAR(255) NOT NULL," + "user_id VARCHAR(128) NOT NULL,"
+                + "refresh_token_hash_2 VARCHAR(128) NOT NULL," + "session_data TEXT,"
+                + "expires_at BIGINT  NOT NULL," + "created_at_time BIGINT NOT NULL," +
+                "jwt_user_payload TEXT," + "last_updated_sign TEXT ," + "PRIMARY KEY(session_handle)" + " );";
+        createPastTokensTable = "CREATE TABLE IF NOT EXISTS " + pastTokensTable + " ("
+                + "refresh_token_hash_2 VARCHAR(128) NOT NULL," + "parent_refresh_token_hash_2 VARCHAR(128) NOT NULL,"
+                + "session_handle VARCHAR(255) NOT NULL," + "created_at_time BIGINT NOT NULL,"
+                + "PRIMARY KEY(refresh_token_hash_2)" + " );";
+        createRowCountsTable = "CREATE TABLE IF NOT EXISTS " + rowCountsTable + " ("
+                + "table_name VARCHAR(128) NOT NULL," + "num BIGINT NOT NULL," + "PRIMARY KEY(table_name)" + " );";
+        getRowCount = "SELECT num FROM " + rowCountsTable + " WHERE table_name = ?";
+        sessionInfoRowCount = new CountedTable(sessionInfoTable, rowCountsTable);
+        String[][] indexes = {
+                {sessionInfoTable + "_user_id_index", sessionInfoTable + "(user_id)"},
+                {sessionInfoTable + "_expires_at_index", sessionInfoTable + "(expires_at)"},
+                {sessionInfoTable + "_refresh_token_hash_2_index", sessionInfoTable + "(refresh_token_hash_2)"},
+                {pastTokensTable + "_created_at_time_index", pastTokensTable + "(created_at_time)"}
+        };
+        createIndexes = new String[indexes.length];
+        dropIndexes = new String[indexes.length];
+        for (int i = 0; i < indexes.length; i++) {
+            createIndexes[i] = "CREATE INDEX IF NOT EXISTS " + indexes[i][0] + " ON " + indexes[i][1] + ";";
+            dropIndexes[i] = "DROP INDEX IF EXISTS " + indexes[i][0] + ";";
+        }
+        migrations = new String[][]{
+                {
+                        createIndexes[0],
+                        createIndexes[1],
+                        createIndexes[2],
+                        createIndexes[3]
+                }
+        };
+        pastTokensRowCount = new CountedTable(pastTokensTable, rowCountsTable);
+
+        integerLastUpdatedSigns = config.isIntegerLastUpdatedSignEnabled();
+        // the column is TEXT, so the version is read back as text. A UUID that is still there, such as one that was
+        // imported, counts as the number that it starts with, which may be 0.
+        String newLastUpdatedSign = integerLastUpdatedSigns ? "CAST(last_updated_sign AS INTEGER) + ?" : "?";
+        String[] signedTables = {keyValueTable, sessionInfoTable};
+        setIntegerLastUpdatedSigns = new String[signedTables.length];
+        for (int i = 0; i < signedTables.length; i++) {
+            setIntegerLastUpdatedSigns[i] = "UPDATE " + signedTables[i] + " SET last_updated_sign = '1' WHERE " +
+                    "last_updated_sign IS NULL OR last_updated_sign = '' OR last_updated_sign GLOB '*[^0-9]*'";
+        }
+
+        updateKeyValueIfSignMatches = "UPDATE " + keyValueTable +
+                " SET value = ?, created_at_time = ?, last_updated_sign = " + newLastUpdatedSign +
+                " WHERE name = ? AND last_updated_sign = ?";
+        insertKeyValue = "INSERT INTO " + keyValueTable
+                + "(name, value, created_at_time, last_updated_sign) VALUES(?, ?, ?, ?) ";
+        upsertKeyValue = "INSERT INTO " + keyValueTable
+                + "(name, value, created_at_time, last_updated_sign) VALUES(?, ?, ?, ?) "
+                + "ON CONFLICT (name) DO UPDATE SET value = ?, created_at_time = ?, last_updated_sign = " +
+                newLastUpdatedSign;
+        getKeyValueWithSign = "SELECT value, created_at_time, last_updated_sign FROM " + keyValueTable
+                + " WHERE name = ? ";
+        keyValueTransfer = new TransferredTable("key_value", keyValueTable,
+                "name", "value", "last_updated_sign", "created_at_time");
+        sessionInfoTransfer = new TransferredTable("session_info", sessionInfoTable, "session_handle", "user_id",
+                "refresh_token_hash_2", "session_data", "expires_at", "created_at_time", "jwt_user_payload",
+                "last_updated_sign");
+        pastTokensTransfer = new TransferredTable("past_tokens", pastTokensTable, "refresh_token_hash_2",
+                "parent_refresh_token_hash_2", "session_handle", "created_at_time");
+
+        getKeyValueSign = "SELECT last_updated_sign FROM " + keyValueTable + " WHERE name = ?";
+
+        getPastTokenInfo = "SELECT parent_refresh_token_hash_2, session_handle, created_at_time FROM "
+                + pastTokensTable + " WHERE refresh_token_hash_2 = ? ";
+        insertPastTokenInfo = "INSERT INTO " + pastTokensTable
+                + "(refresh_token_hash_2, parent_refresh_token_hash_2, session_handle, created_at_time)"
+                + " VALUES(?, ?, ?, ?)";
+        getAllPastTokenHashes = "SELECT refresh_token_hash_2 FROM " + pastTokensTable;
+        deletePastOrphanedTokens = "DELETE FROM " + pastTokensTable +
+                " WHERE created_at_time < ? AND parent_refresh_token_hash_2 NOT IN (" +
+                "SELECT refresh_token_hash_2 FROM " + pastTokensSessionInfoTable + ") " +
+                "AND refresh_token_hash_2 NOT IN (" +
+                "SELECT refresh_token_hash_2 FROM " + pastTokensSessionInfoTable + ")";
+        // a batch is the rows after the key (created_at_time, rowid) of the previous batch's last row, in the order
+        // of the created_at_time index. The first two conditions on created_at_time let that index find the start.
+        String pastTokensAfterKey = " WHERE created_at_time < ? AND created_at_time >= ? AND " +
+                "(created_at_time > ? OR rowid > ?)";
+        getPastTokensBatchEnd = "SELECT created_at_time, rowid FROM " + pastTokensTable + pastTokensAfterKey +
+                " ORDER BY created_at_time, rowid LIMIT 1 OFFSET ?";
+        // only the names that partitions are given: the table name, then _d or _w and an eight digit date
+        getPastTokensPartitionNames = "SELECT name FROM sqlite_master WHERE type = 'table' AND name GLOB '"
+                + pastTokensTable.replace("[", "[[]").replace("*", "[*]").replace("?", "[?]")
+                + "_[dw][0-9][0-9][0-9][0-9][0-9][0-9][0-9][0-9]'";
+        deletePastOrphanedTokensBatch = "DELETE FROM " + pastTokensTable + pastTokensAfterKey +
+                " AND (created_at_time < ? OR (created_at_time = ? AND rowid <= ?)) AND NOT EXISTS (SELECT 1 FROM " +
+                pastTokensSessionInfoTable + " WHERE " + pastTokensSessionInfoTable + ".refresh_token_hash_2 = " +
+                pastTokensTable + ".parent_refresh_token_hash_2) AND NOT EXISTS (SELECT 1 FROM " +
+                pastTokensSessionInfoTable + " WHERE " + pastTokensSessionInfoTable + ".refresh_token_hash_2 = " +
+                pastTokensTable + ".refresh_token_hash_2)";
+
+        createNewSession = "INSERT INTO " + sessionInfoTable
+                + "(session_handle, user_id, refresh_token_hash_2, session_data, expires_at, jwt_user_payload, " +
+                "created_at_time, last_updated_sign)"
+                + " VALUES(?, ?, ?, ?, ?, ?, ?, ?)";
+        isSessionBlacklisted = "SELECT session_handle FROM " + sessionInfoTable + " WHERE session_handle = ?";
+        getSessionInfoWithSign =
+                "SELECT session_handle, user_id, refresh_token_hash_2, session_data, expires_at, last_updated_sign," +
+                        "created_at_time, jwt_user_payload FROM " + sessionInfoTable + " WHERE session_handle = ? ";
+        updateSessionInfoIfSignMatches = "UPDATE " + sessionInfoTable
+                + " SET refresh_token_hash_2 = ?, expires_at = ?, last_updated_sign = " + newLastUpdatedSign
+                + " WHERE session_handle = ? AND last_updated_sign = ?";
+        getAllSessionHandlesForUser = "SELECT session_handle FROM " + sessionInfoTable + " WHERE user_id = ?";
+        getSession = "SELECT session_handle, user_id, refresh_token_hash_2, session_data, expires_at, " +
+                "created_at_time, jwt_user_payload FROM " + sessionInfoTable + " WHERE session_handle = ?";
+        deleteAllExpiredSessions = "DELETE FROM " + sessionInfoTable + " WHERE expires_at <= ?";
+        deleteExpiredSessionsChunk = "DELETE FROM " + sessionInfoTable + " WHERE rowid IN (SELECT rowid FROM "
+                + sessionInfoTable + " WHERE expires_at <= ? LIMIT ?)";
+
+        updateSession[1] = "UPDATE " + sessionInfoTable
+                + " SET last_updated_sign = " + newLastUpdatedSign + ", session_data = ? WHERE session_handle = ?";
+        updateSession[2] = "UPDATE " + sessionInfoTable
+                + " SET last_updated_sign = " + newLastUpdatedSign + ", jwt_user_payload = ? WHERE session_handle = ?";
+        updateSession[3] = "UPDATE " + sessionInfoTable
+                + " SET last_updated_sign = " + newLastUpdatedSign + ", session_data = ?, jwt_user_payload = ?"
+                + " WHERE session_handle = ?";
+
+        for (int i = 0; i < IN_LIST_SIZES.length; i++) {
+            StringBuilder query = new StringBuilder("DELETE FROM " + sessionInfoTable + " WHERE session_handle IN (");
+            for (int j = 0; j < IN_LIST_SIZES[i]; j++) {
+                query.append(j == 0 ? "?" : ", ?");
+            }
+            deleteSessions[i] = query.append(")").toString();
+        }
+    }
+
+    static void init(Start start) {
+        if (start.getResourceDistributor().getResource(RESOURCE_KEY) != null) {
+            return;
+        }
+        start.getResourceDistributor().setResource(RESOURCE_KEY, new QueryCatalog(Config.getConfig(start)));
+    }
+
+    static QueryCatalog getInstance(Start start) {
+        QueryCatalog instance = start.getResourceDistributor().getResource(RESOURCE_KEY);
+        if (instance == null) {
+            throw new QuitProgramFromPluginException("Please call initStorage before running any query");
+        }
+        return instance;
+    }
+
+    String getUpdateSession(boolean hasSessionData, boolean hasJwtPayload) {
+        return updateSession[(hasSessionData ? 1 : 0) | (hasJwtPayload ? 2 : 0)];
+    }
+
+    // returns the index in IN_LIST_SIZES of the smallest IN list that can hold this many handles
+    static int getInListSizeIndex(int numberOfHandles) {
+        for (int i = 0; i < IN_LIST_SIZES.length; i++) {
+            if (IN_LIST_SIZES[i] >= numberOfHandles) {
+                return i;
+            }
+        }
+        return IN_LIST_SIZES.length - 1;
+    }
+
+    String getDeleteSessions(int inListSizeIndex) {
+        return deleteSessions[inListSizeIndex];
+    }
+
+    PastTokensPartition getPastTokensPartition(String suffix) {
+        return new PastTokensPartition(pastTokensTable, pastTokensTable + "_" + suffix, pastTokensSessionInfoTable,
+                rowCountsTable);
+    }
+
+    // A table as BulkTransfer sees it: the name it has in an export, and its columns in the order they are read and
+    // inserted.
+    static class TransferredTable {
+        // SQLite's default limit on the number of parameters in one statement
+        private static final int MAX_PARAMETERS = 999;
+
+        final String name;
+        final String tableName;
+        final String[] columns;
+        // the number of rows in one multi row insert
+        final int rowsPerInsert;
+        final String insertRows;
+
+        private TransferredTable(String name, String tableName, String... columns) {
+            this.name = name;
+            this.tableName = tableName;
+            this.columns = columns;
+            this.rowsPerInsert = MAX_PARAMETERS / columns.length;
+            this.insertRows = getInsertRows(rowsPerInsert);
+        }
+
+        // rows that are already there are left as they are, so that the row count triggers stay correct
+        String getInsertRows(int numberOfRows) {
+            StringBuilder query = new StringBuilder("INSERT OR IGNORE INTO " + tableName + "(")
+                    .append(String.join(", ", columns)).append(") VALUES ");
+            StringBuilder row = new StringBuilder("(");
+            for (int i = 0; i < columns.length; i++) {
+                row.append(i == 0 ? "?" : ", ?");
+            }
+            row.append(")");
+            for (int i = 0; i < numberOfRows; i++) {
+                query.append(i == 0 ? "" : ", ").append(row);
+            }
+            return query.toString();
+        }
+
+        // this table, or a partition of it that has the same columns
+        String getSelectAll(String fromTableName) {
+            return "SELECT " + String.join(", ", columns) + " FROM " + fromTableName;
+        }
+    }
+
+    // A table whose number of rows is kept in the row counts table by triggers, so that it does not have to be
+    // counted with a full scan.
+    static class CountedTable {
+        final String tableName;
+        final String countRows;
+        final String insertRowCount;
+        final String setRowCount;
+        final String createInsertTrigger;
+        final String createDeleteTrigger;
+
+        private CountedTable(String tableName, String rowCountsTable) {
+            this.tableName = tableName;
+            countRows = "SELECT count(*) as num FROM " + tableName;
+            insertRowCount = "INSERT INTO " + rowCountsTable + "(table_name, num) VALUES(?, ?)";
+            setRowCount = "UPDATE " + rowCountsTable + " SET num = ? WHERE table_name = ? AND num != ?";
+            createInsertTrigger = "CREATE TRIGGER IF NOT EXISTS " + tableName + "_row_count_insert AFTER INSERT ON "
+                    + tableName + " BEGIN UPDATE " + rowCountsTable + " SET num = num + 1 WHERE table_name = '"
+                    + tableName + "'; END;";
+            createDeleteTrigger = "CREATE TRIGGER IF NOT EXISTS " + tableName + "_row_count_delete AFTER DELETE ON "
+                    + tableName + " BEGIN UPDATE " + rowCountsTable + " SET num = num - 1 WHERE table_name = '"
+                    + tableName + "'; END;";
+        }
+    }
+
+    // One of the tables that past tokens are spread over when sqlite_past_tokens_partition_period is set. Its rows
+    // are counted under the name of the past tokens table, so the number of past tokens stays a single row count.
+    static class PastTokensPartition {
+        final String tableName;
+        final String createTable;
+        final String createIndex;
+        final String createInsertTrigger;
+        final String createDeleteTrigger;
+        final String getPastTokenInfo;
+        final String insertPastTokenInfo;
+        final String getAllPastTokenHashes;
+        final String countRows;
+        final String subtractRowCount;
+        final String dropTable;
+        private final String sessionInfoTable;
+
+        private PastTokensPartition(String pastTokensTable, String tableName, String sessionInfoTable,
+                                    String rowCountsTable) {
+            this.tableName = tableName;
+            this.sessionInfoTable = sessionInfoTable;
+            createTable = "CREATE TABLE IF NOT EXISTS " + tableName + " ("
+                    + "refresh_token_hash_2 VARCHAR(128) NOT NULL,"
+                    + "parent_refresh_token_hash_2 VARCHAR(128) NOT NULL," + "session_handle VARCHAR(255) NOT NULL,"
+                    + "created_at_time BIGINT NOT NULL," + "PRIMARY KEY(refresh_token_hash_2)" + " );";
+            // the same index as the past tokens table has
+            createIndex = "CREATE INDEX IF NOT EXISTS " + tableName + "_created_at_time_index ON " + tableName
+                    + "(created_at_time);";
+            createInsertTrigger = "CREATE TRIGGER IF NOT EXISTS " + tableName + "_row_count_insert AFTER INSERT ON "
+                    + tableName + " BEGIN UPDATE " + rowCountsTable + " SET num = num + 1 WHERE table_name = '"
+                    + pastTokensTable + "'; END;";
+            createDeleteTrigger = "CREATE TRIGGER IF NOT EXISTS " + tableName + "_row_count_delete AFTER DELETE ON "
+                    + tableName + " BEGIN UPDATE " + rowCountsTable + " SET num = num - 1 WHERE table_name = '"
+                    + pastTokensTable + "'; END;";
+            getPastTokenInfo = "SELECT parent_refresh_token_hash_2, session_handle, created_at_time FROM "
+                    + tableName + " WHERE refresh_token_hash_2 = ? ";
+            insertPastTokenInfo = "INSERT INTO " + tableName
+                    + "(refresh_token_hash_2, parent_refresh_token_hash_2, session_handle, created_at_time)"
+                    + " VALUES(?, ?, ?, ?)";
+            getAllPastTokenHashes = "SELECT refresh_token_hash_2 FROM " + tableName;
+            countRows = "SELECT count(*) as num FROM " + tableName;
+            // DROP TABLE does not run the delete trigger
+            subtractRowCount = "UPDATE " + rowCountsTable + " SET num = num - (SELECT count(*) FROM " + tableName
+                    + ") WHERE table_name = '" + pastTokensTable + "'";
+            dropTable = "DROP TABLE " + tableName;
+        }
+
+        // copies the tokens that a session still refers to into the given table, before this partition is dropped
+        String getCopyLiveTokens(String toTableName) {
+            return "INSERT OR IGNORE INTO " + toTableName + " SELECT * FROM " + tableName + " WHERE EXISTS (SELECT 1 "
+                    + "FROM " + sessionInfoTable + " WHERE " + sessionInfoTable + ".refresh_token_hash_2 = " + tableName
+                    + ".parent_refresh_token_hash_2) OR EXISTS (SELECT 1 FROM " + sessionInfoTable + " WHERE "
+                    + sessionInfoTable + ".refresh_token_hash_2 = " + tableName + ".refresh_token_hash_2)";
+        }
+    }
+}
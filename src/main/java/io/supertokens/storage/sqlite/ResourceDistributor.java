@@ -17,30 +17,63 @@
 
 package io.supertokens.storage.sqlite;
 
-import java.util.HashMap;
-import java.util.Map;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicReferenceArray;
 
 // the purpose of this class is to tie singleton classes to s specific main instance. So that 
 // when the main instance dies, those singleton classes die too.
+//
+// Each singleton class has a Key of its own, made once when the class is loaded, which is the index of its slot here.
+// Looking a resource up is then a single volatile read, with no lock and no map, and a resource that is set is seen
+// fully constructed by every thread that reads it.
 
 public class ResourceDistributor {
 
-    private final Object lock = new Object();
-    private Map<String, SingletonResource> resources = new HashMap<String, SingletonResource>();
+    // more than there are singleton classes in this plugin
+    private static final int MAX_KEYS = 64;
+    private static final AtomicInteger numberOfKeys = new AtomicInteger();
 
-    public SingletonResource getResource(String key) {
-        return resources.get(key);
+    private final AtomicReferenceArray<SingletonResource> resources = new AtomicReferenceArray<>(MAX_KEYS);
+
+    public static <T extends SingletonResource> Key<T> newKey(Class<T> type) {
+        int index = numberOfKeys.getAndIncrement();
+        if (index >= MAX_KEYS) {
+            throw new IllegalStateException("More than " + MAX_KEYS + " resource keys");
+        }
+        return new Key<>(index, type);
     }
 
-    public SingletonResource setResource(String key, SingletonResource resource) {
-        synchronized (lock) {
-            resources.putIfAbsent(key, resource);
+    @SuppressWarnings("unchecked")
+    public <T extends SingletonResource> T getResource(Key<T> key) {
+        return (T) resources.get(key.index);
+    }
+
+    // returns the resource that is set for the key, which is the one that was set first if two threads race
+    @SuppressWarnings("unchecked")
+    public <T extends SingletonResource> T setResource(Key<T> key, T resource) {
+        if (resources.compareAndSet(key.index, null, resource)) {
             return resource;
         }
+        return (T) resources.get(key.index);
     }
 
     public static class SingletonResource {
 
     }
 
+    public static final class Key<T extends SingletonResource> {
+        private final int index;
+        private final Class<T> type;
+
+        private Key(int index, Class<T> type) {
+            this.index = index;
+            this.type = type;
+        }
+
+        @Override
+        public String toString() {
+            return type.getName();
+        }
+    }
+
 }
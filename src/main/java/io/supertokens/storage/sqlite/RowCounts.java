@@ -0,0 +1,41 @@
+/*
+ *    Copyright (c) 2020, VRAI Labs and/or its affiliates. All rights reserved.
+ *
+ *    This software is licensed under the Apache License, Version 2.0 (the
+ *    "License") as published by the Apache Software Foundation.
+ *
+ *    You may not use this file except in compliance with the License. You may
+ *    obtain a copy of the License at http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *    Unless required by applicable law or agreed to in writing, software
+ *    distributed under the License is distributed on an "AS IS" BASIS, WITHOUT
+ *    WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied. See the
+ *    License for the specific language governing permissions and limitations
+ *    under the License.
+ *
+ */
+
+package io.supertokens.storage.sqlite;
+
+import io.supertokens.pluginInterface.exceptions.StorageQueryException;
+import io.supertokens.storage.sqlite.output.Logging;
+
+import java.sql.SQLException;
+
+// getNumberOfSessions and getNumberOfPastTokens read the number of rows from the row counts table, which triggers
+// keep up to date. This counts the rows again, for when those numbers need to be checked.
+public class RowCounts {
+
+    // returns the number of stored counts that were wrong and have been corrected
+    public static int recount(Start start) throws StorageQueryException {
+        try {
+            int numberOfCorrections = PastTokenPartitions.recountRows(start);
+            if (numberOfCorrections > 0) {
+                Logging.warn(start, "Corrected " + numberOfCorrections + " stored row count(s) after recounting");
+            }
+            return numberOfCorrections;
+        } catch (SQLException e) {
+            throw new StorageQueryException(e);
+        }
+    }
+}
@@ -0,0 +1,401 @@
+/*
+ *    Copyright (c) 2020, VRAI Labs and/or its affiliates. All rights reserved.
+ *
+ *    This software is licensed under the Apache License, Version 2.0 (the
+ *    "License") as published by the Apache Software Foundation.
+ *
+ *    You may not use this file except in compliance with the License. You may
+ *    obtain a copy of the License at http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *    Unless required by applicable law or agreed to in writing, software
+ *    distributed under the License is distributed on an "AS IS" BASIS, WITHOUT
+ *    WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied. See the
+ *    License for the specific language governing permissions and limitations
+ *    under the License.
+ *
+ */
+
+package io.supertokens.storage.sqlite;
+
+import com.google.gson.JsonObject;
+import com.google.gson.JsonParser;
+import io.supertokens.pluginInterface.noSqlStorage.NoSQLStorage_1;
+import io.supertokens.pluginInterface.sqlStorage.SQLStorage;
+import io.supertokens.storage.sqlite.config.Config;
+
+import java.sql.SQLException;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.concurrent.atomic.LongAdder;
+
+// An optional cache of session rows, keyed by session handle, that is bounded by sqlite_session_cache_max_bytes. All
+// writes to the session table from this process go through here and drop the rows they touch, so a cached row is
+// never older than the database. While a write is running, the rows it touches are neither served from nor put into
+// the cache, so a read between its commit and the end of the write still goes to the database. This assumes that no
+// other process writes to the same database file.
+//
+// The handles are spread over a few segments, each with its own lock. Each segment is a segmented LRU: new rows go
+// into a probation part, and only rows that are read again move to a protected part. So a burst of sessions that are
+// read once does not push out the ones that are read all the time.
+//
+// Rows are kept with their JSON as strings. A JsonObject can be changed by whoever gets it, so each hit parses the
+// JSON again to give the caller its own copy.
+public class SessionCache extends ResourceDistributor.SingletonResource {
+
+    private static final ResourceDistributor.Key<SessionCache> RESOURCE_KEY =
+            ResourceDistributor.newKey(SessionCache.class);
+    private static final int NUMBER_OF_SEGMENTS = 16;
+    private static final int PROTECTED_PERCENTAGE = 80;
+
+    // a rough size of a cached row without its strings
+    private static final int ENTRY_OVERHEAD_BYTES = 256;
+
+    private final Segment[] segments;
+
+    private final LongAdder hits = new LongAdder();
+    private final LongAdder misses = new LongAdder();
+    private final LongAdder evictions = new LongAdder();
+    private final LongAdder invalidations = new LongAdder();
+
+    private SessionCache(long maxBytes) {
+        if (maxBytes == 0) {
+            this.segments = null;
+        } else {
+            this.segments = new Segment[NUMBER_OF_SEGMENTS];
+            for (int i = 0; i < segments.length; i++) {
+                segments[i] = new Segment(Math.max(1, maxBytes / NUMBER_OF_SEGMENTS));
+            }
+        }
+    }
+
+    public static SessionCache getInstance(Start start) {
+        SessionCache instance = start.getResourceDistributor().getResource(RESOURCE_KEY);
+        if (instance == null) {
+            instance = start.getResourceDistributor().setResource(RESOURCE_KEY,
+                    new SessionCache(Config.getConfig(start).getSessionCacheMaxBytes()));
+        }
+        return instance;
+    }
+
+    static SQLStorage.SessionInfo getSession(Start start, String sessionHandle) throws SQLException {
+        SessionCache cache = getInstance(start);
+        if (cache.segments == null) {
+            return Queries.getSession(start, sessionHandle);
+        }
+        NoSQLStorage_1.SessionInfoWithLastUpdated info = cache.get(start, sessionHandle);
+        if (info == null) {
+            return null;
+        }
+        return new SQLStorage.SessionInfo(info.sessionHandle, info.userId, info.refreshTokenHash2,
+                info.userDataInDatabase, info.expiry, info.userDataInJWT, info.timeCreated);
+    }
+
+    static NoSQLStorage_1.SessionInfoWithLastUpdated getSessionInfo_Transaction(Start start, String sessionHandle)
+            throws SQLException {
+        SessionCache cache = getInstance(start);
+        if (cache.segments == null) {
+            return Queries.getSessionInfo_Transaction(start, sessionHandle);
+        }
+        return cache.get(start, sessionHandle);
+    }
+
+    static int updateSession(Start start, String sessionHandle, JsonObject sessionData, JsonObject jwtPayload)
+            throws SQLException {
+        SessionCache cache = getInstance(start);
+        cache.beginWrite(sessionHandle);
+        try {
+            return Queries.updateSession(start, sessionHandle, sessionData, jwtPayload);
+        } finally {
+            cache.endWrite(sessionHandle);
+        }
+    }
+
+    static boolean updateSessionInfo_Transaction(Start start, String sessionHandle, String refreshTokenHash2,
+                                                 long expiry, String lastUpdatedSign) throws SQLException {
+        SessionCache cache = getInstance(start);
+        cache.beginWrite(sessionHandle);
+        try {
+            return Queries.updateSessionInfo_Transaction(start, sessionHandle, refreshTokenHash2, expiry,
+                    lastUpdatedSign);
+        } finally {
+            cache.endWrite(sessionHandle);
+        }
+    }
+
+    static int deleteSession(Start start, String[] sessionHandles) throws SQLException {
+        SessionCache cache = getInstance(start);
+        for (String sessionHandle : sessionHandles) {
+            cache.beginWrite(sessionHandle);
+        }
+        try {
+            return Queries.deleteSession(start, sessionHandles);
+        } finally {
+            for (String sessionHandle : sessionHandles) {
+                cache.endWrite(sessionHandle);
+            }
+        }
+    }
+
+    static void deleteAllExpiredSessions(Start start) throws SQLException {
+        try {
+            ExpiredSessionReaper.deleteAllExpiredSessions(start);
+        } finally {
+            // expired rows are never served from the cache anyway, this only frees their memory
+            SessionCache cache = getInstance(start);
+            if (cache.segments != null) {
+                long now = System.currentTimeMillis();
+                for (Segment segment : cache.segments) {
+                    segment.removeExpired(now);
+                }
+            }
+        }
+    }
+
+    // to be used in testing only
+    static void clear(Start start) {
+        SessionCache cache = start.getResourceDistributor().getResource(RESOURCE_KEY);
+        if (cache != null && cache.segments != null) {
+            for (Segment segment : cache.segments) {
+                segment.clear();
+            }
+        }
+    }
+
+    private NoSQLStorage_1.SessionInfoWithLastUpdated get(Start start, String sessionHandle) throws SQLException {
+        Segment segment = segmentFor(sessionHandle);
+        CachedSession cached = segment.get(sessionHandle, System.currentTimeMillis());
+        if (cached != null) {
+            hits.increment();
+            return cached.toSessionInfo();
+        }
+        misses.increment();
+        long writeCountBefore = segment.getWriteCount();
+        NoSQLStorage_1.SessionInfoWithLastUpdated info = Queries.getSessionInfo_Transaction(start, sessionHandle);
+        if (info != null && info.expiry > System.currentTimeMillis()) {
+            segment.putIfNotWrittenSince(new CachedSession(info), writeCountBefore);
+        }
+        return info;
+    }
+
+    private void beginWrite(String sessionHandle) {
+        if (segments != null) {
+            segmentFor(sessionHandle).beginWrite(sessionHandle);
+        }
+    }
+
+    private void endWrite(String sessionHandle) {
+        if (segments != null) {
+            segmentFor(sessionHandle).endWrite(sessionHandle);
+        }
+    }
+
+    private Segment segmentFor(String sessionHandle) {
+        int hash = sessionHandle.hashCode();
+        return segments[(hash ^ (hash >>> 16)) & (NUMBER_OF_SEGMENTS - 1)];
+    }
+
+    public long getHitCount() {
+        return hits.sum();
+    }
+
+    public long getMissCount() {
+        return misses.sum();
+    }
+
+    // number of rows removed to stay within sqlite_session_cache_max_bytes
+    public long getEvictionCount() {
+        return evictions.sum();
+    }
+
+    // number of cached rows dropped because they were changed, deleted or expired
+    public long getInvalidationCount() {
+        return invalidations.sum();
+    }
+
+    // estimated number of bytes used by the cached rows
+    public long getSizeInBytes() {
+        if (segments == null) {
+            return 0;
+        }
+        long size = 0;
+        for (Segment segment : segments) {
+            size += segment.getSizeInBytes();
+        }
+        return size;
+    }
+
+    private class Segment {
+        private final long maxBytes;
+        private final long maxProtectedBytes;
+        private final LinkedHashMap<String, CachedSession> probation = new LinkedHashMap<>();
+        private final LinkedHashMap<String, CachedSession> protectedEntries = new LinkedHashMap<>(16, 0.75f, true);
+        private long probationBytes = 0;
+        private long protectedBytes = 0;
+
+        // bumped by every write. A read that raced with a write does not put what it read into the cache.
+        private long writeCount = 0;
+
+        // handles that are being written, with the number of writes to each
+        private final HashMap<String, Integer> writesInProgress = new HashMap<>();
+
+        Segment(long maxBytes) {
+            this.maxBytes = maxBytes;
+            this.maxProtectedBytes = maxBytes * PROTECTED_PERCENTAGE / 100;
+        }
+
+        synchronized CachedSession get(String sessionHandle, long now) {
+            if (writesInProgress.containsKey(sessionHandle)) {
+                return null;
+            }
+            CachedSession cached = protectedEntries.get(sessionHandle);
+            if (cached == null) {
+                cached = probation.remove(sessionHandle);
+                if (cached == null) {
+                    return null;
+                }
+                probationBytes -= cached.sizeInBytes;
+                protectedEntries.put(sessionHandle, cached);
+                protectedBytes += cached.sizeInBytes;
+                demoteFromProtected();
+            }
+            if (cached.expiry <= now) {
+                remove(sessionHandle);
+                return null;
+            }
+            return cached;
+        }
+
+        synchronized long getWriteCount() {
+            return writeCount;
+        }
+
+        synchronized void putIfNotWrittenSince(CachedSession cached, long writeCountBefore) {
+            if (writeCount != writeCountBefore || cached.sizeInBytes > maxBytes
+                    || writesInProgress.containsKey(cached.sessionHandle)
+                    || protectedEntries.containsKey(cached.sessionHandle)) {
+                return;
+            }
+            CachedSession previous = probation.put(cached.sessionHandle, cached);
+            if (previous != null) {
+                probationBytes -= previous.sizeInBytes;
+            }
+            probationBytes += cached.sizeInBytes;
+            while (probationBytes + protectedBytes > maxBytes) {
+                LinkedHashMap<String, CachedSession> victims = probation.isEmpty() ? protectedEntries : probation;
+                Iterator<Map.Entry<String, CachedSession>> eldest = victims.entrySet().iterator();
+                CachedSession victim = eldest.next().getValue();
+                eldest.remove();
+                if (victims == probation) {
+                    probationBytes -= victim.sizeInBytes;
+                } else {
+                    protectedBytes -= victim.sizeInBytes;
+                }
+                evictions.increment();
+            }
+        }
+
+        synchronized void beginWrite(String sessionHandle) {
+            writesInProgress.merge(sessionHandle, 1, Integer::sum);
+            remove(sessionHandle);
+        }
+
+        synchronized void endWrite(String sessionHandle) {
+            writesInProgress.computeIfPresent(sessionHandle, (k, writes) -> writes == 1 ? null : writes - 1);
+            remove(sessionHandle);
+        }
+
+        synchronized void remove(String sessionHandle) {
+            writeCount++;
+            CachedSession removed = probation.remove(sessionHandle);
+            if (removed != null) {
+                probationBytes -= removed.sizeInBytes;
+            } else {
+                removed = protectedEntries.remove(sessionHandle);
+                if (removed != null) {
+                    protectedBytes -= removed.sizeInBytes;
+                }
+            }
+            if (removed != null) {
+                invalidations.increment();
+            }
+        }
+
+        synchronized void removeExpired(long now) {
+            probationBytes -= removeExpired(probation, now);
+            protectedBytes -= removeExpired(protectedEntries, now);
+        }
+
+        synchronized void clear() {
+            writeCount++;
+            probation.clear();
+            protectedEntries.clear();
+            probationBytes = 0;
+            protectedBytes = 0;
+        }
+
+        synchronized long getSizeInBytes() {
+            return probationBytes + protectedBytes;
+        }
+
+        // moves the least recently used protected rows back to probation, where they can be evicted
+        private void demoteFromProtected() {
+            while (protectedBytes > maxProtectedBytes) {
+                Iterator<Map.Entry<String, CachedSession>> eldest = protectedEntries.entrySet().iterator();
+                CachedSession demoted = eldest.next().getValue();
+                eldest.remove();
+                protectedBytes -= demoted.sizeInBytes;
+                probation.put(demoted.sessionHandle, demoted);
+                probationBytes += demoted.sizeInBytes;
+            }
+        }
+
+        private long removeExpired(LinkedHashMap<String, CachedSession> entries, long now) {
+            long removedBytes = 0;
+            Iterator<CachedSession> iterator = entries.values().iterator();
+            while (iterator.hasNext()) {
+                CachedSession cached = iterator.next();
+                if (cached.expiry <= now) {
+                    iterator.remove();
+                    removedBytes += cached.sizeInBytes;
+                    invalidations.increment();
+                }
+            }
+            return removedBytes;
+        }
+    }
+
+    private static class CachedSession {
+        final String sessionHandle;
+        final String userId;
+        final String refreshTokenHash2;
+        final String userDataInDatabase;
+        final long expiry;
+        final String userDataInJWT;
+        final long timeCreated;
+        final String lastUpdatedSign;
+        final long sizeInBytes;
+
+        CachedSession(NoSQLStorage_1.SessionInfoWithLastUpdated info) {
+            this.sessionHandle = info.sessionHandle;
+            this.userId = info.userId;
+            this.refreshTokenHash2 = info.refreshTokenHash2;
+            this.userDataInDatabase = info.userDataInDatabase.toString();
+            this.expiry = info.expiry;
+            this.userDataInJWT = info.userDataInJWT.toString();
+            this.timeCreated = info.timeCreated;
+            this.lastUpdatedSign = info.lastUpdatedSign;
+            // strings take two bytes per char
+            this.sizeInBytes = ENTRY_OVERHEAD_BYTES + 2L * (sessionHandle.length() + userId.length()
+                    + refreshTokenHash2.length() + userDataInDatabase.length() + userDataInJWT.length()
+                    + (lastUpdatedSign == null ? 0 : lastUpdatedSign.length()));
+        }
+
+        NoSQLStorage_1.SessionInfoWithLastUpdated toSessionInfo() {
+            return new NoSQLStorage_1.SessionInfoWithLastUpdated(sessionHandle, userId, refreshTokenHash2,
+                    new JsonParser().parse(userDataInDatabase).getAsJsonObject(), expiry,
+                    new JsonParser().parse(userDataInJWT).getAsJsonObject(), timeCreated, lastUpdatedSign);
+        }
+    }
+}
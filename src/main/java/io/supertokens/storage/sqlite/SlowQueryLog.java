@@ -0,0 +1,317 @@
+/*
+ *    Copyright (c) 2020, VRAI Labs and/or its affiliates. All rights reserved.
+ *
+ *    This software is licensed under the Apache License, Version 2.0 (the
+ *    "License") as published by the Apache Software Foundation.
+ *
+ *    You may not use this file except in compliance with the License. You may
+ *    obtain a copy of the License at http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *    Unless required by applicable law or agreed to in writing, software
+ *    distributed under the License is distributed on an "AS IS" BASIS, WITHOUT
+ *    WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied. See the
+ *    License for the specific language governing permissions and limitations
+ *    under the License.
+ *
+ */
+
+package io.supertokens.storage.sqlite;
+
+import io.supertokens.storage.sqlite.config.SQLiteConfig;
+import io.supertokens.storage.sqlite.output.Logging;
+
+import java.lang.reflect.InvocationHandler;
+import java.lang.reflect.InvocationTargetException;
+import java.lang.reflect.Method;
+import java.lang.reflect.Proxy;
+import java.sql.Connection;
+import java.sql.PreparedStatement;
+import java.sql.ResultSet;
+import java.sql.SQLException;
+import java.sql.Types;
+import java.util.ArrayList;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.regex.Pattern;
+
+// With sqlite_slow_query_log_enabled, times the prepared statements that run on the connections to SQLite, and logs
+// those that take longer than sqlite_slow_query_threshold_millis to the slow query log. A line has the shape of the
+// SQL, the number of parameters bound to it, the number of rows that were read or changed and how long it took. A
+// query is timed from its execution until its result set is closed, which includes reading the rows.
+//
+// The first time a statement is logged, its EXPLAIN QUERY PLAN is logged with it, so a full scan of a table shows as
+// SCAN instead of SEARCH ... USING INDEX. The plan is made on the same connection once the statement is done, with its
+// parameters set to NULL, which does not change the plan that SQLite picks for these statements.
+//
+// Only sqlite_slow_query_sample_rate of the executions are timed, and at most sqlite_slow_query_max_logs_per_minute
+// lines are logged. Those that are not are counted, and the count is logged with the next line.
+public class SlowQueryLog {
+
+    private static final long RATE_LIMIT_WINDOW_MILLIS = 60000;
+    // each past tokens partition adds the shapes of its own queries, so there are more of them the longer it runs
+    private static final int MAX_PLANNED_SHAPES = 1000;
+    // statements with a different number of values are the same statement
+    private static final Pattern WHITESPACE = Pattern.compile("\\s+");
+    private static final Pattern PARAMETER_LIST = Pattern.compile("\\?(\\s*,\\s*\\?)+");
+    private static final Pattern ROW_LIST = Pattern.compile("\\(\\?\\.\\.\\.\\)(\\s*,\\s*\\(\\?\\.\\.\\.\\))+");
+
+    private final Start start;
+    private final long thresholdNanos;
+    private final double sampleRate;
+    private final int maxLogsPerMinute;
+    // the shapes whose plan has been logged, least recently logged first. Guarded by itself.
+    private final Map<String, Boolean> planned = new LinkedHashMap<String, Boolean>(16, 0.75f, true) {
+        @Override
+        protected boolean removeEldestEntry(Map.Entry<String, Boolean> eldest) {
+            return size() > MAX_PLANNED_SHAPES;
+        }
+    };
+
+    private final Object rateLimitLock = new Object();
+    private long windowStartMillis = 0;
+    private int logsInWindow = 0;
+    private long suppressedSinceLastLog = 0;
+
+    private final LongAdder slowQueries = new LongAdder();
+    private final LongAdder suppressed = new LongAdder();
+    private final LongAdder plans = new LongAdder();
+
+    SlowQueryLog(Start start, SQLiteConfig config) {
+        this.start = start;
+        this.thresholdNanos = TimeUnit.MILLISECONDS.toNanos(config.getSlowQueryThresholdMillis());
+        this.sampleRate = config.getSlowQuerySampleRate();
+        this.maxLogsPerMinute = config.getSlowQueryMaxLogsPerMinute();
+    }
+
+    // null without sqlite_slow_query_log_enabled
+    public static SlowQueryLog getInstance(Start start) {
+        return ConnectionPool.getSlowQueryLog(start);
+    }
+
+    // returns the given connection wrapped so that the statements that it prepares are timed. This goes under the
+    // statement cache, so a cached statement is wrapped once.
+    Connection wrap(Connection physicalConnection) {
+        return (Connection) Proxy.newProxyInstance(SlowQueryLog.class.getClassLoader(),
+                new Class<?>[]{Connection.class}, new ConnectionHandler(physicalConnection));
+    }
+
+    // The SQL with its whitespace collapsed, and lists of parameters, or of rows of them, written once, so that the
+    // multi row inserts and the deletes of a chunk of sessions have one shape whatever their size.
+    static String getShape(String sql) {
+        String shape = WHITESPACE.matcher(sql.trim()).replaceAll(" ");
+        shape = PARAMETER_LIST.matcher(shape).replaceAll("?...");
+        shape = ROW_LIST.matcher(shape).replaceAll("(?...), ...");
+        return shape;
+    }
+
+    private boolean isSampled() {
+        return sampleRate >= 1 || ThreadLocalRandom.current().nextDouble() < sampleRate;
+    }
+
+    private void record(TimedStatement statement, long rows, long elapsedNanos) {
+        if (elapsedNanos < thresholdNanos) {
+            return;
+        }
+        slowQueries.increment();
+        long suppressedBefore;
+        synchronized (rateLimitLock) {
+            long now = System.currentTimeMillis();
+            if (now - windowStartMillis >= RATE_LIMIT_WINDOW_MILLIS) {
+                windowStartMillis = now;
+                logsInWindow = 0;
+            }
+            if (logsInWindow >= maxLogsPerMinute) {
+                suppressedSinceLastLog++;
+                suppressed.increment();
+                return;
+            }
+            logsInWindow++;
+            suppressedBefore = suppressedSinceLastLog;
+            suppressedSinceLastLog = 0;
+        }
+
+        StringBuilder line = new StringBuilder("Slow SQLite query: ")
+                .append(String.format("%.3f", elapsedNanos / 1e6)).append(" ms, ")
+                .append(rows).append(" row(s), ")
+                .append(statement.parameterCount).append(" parameter(s): ")
+                .append(statement.shape);
+        boolean isFirst;
+        synchronized (planned) {
+            isFirst = planned.put(statement.shape, Boolean.TRUE) == null;
+        }
+        if (isFirst) {
+            line.append(" | plan: ").append(explain(statement));
+        }
+        if (suppressedBefore > 0) {
+            line.append(" (").append(suppressedBefore).append(" more slow query(ies) were not logged)");
+        }
+        Logging.slowQuery(start, line.toString());
+    }
+
+    private String explain(TimedStatement statement) {
+        List<String> details = new ArrayList<>();
+        try (PreparedStatement pst = statement.physicalConnection.prepareStatement("EXPLAIN QUERY PLAN " +
+                statement.sql)) {
+            // sqlite-jdbc does not run a statement with unbound parameters
+            for (int i = 1; i <= statement.parameterCount; i++) {
+                pst.setNull(i, Types.NULL);
+            }
+            try (ResultSet result = pst.executeQuery()) {
+                while (result.next()) {
+                    details.add(result.getString("detail"));
+                }
+            }
+        } catch (SQLException e) {
+            return "unavailable (" + e.getMessage() + ")";
+        }
+        plans.increment();
+        // statements without a table to read, like INSERT ... VALUES, have no plan
+        return details.isEmpty() ? "none" : String.join("; ", details);
+    }
+
+    // number of statements that took longer than the threshold, of those that were timed
+    public long getSlowQueryCount() {
+        return slowQueries.sum();
+    }
+
+    // number of slow statements that were not logged, because of sqlite_slow_query_max_logs_per_minute
+    public long getSuppressedCount() {
+        return suppressed.sum();
+    }
+
+    // number of query plans that were logged, which is at most one per shape
+    public long getPlanCount() {
+        return plans.sum();
+    }
+
+    private static Object invoke(Object target, Method method, Object[] args) throws Throwable {
+        try {
+            return method.invoke(target, args);
+        } catch (InvocationTargetException e) {
+            throw e.getCause();
+        }
+    }
+
+    private class ConnectionHandler implements InvocationHandler {
+        private final Connection physicalConnection;
+
+        ConnectionHandler(Connection physicalConnection) {
+            this.physicalConnection = physicalConnection;
+        }
+
+        @Override
+        public Object invoke(Object proxy, Method method, Object[] args) throws Throwable {
+            switch (method.getName()) {
+                case "equals":
+                    return proxy == args[0];
+                case "hashCode":
+                    return System.identityHashCode(proxy);
+            }
+            Object result = SlowQueryLog.invoke(physicalConnection, method, args);
+            if (method.getName().equals("prepareStatement") && args.length == 1) {
+                TimedStatement statement = new TimedStatement(physicalConnection, (PreparedStatement) result,
+                        (String) args[0]);
+                return Proxy.newProxyInstance(SlowQueryLog.class.getClassLoader(),
+                        new Class<?>[]{PreparedStatement.class}, statement);
+            }
+            return result;
+        }
+    }
+
+    private class TimedStatement implements InvocationHandler {
+        private final Connection physicalConnection;
+        private final PreparedStatement pst;
+        private final String sql;
+        private final String shape;
+        private final int parameterCount;
+
+        TimedStatement(Connection physicalConnection, PreparedStatement pst, String sql) throws SQLException {
+            this.physicalConnection = physicalConnection;
+            this.pst = pst;
+            this.sql = sql;
+            this.shape = getShape(sql);
+            this.parameterCount = pst.getParameterMetaData().getParameterCount();
+        }
+
+        @Override
+        public Object invoke(Object proxy, Method method, Object[] args) throws Throwable {
+            String name = method.getName();
+            switch (name) {
+                case "equals":
+                    return proxy == args[0];
+                case "hashCode":
+                    return System.identityHashCode(proxy);
+            }
+            boolean timed = (args == null || args.length == 0) && (name.equals("executeQuery") ||
+                    name.equals("executeUpdate") || name.equals("executeBatch") || name.equals("execute")) &&
+                    isSampled();
+            if (!timed) {
+                return SlowQueryLog.invoke(pst, method, args);
+            }
+            long startNanos = System.nanoTime();
+            Object result = SlowQueryLog.invoke(pst, method, args);
+            switch (name) {
+                case "executeQuery":
+                    // the rows are read, and counted, until the result set is closed
+                    return Proxy.newProxyInstance(SlowQueryLog.class.getClassLoader(), new Class<?>[]{ResultSet.class},
+                            new TimedRows(this, (ResultSet) result, startNanos));
+                case "executeUpdate":
+                    record(this, (Integer) result, System.nanoTime() - startNanos);
+                    break;
+                case "executeBatch":
+                    long rows = 0;
+                    for (int count : (int[]) result) {
+                        rows += Math.max(count, 0);
+                    }
+                    record(this, rows, System.nanoTime() - startNanos);
+                    break;
+                default:
+                    // a statement that returned rows, which are not read through here, counts none
+                    record(this, Math.max(pst.getUpdateCount(), 0), System.nanoTime() - startNanos);
+            }
+            return result;
+        }
+    }
+
+    private class TimedRows implements InvocationHandler {
+        private final TimedStatement statement;
+        private final ResultSet result;
+        private final long startNanos;
+        private long rows = 0;
+        private boolean closed = false;
+
+        TimedRows(TimedStatement statement, ResultSet result, long startNanos) {
+            this.statement = statement;
+            this.result = result;
+            this.startNanos = startNanos;
+        }
+
+        @Override
+        public Object invoke(Object proxy, Method method, Object[] args) throws Throwable {
+            switch (method.getName()) {
+                case "equals":
+                    return proxy == args[0];
+                case "hashCode":
+                    return System.identityHashCode(proxy);
+                case "next":
+                    boolean hasRow = (Boolean) SlowQueryLog.invoke(result, method, args);
+                    if (hasRow) {
+                        rows++;
+                    }
+                    return hasRow;
+                case "close":
+                    Object closeResult = SlowQueryLog.invoke(result, method, args);
+                    if (!closed) {
+                        closed = true;
+                        record(statement, rows, System.nanoTime() - startNanos);
+                    }
+                    return closeResult;
+            }
+            return SlowQueryLog.invoke(result, method, args);
+        }
+    }
+}
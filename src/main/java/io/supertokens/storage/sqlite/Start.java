@@ -73,7 +73,7 @@ public class Start extends NoSQLStorage_1 {
 
     @Override
     public void initFileLogging(String infoLogPath, String errorLogPath) {
-        Logging.initFileLogging(this, infoLogPath, errorLogPath);
+        Logging.initFileLogging(this, infoLogPath, errorLogPath, Config.getConfig(this).getSlowQueryLogPath());
 
         /*
          * NOTE: The log this produces is only accurate in production or development.
@@ -112,109 +112,109 @@ public class Start extends NoSQLStorage_1 {
     @Override
     public void initStorage() {
         ConnectionPool.initPool(this);
+        QueryCatalog.init(this);
         try {
             Queries.createTablesIfNotExists(this);
+            PastTokenPartitions.init(this);
+            PastTokenFilter.init(this);
         } catch (SQLException e) {
             throw new QuitProgramFromPluginException(e);
         }
+        if (Config.getConfig(this).isRecountRowsOnStartup()) {
+            try {
+                RowCounts.recount(this);
+            } catch (StorageQueryException e) {
+                throw new QuitProgramFromPluginException(e);
+            }
+        }
+        Backup.init(this);
+        OperationMetrics.init(this);
     }
 
     @Override
     public String getAppId() throws StorageQueryException {
-        try {
-            KeyValueInfo result = Queries.getKeyValue(this, APP_ID_KEY_NAME);
+        return OperationMetrics.measure(this, OperationMetrics.Operation.GET_APP_ID, () -> {
+            KeyValueInfo result = KeyValueCache.get(this, APP_ID_KEY_NAME);
             if (result != null) {
                 return result.value;
             }
             return null;
-        } catch (SQLException e) {
-            throw new StorageQueryException(e);
-        }
+        });
     }
 
     @Override
     public void setAppId(String appId) throws StorageQueryException {
-        try {
+        OperationMetrics.measure(this, OperationMetrics.Operation.SET_APP_ID, () -> {
             KeyValueInfo keyInfo = new KeyValueInfo(appId, System.currentTimeMillis());
-            Queries.setKeyValue(this, APP_ID_KEY_NAME, keyInfo);
-        } catch (SQLException e) {
-            throw new StorageQueryException(e);
-        }
+            KeyValueCache.set(this, APP_ID_KEY_NAME, keyInfo);
+            return null;
+        });
     }
 
     @Override
     public KeyValueInfoWithLastUpdated getAccessTokenSigningKey_Transaction() throws StorageQueryException {
-        try {
-            return Queries.getKeyValue_Transaction(this, ACCESS_TOKEN_SIGNING_KEY_NAME);
-        } catch (SQLException e) {
-            throw new StorageQueryException(e);
-        }
+        return OperationMetrics.measure(this, OperationMetrics.Operation.GET_ACCESS_TOKEN_SIGNING_KEY,
+                () -> KeyValueCache.get_Transaction(this, ACCESS_TOKEN_SIGNING_KEY_NAME));
     }
 
     @Override
     public boolean setAccessTokenSigningKey_Transaction(KeyValueInfoWithLastUpdated info) throws StorageQueryException {
-        try {
-            return Queries.setKeyValue_Transaction(this, ACCESS_TOKEN_SIGNING_KEY_NAME, info);
-        } catch (SQLException e) {
-            throw new StorageQueryException(e);
-        }
+        return OperationMetrics.measure(this, OperationMetrics.Operation.SET_ACCESS_TOKEN_SIGNING_KEY,
+                () -> KeyValueCache.set_Transaction(this, ACCESS_TOKEN_SIGNING_KEY_NAME, info));
     }
 
     @Override
     public KeyValueInfoWithLastUpdated getRefreshTokenSigningKey_Transaction() throws StorageQueryException {
-        try {
-            return Queries.getKeyValue_Transaction(this, REFRESH_TOKEN_KEY_NAME);
-        } catch (SQLException e) {
-            throw new StorageQueryException(e);
-        }
+        return OperationMetrics.measure(this, OperationMetrics.Operation.GET_REFRESH_TOKEN_SIGNING_KEY,
+                () -> KeyValueCache.get_Transaction(this, REFRESH_TOKEN_KEY_NAME));
     }
 
     @Override
     public boolean setRefreshTokenSigningKey_Transaction(KeyValueInfoWithLastUpdated info)
             throws StorageQueryException {
-        try {
-            return Queries.setKeyValue_Transaction(this, REFRESH_TOKEN_KEY_NAME, info);
-        } catch (SQLException e) {
-            throw new StorageQueryException(e);
-        }
+        return OperationMetrics.measure(this, OperationMetrics.Operation.SET_REFRESH_TOKEN_SIGNING_KEY,
+                () -> KeyValueCache.set_Transaction(this, REFRESH_TOKEN_KEY_NAME, info));
     }
 
 
     @Override
     public void deleteAllInformation() {
         Queries.deleteAllTables(this);
+        KeyValueCache.clear(this);
+        SessionCache.clear(this);
+        PastTokenPartitions.clear(this);
+    }
+
+    // to be used in testing only
+    public String getPragma(String pragma, boolean onWriter) throws SQLException {
+        return Queries.getPragma(this, pragma, onWriter);
     }
 
     @Override
     public void close() {
+        Backup.stop(this);
+        OperationMetrics.stop(this);
         ConnectionPool.close(this);
     }
 
     @Override
     public PastTokenInfo getPastTokenInfo(String refreshTokenHash2) throws StorageQueryException {
-        try {
-            return Queries.getPastTokenInfo(this, refreshTokenHash2);
-        } catch (SQLException e) {
-            throw new StorageQueryException(e);
-        }
+        return OperationMetrics.measure(this, OperationMetrics.Operation.GET_PAST_TOKEN_INFO,
+                () -> PastTokenFilter.getPastTokenInfo(this, refreshTokenHash2));
     }
 
     @Override
     public void insertPastToken(PastTokenInfo info) throws StorageQueryException {
-        try {
-            Queries.insertPastTokenInfo(this, info);
-        } catch (SQLException e) {
-            throw new StorageQueryException(e);
-        }
+        OperationMetrics.measure(this, OperationMetrics.Operation.INSERT_PAST_TOKEN, () -> {
+            PastTokenFilter.insertPastTokenInfo(this, info);
+            return null;
+        });
     }
 
     @Override
     public int getNumberOfPastTokens() throws StorageQueryException {
-        try {
-            return Queries.getNumberOfPastTokens(this);
-        } catch (SQLException e) {
-            throw new StorageQueryException(e);
-        }
+        return OperationMetrics.measure(this, OperationMetrics.Operation.GET_NUMBER_OF_PAST_TOKENS,
+                () -> Queries.getNumberOfPastTokens(this));
     }
 
     @Override
@@ -222,77 +222,66 @@ public class Start extends NoSQLStorage_1 {
                                  JsonObject userDataInDatabase, long expiry, JsonObject userDataInJWT,
                                  long createdAtTime)
             throws StorageQueryException {
-        try {
+        OperationMetrics.measure(this, OperationMetrics.Operation.CREATE_NEW_SESSION, () -> {
             Queries.createNewSession(this, sessionHandle, userId, refreshTokenHash2, userDataInDatabase, expiry,
                     userDataInJWT, createdAtTime);
-        } catch (SQLException e) {
-            throw new StorageQueryException(e);
-        }
+            return null;
+        });
     }
 
 
     @Override
     public int getNumberOfSessions() throws StorageQueryException {
-        try {
-            return Queries.getNumberOfSessions(this);
-        } catch (SQLException e) {
-            throw new StorageQueryException(e);
-        }
+        return OperationMetrics.measure(this, OperationMetrics.Operation.GET_NUMBER_OF_SESSIONS,
+                () -> Queries.getNumberOfSessions(this));
     }
 
     @Override
     public int deleteSession(String[] sessionHandles) throws StorageQueryException {
-        try {
-            return Queries.deleteSession(this, sessionHandles);
-        } catch (SQLException e) {
-            throw new StorageQueryException(e);
-        }
+        return OperationMetrics.measure(this, OperationMetrics.Operation.DELETE_SESSION,
+                () -> SessionCache.deleteSession(this, sessionHandles));
     }
 
     @Override
     public String[] getAllSessionHandlesForUser(String userId) throws StorageQueryException {
-        try {
-            return Queries.getAllSessionHandlesForUser(this, userId);
-        } catch (SQLException e) {
-            throw new StorageQueryException(e);
-        }
+        return OperationMetrics.measure(this, OperationMetrics.Operation.GET_ALL_SESSION_HANDLES_FOR_USER,
+                () -> Queries.getAllSessionHandlesForUser(this, userId));
     }
 
 
     @Override
     public void deleteAllExpiredSessions() throws StorageQueryException {
-        try {
-            Queries.deleteAllExpiredSessions(this);
-        } catch (SQLException e) {
-            throw new StorageQueryException(e);
-        }
+        OperationMetrics.measure(this, OperationMetrics.Operation.DELETE_ALL_EXPIRED_SESSIONS, () -> {
+            SessionCache.deleteAllExpiredSessions(this);
+            return null;
+        });
     }
 
     @Override
     public void deletePastOrphanedTokens(long createdBefore) throws StorageQueryException {
-        try {
-            Queries.deletePastOrphanedTokens(this, createdBefore);
-        } catch (SQLException e) {
-            throw new StorageQueryException(e);
-        }
+        OperationMetrics.measure(this, OperationMetrics.Operation.DELETE_PAST_ORPHANED_TOKENS, () -> {
+            PastTokenFilter.deletePastOrphanedTokens(this, createdBefore);
+            return null;
+        });
     }
 
     @Override
     public KeyValueInfo getKeyValue(String key) throws StorageQueryException {
-        try {
-            return Queries.getKeyValue(this, key);
-        } catch (SQLException e) {
-            throw new StorageQueryException(e);
-        }
+        return OperationMetrics.measure(this, OperationMetrics.Operation.GET_KEY_VALUE, () -> {
+            KeyValueInfo result = KeyValueCache.get(this, key);
+            if (result != null) {
+                return new KeyValueInfo(result.value, result.createdAtTime);
+            }
+            return null;
+        });
     }
 
     @Override
     public void setKeyValue(String key, KeyValueInfo info) throws StorageQueryException {
-        try {
-            Queries.setKeyValue(this, key, info);
-        } catch (SQLException e) {
-            throw new StorageQueryException(e);
-        }
+        OperationMetrics.measure(this, OperationMetrics.Operation.SET_KEY_VALUE, () -> {
+            KeyValueCache.set(this, key, info);
+            return null;
+        });
     }
 
     @Override
@@ -302,61 +291,42 @@ public class Start extends NoSQLStorage_1 {
 
     @Override
     public SQLStorage.SessionInfo getSession(String sessionHandle) throws StorageQueryException {
-        try {
-            return Queries.getSession(this, sessionHandle);
-        } catch (SQLException e) {
-            throw new StorageQueryException(e);
-        }
+        return OperationMetrics.measure(this, OperationMetrics.Operation.GET_SESSION,
+                () -> SessionCache.getSession(this, sessionHandle));
     }
 
     @Override
     public int updateSession(String sessionHandle, JsonObject sessionData, JsonObject jwtPayload)
             throws StorageQueryException {
-        try {
-            return Queries.updateSession(this, sessionHandle, sessionData, jwtPayload);
-        } catch (SQLException e) {
-            throw new StorageQueryException(e);
-        }
-
+        return OperationMetrics.measure(this, OperationMetrics.Operation.UPDATE_SESSION,
+                () -> SessionCache.updateSession(this, sessionHandle, sessionData, jwtPayload));
     }
 
     @Override
     public SessionInfoWithLastUpdated getSessionInfo_Transaction(String sessionHandle) throws StorageQueryException {
-        try {
-            return Queries.getSessionInfo_Transaction(this, sessionHandle);
-        } catch (SQLException e) {
-            throw new StorageQueryException(e);
-        }
+        return OperationMetrics.measure(this, OperationMetrics.Operation.GET_SESSION_INFO,
+                () -> SessionCache.getSessionInfo_Transaction(this, sessionHandle));
     }
 
 
     @Override
     public boolean updateSessionInfo_Transaction(String sessionHandle, String refreshTokenHash2, long expiry,
                                                  String lastUpdatedSign) throws StorageQueryException {
-        try {
-            return Queries.updateSessionInfo_Transaction(this, sessionHandle, refreshTokenHash2, expiry,
-                    lastUpdatedSign);
-        } catch (SQLException e) {
-            throw new StorageQueryException(e);
-        }
+        return OperationMetrics.measure(this, OperationMetrics.Operation.UPDATE_SESSION_INFO,
+                () -> SessionCache.updateSessionInfo_Transaction(this, sessionHandle, refreshTokenHash2, expiry,
+                        lastUpdatedSign));
     }
 
     @Override
     public boolean setKeyValue_Transaction(String key, KeyValueInfoWithLastUpdated info) throws StorageQueryException {
-        try {
-            return Queries.setKeyValue_Transaction(this, key, info);
-        } catch (SQLException e) {
-            throw new StorageQueryException(e);
-        }
+        return OperationMetrics.measure(this, OperationMetrics.Operation.SET_KEY_VALUE_TRANSACTION,
+                () -> KeyValueCache.set_Transaction(this, key, info));
     }
 
     @Override
     public KeyValueInfoWithLastUpdated getKeyValue_Transaction(String key) throws StorageQueryException {
-        try {
-            return Queries.getKeyValue_Transaction(this, key);
-        } catch (SQLException e) {
-            throw new StorageQueryException(e);
-        }
+        return OperationMetrics.measure(this, OperationMetrics.Operation.GET_KEY_VALUE_TRANSACTION,
+                () -> KeyValueCache.get_Transaction(this, key));
     }
 
     @Override
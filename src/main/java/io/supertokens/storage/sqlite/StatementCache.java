@@ -0,0 +1,151 @@
+/*
+ *    Copyright (c) 2020, VRAI Labs and/or its affiliates. All rights reserved.
+ *
+ *    This software is licensed under the Apache License, Version 2.0 (the
+ *    "License") as published by the Apache Software Foundation.
+ *
+ *    You may not use this file except in compliance with the License. You may
+ *    obtain a copy of the License at http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *    Unless required by applicable law or agreed to in writing, software
+ *    distributed under the License is distributed on an "AS IS" BASIS, WITHOUT
+ *    WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied. See the
+ *    License for the specific language governing permissions and limitations
+ *    under the License.
+ *
+ */
+
+package io.supertokens.storage.sqlite;
+
+import java.lang.reflect.InvocationHandler;
+import java.lang.reflect.InvocationTargetException;
+import java.lang.reflect.Method;
+import java.lang.reflect.Proxy;
+import java.sql.Connection;
+import java.sql.PreparedStatement;
+import java.sql.SQLException;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.concurrent.atomic.LongAdder;
+
+// An LRU of prepared statements, keyed by their SQL, that belongs to one physical connection. This saves SQLite from
+// parsing and planning the same statements again every time a query runs. A pooled connection is used by only one
+// thread at a time, so this needs no locking. The statements are closed when Hikari closes the connection.
+public class StatementCache {
+
+    private final Connection physicalConnection;
+    private final Stats stats;
+    private final LinkedHashMap<String, PreparedStatement> statements;
+
+    private StatementCache(Connection physicalConnection, int maxSize, Stats stats) {
+        this.physicalConnection = physicalConnection;
+        this.stats = stats;
+        this.statements = new LinkedHashMap<String, PreparedStatement>(16, 0.75f, true) {
+            @Override
+            protected boolean removeEldestEntry(Map.Entry<String, PreparedStatement> eldest) {
+                if (size() > maxSize) {
+                    closeQuietly(eldest.getValue());
+                    stats.evictions.increment();
+                    return true;
+                }
+                return false;
+            }
+        };
+    }
+
+    // returns the given connection wrapped so that it carries its own statement cache.
+    static Connection wrap(Connection physicalConnection, int maxSize, Stats stats) {
+        return (Connection) Proxy.newProxyInstance(StatementCache.class.getClassLoader(),
+                new Class<?>[]{Connection.class},
+                new CachingConnectionHandler(new StatementCache(physicalConnection, maxSize, stats)));
+    }
+
+    public static Stats getStats(Start start) {
+        return ConnectionPool.getStatementCacheStats(start);
+    }
+
+    // Returns a prepared statement for the given SQL on this connection. If the connection has a statement cache, the
+    // returned statement belongs to that cache, so callers must not close it, but they must close any result set
+    // that they get from it. Otherwise, the statement is closed by Hikari when the connection goes back to the pool.
+    static PreparedStatement prepare(Connection con, String sql) throws SQLException {
+        Connection physicalConnection = con.unwrap(Connection.class);
+        if (Proxy.isProxyClass(physicalConnection.getClass())) {
+            InvocationHandler handler = Proxy.getInvocationHandler(physicalConnection);
+            if (handler instanceof CachingConnectionHandler) {
+                return ((CachingConnectionHandler) handler).cache.get(sql);
+            }
+        }
+        return con.prepareStatement(sql);
+    }
+
+    private PreparedStatement get(String sql) throws SQLException {
+        PreparedStatement pst = statements.get(sql);
+        if (pst != null) {
+            stats.hits.increment();
+            pst.clearParameters();
+            return pst;
+        }
+        stats.misses.increment();
+        pst = physicalConnection.prepareStatement(sql);
+        statements.put(sql, pst);
+        return pst;
+    }
+
+    private void clear() {
+        for (PreparedStatement pst : statements.values()) {
+            closeQuietly(pst);
+        }
+        statements.clear();
+    }
+
+    private static void closeQuietly(PreparedStatement pst) {
+        try {
+            pst.close();
+        } catch (SQLException ignored) {
+        }
+    }
+
+    private static class CachingConnectionHandler implements InvocationHandler {
+        private final StatementCache cache;
+
+        CachingConnectionHandler(StatementCache cache) {
+            this.cache = cache;
+        }
+
+        @Override
+        public Object invoke(Object proxy, Method method, Object[] args) throws Throwable {
+            switch (method.getName()) {
+                case "equals":
+                    return proxy == args[0];
+                case "hashCode":
+                    return System.identityHashCode(proxy);
+                case "close":
+                    cache.clear();
+                    break;
+            }
+            try {
+                return method.invoke(cache.physicalConnection, args);
+            } catch (InvocationTargetException e) {
+                throw e.getCause();
+            }
+        }
+    }
+
+    public static class Stats {
+        private final LongAdder hits = new LongAdder();
+        private final LongAdder misses = new LongAdder();
+        private final LongAdder evictions = new LongAdder();
+
+        public long getHitCount() {
+            return hits.sum();
+        }
+
+        public long getMissCount() {
+            return misses.sum();
+        }
+
+        public long getEvictionCount() {
+            return evictions.sum();
+        }
+    }
+}
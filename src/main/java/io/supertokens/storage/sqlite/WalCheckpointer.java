@@ -0,0 +1,271 @@
+/*
+ *    Copyright (c) 2020, VRAI Labs and/or its affiliates. All rights reserved.
+ *
+ *    This software is licensed under the Apache License, Version 2.0 (the
+ *    "License") as published by the Apache Software Foundation.
+ *
+ *    You may not use this file except in compliance with the License. You may
+ *    obtain a copy of the License at http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *    Unless required by applicable law or agreed to in writing, software
+ *    distributed under the License is distributed on an "AS IS" BASIS, WITHOUT
+ *    WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied. See the
+ *    License for the specific language governing permissions and limitations
+ *    under the License.
+ *
+ */
+
+package io.supertokens.storage.sqlite;
+
+import io.supertokens.storage.sqlite.output.Logging;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.sql.Connection;
+import java.sql.ResultSet;
+import java.sql.SQLException;
+import java.sql.Statement;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.LongAdder;
+
+// Checkpoints the WAL of every database file from a thread of its own, instead of SQLite doing it on whichever commit
+// makes the WAL longer than wal_autocheckpoint pages, which then takes much longer than other writes. While this runs,
+// the writer connections have automatic checkpoints turned off.
+//
+// Every sqlite_wal_checkpoint_interval_millis, a PASSIVE checkpoint copies what it can from the WAL into the database
+// file, on a connection of its own. It neither waits for nor blocks readers and the writer, so it can leave frames
+// behind that a reader still needs. The WAL is then written from its start again, but the file does not get smaller,
+// and while there are always readers it can keep growing. So once it is larger than sqlite_wal_truncate_size_bytes, and
+// nothing has been written to that database file since the last run, a TRUNCATE checkpoint is run on the writer
+// connection. That waits up to busy_timeout for readers to finish, and then empties the WAL file. Writes to that file
+// wait for it.
+public class WalCheckpointer {
+
+    private static final long WAIT_FOR_STOP_SECONDS = 10;
+    private static final int WAL_HEADER_SIZE = 32;
+    private static final int WAL_SEQUENCE_OFFSET = 12;
+
+    private final Start start;
+    private final ConnectionPool.Database[] databases;
+    private final long truncateSizeBytes;
+    private final ScheduledExecutorService scheduler;
+    // of each database, for the checkpointer thread only
+    private final Connection[] connections;
+    private final long[] writesAtLastRun;
+    private final long[] walSequenceAtLastRun;
+    private final long[] checkpointedFramesAtLastRun;
+
+    private final LongAdder checkpoints = new LongAdder();
+    private final LongAdder truncates = new LongAdder();
+    private final LongAdder incompleteCheckpoints = new LongAdder();
+    private final LongAdder failedCheckpoints = new LongAdder();
+    private final LongAdder framesCheckpointed = new LongAdder();
+    private final LongAdder totalCheckpointNanos = new LongAdder();
+    private final AtomicLong maxCheckpointNanos = new AtomicLong();
+    private volatile long lastCheckpointNanos = 0;
+    private volatile long walSizeBytes = 0;
+    private volatile long maxWalSizeBytes = 0;
+
+    WalCheckpointer(Start start, ConnectionPool.Database[] databases, long intervalMillis, long truncateSizeBytes) {
+        this.start = start;
+        this.databases = databases;
+        this.truncateSizeBytes = truncateSizeBytes;
+        this.connections = new Connection[databases.length];
+        this.writesAtLastRun = new long[databases.length];
+        this.walSequenceAtLastRun = new long[databases.length];
+        this.checkpointedFramesAtLastRun = new long[databases.length];
+        this.scheduler = Executors.newSingleThreadScheduledExecutor(runnable -> {
+            Thread thread = new Thread(runnable, "SuperTokens-sqlite-wal-checkpointer-" + start.getProcessId());
+            thread.setDaemon(true);
+            return thread;
+        });
+        this.scheduler.scheduleWithFixedDelay(this::run, intervalMillis, intervalMillis, TimeUnit.MILLISECONDS);
+    }
+
+    // null if the WALs are checkpointed by SQLite itself
+    public static WalCheckpointer getInstance(Start start) {
+        return ConnectionPool.getWalCheckpointer(start);
+    }
+
+    void stop() {
+        scheduler.shutdownNow();
+        try {
+            scheduler.awaitTermination(WAIT_FOR_STOP_SECONDS, TimeUnit.SECONDS);
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+        for (int database = 0; database < connections.length; database++) {
+            closeConnection(database);
+        }
+    }
+
+    private void run() {
+        long totalWalSizeBytes = 0;
+        for (int database = 0; database < databases.length; database++) {
+            if (Thread.currentThread().isInterrupted()) {
+                return;
+            }
+            long startTime = System.nanoTime();
+            try {
+                checkpointDatabase(database);
+                recordCheckpoint(System.nanoTime() - startTime);
+            } catch (SQLException | RuntimeException e) {
+                failedCheckpoints.increment();
+                closeConnection(database);
+                Logging.error(start, "Failed to checkpoint the WAL of " + databases[database].path, false, e);
+            }
+            totalWalSizeBytes += getWalFile(database).length();
+        }
+        walSizeBytes = totalWalSizeBytes;
+        maxWalSizeBytes = Math.max(maxWalSizeBytes, totalWalSizeBytes);
+    }
+
+    private void checkpointDatabase(int database) throws SQLException {
+        ConnectionPool.Database instance = databases[database];
+        boolean quiet = instance.getWriteCount() == writesAtLastRun[database];
+        try {
+            if (truncateSizeBytes > 0 && quiet && getWalFile(database).length() > truncateSizeBytes) {
+                instance.runOnWriter(con -> {
+                    checkpoint(database, con, "TRUNCATE");
+                    return null;
+                });
+                truncates.increment();
+                return;
+            }
+            if (connections[database] == null) {
+                connections[database] = instance.getOwnConnection();
+            }
+            long writesBefore = instance.getWriteCount();
+            checkpoint(database, connections[database], "PASSIVE");
+            checkpoints.increment();
+            // The WAL is only written from its start again by a write that begins once all of it is checkpointed.
+            // With steady writes, there are always new frames by the time this is done, so the WAL would keep
+            // growing. The few that were written meanwhile are checkpointed on the writer, which is quick.
+            if (instance.getWriteCount() != writesBefore) {
+                instance.runOnWriter(con -> {
+                    checkpoint(database, con, "PASSIVE");
+                    return null;
+                });
+                checkpoints.increment();
+            }
+        } finally {
+            // the checkpoints on the writer are not writes of their own
+            writesAtLastRun[database] = instance.getWriteCount();
+        }
+    }
+
+    // runs the checkpoint and counts the frames that it copied into the database file
+    private void checkpoint(int database, Connection con, String mode) throws SQLException {
+        boolean busy;
+        long walFrames;
+        long checkpointedFrames;
+        // only main, since the past tokens databases have the sessions database of their shard attached
+        try (Statement stmt = con.createStatement();
+             ResultSet result = stmt.executeQuery("PRAGMA main.wal_checkpoint(" + mode + ")")) {
+            // busy, the number of frames in the WAL and how many of them are in the database file now
+            busy = result.getInt(1) != 0;
+            walFrames = result.getLong(2);
+            checkpointedFrames = result.getLong(3);
+        }
+        if (busy || checkpointedFrames < walFrames) {
+            incompleteCheckpoints.increment();
+        }
+        // The frames are numbered from the start of the WAL, which is written from its start again once all of it
+        // has been checkpointed. The frames before that were all counted already.
+        long walSequence = getWalSequence(database);
+        if (walSequence != walSequenceAtLastRun[database]) {
+            framesCheckpointed.add(Math.max(checkpointedFrames, 0));
+        } else {
+            framesCheckpointed.add(Math.max(checkpointedFrames - checkpointedFramesAtLastRun[database], 0));
+        }
+        walSequenceAtLastRun[database] = walSequence;
+        checkpointedFramesAtLastRun[database] = checkpointedFrames;
+    }
+
+    // the checkpoint sequence number in the header of the WAL file, which changes each time the WAL is written from its
+    // start again, or -1 if there is no header
+    private long getWalSequence(int database) {
+        try (RandomAccessFile walFile = new RandomAccessFile(getWalFile(database), "r")) {
+            if (walFile.length() < WAL_HEADER_SIZE) {
+                return -1;
+            }
+            walFile.seek(WAL_SEQUENCE_OFFSET);
+            return walFile.readInt() & 0xffffffffL;
+        } catch (IOException e) {
+            return -1;
+        }
+    }
+
+    private File getWalFile(int database) {
+        return new File(databases[database].path + "-wal");
+    }
+
+    private void closeConnection(int database) {
+        if (connections[database] != null) {
+            try {
+                connections[database].close();
+            } catch (SQLException ignored) {
+            }
+            connections[database] = null;
+        }
+    }
+
+    private void recordCheckpoint(long nanos) {
+        lastCheckpointNanos = nanos;
+        totalCheckpointNanos.add(nanos);
+        long max = maxCheckpointNanos.get();
+        while (nanos > max && !maxCheckpointNanos.compareAndSet(max, nanos)) {
+            max = maxCheckpointNanos.get();
+        }
+    }
+
+    // number of PASSIVE checkpoints, of one database file each
+    public long getCheckpointCount() {
+        return checkpoints.sum();
+    }
+
+    // number of TRUNCATE checkpoints, of one database file each
+    public long getTruncateCount() {
+        return truncates.sum();
+    }
+
+    // number of checkpoints that left frames in the WAL, because readers still needed them
+    public long getIncompleteCheckpointCount() {
+        return incompleteCheckpoints.sum();
+    }
+
+    public long getFailedCheckpointCount() {
+        return failedCheckpoints.sum();
+    }
+
+    // number of WAL frames, of one page each, that have been copied into the database files
+    public long getFramesCheckpointedCount() {
+        return framesCheckpointed.sum();
+    }
+
+    // total size of the WAL files after the last run
+    public long getWalSizeBytes() {
+        return walSizeBytes;
+    }
+
+    public long getMaxWalSizeBytes() {
+        return maxWalSizeBytes;
+    }
+
+    // of one database file, including the wait for the writer for a TRUNCATE
+    public long getLastCheckpointNanos() {
+        return lastCheckpointNanos;
+    }
+
+    public long getMaxCheckpointNanos() {
+        return maxCheckpointNanos.get();
+    }
+
+    public long getTotalCheckpointNanos() {
+        return totalCheckpointNanos.sum();
+    }
+}
@@ -0,0 +1,217 @@
+/*
+ *    Copyright (c) 2020, VRAI Labs and/or its affiliates. All rights reserved.
+ *
+ *    This software is licensed under the Apache License, Version 2.0 (the
+ *    "License") as published by the Apache Software Foundation.
+ *
+ *    You may not use this file except in compliance with the License. You may
+ *    obtain a copy of the License at http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *    Unless required by applicable law or agreed to in writing, software
+ *    distributed under the License is distributed on an "AS IS" BASIS, WITHOUT
+ *    WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied. See the
+ *    License for the specific language governing permissions and limitations
+ *    under the License.
+ *
+ */
+
+package io.supertokens.storage.sqlite;
+
+import io.supertokens.storage.sqlite.output.Logging;
+import io.supertokens.storage.sqlite.utils.Utils;
+
+import java.sql.Connection;
+import java.sql.SQLException;
+import java.sql.Statement;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.TimeUnit;
+
+// Group commit: concurrent writes are collected for a short while and then run together in one transaction on the
+// writer connection, so that the whole batch costs one fsync instead of one per write. Each write runs inside its own
+// savepoint, so a failing write (like a duplicate key) is rolled back on its own and only its caller gets the error.
+// Callers are completed only after the batch has been committed.
+class WriteBatcher {
+
+    private final Start start;
+    private final ConnectionPool.Database database;
+    private final int maxBatchSize;
+    private final long maxDelayNanos;
+    private final LinkedBlockingQueue<PendingWrite<?>> queue = new LinkedBlockingQueue<>();
+    private final Thread thread;
+    private volatile boolean running = true;
+
+    WriteBatcher(Start start, ConnectionPool.Database database, String threadNameSuffix, int maxBatchSize,
+                 long maxDelayMicros) {
+        this.start = start;
+        this.database = database;
+        this.maxBatchSize = maxBatchSize;
+        this.maxDelayNanos = TimeUnit.MICROSECONDS.toNanos(maxDelayMicros);
+        this.thread = new Thread(this::run,
+                "SuperTokens-sqlite-write-batcher-" + start.getProcessId() + threadNameSuffix);
+        this.thread.setDaemon(true);
+        this.thread.start();
+    }
+
+    <T> T submit(ConnectionPool.Work<T> work) throws SQLException {
+        OperationMetrics.Context metrics = OperationMetrics.current(start);
+        long requestedNanos = metrics == null ? 0 : System.nanoTime();
+        PendingWrite<T> pending = new PendingWrite<>(work);
+        queue.add(pending);
+        if (!running && queue.remove(pending)) {
+            throw new SQLException("Storage layer closed");
+        }
+        try {
+            T result = pending.result.get();
+            recordConnectionUse(metrics, requestedNanos, pending);
+            return result;
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new SQLException(e);
+        } catch (ExecutionException e) {
+            recordConnectionUse(metrics, requestedNanos, pending);
+            Throwable cause = e.getCause();
+            if (cause instanceof SQLException) {
+                throw (SQLException) cause;
+            }
+            if (cause instanceof RuntimeException) {
+                throw (RuntimeException) cause;
+            }
+            throw new SQLException(cause);
+        }
+    }
+
+    // the wait in the queue counts as waiting for the connection, and the rest, up to the commit, as executing
+    private static void recordConnectionUse(OperationMetrics.Context metrics, long requestedNanos,
+                                            PendingWrite<?> pending) {
+        if (metrics != null) {
+            long now = System.nanoTime();
+            metrics.recordConnectionUse(requestedNanos, pending.begunNanos == 0 ? now : pending.begunNanos, now);
+        }
+    }
+
+    void stop() {
+        running = false;
+        thread.interrupt();
+        try {
+            thread.join();
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+        failAll(drain(), new SQLException("Storage layer closed"));
+    }
+
+    private void run() {
+        while (running) {
+            List<PendingWrite<?>> batch;
+            try {
+                batch = collectBatch();
+            } catch (InterruptedException e) {
+                break;
+            }
+            try {
+                database.runOnWriter(con -> {
+                    commitBatch(con, batch);
+                    return null;
+                });
+                for (PendingWrite<?> pending : batch) {
+                    pending.complete();
+                }
+            } catch (SQLException e) {
+                failAll(batch, e);
+            } catch (RuntimeException e) {
+                Logging.error(start, "Unexpected error in SQLite write batcher", false, e);
+                failAll(batch, e);
+            }
+        }
+    }
+
+    private List<PendingWrite<?>> collectBatch() throws InterruptedException {
+        List<PendingWrite<?>> batch = new ArrayList<>();
+        batch.add(queue.take());
+        long deadline = System.nanoTime() + maxDelayNanos;
+        while (batch.size() < maxBatchSize) {
+            PendingWrite<?> next = queue.poll();
+            if (next == null) {
+                long remaining = deadline - System.nanoTime();
+                if (remaining <= 0) {
+                    break;
+                }
+                next = queue.poll(remaining, TimeUnit.NANOSECONDS);
+                if (next == null) {
+                    break;
+                }
+            }
+            batch.add(next);
+        }
+        return batch;
+    }
+
+    private void commitBatch(Connection con, List<PendingWrite<?>> batch) throws SQLException {
+        try (Statement stmt = con.createStatement()) {
+            stmt.execute("BEGIN IMMEDIATE");
+            try {
+                for (PendingWrite<?> pending : batch) {
+                    stmt.execute("SAVEPOINT batched_write");
+                    try {
+                        pending.execute(con);
+                        stmt.execute("RELEASE batched_write");
+                    } catch (Exception e) {
+                        stmt.execute("ROLLBACK TO batched_write");
+                        stmt.execute("RELEASE batched_write");
+                        pending.error = e;
+                    }
+                }
+                stmt.execute("COMMIT");
+            } catch (SQLException e) {
+                try {
+                    stmt.execute("ROLLBACK");
+                } catch (SQLException rollbackError) {
+                    Logging.debug(start, Utils.exceptionStacktraceToString(rollbackError));
+                }
+                throw e;
+            }
+        }
+    }
+
+    private List<PendingWrite<?>> drain() {
+        List<PendingWrite<?>> remaining = new ArrayList<>();
+        queue.drainTo(remaining);
+        return remaining;
+    }
+
+    private static void failAll(List<PendingWrite<?>> batch, Exception e) {
+        for (PendingWrite<?> pending : batch) {
+            pending.result.completeExceptionally(e);
+        }
+    }
+
+    private static class PendingWrite<T> {
+        final ConnectionPool.Work<T> work;
+        final CompletableFuture<T> result = new CompletableFuture<>();
+        T value;
+        Exception error;
+        // when the batch got to it, or 0. Written before result is completed, which makes it visible to the caller.
+        long begunNanos;
+
+        PendingWrite(ConnectionPool.Work<T> work) {
+            this.work = work;
+        }
+
+        void execute(Connection con) throws SQLException {
+            begunNanos = System.nanoTime();
+            value = work.doWork(con);
+        }
+
+        void complete() {
+            if (error != null) {
+                result.completeExceptionally(error);
+            } else {
+                result.complete(value);
+            }
+        }
+    }
+}
@@ -30,7 +30,7 @@ import java.io.IOException;
 
 public class Config extends ResourceDistributor.SingletonResource {
 
-    private static final String RESOURCE_KEY = "io.supertokens.storage.sqlite.config.Config";
+    private static final ResourceDistributor.Key<Config> RESOURCE_KEY = ResourceDistributor.newKey(Config.class);
     private final SQLiteConfig config;
     private final Start start;
 
@@ -44,7 +44,7 @@ public class Config extends ResourceDistributor.SingletonResource {
     }
 
     private static Config getInstance(Start start) {
-        return (Config) start.getResourceDistributor().getResource(RESOURCE_KEY);
+        return start.getResourceDistributor().getResource(RESOURCE_KEY);
     }
 
     public static void loadConfig(Start start, String configFilePath) {
@@ -56,10 +56,11 @@ public class Config extends ResourceDistributor.SingletonResource {
     }
 
     public static SQLiteConfig getConfig(Start start) {
-        if (getInstance(start) == null) {
+        Config instance = getInstance(start);
+        if (instance == null) {
             throw new QuitProgramFromPluginException("Please call loadConfig() before calling getConfig()");
         }
-        return getInstance(start).config;
+        return instance.config;
     }
 
     private SQLiteConfig loadSQLiteConfig(String configFilePath) throws IOException {
@@ -24,6 +24,7 @@ import io.supertokens.pluginInterface.exceptions.QuitProgramFromPluginException;
 import io.supertokens.storage.sqlite.utils.Utils;
 
 import java.io.File;
+import java.util.Arrays;
 
 @JsonIgnoreProperties(ignoreUnknown = true)
 public class SQLiteConfig {
@@ -49,6 +50,147 @@ public class SQLiteConfig {
     @JsonProperty
     private String sqlite_past_tokens_table_name = "past_tokens";
 
+    @JsonProperty
+    private String sqlite_row_counts_table_name = "row_counts";
+
+    @JsonProperty
+    private boolean sqlite_recount_rows_on_startup = false;
+
+    @JsonProperty
+    private String sqlite_journal_mode = "WAL";
+
+    @JsonProperty
+    private String sqlite_synchronous = "NORMAL";
+
+    @JsonProperty
+    private long sqlite_mmap_size = 0;
+
+    @JsonProperty
+    private int sqlite_cache_size = -2000;
+
+    @JsonProperty
+    private String sqlite_temp_store = "DEFAULT";
+
+    @JsonProperty
+    private int sqlite_busy_timeout = 5000;
+
+    @JsonProperty
+    private int sqlite_wal_autocheckpoint = 1000;
+
+    @JsonProperty
+    private long sqlite_busy_retry_budget_millis = 1000;
+
+    @JsonProperty
+    private int sqlite_statement_cache_size = 32;
+
+    @JsonProperty
+    private boolean sqlite_write_batching_enabled = false;
+
+    @JsonProperty
+    private int sqlite_write_batch_max_size = 64;
+
+    @JsonProperty
+    private long sqlite_write_batch_max_delay_micros = 200;
+
+    @JsonProperty
+    private long sqlite_key_value_cache_ttl_millis = 1000;
+
+    @JsonProperty
+    private long sqlite_session_cache_max_bytes = 0;
+
+    @JsonProperty
+    private long sqlite_past_tokens_filter_max_bytes = 0;
+
+    @JsonProperty
+    private double sqlite_past_tokens_filter_false_positive_rate = 0.01;
+
+    @JsonProperty
+    private int sqlite_expired_sessions_delete_chunk_size = 1000;
+
+    @JsonProperty
+    private long sqlite_expired_sessions_delete_time_budget_millis = 0;
+
+    @JsonProperty
+    private long sqlite_expired_sessions_delete_row_budget = 0;
+
+    @JsonProperty
+    private int sqlite_past_tokens_cleanup_batch_size = 1000;
+
+    @JsonProperty
+    private String sqlite_past_tokens_partition_period = "NONE";
+
+    @JsonProperty
+    private int sqlite_number_of_shards = 1;
+
+    @JsonProperty
+    private boolean sqlite_separate_table_files = false;
+
+    @JsonProperty
+    private String sqlite_past_tokens_synchronous = null;
+
+    @JsonProperty
+    private String sqlite_backup_folder_location = null;
+
+    @JsonProperty
+    private long sqlite_backup_interval_minutes = 0;
+
+    @JsonProperty
+    private int sqlite_backup_pages_per_step = 1000;
+
+    @JsonProperty
+    private long sqlite_backup_step_sleep_millis = 10;
+
+    @JsonProperty
+    private int sqlite_import_transaction_size = 50000;
+
+    @JsonProperty
+    private boolean sqlite_import_defer_indexes = true;
+
+    @JsonProperty
+    private long sqlite_wal_checkpoint_interval_millis = 1000;
+
+    @JsonProperty
+    private long sqlite_wal_truncate_size_bytes = 64 * 1024 * 1024;
+
+    @JsonProperty
+    private boolean sqlite_in_memory = false;
+
+    @JsonProperty
+    private long sqlite_in_memory_flush_interval_seconds = 60;
+
+    @JsonProperty
+    private boolean sqlite_integer_last_updated_sign = false;
+
+    @JsonProperty
+    private boolean sqlite_metrics_enabled = false;
+
+    @JsonProperty
+    private long sqlite_metrics_log_interval_seconds = 60;
+
+    @JsonProperty
+    private long sqlite_connection_timeout_millis = 30000;
+
+    @JsonProperty
+    private long sqlite_max_lifetime_millis = 1800000;
+
+    @JsonProperty
+    private long sqlite_idle_timeout_millis = 600000;
+
+    @JsonProperty
+    private boolean sqlite_slow_query_log_enabled = false;
+
+    @JsonProperty
+    private long sqlite_slow_query_threshold_millis = 100;
+
+    @JsonProperty
+    private double sqlite_slow_query_sample_rate = 1;
+
+    @JsonProperty
+    private int sqlite_slow_query_max_logs_per_minute = 60;
+
+    @JsonProperty
+    private String sqlite_slow_query_log_path = null;
+
     public int getConnectionPoolSize() {
         return sqlite_connection_pool_size;
     }
@@ -70,6 +212,211 @@ public class SQLiteConfig {
         return sqlite_past_tokens_table_name;
     }
 
+    public String getRowCountsTable() {
+        return sqlite_row_counts_table_name;
+    }
+
+    public boolean isRecountRowsOnStartup() {
+        return sqlite_recount_rows_on_startup;
+    }
+
+    public String getJournalMode() {
+        return sqlite_journal_mode.toUpperCase();
+    }
+
+    public String getSynchronous() {
+        return sqlite_synchronous.toUpperCase();
+    }
+
+    public long getMmapSize() {
+        return sqlite_mmap_size;
+    }
+
+    public int getCacheSize() {
+        return sqlite_cache_size;
+    }
+
+    public String getTempStore() {
+        return sqlite_temp_store.toUpperCase();
+    }
+
+    public int getBusyTimeout() {
+        return sqlite_busy_timeout;
+    }
+
+    public int getWalAutoCheckpoint() {
+        return sqlite_wal_autocheckpoint;
+    }
+
+    public long getBusyRetryBudgetMillis() {
+        return sqlite_busy_retry_budget_millis;
+    }
+
+    public int getStatementCacheSize() {
+        return sqlite_statement_cache_size;
+    }
+
+    public boolean isWriteBatchingEnabled() {
+        return sqlite_write_batching_enabled;
+    }
+
+    public int getWriteBatchMaxSize() {
+        return sqlite_write_batch_max_size;
+    }
+
+    public long getWriteBatchMaxDelayMicros() {
+        return sqlite_write_batch_max_delay_micros;
+    }
+
+    public long getKeyValueCacheTtlMillis() {
+        return sqlite_key_value_cache_ttl_millis;
+    }
+
+    public long getSessionCacheMaxBytes() {
+        return sqlite_session_cache_max_bytes;
+    }
+
+    public long getPastTokensFilterMaxBytes() {
+        return sqlite_past_tokens_filter_max_bytes;
+    }
+
+    public double getPastTokensFilterFalsePositiveRate() {
+        return sqlite_past_tokens_filter_false_positive_rate;
+    }
+
+    public int getExpiredSessionsDeleteChunkSize() {
+        return sqlite_expired_sessions_delete_chunk_size;
+    }
+
+    public long getExpiredSessionsDeleteTimeBudgetMillis() {
+        return sqlite_expired_sessions_delete_time_budget_millis;
+    }
+
+    public long getExpiredSessionsDeleteRowBudget() {
+        return sqlite_expired_sessions_delete_row_budget;
+    }
+
+    public int getPastTokensCleanupBatchSize() {
+        return sqlite_past_tokens_cleanup_batch_size;
+    }
+
+    public String getPastTokensPartitionPeriod() {
+        return sqlite_past_tokens_partition_period.toUpperCase();
+    }
+
+    public int getNumberOfShards() {
+        return sqlite_number_of_shards;
+    }
+
+    public boolean isSeparateTableFilesEnabled() {
+        return sqlite_separate_table_files;
+    }
+
+    // only used for the past tokens files, when they are separate
+    public String getPastTokensSynchronous() {
+        if (sqlite_past_tokens_synchronous == null) {
+            return getSynchronous();
+        }
+        return sqlite_past_tokens_synchronous.toUpperCase();
+    }
+
+    public String getBackupLocation() {
+        if (sqlite_backup_folder_location == null) {
+            return null;
+        }
+        if (PluginInterfaceTesting.isTesting) {
+            return Utils.normaliseLocationPath("../" + sqlite_backup_folder_location);
+        }
+        return Utils.normaliseLocationPath(sqlite_backup_folder_location);
+    }
+
+    public long getBackupIntervalMinutes() {
+        return sqlite_backup_interval_minutes;
+    }
+
+    public int getBackupPagesPerStep() {
+        return sqlite_backup_pages_per_step;
+    }
+
+    public long getBackupStepSleepMillis() {
+        return sqlite_backup_step_sleep_millis;
+    }
+
+    public int getImportTransactionSize() {
+        return sqlite_import_transaction_size;
+    }
+
+    public boolean isImportDeferIndexesEnabled() {
+        return sqlite_import_defer_indexes;
+    }
+
+    public long getWalCheckpointIntervalMillis() {
+        return sqlite_wal_checkpoint_interval_millis;
+    }
+
+    public long getWalTruncateSizeBytes() {
+        return sqlite_wal_truncate_size_bytes;
+    }
+
+    public boolean isInMemoryEnabled() {
+        return sqlite_in_memory;
+    }
+
+    public long getInMemoryFlushIntervalSeconds() {
+        return sqlite_in_memory_flush_interval_seconds;
+    }
+
+    public boolean isIntegerLastUpdatedSignEnabled() {
+        return sqlite_integer_last_updated_sign;
+    }
+
+    public boolean isMetricsEnabled() {
+        return sqlite_metrics_enabled;
+    }
+
+    public long getMetricsLogIntervalSeconds() {
+        return sqlite_metrics_log_interval_seconds;
+    }
+
+    public long getConnectionTimeoutMillis() {
+        return sqlite_connection_timeout_millis;
+    }
+
+    public long getMaxLifetimeMillis() {
+        return sqlite_max_lifetime_millis;
+    }
+
+    public long getIdleTimeoutMillis() {
+        return sqlite_idle_timeout_millis;
+    }
+
+    public boolean isSlowQueryLogEnabled() {
+        return sqlite_slow_query_log_enabled;
+    }
+
+    public long getSlowQueryThresholdMillis() {
+        return sqlite_slow_query_threshold_millis;
+    }
+
+    public double getSlowQuerySampleRate() {
+        return sqlite_slow_query_sample_rate;
+    }
+
+    public int getSlowQueryMaxLogsPerMinute() {
+        return sqlite_slow_query_max_logs_per_minute;
+    }
+
+    // null if slow queries go to the info log
+    public String getSlowQueryLogPath() {
+        if (sqlite_slow_query_log_path == null) {
+            return null;
+        }
+        if (PluginInterfaceTesting.isTesting) {
+            return "../" + sqlite_slow_query_log_path;
+        }
+        return sqlite_slow_query_log_path;
+    }
+
     public String getDatabaseLocation() {
         if (sqlite_database_folder_location == null) {
             return null;
@@ -108,6 +455,205 @@ public class SQLiteConfig {
             throw new QuitProgramFromPluginException(
                     "'sqlite_connection_pool_size' in the config.yaml file must be > 0");
         }
+
+        if (sqlite_journal_mode == null || !Arrays.asList("DELETE", "TRUNCATE", "PERSIST", "MEMORY", "WAL", "OFF")
+                .contains(getJournalMode())) {
+            throw new QuitProgramFromPluginException(
+                    "'sqlite_journal_mode' in the config.yaml file must be one of DELETE, TRUNCATE, PERSIST, MEMORY, " +
+                            "WAL or OFF");
+        }
+
+        if (sqlite_synchronous == null || !Arrays.asList("OFF", "NORMAL", "FULL", "EXTRA")
+                .contains(getSynchronous())) {
+            throw new QuitProgramFromPluginException(
+                    "'sqlite_synchronous' in the config.yaml file must be one of OFF, NORMAL, FULL or EXTRA");
+        }
+
+        if (getMmapSize() < 0) {
+            throw new QuitProgramFromPluginException(
+                    "'sqlite_mmap_size' in the config.yaml file must be >= 0");
+        }
+
+        if (sqlite_temp_store == null || !Arrays.asList("DEFAULT", "FILE", "MEMORY").contains(getTempStore())) {
+            throw new QuitProgramFromPluginException(
+                    "'sqlite_temp_store' in the config.yaml file must be one of DEFAULT, FILE or MEMORY");
+        }
+
+        if (getBusyTimeout() < 0) {
+            throw new QuitProgramFromPluginException(
+                    "'sqlite_busy_timeout' in the config.yaml file must be >= 0");
+        }
+
+        if (getWalAutoCheckpoint() < 0) {
+            throw new QuitProgramFromPluginException(
+                    "'sqlite_wal_autocheckpoint' in the config.yaml file must be >= 0");
+        }
+
+        if (getBusyRetryBudgetMillis() < 0) {
+            throw new QuitProgramFromPluginException(
+                    "'sqlite_busy_retry_budget_millis' in the config.yaml file must be >= 0");
+        }
+
+        if (getStatementCacheSize() < 0) {
+            throw new QuitProgramFromPluginException(
+                    "'sqlite_statement_cache_size' in the config.yaml file must be >= 0");
+        }
+
+        if (getWriteBatchMaxSize() <= 0) {
+            throw new QuitProgramFromPluginException(
+                    "'sqlite_write_batch_max_size' in the config.yaml file must be > 0");
+        }
+
+        if (getWriteBatchMaxDelayMicros() < 0) {
+            throw new QuitProgramFromPluginException(
+                    "'sqlite_write_batch_max_delay_micros' in the config.yaml file must be >= 0");
+        }
+
+        if (getKeyValueCacheTtlMillis() < 0) {
+            throw new QuitProgramFromPluginException(
+                    "'sqlite_key_value_cache_ttl_millis' in the config.yaml file must be >= 0");
+        }
+
+        if (getSessionCacheMaxBytes() < 0) {
+            throw new QuitProgramFromPluginException(
+                    "'sqlite_session_cache_max_bytes' in the config.yaml file must be >= 0");
+        }
+
+        if (getPastTokensFilterMaxBytes() < 0) {
+            throw new QuitProgramFromPluginException(
+                    "'sqlite_past_tokens_filter_max_bytes' in the config.yaml file must be >= 0");
+        }
+
+        if (getPastTokensFilterFalsePositiveRate() <= 0 || getPastTokensFilterFalsePositiveRate() >= 1) {
+            throw new QuitProgramFromPluginException(
+                    "'sqlite_past_tokens_filter_false_positive_rate' in the config.yaml file must be > 0 and < 1");
+        }
+
+        if (getExpiredSessionsDeleteChunkSize() < 0) {
+            throw new QuitProgramFromPluginException(
+                    "'sqlite_expired_sessions_delete_chunk_size' in the config.yaml file must be >= 0");
+        }
+
+        if (getExpiredSessionsDeleteTimeBudgetMillis() < 0) {
+            throw new QuitProgramFromPluginException(
+                    "'sqlite_expired_sessions_delete_time_budget_millis' in the config.yaml file must be >= 0");
+        }
+
+        if (getExpiredSessionsDeleteRowBudget() < 0) {
+            throw new QuitProgramFromPluginException(
+                    "'sqlite_expired_sessions_delete_row_budget' in the config.yaml file must be >= 0");
+        }
+
+        if (getPastTokensCleanupBatchSize() < 0) {
+            throw new QuitProgramFromPluginException(
+                    "'sqlite_past_tokens_cleanup_batch_size' in the config.yaml file must be >= 0");
+        }
+
+        if (sqlite_past_tokens_partition_period == null || !Arrays.asList("NONE", "DAY", "WEEK")
+                .contains(getPastTokensPartitionPeriod())) {
+            throw new QuitProgramFromPluginException(
+                    "'sqlite_past_tokens_partition_period' in the config.yaml file must be one of NONE, DAY or WEEK");
+        }
+
+        if (getNumberOfShards() < 1) {
+            throw new QuitProgramFromPluginException("'sqlite_number_of_shards' in the config.yaml file must be >= 1");
+        }
+
+        if (!Arrays.asList("OFF", "NORMAL", "FULL", "EXTRA").contains(getPastTokensSynchronous())) {
+            throw new QuitProgramFromPluginException(
+                    "'sqlite_past_tokens_synchronous' in the config.yaml file must be one of OFF, NORMAL, FULL or " +
+                            "EXTRA");
+        }
+
+        if (getBackupLocation() != null && !(new File(getBackupLocation()).exists())) {
+            throw new QuitProgramFromPluginException(
+                    "The backup location set in 'sqlite_backup_folder_location' does not exist, Please set a valid " +
+                            "location and restart SuperTokens");
+        }
+
+        // a backup has the name of the database file, and would be moved over it
+        if (getBackupLocation() != null && Utils.isSameFolder(getBackupLocation(), getDatabaseLocation())) {
+            throw new QuitProgramFromPluginException(
+                    "'sqlite_backup_folder_location' in the config.yaml file must not be the same as " +
+                            "'sqlite_database_folder_location'");
+        }
+
+        if (getBackupIntervalMinutes() < 0) {
+            throw new QuitProgramFromPluginException(
+                    "'sqlite_backup_interval_minutes' in the config.yaml file must be >= 0");
+        }
+
+        if (getBackupIntervalMinutes() > 0 && getBackupLocation() == null) {
+            throw new QuitProgramFromPluginException(
+                    "'sqlite_backup_folder_location' must be set in the config.yaml file if " +
+                            "'sqlite_backup_interval_minutes' is not 0");
+        }
+
+        if (getBackupPagesPerStep() < 0) {
+            throw new QuitProgramFromPluginException(
+                    "'sqlite_backup_pages_per_step' in the config.yaml file must be >= 0");
+        }
+
+        if (getBackupStepSleepMillis() < 0) {
+            throw new QuitProgramFromPluginException(
+                    "'sqlite_backup_step_sleep_millis' in the config.yaml file must be >= 0");
+        }
+
+        if (getImportTransactionSize() <= 0) {
+            throw new QuitProgramFromPluginException(
+                    "'sqlite_import_transaction_size' in the config.yaml file must be > 0");
+        }
+
+        if (getWalCheckpointIntervalMillis() < 0) {
+            throw new QuitProgramFromPluginException(
+                    "'sqlite_wal_checkpoint_interval_millis' in the config.yaml file must be >= 0");
+        }
+
+        if (getWalTruncateSizeBytes() < 0) {
+            throw new QuitProgramFromPluginException(
+                    "'sqlite_wal_truncate_size_bytes' in the config.yaml file must be >= 0");
+        }
+
+        if (getInMemoryFlushIntervalSeconds() < 0) {
+            throw new QuitProgramFromPluginException(
+                    "'sqlite_in_memory_flush_interval_seconds' in the config.yaml file must be >= 0");
+        }
+
+        if (getMetricsLogIntervalSeconds() < 0) {
+            throw new QuitProgramFromPluginException(
+                    "'sqlite_metrics_log_interval_seconds' in the config.yaml file must be >= 0");
+        }
+
+        // the smallest values that HikariCP accepts
+        if (getConnectionTimeoutMillis() < 250) {
+            throw new QuitProgramFromPluginException(
+                    "'sqlite_connection_timeout_millis' in the config.yaml file must be >= 250");
+        }
+
+        if (getMaxLifetimeMillis() != 0 && getMaxLifetimeMillis() < 30000) {
+            throw new QuitProgramFromPluginException(
+                    "'sqlite_max_lifetime_millis' in the config.yaml file must be 0 or >= 30000");
+        }
+
+        if (getIdleTimeoutMillis() != 0 && getIdleTimeoutMillis() < 10000) {
+            throw new QuitProgramFromPluginException(
+                    "'sqlite_idle_timeout_millis' in the config.yaml file must be 0 or >= 10000");
+        }
+
+        if (getSlowQueryThresholdMillis() < 0) {
+            throw new QuitProgramFromPluginException(
+                    "'sqlite_slow_query_threshold_millis' in the config.yaml file must be >= 0");
+        }
+
+        if (getSlowQuerySampleRate() <= 0 || getSlowQuerySampleRate() > 1) {
+            throw new QuitProgramFromPluginException(
+                    "'sqlite_slow_query_sample_rate' in the config.yaml file must be > 0 and <= 1");
+        }
+
+        if (getSlowQueryMaxLogsPerMinute() <= 0) {
+            throw new QuitProgramFromPluginException(
+                    "'sqlite_slow_query_max_logs_per_minute' in the config.yaml file must be > 0");
+        }
     }
 
 }
\ No newline at end of file
@@ -29,11 +29,13 @@ import org.slf4j.LoggerFactory;
 
 public class Logging extends ResourceDistributor.SingletonResource {
 
-    private static final String RESOURCE_ID = "io.supertokens.storage.sqlite.output.Logging";
+    private static final ResourceDistributor.Key<Logging> RESOURCE_ID = ResourceDistributor.newKey(Logging.class);
     private final Logger infoLogger;
     private final Logger errorLogger;
+    // the info logger, unless sqlite_slow_query_log_path is set
+    private final Logger slowQueryLogger;
 
-    private Logging(Start start, String infoLogPath, String errorLogPath) {
+    private Logging(Start start, String infoLogPath, String errorLogPath, String slowQueryLogPath) {
         this.infoLogger = infoLogPath.equals("null") ?
                 createLoggerForConsole(start, "io.supertokens.storage.sqlite.Info." + start.getProcessId()) :
                 createLoggerForFile(start, infoLogPath,
@@ -42,15 +44,20 @@ public class Logging extends ResourceDistributor.SingletonResource {
                 createLoggerForConsole(start, "io.supertokens.storage.sqlite.Error." + start.getProcessId()) :
                 createLoggerForFile(start, errorLogPath,
                         "io.supertokens.storage.sqlite.Error." + start.getProcessId());
+        this.slowQueryLogger = slowQueryLogPath == null ? this.infoLogger :
+                createLoggerForFile(start, slowQueryLogPath,
+                        "io.supertokens.storage.sqlite.SlowQuery." + start.getProcessId());
     }
 
     private static Logging getInstance(Start start) {
-        return (Logging) start.getResourceDistributor().getResource(RESOURCE_ID);
+        return start.getResourceDistributor().getResource(RESOURCE_ID);
     }
 
-    public static void initFileLogging(Start start, String infoLogPath, String errorLogPath) {
+    public static void initFileLogging(Start start, String infoLogPath, String errorLogPath,
+                                       String slowQueryLogPath) {
         if (getInstance(start) == null) {
-            start.getResourceDistributor().setResource(RESOURCE_ID, new Logging(start, infoLogPath, errorLogPath));
+            start.getResourceDistributor().setResource(RESOURCE_ID,
+                    new Logging(start, infoLogPath, errorLogPath, slowQueryLogPath));
 
         }
     }
@@ -86,6 +93,16 @@ public class Logging extends ResourceDistributor.SingletonResource {
         }
     }
 
+    public static void slowQuery(Start start, String msg) {
+        try {
+            msg = msg.trim();
+            if (getInstance(start) != null) {
+                getInstance(start).slowQueryLogger.warn(msg);
+            }
+        } catch (NullPointerException ignored) {
+        }
+    }
+
     public static void error(Start start, String err, boolean toConsoleAsWell) {
         try {
             err = err.trim();
@@ -136,6 +153,7 @@ public class Logging extends ResourceDistributor.SingletonResource {
         }
         getInstance(start).infoLogger.detachAndStopAllAppenders();
         getInstance(start).errorLogger.detachAndStopAllAppenders();
+        getInstance(start).slowQueryLogger.detachAndStopAllAppenders();
     }
 
     private Logger createLoggerForFile(Start start, String file, String name) {
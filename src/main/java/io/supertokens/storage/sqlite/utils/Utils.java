@@ -20,6 +20,8 @@ package io.supertokens.storage.sqlite.utils;
 import io.supertokens.storage.sqlite.config.SQLiteConfig;
 
 import java.io.ByteArrayOutputStream;
+import java.io.File;
+import java.io.IOException;
 import java.io.PrintStream;
 import java.util.UUID;
 
@@ -36,11 +38,33 @@ public class Utils {
         return UUID.randomUUID().toString();
     }
 
+    // whether the two paths are the same folder, also through relative paths and links
+    public static boolean isSameFolder(String a, String b) {
+        try {
+            return new File(a).getCanonicalFile().equals(new File(b).getCanonicalFile());
+        } catch (IOException e) {
+            return new File(a).getAbsoluteFile().toPath().normalize().equals(
+                    new File(b).getAbsoluteFile().toPath().normalize());
+        }
+    }
+
     public static String getDatabasePath(SQLiteConfig config) {
         return config.getDatabaseLocation() + config.getDatabaseName() + ".db";
 
     }
 
+    // shard 0 is the usual database file
+    public static String getDatabasePath(SQLiteConfig config, int shard) {
+        return getDatabasePath(config, null, shard);
+    }
+
+    // the file of one shard of the tables that are kept in files of their own, like "sessions", or of the usual
+    // database files if tables is null
+    public static String getDatabasePath(SQLiteConfig config, String tables, int shard) {
+        return config.getDatabaseLocation() + config.getDatabaseName() + (tables == null ? "" : "_" + tables)
+                + (shard == 0 ? "" : "_shard" + shard) + ".db";
+    }
+
     public static String normaliseLocationPath(String dir) {
         if (dir == null) {
             return null;
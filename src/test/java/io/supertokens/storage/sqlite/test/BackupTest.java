@@ -0,0 +1,155 @@
+/*
+ *    Copyright (c) 2020, VRAI Labs and/or its affiliates. All rights reserved.
+ *
+ *    This software is licensed under the Apache License, Version 2.0 (the
+ *    "License") as published by the Apache Software Foundation.
+ *
+ *    You may not use this file except in compliance with the License. You may
+ *    obtain a copy of the License at http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *    Unless required by applicable law or agreed to in writing, software
+ *    distributed under the License is distributed on an "AS IS" BASIS, WITHOUT
+ *    WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied. See the
+ *    License for the specific language governing permissions and limitations
+ *    under the License.
+ *
+ */
+
+package io.supertokens.storage.sqlite.test;
+
+import com.google.gson.JsonObject;
+import io.supertokens.ProcessState;
+import io.supertokens.pluginInterface.exceptions.StorageQueryException;
+import io.supertokens.storage.sqlite.Backup;
+import io.supertokens.storage.sqlite.Start;
+import io.supertokens.storage.sqlite.config.Config;
+import io.supertokens.storageLayer.StorageLayer;
+import org.junit.AfterClass;
+import org.junit.Before;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TestRule;
+
+import java.io.File;
+import java.nio.file.Files;
+import java.sql.Connection;
+import java.sql.DriverManager;
+import java.sql.ResultSet;
+import java.sql.Statement;
+
+import static org.junit.Assert.*;
+
+public class BackupTest {
+
+    @Rule
+    public TestRule watchman = Utils.getOnFailure();
+
+    @AfterClass
+    public static void afterTesting() {
+        Utils.afterTesting();
+    }
+
+    @Before
+    public void beforeEach() {
+        Utils.reset();
+    }
+
+    @Test
+    public void backupHasAllSessionsAndReplacesTheLastOne() throws Exception {
+        String[] args = {"../"};
+
+        Utils.setValueInConfig("sqlite_backup_pages_per_step", "1");
+        Utils.setValueInConfig("sqlite_backup_step_sleep_millis", "1");
+
+        TestingProcessManager.TestingProcess process = TestingProcessManager.start(args);
+        assertNotNull(process.checkOrWaitForEvent(ProcessState.PROCESS_STATE.STARTED));
+
+        Start storage = (Start) StorageLayer.getStorageLayer(process.getProcess());
+        JsonObject data = new JsonObject();
+        for (int i = 0; i < 100; i++) {
+            storage.createNewSession("handle" + i, "userId", "refresh" + i, data,
+                    System.currentTimeMillis() + 100000, data, System.currentTimeMillis());
+        }
+
+        File folder = Files.createTempDirectory("backup").toFile();
+        File backupFile = new File(folder,
+                new File(io.supertokens.storage.sqlite.utils.Utils.getDatabasePath(Config.getConfig(storage)))
+                        .getName());
+        Backup.backup(storage, folder.getPath());
+        assertEquals(countSessions(backupFile), 100);
+
+        storage.createNewSession("handle100", "userId", "refresh100", data, System.currentTimeMillis() + 100000,
+                data, System.currentTimeMillis());
+        Backup.backup(storage, folder.getPath());
+        assertEquals(countSessions(backupFile), 101);
+
+        Backup backup = Backup.getInstance(storage);
+        assertEquals(backup.getBackupCount(), 2);
+        assertEquals(backup.getFailedBackupCount(), 0);
+        assertEquals(backup.getProgress(), 1, 0);
+        assertEquals(backup.getLastBackupBytes(), backupFile.length());
+        assertFalse(new File(backupFile.getPath() + ".tmp").exists());
+
+        process.kill();
+        assertNotNull(process.checkOrWaitForEvent(ProcessState.PROCESS_STATE.STOPPED));
+    }
+
+    @Test
+    public void backupIntoTheDatabaseFolderIsRefused() throws Exception {
+        String[] args = {"../"};
+
+        TestingProcessManager.TestingProcess process = TestingProcessManager.start(args);
+        assertNotNull(process.checkOrWaitForEvent(ProcessState.PROCESS_STATE.STARTED));
+
+        Start storage = (Start) StorageLayer.getStorageLayer(process.getProcess());
+        File databaseFile = new File(io.supertokens.storage.sqlite.utils.Utils.getDatabasePath(
+                Config.getConfig(storage)));
+        long lastModified = databaseFile.lastModified();
+        try {
+            Backup.backup(storage, databaseFile.getParent());
+            fail();
+        } catch (StorageQueryException ignored) {
+            // the backup would have replaced the database file
+        }
+        assertEquals(databaseFile.lastModified(), lastModified);
+        assertEquals(Backup.getInstance(storage).getBackupCount(), 0);
+
+        process.kill();
+        assertNotNull(process.checkOrWaitForEvent(ProcessState.PROCESS_STATE.STOPPED));
+    }
+
+    @Test
+    public void backupDoesNotPauseOutsideWalMode() throws Exception {
+        String[] args = {"../"};
+
+        Utils.setValueInConfig("sqlite_journal_mode", "\"DELETE\"");
+        Utils.setValueInConfig("sqlite_backup_pages_per_step", "1");
+        Utils.setValueInConfig("sqlite_backup_step_sleep_millis", "1");
+
+        TestingProcessManager.TestingProcess process = TestingProcessManager.start(args);
+        assertNotNull(process.checkOrWaitForEvent(ProcessState.PROCESS_STATE.STARTED));
+
+        Start storage = (Start) StorageLayer.getStorageLayer(process.getProcess());
+        JsonObject data = new JsonObject();
+        for (int i = 0; i < 100; i++) {
+            storage.createNewSession("handle" + i, "userId", "refresh" + i, data,
+                    System.currentTimeMillis() + 100000, data, System.currentTimeMillis());
+        }
+
+        // a pause would hold a lock that keeps every writer out
+        Backup.backup(storage, Files.createTempDirectory("backup").toString());
+        assertEquals(Backup.getInstance(storage).getBackupCount(), 1);
+        assertEquals(Backup.getInstance(storage).getSleepCount(), 0);
+
+        process.kill();
+        assertNotNull(process.checkOrWaitForEvent(ProcessState.PROCESS_STATE.STOPPED));
+    }
+
+    private static long countSessions(File databaseFile) throws Exception {
+        try (Connection con = DriverManager.getConnection("jdbc:sqlite:" + databaseFile.getPath());
+             Statement stmt = con.createStatement();
+             ResultSet result = stmt.executeQuery("SELECT COUNT(*) FROM session_info")) {
+            return result.getLong(1);
+        }
+    }
+}
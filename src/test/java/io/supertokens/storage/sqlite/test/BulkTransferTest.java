@@ -0,0 +1,125 @@
+/*
+ *    Copyright (c) 2020, VRAI Labs and/or its affiliates. All rights reserved.
+ *
+ *    This software is licensed under the Apache License, Version 2.0 (the
+ *    "License") as published by the Apache Software Foundation.
+ *
+ *    You may not use this file except in compliance with the License. You may
+ *    obtain a copy of the License at http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *    Unless required by applicable law or agreed to in writing, software
+ *    distributed under the License is distributed on an "AS IS" BASIS, WITHOUT
+ *    WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied. See the
+ *    License for the specific language governing permissions and limitations
+ *    under the License.
+ *
+ */
+
+package io.supertokens.storage.sqlite.test;
+
+import com.google.gson.JsonObject;
+import io.supertokens.ProcessState;
+import io.supertokens.pluginInterface.exceptions.StorageQueryException;
+import io.supertokens.pluginInterface.tokenInfo.PastTokenInfo;
+import io.supertokens.storage.sqlite.BulkTransfer;
+import io.supertokens.storage.sqlite.RowCounts;
+import io.supertokens.storage.sqlite.Start;
+import io.supertokens.storageLayer.StorageLayer;
+import org.junit.AfterClass;
+import org.junit.Before;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TestRule;
+
+import java.io.StringReader;
+import java.io.StringWriter;
+
+import static org.junit.Assert.*;
+
+public class BulkTransferTest {
+
+    @Rule
+    public TestRule watchman = Utils.getOnFailure();
+
+    @AfterClass
+    public static void afterTesting() {
+        Utils.afterTesting();
+    }
+
+    @Before
+    public void beforeEach() {
+        Utils.reset();
+    }
+
+    @Test
+    public void exportedRowsCanBeImportedIntoADatabaseWithMoreShards() throws Exception {
+        String[] args = {"../"};
+
+        TestingProcessManager.TestingProcess process = TestingProcessManager.start(args);
+        assertNotNull(process.checkOrWaitForEvent(ProcessState.PROCESS_STATE.STARTED));
+
+        Start storage = (Start) StorageLayer.getStorageLayer(process.getProcess());
+        JsonObject data = new JsonObject();
+        data.addProperty("key", "value");
+        for (int i = 0; i < 100; i++) {
+            storage.createNewSession("handle" + i, "userId" + (i % 2), "refresh" + i, data,
+                    System.currentTimeMillis() + 100000, data, System.currentTimeMillis());
+            storage.insertPastToken(new PastTokenInfo("token" + i, "handle" + i, "refresh" + i, i));
+        }
+        StringWriter export = new StringWriter();
+        long numberOfRowsExported = BulkTransfer.exportRows(storage, export);
+        assertTrue(numberOfRowsExported >= 200);
+
+        process.kill();
+        assertNotNull(process.checkOrWaitForEvent(ProcessState.PROCESS_STATE.STOPPED));
+
+        Utils.reset();
+        Utils.setValueInConfig("sqlite_number_of_shards", "2");
+        // more than one transaction per table
+        Utils.setValueInConfig("sqlite_import_transaction_size", "30");
+
+        process = TestingProcessManager.start(args);
+        assertNotNull(process.checkOrWaitForEvent(ProcessState.PROCESS_STATE.STARTED));
+
+        storage = (Start) StorageLayer.getStorageLayer(process.getProcess());
+        assertEquals(storage.getNumberOfSessions(), 0);
+        assertTrue(BulkTransfer.importRows(storage, new StringReader(export.toString())) >= 200);
+
+        assertEquals(storage.getNumberOfSessions(), 100);
+        assertEquals(storage.getNumberOfPastTokens(), 100);
+        assertEquals(storage.getAllSessionHandlesForUser("userId1").length, 50);
+        for (int i = 0; i < 100; i++) {
+            assertEquals(storage.getSession("handle" + i).userDataInDatabase, data);
+            PastTokenInfo pastToken = storage.getPastTokenInfo("token" + i);
+            assertEquals(pastToken.sessionHandle, "handle" + i);
+            assertEquals(pastToken.createdTime, i);
+        }
+        assertEquals(RowCounts.recount(storage), 0);
+
+        // importing the same rows again inserts none of them
+        assertEquals(BulkTransfer.importRows(storage, new StringReader(export.toString())), 0);
+        assertEquals(storage.getNumberOfSessions(), 100);
+
+        process.kill();
+        assertNotNull(process.checkOrWaitForEvent(ProcessState.PROCESS_STATE.STOPPED));
+    }
+
+    @Test
+    public void importStopsAtALineThatIsNotARow() throws Exception {
+        String[] args = {"../"};
+
+        TestingProcessManager.TestingProcess process = TestingProcessManager.start(args);
+        assertNotNull(process.checkOrWaitForEvent(ProcessState.PROCESS_STATE.STARTED));
+
+        Start storage = (Start) StorageLayer.getStorageLayer(process.getProcess());
+        try {
+            BulkTransfer.importRows(storage, new StringReader("{\"table\":\"session_info\"}\n"));
+            fail();
+        } catch (StorageQueryException e) {
+            assertTrue(e.getMessage().contains("Line 1"));
+        }
+
+        process.kill();
+        assertNotNull(process.checkOrWaitForEvent(ProcessState.PROCESS_STATE.STOPPED));
+    }
+}
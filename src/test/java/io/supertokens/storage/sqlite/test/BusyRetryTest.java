@@ -0,0 +1,123 @@
+/*
+ *    Copyright (c) 2020, VRAI Labs and/or its affiliates. All rights reserved.
+ *
+ *    This software is licensed under the Apache License, Version 2.0 (the
+ *    "License") as published by the Apache Software Foundation.
+ *
+ *    You may not use this file except in compliance with the License. You may
+ *    obtain a copy of the License at http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *    Unless required by applicable law or agreed to in writing, software
+ *    distributed under the License is distributed on an "AS IS" BASIS, WITHOUT
+ *    WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied. See the
+ *    License for the specific language governing permissions and limitations
+ *    under the License.
+ *
+ */
+
+package io.supertokens.storage.sqlite.test;
+
+import io.supertokens.ProcessState;
+import io.supertokens.pluginInterface.KeyValueInfo;
+import io.supertokens.pluginInterface.exceptions.StorageQueryException;
+import io.supertokens.storage.sqlite.BusyRetry;
+import io.supertokens.storage.sqlite.Start;
+import io.supertokens.storage.sqlite.config.Config;
+import io.supertokens.storageLayer.StorageLayer;
+import org.junit.AfterClass;
+import org.junit.Before;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TestRule;
+
+import java.sql.Connection;
+import java.sql.DriverManager;
+import java.sql.Statement;
+
+import static org.junit.Assert.*;
+
+public class BusyRetryTest {
+
+    @Rule
+    public TestRule watchman = Utils.getOnFailure();
+
+    @AfterClass
+    public static void afterTesting() {
+        Utils.afterTesting();
+    }
+
+    @Before
+    public void beforeEach() {
+        Utils.reset();
+    }
+
+    @Test
+    public void writeIsRetriedWhileAnotherConnectionHoldsTheLock() throws Exception {
+        String[] args = {"../"};
+
+        Utils.setValueInConfig("sqlite_busy_timeout", "10");
+        Utils.setValueInConfig("sqlite_busy_retry_budget_millis", "5000");
+
+        TestingProcessManager.TestingProcess process = TestingProcessManager.start(args);
+        assertNotNull(process.checkOrWaitForEvent(ProcessState.PROCESS_STATE.STARTED));
+
+        Start start = (Start) StorageLayer.getStorageLayer(process.getProcess());
+        String databasePath = io.supertokens.storage.sqlite.utils.Utils.getDatabasePath(Config.getConfig(start));
+
+        try (Connection con = DriverManager.getConnection("jdbc:sqlite:" + databasePath);
+             Statement stmt = con.createStatement()) {
+            stmt.execute("BEGIN EXCLUSIVE");
+            Thread releaseLock = new Thread(() -> {
+                try {
+                    Thread.sleep(500);
+                    stmt.execute("COMMIT");
+                } catch (Exception ignored) {
+                }
+            });
+            releaseLock.start();
+
+            start.setKeyValue("key", new KeyValueInfo("value", 1));
+            releaseLock.join();
+        }
+
+        assertEquals(start.getKeyValue("key").value, "value");
+        assertNotNull(process.checkOrWaitForEventInPlugin(
+                io.supertokens.storage.sqlite.ProcessState.PROCESS_STATE.DEADLOCK_FOUND));
+        assertTrue(BusyRetry.getInstance(start).getRetryCount() > 0);
+        assertEquals(BusyRetry.getInstance(start).getRecoveredCount(), 1);
+
+        process.kill();
+        assertNotNull(process.checkOrWaitForEvent(ProcessState.PROCESS_STATE.STOPPED));
+    }
+
+    @Test
+    public void writeFailsOnceTheRetryBudgetIsUsedUp() throws Exception {
+        String[] args = {"../"};
+
+        Utils.setValueInConfig("sqlite_busy_timeout", "10");
+        Utils.setValueInConfig("sqlite_busy_retry_budget_millis", "200");
+
+        TestingProcessManager.TestingProcess process = TestingProcessManager.start(args);
+        assertNotNull(process.checkOrWaitForEvent(ProcessState.PROCESS_STATE.STARTED));
+
+        Start start = (Start) StorageLayer.getStorageLayer(process.getProcess());
+        String databasePath = io.supertokens.storage.sqlite.utils.Utils.getDatabasePath(Config.getConfig(start));
+
+        try (Connection con = DriverManager.getConnection("jdbc:sqlite:" + databasePath);
+             Statement stmt = con.createStatement()) {
+            stmt.execute("BEGIN EXCLUSIVE");
+            try {
+                start.setKeyValue("key", new KeyValueInfo("value", 1));
+                fail();
+            } catch (StorageQueryException ignored) {
+            }
+            stmt.execute("COMMIT");
+        }
+
+        assertEquals(BusyRetry.getInstance(start).getExhaustedCount(), 1);
+
+        process.kill();
+        assertNotNull(process.checkOrWaitForEvent(ProcessState.PROCESS_STATE.STOPPED));
+    }
+
+}
@@ -32,7 +32,10 @@ import org.junit.rules.TestRule;
 import java.io.File;
 
 import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
 import static org.junit.Assert.assertNotNull;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
 
 public class ConfigTest {
 
@@ -104,6 +107,70 @@ public class ConfigTest {
 
     }
 
+    @Test
+    public void testThatCustomPragmasLoadCorrectly() throws Exception {
+        String[] args = {"../"};
+
+        Utils.setValueInConfig("sqlite_journal_mode", "\"delete\"");
+        Utils.setValueInConfig("sqlite_synchronous", "\"FULL\"");
+        Utils.setValueInConfig("sqlite_mmap_size", "268435456");
+        Utils.setValueInConfig("sqlite_busy_timeout", "100");
+        Utils.setValueInConfig("sqlite_cache_size", "-4000");
+
+        TestingProcessManager.TestingProcess process = TestingProcessManager.start(args);
+        assertNotNull(process.checkOrWaitForEvent(ProcessState.PROCESS_STATE.STARTED));
+
+        SQLiteConfig config = Config.getConfig((Start) StorageLayer.getStorageLayer(process.getProcess()));
+        assertEquals(config.getJournalMode(), "DELETE");
+        assertEquals(config.getSynchronous(), "FULL");
+        assertEquals(config.getMmapSize(), 268435456);
+        assertEquals(config.getBusyTimeout(), 100);
+        assertEquals(config.getCacheSize(), -4000);
+
+        // the driver ignores properties that it does not know, so check that the pragmas reach both pools
+        Start storage = (Start) StorageLayer.getStorageLayer(process.getProcess());
+        for (boolean onWriter : new boolean[]{false, true}) {
+            assertEquals(storage.getPragma("journal_mode", onWriter), "delete");
+            assertEquals(storage.getPragma("synchronous", onWriter), "2");
+            assertEquals(storage.getPragma("busy_timeout", onWriter), "100");
+            assertEquals(storage.getPragma("mmap_size", onWriter), "268435456");
+            assertEquals(storage.getPragma("cache_size", onWriter), "-4000");
+        }
+
+        process.kill();
+        assertNotNull(process.checkOrWaitForEvent(ProcessState.PROCESS_STATE.STOPPED));
+    }
+
+    @Test
+    public void testThatInvalidPragmaThrowsRightError() throws Exception {
+        String[] args = {"../", "forceNoInMemDB=true"};
+
+        Utils.setValueInConfig("sqlite_journal_mode", "\"random\"");
+        TestingProcessManager.TestingProcess process = TestingProcessManager.start(args);
+
+        ProcessState.EventAndException e = process.checkOrWaitForEvent(ProcessState.PROCESS_STATE.INIT_FAILURE);
+        assertNotNull(e);
+        TestCase.assertEquals(e.exception.getMessage(),
+                "'sqlite_journal_mode' in the config.yaml file must be one of DELETE, TRUNCATE, PERSIST, MEMORY, " +
+                        "WAL or OFF");
+
+        process.kill();
+        assertNotNull(process.checkOrWaitForEvent(ProcessState.PROCESS_STATE.STOPPED));
+
+        Utils.reset();
+
+        Utils.setValueInConfig("sqlite_busy_timeout", "-1");
+        process = TestingProcessManager.start(args);
+
+        e = process.checkOrWaitForEvent(ProcessState.PROCESS_STATE.INIT_FAILURE);
+        assertNotNull(e);
+        TestCase.assertEquals(e.exception.getMessage(),
+                "'sqlite_busy_timeout' in the config.yaml file must be >= 0");
+
+        process.kill();
+        assertNotNull(process.checkOrWaitForEvent(ProcessState.PROCESS_STATE.STOPPED));
+    }
+
     @Test
     public void testSqliteDatabaseLocation() throws Exception {
         String[] args = {"../"};
@@ -151,6 +218,22 @@ public class ConfigTest {
         process.kill();
         assertNotNull(process.checkOrWaitForEvent(ProcessState.PROCESS_STATE.STOPPED));
 
+        Utils.reset();
+
+        //backups cannot go into the database folder, since they would replace the database files
+
+        Utils.setValueInConfig("sqlite_backup_folder_location", "\"sqlite_db\"");
+
+        process = TestingProcessManager.start(args);
+        e = process.checkOrWaitForEvent(ProcessState.PROCESS_STATE.INIT_FAILURE);
+        assertNotNull(e);
+        TestCase.assertEquals(e.exception.getMessage(),
+                "'sqlite_backup_folder_location' in the config.yaml file must not be the same as " +
+                        "'sqlite_database_folder_location'");
+
+        process.kill();
+        assertNotNull(process.checkOrWaitForEvent(ProcessState.PROCESS_STATE.STOPPED));
+
 
     }
 
@@ -231,6 +314,65 @@ public class ConfigTest {
         assertEquals("Config keyValue table does not match default", config.getKeyValueTable(), "key_value");
         assertEquals("Config pastTokensTable does not match default", config.getPastTokensTable(), "past_tokens");
         assertEquals("Config sessionInfoTable does not match default", config.getSessionInfoTable(), "session_info");
+        assertEquals("Config journalMode does not match default", config.getJournalMode(), "WAL");
+        assertEquals("Config synchronous does not match default", config.getSynchronous(), "NORMAL");
+        assertEquals("Config mmapSize does not match default", config.getMmapSize(), 0);
+        assertEquals("Config cacheSize does not match default", config.getCacheSize(), -2000);
+        assertEquals("Config tempStore does not match default", config.getTempStore(), "DEFAULT");
+        assertEquals("Config busyTimeout does not match default", config.getBusyTimeout(), 5000);
+        assertEquals("Config walAutoCheckpoint does not match default", config.getWalAutoCheckpoint(), 1000);
+        assertEquals("Config statementCacheSize does not match default", config.getStatementCacheSize(), 32);
+        assertEquals("Config keyValueCacheTtlMillis does not match default", config.getKeyValueCacheTtlMillis(),
+                1000);
+        assertEquals("Config sessionCacheMaxBytes does not match default", config.getSessionCacheMaxBytes(), 0);
+        assertEquals("Config pastTokensFilterMaxBytes does not match default", config.getPastTokensFilterMaxBytes(), 0);
+        assertEquals("Config pastTokensFilterFalsePositiveRate does not match default",
+                config.getPastTokensFilterFalsePositiveRate(), 0.01, 0);
+        assertEquals("Config rowCountsTable does not match default", config.getRowCountsTable(), "row_counts");
+        assertFalse("Config recountRowsOnStartup does not match default", config.isRecountRowsOnStartup());
+        assertEquals("Config expiredSessionsDeleteChunkSize does not match default",
+                config.getExpiredSessionsDeleteChunkSize(), 1000);
+        assertEquals("Config expiredSessionsDeleteTimeBudgetMillis does not match default",
+                config.getExpiredSessionsDeleteTimeBudgetMillis(), 0);
+        assertEquals("Config expiredSessionsDeleteRowBudget does not match default",
+                config.getExpiredSessionsDeleteRowBudget(), 0);
+        assertEquals("Config pastTokensCleanupBatchSize does not match default",
+                config.getPastTokensCleanupBatchSize(), 1000);
+        assertEquals("Config pastTokensPartitionPeriod does not match default",
+                config.getPastTokensPartitionPeriod(), "NONE");
+        assertEquals("Config numberOfShards does not match default", config.getNumberOfShards(), 1);
+        assertFalse("Config separateTableFiles does not match default", config.isSeparateTableFilesEnabled());
+        assertEquals("Config pastTokensSynchronous does not match default", config.getPastTokensSynchronous(),
+                "NORMAL");
+        assertNull("Config backupLocation does not match default", config.getBackupLocation());
+        assertEquals("Config backupIntervalMinutes does not match default", config.getBackupIntervalMinutes(), 0);
+        assertEquals("Config backupPagesPerStep does not match default", config.getBackupPagesPerStep(), 1000);
+        assertEquals("Config backupStepSleepMillis does not match default", config.getBackupStepSleepMillis(), 10);
+        assertEquals("Config importTransactionSize does not match default", config.getImportTransactionSize(), 50000);
+        assertTrue("Config importDeferIndexes does not match default", config.isImportDeferIndexesEnabled());
+        assertEquals("Config walCheckpointIntervalMillis does not match default",
+                config.getWalCheckpointIntervalMillis(), 1000);
+        assertEquals("Config walTruncateSizeBytes does not match default", config.getWalTruncateSizeBytes(),
+                64 * 1024 * 1024);
+        assertFalse("Config inMemory does not match default", config.isInMemoryEnabled());
+        assertEquals("Config inMemoryFlushIntervalSeconds does not match default",
+                config.getInMemoryFlushIntervalSeconds(), 60);
+        assertFalse("Config integerLastUpdatedSign does not match default",
+                config.isIntegerLastUpdatedSignEnabled());
+        assertFalse("Config metricsEnabled does not match default", config.isMetricsEnabled());
+        assertEquals("Config metricsLogIntervalSeconds does not match default",
+                config.getMetricsLogIntervalSeconds(), 60);
+        assertEquals("Config connectionTimeoutMillis does not match default",
+                config.getConnectionTimeoutMillis(), 30000);
+        assertEquals("Config maxLifetimeMillis does not match default", config.getMaxLifetimeMillis(), 1800000);
+        assertEquals("Config idleTimeoutMillis does not match default", config.getIdleTimeoutMillis(), 600000);
+        assertFalse("Config slowQueryLogEnabled does not match default", config.isSlowQueryLogEnabled());
+        assertEquals("Config slowQueryThresholdMillis does not match default",
+                config.getSlowQueryThresholdMillis(), 100);
+        assertEquals("Config slowQuerySampleRate does not match default", config.getSlowQuerySampleRate(), 1, 0);
+        assertEquals("Config slowQueryMaxLogsPerMinute does not match default",
+                config.getSlowQueryMaxLogsPerMinute(), 60);
+        assertNull("Config slowQueryLogPath does not match default", config.getSlowQueryLogPath());
     }
 
 }
@@ -0,0 +1,90 @@
+/*
+ *    Copyright (c) 2020, VRAI Labs and/or its affiliates. All rights reserved.
+ *
+ *    This software is licensed under the Apache License, Version 2.0 (the
+ *    "License") as published by the Apache Software Foundation.
+ *
+ *    You may not use this file except in compliance with the License. You may
+ *    obtain a copy of the License at http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *    Unless required by applicable law or agreed to in writing, software
+ *    distributed under the License is distributed on an "AS IS" BASIS, WITHOUT
+ *    WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied. See the
+ *    License for the specific language governing permissions and limitations
+ *    under the License.
+ *
+ */
+
+package io.supertokens.storage.sqlite.test;
+
+import com.google.gson.JsonObject;
+import io.supertokens.ProcessState;
+import io.supertokens.storage.sqlite.ExpiredSessionReaper;
+import io.supertokens.storage.sqlite.Start;
+import io.supertokens.storageLayer.StorageLayer;
+import org.junit.AfterClass;
+import org.junit.Before;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TestRule;
+
+import static org.junit.Assert.*;
+
+public class ExpiredSessionReaperTest {
+
+    @Rule
+    public TestRule watchman = Utils.getOnFailure();
+
+    @AfterClass
+    public static void afterTesting() {
+        Utils.afterTesting();
+    }
+
+    @Before
+    public void beforeEach() {
+        Utils.reset();
+    }
+
+    @Test
+    public void expiredSessionsAreDeletedInChunksWithinTheRowBudget() throws Exception {
+        String[] args = {"../"};
+
+        Utils.setValueInConfig("sqlite_expired_sessions_delete_chunk_size", "10");
+        Utils.setValueInConfig("sqlite_expired_sessions_delete_row_budget", "25");
+
+        TestingProcessManager.TestingProcess process = TestingProcessManager.start(args);
+        assertNotNull(process.checkOrWaitForEvent(ProcessState.PROCESS_STATE.STARTED));
+
+        Start storage = (Start) StorageLayer.getStorageLayer(process.getProcess());
+        JsonObject data = new JsonObject();
+        for (int i = 0; i < 40; i++) {
+            storage.createNewSession("expired" + i, "userId", "refresh" + i, data, System.currentTimeMillis() - 1000,
+                    data, System.currentTimeMillis());
+        }
+        for (int i = 0; i < 5; i++) {
+            storage.createNewSession("handle" + i, "userId", "refresh" + i, data, System.currentTimeMillis() + 100000,
+                    data, System.currentTimeMillis());
+        }
+
+        ExpiredSessionReaper reaper = ExpiredSessionReaper.getInstance(storage);
+
+        // stops at the row budget, with a smaller last chunk
+        storage.deleteAllExpiredSessions();
+        assertEquals(storage.getNumberOfSessions(), 20);
+        assertEquals(reaper.getRowsDeletedCount(), 25);
+        assertEquals(reaper.getChunkCount(), 3);
+        assertEquals(reaper.getRunsStoppedByBudgetCount(), 1);
+
+        // the next run deletes the rest
+        storage.deleteAllExpiredSessions();
+        assertEquals(storage.getNumberOfSessions(), 5);
+        assertEquals(reaper.getRowsDeletedCount(), 40);
+        assertEquals(reaper.getRunCount(), 2);
+        assertEquals(reaper.getRunsStoppedByBudgetCount(), 1);
+        assertTrue(reaper.getMaxChunkNanos() > 0);
+        assertNotNull(storage.getSession("handle0"));
+
+        process.kill();
+        assertNotNull(process.checkOrWaitForEvent(ProcessState.PROCESS_STATE.STOPPED));
+    }
+}
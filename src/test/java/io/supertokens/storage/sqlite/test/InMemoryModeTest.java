@@ -0,0 +1,121 @@
+/*
+ *    Copyright (c) 2020, VRAI Labs and/or its affiliates. All rights reserved.
+ *
+ *    This software is licensed under the Apache License, Version 2.0 (the
+ *    "License") as published by the Apache Software Foundation.
+ *
+ *    You may not use this file except in compliance with the License. You may
+ *    obtain a copy of the License at http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *    Unless required by applicable law or agreed to in writing, software
+ *    distributed under the License is distributed on an "AS IS" BASIS, WITHOUT
+ *    WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied. See the
+ *    License for the specific language governing permissions and limitations
+ *    under the License.
+ *
+ */
+
+package io.supertokens.storage.sqlite.test;
+
+import com.google.gson.JsonObject;
+import io.supertokens.ProcessState;
+import io.supertokens.pluginInterface.tokenInfo.PastTokenInfo;
+import io.supertokens.storage.sqlite.InMemorySnapshots;
+import io.supertokens.storage.sqlite.Start;
+import io.supertokens.storage.sqlite.config.Config;
+import io.supertokens.storageLayer.StorageLayer;
+import org.junit.AfterClass;
+import org.junit.Before;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TestRule;
+
+import java.io.File;
+
+import static org.junit.Assert.*;
+
+public class InMemoryModeTest {
+
+    @Rule
+    public TestRule watchman = Utils.getOnFailure();
+
+    @AfterClass
+    public static void afterTesting() {
+        Utils.afterTesting();
+    }
+
+    @Before
+    public void beforeEach() {
+        Utils.reset();
+    }
+
+    @Test
+    public void sessionsAreWrittenToDiskAndLoadedAgain() throws Exception {
+        String[] args = {"../"};
+
+        Utils.setValueInConfig("sqlite_in_memory", "true");
+        Utils.setValueInConfig("sqlite_in_memory_flush_interval_seconds", "0");
+
+        TestingProcessManager.TestingProcess process = TestingProcessManager.start(args);
+        assertNotNull(process.checkOrWaitForEvent(ProcessState.PROCESS_STATE.STARTED));
+
+        Start storage = (Start) StorageLayer.getStorageLayer(process.getProcess());
+        InMemorySnapshots snapshots = InMemorySnapshots.getInstance(storage);
+        assertNotNull(snapshots);
+        File databaseFile = new File(
+                io.supertokens.storage.sqlite.utils.Utils.getDatabasePath(Config.getConfig(storage)));
+        JsonObject data = new JsonObject();
+        for (int i = 0; i < 10; i++) {
+            storage.createNewSession("handle" + i, "userId", "refresh" + i, data,
+                    System.currentTimeMillis() + 100000, data, System.currentTimeMillis());
+        }
+        InMemorySnapshots.flush(storage);
+        assertTrue(databaseFile.exists());
+        assertEquals(snapshots.getSnapshotCount(), 1);
+        assertEquals(snapshots.getFailedSnapshotCount(), 0);
+        assertTrue(snapshots.getLastWriterStallMillis() <= snapshots.getLastSnapshotDurationMillis());
+        assertEquals(snapshots.getMaxWriterStallMillis(), snapshots.getLastWriterStallMillis());
+
+        // written at close
+        storage.insertPastToken(new PastTokenInfo("token", "handle0", "refresh0", 0));
+
+        process.kill();
+        assertNotNull(process.checkOrWaitForEvent(ProcessState.PROCESS_STATE.STOPPED));
+
+        process = TestingProcessManager.start(args);
+        assertNotNull(process.checkOrWaitForEvent(ProcessState.PROCESS_STATE.STARTED));
+
+        storage = (Start) StorageLayer.getStorageLayer(process.getProcess());
+        assertEquals(storage.getNumberOfSessions(), 10);
+        assertEquals(storage.getPastTokenInfo("token").sessionHandle, "handle0");
+
+        process.kill();
+        assertNotNull(process.checkOrWaitForEvent(ProcessState.PROCESS_STATE.STOPPED));
+    }
+
+    @Test
+    public void snapshotsAreWrittenOnTheInterval() throws Exception {
+        String[] args = {"../"};
+
+        Utils.setValueInConfig("sqlite_in_memory", "true");
+        Utils.setValueInConfig("sqlite_in_memory_flush_interval_seconds", "1");
+
+        TestingProcessManager.TestingProcess process = TestingProcessManager.start(args);
+        assertNotNull(process.checkOrWaitForEvent(ProcessState.PROCESS_STATE.STARTED));
+
+        Start storage = (Start) StorageLayer.getStorageLayer(process.getProcess());
+        InMemorySnapshots snapshots = InMemorySnapshots.getInstance(storage);
+        storage.createNewSession("handle", "userId", "refresh", new JsonObject(),
+                System.currentTimeMillis() + 100000, new JsonObject(), System.currentTimeMillis());
+
+        long deadline = System.currentTimeMillis() + 10000;
+        while (snapshots.getSnapshotCount() == 0) {
+            assertTrue(System.currentTimeMillis() < deadline);
+            Thread.sleep(100);
+        }
+        assertTrue(snapshots.getLastSnapshotTime() > 0);
+
+        process.kill();
+        assertNotNull(process.checkOrWaitForEvent(ProcessState.PROCESS_STATE.STOPPED));
+    }
+}
@@ -0,0 +1,149 @@
+/*
+ *    Copyright (c) 2020, VRAI Labs and/or its affiliates. All rights reserved.
+ *
+ *    This software is licensed under the Apache License, Version 2.0 (the
+ *    "License") as published by the Apache Software Foundation.
+ *
+ *    You may not use this file except in compliance with the License. You may
+ *    obtain a copy of the License at http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *    Unless required by applicable law or agreed to in writing, software
+ *    distributed under the License is distributed on an "AS IS" BASIS, WITHOUT
+ *    WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied. See the
+ *    License for the specific language governing permissions and limitations
+ *    under the License.
+ *
+ */
+
+package io.supertokens.storage.sqlite.test;
+
+import io.supertokens.ProcessState;
+import io.supertokens.pluginInterface.KeyValueInfo;
+import io.supertokens.pluginInterface.KeyValueInfoWithLastUpdated;
+import io.supertokens.storage.sqlite.KeyValueCache;
+import io.supertokens.storage.sqlite.Start;
+import io.supertokens.storage.sqlite.config.Config;
+import io.supertokens.storageLayer.StorageLayer;
+import org.junit.AfterClass;
+import org.junit.Before;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TestRule;
+
+import java.sql.Connection;
+import java.sql.DriverManager;
+import java.sql.Statement;
+
+import static org.junit.Assert.*;
+
+public class KeyValueCacheTest {
+
+    @Rule
+    public TestRule watchman = Utils.getOnFailure();
+
+    @AfterClass
+    public static void afterTesting() {
+        Utils.afterTesting();
+    }
+
+    @Before
+    public void beforeEach() {
+        Utils.reset();
+    }
+
+    @Test
+    public void readsAreServedFromCacheAndWritesAreSeenRightAway() throws Exception {
+        String[] args = {"../"};
+
+        Utils.setValueInConfig("sqlite_key_value_cache_ttl_millis", "60000");
+
+        TestingProcessManager.TestingProcess process = TestingProcessManager.start(args);
+        assertNotNull(process.checkOrWaitForEvent(ProcessState.PROCESS_STATE.STARTED));
+
+        Start storage = (Start) StorageLayer.getStorageLayer(process.getProcess());
+        KeyValueCache cache = KeyValueCache.getInstance(storage);
+
+        storage.setKeyValue("key", new KeyValueInfo("value1", 1));
+        long hitsBefore = cache.getHitCount();
+        assertEquals(storage.getKeyValue("key").value, "value1");
+        for (int i = 0; i < 10; i++) {
+            assertEquals(storage.getKeyValue("key").value, "value1");
+        }
+        assertEquals(cache.getHitCount() - hitsBefore, 10);
+
+        storage.setKeyValue("key", new KeyValueInfo("value2", 2));
+        assertEquals(storage.getKeyValue("key").value, "value2");
+
+        KeyValueInfoWithLastUpdated info = storage.getKeyValue_Transaction("key");
+        assertTrue(storage.setKeyValue_Transaction("key",
+                new KeyValueInfoWithLastUpdated("value3", 3, info.lastUpdatedSign)));
+        KeyValueInfoWithLastUpdated newInfo = storage.getKeyValue_Transaction("key");
+        assertEquals(newInfo.value, "value3");
+        assertNotEquals(newInfo.lastUpdatedSign, info.lastUpdatedSign);
+
+        // a stale sign must still be rejected by the database
+        assertFalse(storage.setKeyValue_Transaction("key",
+                new KeyValueInfoWithLastUpdated("value4", 4, info.lastUpdatedSign)));
+        assertEquals(storage.getKeyValue_Transaction("key").value, "value3");
+
+        assertTrue(cache.getHitRatio() > 0);
+
+        process.kill();
+        assertNotNull(process.checkOrWaitForEvent(ProcessState.PROCESS_STATE.STOPPED));
+    }
+
+    @Test
+    public void zeroTtlDisablesTheCache() throws Exception {
+        String[] args = {"../"};
+
+        Utils.setValueInConfig("sqlite_key_value_cache_ttl_millis", "0");
+
+        TestingProcessManager.TestingProcess process = TestingProcessManager.start(args);
+        assertNotNull(process.checkOrWaitForEvent(ProcessState.PROCESS_STATE.STARTED));
+
+        Start storage = (Start) StorageLayer.getStorageLayer(process.getProcess());
+        storage.setKeyValue("key", new KeyValueInfo("value", 1));
+        for (int i = 0; i < 10; i++) {
+            assertEquals(storage.getKeyValue("key").value, "value");
+        }
+        assertEquals(KeyValueCache.getInstance(storage).getHitCount(), 0);
+
+        process.kill();
+        assertNotNull(process.checkOrWaitForEvent(ProcessState.PROCESS_STATE.STOPPED));
+    }
+
+    @Test
+    public void transactionReadsSeeWritesFromAnotherConnection() throws Exception {
+        String[] args = {"../"};
+
+        Utils.setValueInConfig("sqlite_key_value_cache_ttl_millis", "60000");
+
+        TestingProcessManager.TestingProcess process = TestingProcessManager.start(args);
+        assertNotNull(process.checkOrWaitForEvent(ProcessState.PROCESS_STATE.STARTED));
+
+        Start storage = (Start) StorageLayer.getStorageLayer(process.getProcess());
+        storage.setKeyValue("key", new KeyValueInfo("value1", 1));
+        KeyValueInfoWithLastUpdated info = storage.getKeyValue_Transaction("key");
+        assertEquals(storage.getKeyValue("key").value, "value1");
+
+        // stands in for another process that uses the same database file
+        String databasePath = io.supertokens.storage.sqlite.utils.Utils.getDatabasePath(Config.getConfig(storage));
+        try (Connection con = DriverManager.getConnection("jdbc:sqlite:" + databasePath);
+             Statement stmt = con.createStatement()) {
+            stmt.executeUpdate("UPDATE " + Config.getConfig(storage).getKeyValueTable()
+                    + " SET value = 'value2', last_updated_sign = 'other' WHERE name = 'key'");
+        }
+
+        // the plain read may still be served from the cache, but the read the core compares and sets against is not
+        KeyValueInfoWithLastUpdated newInfo = storage.getKeyValue_Transaction("key");
+        assertEquals(newInfo.value, "value2");
+        assertEquals(newInfo.lastUpdatedSign, "other");
+        assertFalse(storage.setKeyValue_Transaction("key",
+                new KeyValueInfoWithLastUpdated("value3", 3, info.lastUpdatedSign)));
+        assertTrue(storage.setKeyValue_Transaction("key",
+                new KeyValueInfoWithLastUpdated("value3", 3, newInfo.lastUpdatedSign)));
+
+        process.kill();
+        assertNotNull(process.checkOrWaitForEvent(ProcessState.PROCESS_STATE.STOPPED));
+    }
+}
@@ -0,0 +1,117 @@
+/*
+ *    Copyright (c) 2020, VRAI Labs and/or its affiliates. All rights reserved.
+ *
+ *    This software is licensed under the Apache License, Version 2.0 (the
+ *    "License") as published by the Apache Software Foundation.
+ *
+ *    You may not use this file except in compliance with the License. You may
+ *    obtain a copy of the License at http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *    Unless required by applicable law or agreed to in writing, software
+ *    distributed under the License is distributed on an "AS IS" BASIS, WITHOUT
+ *    WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied. See the
+ *    License for the specific language governing permissions and limitations
+ *    under the License.
+ *
+ */
+
+package io.supertokens.storage.sqlite.test;
+
+import com.google.gson.JsonObject;
+import io.supertokens.ProcessState;
+import io.supertokens.pluginInterface.KeyValueInfo;
+import io.supertokens.pluginInterface.KeyValueInfoWithLastUpdated;
+import io.supertokens.storage.sqlite.Start;
+import io.supertokens.storageLayer.StorageLayer;
+import org.junit.AfterClass;
+import org.junit.Before;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TestRule;
+
+import static org.junit.Assert.*;
+
+public class LastUpdatedSignTest {
+
+    @Rule
+    public TestRule watchman = Utils.getOnFailure();
+
+    @AfterClass
+    public static void afterTesting() {
+        Utils.afterTesting();
+    }
+
+    @Before
+    public void beforeEach() {
+        Utils.reset();
+    }
+
+    @Test
+    public void integerSignsAreVersions() throws Exception {
+        String[] args = {"../"};
+
+        Utils.setValueInConfig("sqlite_integer_last_updated_sign", "true");
+
+        TestingProcessManager.TestingProcess process = TestingProcessManager.start(args);
+        assertNotNull(process.checkOrWaitForEvent(ProcessState.PROCESS_STATE.STARTED));
+
+        Start storage = (Start) StorageLayer.getStorageLayer(process.getProcess());
+        storage.createNewSession("handle", "userId", "refresh", new JsonObject(),
+                System.currentTimeMillis() + 100000, new JsonObject(), System.currentTimeMillis());
+        assertEquals(storage.getSessionInfo_Transaction("handle").lastUpdatedSign, "1");
+
+        assertTrue(storage.updateSessionInfo_Transaction("handle", "refresh2", System.currentTimeMillis() + 100000,
+                "1"));
+        // a second write with the same sign lost the race
+        assertFalse(storage.updateSessionInfo_Transaction("handle", "refresh3", System.currentTimeMillis() + 100000,
+                "1"));
+        assertEquals(storage.getSessionInfo_Transaction("handle").lastUpdatedSign, "2");
+        storage.updateSession("handle", new JsonObject(), null);
+        assertEquals(storage.getSessionInfo_Transaction("handle").lastUpdatedSign, "3");
+
+        assertTrue(storage.setKeyValue_Transaction("key", new KeyValueInfoWithLastUpdated("value", 1, null)));
+        assertEquals(storage.getKeyValue_Transaction("key").lastUpdatedSign, "1");
+        storage.setKeyValue("key", new KeyValueInfo("value2", 2));
+        assertEquals(storage.getKeyValue_Transaction("key").lastUpdatedSign, "2");
+        assertTrue(storage.setKeyValue_Transaction("key", new KeyValueInfoWithLastUpdated("value3", 3, "2")));
+        assertFalse(storage.setKeyValue_Transaction("key", new KeyValueInfoWithLastUpdated("value4", 4, "2")));
+        assertEquals(storage.getKeyValue_Transaction("key").value, "value3");
+
+        process.kill();
+        assertNotNull(process.checkOrWaitForEvent(ProcessState.PROCESS_STATE.STOPPED));
+    }
+
+    @Test
+    public void uuidSignsAreMigratedToVersions() throws Exception {
+        String[] args = {"../"};
+
+        TestingProcessManager.TestingProcess process = TestingProcessManager.start(args);
+        assertNotNull(process.checkOrWaitForEvent(ProcessState.PROCESS_STATE.STARTED));
+
+        Start storage = (Start) StorageLayer.getStorageLayer(process.getProcess());
+        storage.createNewSession("handle", "userId", "refresh", new JsonObject(),
+                System.currentTimeMillis() + 100000, new JsonObject(), System.currentTimeMillis());
+        storage.setKeyValue("key", new KeyValueInfo("value", 1));
+        String uuidSign = storage.getSessionInfo_Transaction("handle").lastUpdatedSign;
+        assertEquals(uuidSign.length(), 36);
+
+        process.kill();
+        assertNotNull(process.checkOrWaitForEvent(ProcessState.PROCESS_STATE.STOPPED));
+
+        Utils.setValueInConfig("sqlite_integer_last_updated_sign", "true");
+        process = TestingProcessManager.start(args);
+        assertNotNull(process.checkOrWaitForEvent(ProcessState.PROCESS_STATE.STARTED));
+
+        storage = (Start) StorageLayer.getStorageLayer(process.getProcess());
+        assertEquals(storage.getSessionInfo_Transaction("handle").lastUpdatedSign, "1");
+        assertEquals(storage.getKeyValue_Transaction("key").lastUpdatedSign, "1");
+        // the sign that was read before the migration is out of date
+        assertFalse(storage.updateSessionInfo_Transaction("handle", "refresh2", System.currentTimeMillis() + 100000,
+                uuidSign));
+        assertTrue(storage.updateSessionInfo_Transaction("handle", "refresh2", System.currentTimeMillis() + 100000,
+                "1"));
+
+        process.kill();
+        assertNotNull(process.checkOrWaitForEvent(ProcessState.PROCESS_STATE.STOPPED));
+    }
+}
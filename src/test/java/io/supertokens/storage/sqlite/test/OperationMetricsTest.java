@@ -0,0 +1,122 @@
+/*
+ *    Copyright (c) 2020, VRAI Labs and/or its affiliates. All rights reserved.
+ *
+ *    This software is licensed under the Apache License, Version 2.0 (the
+ *    "License") as published by the Apache Software Foundation.
+ *
+ *    You may not use this file except in compliance with the License. You may
+ *    obtain a copy of the License at http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *    Unless required by applicable law or agreed to in writing, software
+ *    distributed under the License is distributed on an "AS IS" BASIS, WITHOUT
+ *    WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied. See the
+ *    License for the specific language governing permissions and limitations
+ *    under the License.
+ *
+ */
+
+package io.supertokens.storage.sqlite.test;
+
+import com.google.gson.JsonObject;
+import io.supertokens.ProcessState;
+import io.supertokens.storage.sqlite.LatencyHistogram;
+import io.supertokens.storage.sqlite.OperationMetrics;
+import io.supertokens.storage.sqlite.Start;
+import io.supertokens.storageLayer.StorageLayer;
+import org.junit.AfterClass;
+import org.junit.Before;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TestRule;
+
+import static org.junit.Assert.*;
+
+public class OperationMetricsTest {
+
+    @Rule
+    public TestRule watchman = Utils.getOnFailure();
+
+    @AfterClass
+    public static void afterTesting() {
+        Utils.afterTesting();
+    }
+
+    @Before
+    public void beforeEach() {
+        Utils.reset();
+    }
+
+    @Test
+    public void histogramPercentilesAreWithinTheirBucket() {
+        LatencyHistogram histogram = new LatencyHistogram();
+        for (long nanos = 1; nanos <= 1000000; nanos++) {
+            histogram.record(nanos * 1000);
+        }
+        LatencyHistogram.Snapshot snapshot = histogram.getSnapshot();
+        assertEquals(snapshot.getCount(), 1000000);
+        assertEquals(snapshot.getMaxNanos(), 1000000000L);
+        for (double percentile : new double[]{50, 90, 99, 99.9}) {
+            double expected = percentile * 10000000;
+            double actual = snapshot.getValueAtPercentile(percentile);
+            assertTrue(percentile + ": " + actual, Math.abs(actual - expected) <= expected * 0.04);
+        }
+
+        histogram.record(Long.MAX_VALUE);
+        LatencyHistogram.Snapshot interval = histogram.getSnapshot().since(snapshot);
+        assertEquals(interval.getCount(), 1);
+        assertTrue(interval.getValueAtPercentile(100) > 60L * 1000 * 1000 * 1000);
+    }
+
+    @Test
+    public void operationsAreMeasured() throws Exception {
+        String[] args = {"../"};
+
+        Utils.setValueInConfig("sqlite_metrics_enabled", "true");
+
+        TestingProcessManager.TestingProcess process = TestingProcessManager.start(args);
+        assertNotNull(process.checkOrWaitForEvent(ProcessState.PROCESS_STATE.STARTED));
+
+        Start storage = (Start) StorageLayer.getStorageLayer(process.getProcess());
+        OperationMetrics metrics = OperationMetrics.getInstance(storage);
+        assertNotNull(metrics);
+        OperationMetrics.OperationSnapshot before = metrics.getSnapshot().get(
+                OperationMetrics.Operation.CREATE_NEW_SESSION);
+
+        for (int i = 0; i < 10; i++) {
+            storage.createNewSession("handle" + i, "userId", "refresh" + i, new JsonObject(),
+                    System.currentTimeMillis() + 100000, new JsonObject(), System.currentTimeMillis());
+        }
+        try {
+            storage.createNewSession("handle0", "userId", "refresh0", new JsonObject(),
+                    System.currentTimeMillis() + 100000, new JsonObject(), System.currentTimeMillis());
+            fail();
+        } catch (Exception ignored) {
+            // the session handle is taken
+        }
+
+        OperationMetrics.OperationSnapshot created = metrics.getSnapshot().get(
+                OperationMetrics.Operation.CREATE_NEW_SESSION).since(before);
+        assertEquals(created.getCalls(), 11);
+        assertEquals(created.getErrors(), 1);
+        assertEquals(created.getExecute().getCount(), 11);
+        assertTrue(created.getExecute().getValueAtPercentile(50) > 0);
+        assertTrue(created.getTotal().getSumNanos() >= created.getCheckout().getSumNanos() +
+                created.getExecute().getSumNanos());
+
+        process.kill();
+        assertNotNull(process.checkOrWaitForEvent(ProcessState.PROCESS_STATE.STOPPED));
+    }
+
+    @Test
+    public void nothingIsMeasuredByDefault() throws Exception {
+        String[] args = {"../"};
+
+        TestingProcessManager.TestingProcess process = TestingProcessManager.start(args);
+        assertNotNull(process.checkOrWaitForEvent(ProcessState.PROCESS_STATE.STARTED));
+
+        assertNull(OperationMetrics.getInstance((Start) StorageLayer.getStorageLayer(process.getProcess())));
+
+        process.kill();
+        assertNotNull(process.checkOrWaitForEvent(ProcessState.PROCESS_STATE.STOPPED));
+    }
+}
@@ -0,0 +1,107 @@
+/*
+ *    Copyright (c) 2020, VRAI Labs and/or its affiliates. All rights reserved.
+ *
+ *    This software is licensed under the Apache License, Version 2.0 (the
+ *    "License") as published by the Apache Software Foundation.
+ *
+ *    You may not use this file except in compliance with the License. You may
+ *    obtain a copy of the License at http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *    Unless required by applicable law or agreed to in writing, software
+ *    distributed under the License is distributed on an "AS IS" BASIS, WITHOUT
+ *    WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied. See the
+ *    License for the specific language governing permissions and limitations
+ *    under the License.
+ *
+ */
+
+package io.supertokens.storage.sqlite.test;
+
+import io.supertokens.ProcessState;
+import io.supertokens.pluginInterface.tokenInfo.PastTokenInfo;
+import io.supertokens.storage.sqlite.PastTokenFilter;
+import io.supertokens.storage.sqlite.Start;
+import io.supertokens.storageLayer.StorageLayer;
+import org.junit.AfterClass;
+import org.junit.Before;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TestRule;
+
+import static org.junit.Assert.*;
+
+public class PastTokenFilterTest {
+
+    @Rule
+    public TestRule watchman = Utils.getOnFailure();
+
+    @AfterClass
+    public static void afterTesting() {
+        Utils.afterTesting();
+    }
+
+    @Before
+    public void beforeEach() {
+        Utils.reset();
+    }
+
+    @Test
+    public void unknownTokensSkipTheDatabaseAndKnownOnesAreAlwaysFound() throws Exception {
+        String[] args = {"../"};
+
+        Utils.setValueInConfig("sqlite_past_tokens_filter_max_bytes", "8388608");
+
+        TestingProcessManager.TestingProcess process = TestingProcessManager.start(args);
+        assertNotNull(process.checkOrWaitForEvent(ProcessState.PROCESS_STATE.STARTED));
+
+        Start storage = (Start) StorageLayer.getStorageLayer(process.getProcess());
+        for (int i = 0; i < 100; i++) {
+            storage.insertPastToken(new PastTokenInfo("token" + i, "handle", "parent" + i,
+                    System.currentTimeMillis()));
+        }
+
+        PastTokenFilter filter = PastTokenFilter.getInstance(storage);
+        for (int i = 0; i < 1000; i++) {
+            assertNull(storage.getPastTokenInfo("unknown" + i));
+        }
+        assertTrue(filter.getSkipCount() > 900);
+
+        // nothing is deleted, so the filter is not rebuilt, and it must still have all the tokens
+        storage.deletePastOrphanedTokens(System.currentTimeMillis() - 100000);
+        for (int i = 0; i < 100; i++) {
+            assertEquals(storage.getPastTokenInfo("token" + i).parentRefreshTokenHash2, "parent" + i);
+        }
+
+        process.kill();
+        assertNotNull(process.checkOrWaitForEvent(ProcessState.PROCESS_STATE.STOPPED));
+
+        // the filter is built from the table when the storage starts again
+        process = TestingProcessManager.start(args);
+        assertNotNull(process.checkOrWaitForEvent(ProcessState.PROCESS_STATE.STARTED));
+
+        storage = (Start) StorageLayer.getStorageLayer(process.getProcess());
+        for (int i = 0; i < 100; i++) {
+            assertNotNull(storage.getPastTokenInfo("token" + i));
+        }
+
+        process.kill();
+        assertNotNull(process.checkOrWaitForEvent(ProcessState.PROCESS_STATE.STOPPED));
+    }
+
+    @Test
+    public void theFilterIsOffByDefault() throws Exception {
+        String[] args = {"../"};
+
+        TestingProcessManager.TestingProcess process = TestingProcessManager.start(args);
+        assertNotNull(process.checkOrWaitForEvent(ProcessState.PROCESS_STATE.STARTED));
+
+        Start storage = (Start) StorageLayer.getStorageLayer(process.getProcess());
+        assertNull(storage.getPastTokenInfo("unknown"));
+        PastTokenFilter filter = PastTokenFilter.getInstance(storage);
+        assertEquals(filter.getSizeInBytes(), 0);
+        assertEquals(filter.getLookupCount(), 0);
+
+        process.kill();
+        assertNotNull(process.checkOrWaitForEvent(ProcessState.PROCESS_STATE.STOPPED));
+    }
+}
@@ -0,0 +1,92 @@
+/*
+ *    Copyright (c) 2020, VRAI Labs and/or its affiliates. All rights reserved.
+ *
+ *    This software is licensed under the Apache License, Version 2.0 (the
+ *    "License") as published by the Apache Software Foundation.
+ *
+ *    You may not use this file except in compliance with the License. You may
+ *    obtain a copy of the License at http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *    Unless required by applicable law or agreed to in writing, software
+ *    distributed under the License is distributed on an "AS IS" BASIS, WITHOUT
+ *    WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied. See the
+ *    License for the specific language governing permissions and limitations
+ *    under the License.
+ *
+ */
+
+package io.supertokens.storage.sqlite.test;
+
+import com.google.gson.JsonObject;
+import io.supertokens.ProcessState;
+import io.supertokens.pluginInterface.tokenInfo.PastTokenInfo;
+import io.supertokens.storage.sqlite.PastTokenPartitions;
+import io.supertokens.storage.sqlite.RowCounts;
+import io.supertokens.storage.sqlite.Start;
+import io.supertokens.storageLayer.StorageLayer;
+import org.junit.AfterClass;
+import org.junit.Before;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TestRule;
+
+import static org.junit.Assert.*;
+
+public class PastTokenPartitionsTest {
+
+    @Rule
+    public TestRule watchman = Utils.getOnFailure();
+
+    @AfterClass
+    public static void afterTesting() {
+        Utils.afterTesting();
+    }
+
+    @Before
+    public void beforeEach() {
+        Utils.reset();
+    }
+
+    @Test
+    public void expiredPartitionsAreDroppedAndLiveTokensKept() throws Exception {
+        String[] args = {"../"};
+
+        Utils.setValueInConfig("sqlite_past_tokens_partition_period", "day");
+
+        TestingProcessManager.TestingProcess process = TestingProcessManager.start(args);
+        assertNotNull(process.checkOrWaitForEvent(ProcessState.PROCESS_STATE.STARTED));
+
+        Start storage = (Start) StorageLayer.getStorageLayer(process.getProcess());
+        long day = 24 * 60 * 60 * 1000;
+        long now = System.currentTimeMillis();
+        for (int i = 0; i < 5; i++) {
+            for (int j = 0; j < 10; j++) {
+                storage.insertPastToken(new PastTokenInfo("token" + i + "_" + j, "handle", "parent" + i + "_" + j,
+                        now - i * day));
+            }
+        }
+        JsonObject data = new JsonObject();
+        storage.createNewSession("handle", "userId", "token4_0", data, now + 100000, data, now);
+
+        PastTokenPartitions partitions = PastTokenPartitions.getInstance(storage);
+        assertEquals(partitions.getPartitionCount(), 5);
+        assertEquals(storage.getNumberOfPastTokens(), 50);
+        assertNotNull(storage.getPastTokenInfo("token4_9"));
+        assertEquals(partitions.getIndexedLookupCount(), 1);
+
+        storage.deletePastOrphanedTokens(now - 2 * day);
+        assertEquals(partitions.getPartitionCount(), 3);
+        assertEquals(partitions.getDroppedPartitionCount(), 2);
+        assertEquals(partitions.getDroppedTokenCount(), 19);
+        assertEquals(storage.getNumberOfPastTokens(), 31);
+        assertNotNull(storage.getPastTokenInfo("token4_0"));
+        assertNull(storage.getPastTokenInfo("token4_1"));
+        assertNotNull(storage.getPastTokenInfo("token2_0"));
+        // token4_0 was copied out of its dropped partition, so it was not looked up there
+        assertEquals(partitions.getIndexedLookupCount(), 2);
+        assertEquals(RowCounts.recount(storage), 0);
+
+        process.kill();
+        assertNotNull(process.checkOrWaitForEvent(ProcessState.PROCESS_STATE.STOPPED));
+    }
+}
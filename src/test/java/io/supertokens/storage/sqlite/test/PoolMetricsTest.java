@@ -0,0 +1,93 @@
+/*
+ *    Copyright (c) 2020, VRAI Labs and/or its affiliates. All rights reserved.
+ *
+ *    This software is licensed under the Apache License, Version 2.0 (the
+ *    "License") as published by the Apache Software Foundation.
+ *
+ *    You may not use this file except in compliance with the License. You may
+ *    obtain a copy of the License at http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *    Unless required by applicable law or agreed to in writing, software
+ *    distributed under the License is distributed on an "AS IS" BASIS, WITHOUT
+ *    WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied. See the
+ *    License for the specific language governing permissions and limitations
+ *    under the License.
+ *
+ */
+
+package io.supertokens.storage.sqlite.test;
+
+import io.supertokens.ProcessState;
+import io.supertokens.storage.sqlite.PoolMetrics;
+import io.supertokens.storage.sqlite.Start;
+import io.supertokens.storageLayer.StorageLayer;
+import org.junit.AfterClass;
+import org.junit.Before;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TestRule;
+
+import java.util.Map;
+
+import static org.junit.Assert.*;
+
+public class PoolMetricsTest {
+
+    @Rule
+    public TestRule watchman = Utils.getOnFailure();
+
+    @AfterClass
+    public static void afterTesting() {
+        Utils.afterTesting();
+    }
+
+    @Before
+    public void beforeEach() {
+        Utils.reset();
+    }
+
+    @Test
+    public void checkoutsOfEachPoolAreMeasured() throws Exception {
+        String[] args = {"../"};
+
+        Utils.setValueInConfig("sqlite_metrics_enabled", "true");
+        Utils.setValueInConfig("sqlite_connection_timeout_millis", "5000");
+
+        TestingProcessManager.TestingProcess process = TestingProcessManager.start(args);
+        assertNotNull(process.checkOrWaitForEvent(ProcessState.PROCESS_STATE.STARTED));
+
+        Start storage = (Start) StorageLayer.getStorageLayer(process.getProcess());
+        PoolMetrics metrics = PoolMetrics.getInstance(storage);
+        assertNotNull(metrics);
+        Map<String, PoolMetrics.PoolSnapshot> before = metrics.getSnapshot();
+        assertTrue(before.containsKey("SuperTokens-read"));
+        assertTrue(before.containsKey("SuperTokens-write"));
+
+        for (int i = 0; i < 10; i++) {
+            storage.getNumberOfSessions();
+        }
+
+        PoolMetrics.PoolSnapshot read = metrics.getSnapshot().get("SuperTokens-read").since(
+                before.get("SuperTokens-read"));
+        assertEquals(read.getAcquired().getCount(), 10);
+        assertEquals(read.getUsage().getCount(), 10);
+        assertEquals(read.getTimeouts(), 0);
+        assertTrue(read.getTotalConnections() > 0);
+
+        process.kill();
+        assertNotNull(process.checkOrWaitForEvent(ProcessState.PROCESS_STATE.STOPPED));
+    }
+
+    @Test
+    public void nothingIsMeasuredByDefault() throws Exception {
+        String[] args = {"../"};
+
+        TestingProcessManager.TestingProcess process = TestingProcessManager.start(args);
+        assertNotNull(process.checkOrWaitForEvent(ProcessState.PROCESS_STATE.STARTED));
+
+        assertNull(PoolMetrics.getInstance((Start) StorageLayer.getStorageLayer(process.getProcess())));
+
+        process.kill();
+        assertNotNull(process.checkOrWaitForEvent(ProcessState.PROCESS_STATE.STOPPED));
+    }
+}
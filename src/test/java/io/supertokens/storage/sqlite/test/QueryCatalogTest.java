@@ -0,0 +1,114 @@
+/*
+ *    Copyright (c) 2020, VRAI Labs and/or its affiliates. All rights reserved.
+ *
+ *    This software is licensed under the Apache License, Version 2.0 (the
+ *    "License") as published by the Apache Software Foundation.
+ *
+ *    You may not use this file except in compliance with the License. You may
+ *    obtain a copy of the License at http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *    Unless required by applicable law or agreed to in writing, software
+ *    distributed under the License is distributed on an "AS IS" BASIS, WITHOUT
+ *    WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied. See the
+ *    License for the specific language governing permissions and limitations
+ *    under the License.
+ *
+ */
+
+package io.supertokens.storage.sqlite.test;
+
+import com.google.gson.JsonObject;
+import io.supertokens.ProcessState;
+import io.supertokens.pluginInterface.noSqlStorage.NoSQLStorage_1;
+import io.supertokens.pluginInterface.sqlStorage.SQLStorage;
+import io.supertokens.storageLayer.StorageLayer;
+import org.junit.AfterClass;
+import org.junit.Before;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TestRule;
+
+import static org.junit.Assert.*;
+
+public class QueryCatalogTest {
+
+    @Rule
+    public TestRule watchman = Utils.getOnFailure();
+
+    @AfterClass
+    public static void afterTesting() {
+        Utils.afterTesting();
+    }
+
+    @Before
+    public void beforeEach() {
+        Utils.reset();
+    }
+
+    @Test
+    public void deleteSessionWithAnyNumberOfHandles() throws Exception {
+        String[] args = {"../"};
+
+        TestingProcessManager.TestingProcess process = TestingProcessManager.start(args);
+        assertNotNull(process.checkOrWaitForEvent(ProcessState.PROCESS_STATE.STARTED));
+
+        NoSQLStorage_1 storage = (NoSQLStorage_1) StorageLayer.getStorageLayer(process.getProcess());
+        JsonObject data = new JsonObject();
+        for (int i = 0; i < 400; i++) {
+            storage.createNewSession("handle" + i, "userId", "refresh" + i, data,
+                    System.currentTimeMillis() + 100000, data, System.currentTimeMillis());
+        }
+
+        // does not fill an IN list exactly, and has a duplicate and an unknown handle
+        assertEquals(storage.deleteSession(new String[]{"handle0", "handle1", "handle1", "unknown", "handle2"}), 3);
+
+        // needs more than one chunk
+        String[] handles = new String[300];
+        for (int i = 0; i < handles.length; i++) {
+            handles[i] = "handle" + (i + 3);
+        }
+        assertEquals(storage.deleteSession(handles), 300);
+        assertEquals(storage.getNumberOfSessions(), 97);
+        assertNotNull(storage.getSession("handle303"));
+        assertNull(storage.getSession("handle302"));
+
+        process.kill();
+        assertNotNull(process.checkOrWaitForEvent(ProcessState.PROCESS_STATE.STOPPED));
+    }
+
+    @Test
+    public void updateSessionWithEachCombinationOfColumns() throws Exception {
+        String[] args = {"../"};
+
+        TestingProcessManager.TestingProcess process = TestingProcessManager.start(args);
+        assertNotNull(process.checkOrWaitForEvent(ProcessState.PROCESS_STATE.STARTED));
+
+        NoSQLStorage_1 storage = (NoSQLStorage_1) StorageLayer.getStorageLayer(process.getProcess());
+        JsonObject empty = new JsonObject();
+        storage.createNewSession("handle", "userId", "refresh", empty, System.currentTimeMillis() + 100000, empty,
+                System.currentTimeMillis());
+
+        JsonObject sessionData = new JsonObject();
+        sessionData.addProperty("session", "data");
+        JsonObject jwtPayload = new JsonObject();
+        jwtPayload.addProperty("jwt", "payload");
+
+        assertEquals(storage.updateSession("handle", sessionData, null), 1);
+        SQLStorage.SessionInfo info = storage.getSession("handle");
+        assertEquals(info.userDataInDatabase, sessionData);
+        assertEquals(info.userDataInJWT, empty);
+
+        assertEquals(storage.updateSession("handle", null, jwtPayload), 1);
+        info = storage.getSession("handle");
+        assertEquals(info.userDataInDatabase, sessionData);
+        assertEquals(info.userDataInJWT, jwtPayload);
+
+        assertEquals(storage.updateSession("handle", empty, empty), 1);
+        info = storage.getSession("handle");
+        assertEquals(info.userDataInDatabase, empty);
+        assertEquals(info.userDataInJWT, empty);
+
+        process.kill();
+        assertNotNull(process.checkOrWaitForEvent(ProcessState.PROCESS_STATE.STOPPED));
+    }
+}
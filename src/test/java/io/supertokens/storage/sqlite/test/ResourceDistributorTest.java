@@ -0,0 +1,100 @@
+/*
+ *    Copyright (c) 2020, VRAI Labs and/or its affiliates. All rights reserved.
+ *
+ *    This software is licensed under the Apache License, Version 2.0 (the
+ *    "License") as published by the Apache Software Foundation.
+ *
+ *    You may not use this file except in compliance with the License. You may
+ *    obtain a copy of the License at http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *    Unless required by applicable law or agreed to in writing, software
+ *    distributed under the License is distributed on an "AS IS" BASIS, WITHOUT
+ *    WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied. See the
+ *    License for the specific language governing permissions and limitations
+ *    under the License.
+ *
+ */
+
+package io.supertokens.storage.sqlite.test;
+
+import io.supertokens.storage.sqlite.ResourceDistributor;
+import org.junit.AfterClass;
+import org.junit.Before;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TestRule;
+
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.TimeUnit;
+
+import static org.junit.Assert.*;
+
+public class ResourceDistributorTest {
+
+    private static final ResourceDistributor.Key<TestResource> KEY = ResourceDistributor.newKey(TestResource.class);
+    private static final ResourceDistributor.Key<TestResource> OTHER_KEY =
+            ResourceDistributor.newKey(TestResource.class);
+
+    @Rule
+    public TestRule watchman = Utils.getOnFailure();
+
+    @AfterClass
+    public static void afterTesting() {
+        Utils.afterTesting();
+    }
+
+    @Before
+    public void beforeEach() {
+        Utils.reset();
+    }
+
+    @Test
+    public void firstResourceThatIsSetIsKept() {
+        ResourceDistributor distributor = new ResourceDistributor();
+        assertNull(distributor.getResource(KEY));
+
+        TestResource first = new TestResource();
+        assertSame(first, distributor.setResource(KEY, first));
+        assertSame(first, distributor.setResource(KEY, new TestResource()));
+        assertSame(first, distributor.getResource(KEY));
+
+        // keys and distributors do not share resources
+        assertNull(distributor.getResource(OTHER_KEY));
+        assertNull(new ResourceDistributor().getResource(KEY));
+    }
+
+    @Test
+    public void racingThreadsAllGetTheSameResource() throws Exception {
+        int numberOfThreads = 8;
+        ExecutorService executor = Executors.newFixedThreadPool(numberOfThreads);
+        try {
+            for (int round = 0; round < 100; round++) {
+                ResourceDistributor distributor = new ResourceDistributor();
+                CountDownLatch go = new CountDownLatch(1);
+                @SuppressWarnings("unchecked")
+                Future<TestResource>[] results = new Future[numberOfThreads];
+                for (int thread = 0; thread < numberOfThreads; thread++) {
+                    results[thread] = executor.submit(() -> {
+                        go.await();
+                        TestResource instance = distributor.getResource(KEY);
+                        return instance != null ? instance : distributor.setResource(KEY, new TestResource());
+                    });
+                }
+                go.countDown();
+                for (Future<TestResource> result : results) {
+                    TestResource instance = result.get(10, TimeUnit.SECONDS);
+                    assertNotNull(instance);
+                    assertSame(distributor.getResource(KEY), instance);
+                }
+            }
+        } finally {
+            executor.shutdownNow();
+        }
+    }
+
+    private static class TestResource extends ResourceDistributor.SingletonResource {
+    }
+}
@@ -0,0 +1,119 @@
+/*
+ *    Copyright (c) 2020, VRAI Labs and/or its affiliates. All rights reserved.
+ *
+ *    This software is licensed under the Apache License, Version 2.0 (the
+ *    "License") as published by the Apache Software Foundation.
+ *
+ *    You may not use this file except in compliance with the License. You may
+ *    obtain a copy of the License at http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *    Unless required by applicable law or agreed to in writing, software
+ *    distributed under the License is distributed on an "AS IS" BASIS, WITHOUT
+ *    WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied. See the
+ *    License for the specific language governing permissions and limitations
+ *    under the License.
+ *
+ */
+
+package io.supertokens.storage.sqlite.test;
+
+import com.google.gson.JsonObject;
+import io.supertokens.ProcessState;
+import io.supertokens.pluginInterface.tokenInfo.PastTokenInfo;
+import io.supertokens.storage.sqlite.RowCounts;
+import io.supertokens.storage.sqlite.Start;
+import io.supertokens.storageLayer.StorageLayer;
+import org.junit.AfterClass;
+import org.junit.Before;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TestRule;
+
+import static org.junit.Assert.*;
+
+public class RowCountsTest {
+
+    @Rule
+    public TestRule watchman = Utils.getOnFailure();
+
+    @AfterClass
+    public static void afterTesting() {
+        Utils.afterTesting();
+    }
+
+    @Before
+    public void beforeEach() {
+        Utils.reset();
+    }
+
+    @Test
+    public void countsFollowInsertsAndDeletes() throws Exception {
+        String[] args = {"../"};
+
+        TestingProcessManager.TestingProcess process = TestingProcessManager.start(args);
+        assertNotNull(process.checkOrWaitForEvent(ProcessState.PROCESS_STATE.STARTED));
+
+        Start storage = (Start) StorageLayer.getStorageLayer(process.getProcess());
+        assertEquals(storage.getNumberOfSessions(), 0);
+        assertEquals(storage.getNumberOfPastTokens(), 0);
+
+        JsonObject data = new JsonObject();
+        for (int i = 0; i < 10; i++) {
+            storage.createNewSession("handle" + i, "userId", "refresh" + i, data,
+                    i < 3 ? System.currentTimeMillis() - 1000 : System.currentTimeMillis() + 100000, data,
+                    System.currentTimeMillis());
+            storage.insertPastToken(new PastTokenInfo("token" + i, "handle" + i, "parent" + i, 0));
+        }
+        try {
+            storage.createNewSession("handle0", "userId", "refresh", data, 0, data, 0);
+            fail();
+        } catch (Exception ignored) {
+        }
+        assertEquals(storage.getNumberOfSessions(), 10);
+        assertEquals(storage.getNumberOfPastTokens(), 10);
+
+        storage.deleteAllExpiredSessions();
+        assertEquals(storage.getNumberOfSessions(), 7);
+        assertEquals(storage.deleteSession(new String[]{"handle3", "handle4", "unknown"}), 2);
+        assertEquals(storage.getNumberOfSessions(), 5);
+        storage.deletePastOrphanedTokens(System.currentTimeMillis());
+        assertEquals(storage.getNumberOfPastTokens(), 0);
+
+        assertEquals(RowCounts.recount(storage), 0);
+
+        process.kill();
+        assertNotNull(process.checkOrWaitForEvent(ProcessState.PROCESS_STATE.STOPPED));
+    }
+
+    @Test
+    public void orphanedTokensAreDeletedInBatches() throws Exception {
+        String[] args = {"../"};
+
+        Utils.setValueInConfig("sqlite_past_tokens_cleanup_batch_size", "3");
+
+        TestingProcessManager.TestingProcess process = TestingProcessManager.start(args);
+        assertNotNull(process.checkOrWaitForEvent(ProcessState.PROCESS_STATE.STARTED));
+
+        Start storage = (Start) StorageLayer.getStorageLayer(process.getProcess());
+        JsonObject data = new JsonObject();
+        storage.createNewSession("handle", "userId", "refresh", data, System.currentTimeMillis() + 100000, data,
+                System.currentTimeMillis());
+        for (int i = 0; i < 20; i++) {
+            // several rows share each created_at_time, so batches end in the middle of them
+            storage.insertPastToken(new PastTokenInfo("token" + i, "handle", "parent" + i, i / 4));
+        }
+        storage.insertPastToken(new PastTokenInfo("refresh", "handle", "parent", 1));
+        storage.insertPastToken(new PastTokenInfo("child", "handle", "refresh", 2));
+        storage.insertPastToken(new PastTokenInfo("new", "handle", "parent", System.currentTimeMillis()));
+
+        storage.deletePastOrphanedTokens(10);
+        assertEquals(storage.getNumberOfPastTokens(), 3);
+        assertNotNull(storage.getPastTokenInfo("refresh"));
+        assertNotNull(storage.getPastTokenInfo("child"));
+        assertNotNull(storage.getPastTokenInfo("new"));
+        assertEquals(RowCounts.recount(storage), 0);
+
+        process.kill();
+        assertNotNull(process.checkOrWaitForEvent(ProcessState.PROCESS_STATE.STOPPED));
+    }
+}
@@ -0,0 +1,92 @@
+/*
+ *    Copyright (c) 2020, VRAI Labs and/or its affiliates. All rights reserved.
+ *
+ *    This software is licensed under the Apache License, Version 2.0 (the
+ *    "License") as published by the Apache Software Foundation.
+ *
+ *    You may not use this file except in compliance with the License. You may
+ *    obtain a copy of the License at http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *    Unless required by applicable law or agreed to in writing, software
+ *    distributed under the License is distributed on an "AS IS" BASIS, WITHOUT
+ *    WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied. See the
+ *    License for the specific language governing permissions and limitations
+ *    under the License.
+ *
+ */
+
+package io.supertokens.storage.sqlite.test;
+
+import com.google.gson.JsonObject;
+import io.supertokens.ProcessState;
+import io.supertokens.pluginInterface.KeyValueInfo;
+import io.supertokens.pluginInterface.tokenInfo.PastTokenInfo;
+import io.supertokens.storage.sqlite.RowCounts;
+import io.supertokens.storage.sqlite.Start;
+import io.supertokens.storage.sqlite.config.Config;
+import io.supertokens.storageLayer.StorageLayer;
+import org.junit.AfterClass;
+import org.junit.Before;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TestRule;
+
+import java.io.File;
+
+import static org.junit.Assert.*;
+
+public class SeparateTableFilesTest {
+
+    @Rule
+    public TestRule watchman = Utils.getOnFailure();
+
+    @AfterClass
+    public static void afterTesting() {
+        Utils.afterTesting();
+    }
+
+    @Before
+    public void beforeEach() {
+        Utils.reset();
+    }
+
+    @Test
+    public void tablesAreKeptInFilesOfTheirOwn() throws Exception {
+        String[] args = {"../"};
+
+        Utils.setValueInConfig("sqlite_separate_table_files", "true");
+
+        TestingProcessManager.TestingProcess process = TestingProcessManager.start(args);
+        assertNotNull(process.checkOrWaitForEvent(ProcessState.PROCESS_STATE.STARTED));
+
+        Start storage = (Start) StorageLayer.getStorageLayer(process.getProcess());
+        assertTrue(new File(io.supertokens.storage.sqlite.utils.Utils
+                .getDatabasePath(Config.getConfig(storage), "sessions", 0)).exists());
+        assertTrue(new File(io.supertokens.storage.sqlite.utils.Utils
+                .getDatabasePath(Config.getConfig(storage), "past_tokens", 0)).exists());
+
+        storage.setKeyValue("key", new KeyValueInfo("value", 0));
+        assertEquals(storage.getKeyValue("key").value, "value");
+
+        JsonObject data = new JsonObject();
+        for (int i = 0; i < 10; i++) {
+            storage.createNewSession("handle" + i, "userId", "refresh" + i, data,
+                    System.currentTimeMillis() + 100000, data, System.currentTimeMillis());
+            storage.insertPastToken(new PastTokenInfo("token" + i, "handle" + i, "refresh" + i, 0));
+        }
+        assertEquals(storage.getNumberOfSessions(), 10);
+        assertEquals(storage.getNumberOfPastTokens(), 10);
+        assertEquals(storage.getPastTokenInfo("token3").sessionHandle, "handle3");
+
+        // the orphaned tokens are found through the sessions file that is attached to the past tokens file
+        assertEquals(storage.deleteSession(new String[]{"handle0", "handle1"}), 2);
+        storage.deletePastOrphanedTokens(1);
+        assertEquals(storage.getNumberOfPastTokens(), 8);
+        assertNull(storage.getPastTokenInfo("token0"));
+        assertNotNull(storage.getPastTokenInfo("token2"));
+        assertEquals(RowCounts.recount(storage), 0);
+
+        process.kill();
+        assertNotNull(process.checkOrWaitForEvent(ProcessState.PROCESS_STATE.STOPPED));
+    }
+}
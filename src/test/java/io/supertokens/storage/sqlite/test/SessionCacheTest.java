@@ -0,0 +1,122 @@
+/*
+ *    Copyright (c) 2020, VRAI Labs and/or its affiliates. All rights reserved.
+ *
+ *    This software is licensed under the Apache License, Version 2.0 (the
+ *    "License") as published by the Apache Software Foundation.
+ *
+ *    You may not use this file except in compliance with the License. You may
+ *    obtain a copy of the License at http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *    Unless required by applicable law or agreed to in writing, software
+ *    distributed under the License is distributed on an "AS IS" BASIS, WITHOUT
+ *    WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied. See the
+ *    License for the specific language governing permissions and limitations
+ *    under the License.
+ *
+ */
+
+package io.supertokens.storage.sqlite.test;
+
+import com.google.gson.JsonObject;
+import io.supertokens.ProcessState;
+import io.supertokens.pluginInterface.noSqlStorage.NoSQLStorage_1;
+import io.supertokens.storage.sqlite.SessionCache;
+import io.supertokens.storage.sqlite.Start;
+import io.supertokens.storageLayer.StorageLayer;
+import org.junit.AfterClass;
+import org.junit.Before;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TestRule;
+
+import static org.junit.Assert.*;
+
+public class SessionCacheTest {
+
+    @Rule
+    public TestRule watchman = Utils.getOnFailure();
+
+    @AfterClass
+    public static void afterTesting() {
+        Utils.afterTesting();
+    }
+
+    @Before
+    public void beforeEach() {
+        Utils.reset();
+    }
+
+    @Test
+    public void writesAreSeenRightAwayByCachedReads() throws Exception {
+        String[] args = {"../"};
+
+        Utils.setValueInConfig("sqlite_session_cache_max_bytes", "1000000");
+
+        TestingProcessManager.TestingProcess process = TestingProcessManager.start(args);
+        assertNotNull(process.checkOrWaitForEvent(ProcessState.PROCESS_STATE.STARTED));
+
+        Start storage = (Start) StorageLayer.getStorageLayer(process.getProcess());
+        SessionCache cache = SessionCache.getInstance(storage);
+        JsonObject data = new JsonObject();
+        data.addProperty("key", "value");
+        storage.createNewSession("handle", "userId", "refresh", data, System.currentTimeMillis() + 100000, data,
+                System.currentTimeMillis());
+
+        long hitsBefore = cache.getHitCount();
+        NoSQLStorage_1.SessionInfoWithLastUpdated info = storage.getSessionInfo_Transaction("handle");
+        assertEquals(storage.getSession("handle").userDataInDatabase, data);
+        assertEquals(cache.getHitCount() - hitsBefore, 1);
+
+        // a caller changing what it got must not change what is cached
+        storage.getSession("handle").userDataInDatabase.addProperty("key", "changed");
+        assertEquals(storage.getSession("handle").userDataInDatabase, data);
+
+        assertTrue(storage.updateSessionInfo_Transaction("handle", "refresh2", info.expiry, info.lastUpdatedSign));
+        NoSQLStorage_1.SessionInfoWithLastUpdated newInfo = storage.getSessionInfo_Transaction("handle");
+        assertEquals(newInfo.refreshTokenHash2, "refresh2");
+        assertNotEquals(newInfo.lastUpdatedSign, info.lastUpdatedSign);
+
+        JsonObject newData = new JsonObject();
+        assertEquals(storage.updateSession("handle", newData, null), 1);
+        assertEquals(storage.getSession("handle").userDataInDatabase, newData);
+        assertNotEquals(storage.getSessionInfo_Transaction("handle").lastUpdatedSign, newInfo.lastUpdatedSign);
+
+        assertEquals(storage.deleteSession(new String[]{"handle"}), 1);
+        assertNull(storage.getSession("handle"));
+        assertNull(storage.getSessionInfo_Transaction("handle"));
+
+        process.kill();
+        assertNotNull(process.checkOrWaitForEvent(ProcessState.PROCESS_STATE.STOPPED));
+    }
+
+    @Test
+    public void cacheStaysWithinItsMemoryBudgetAndDoesNotServeExpiredSessions() throws Exception {
+        String[] args = {"../"};
+
+        Utils.setValueInConfig("sqlite_session_cache_max_bytes", "32000");
+
+        TestingProcessManager.TestingProcess process = TestingProcessManager.start(args);
+        assertNotNull(process.checkOrWaitForEvent(ProcessState.PROCESS_STATE.STARTED));
+
+        Start storage = (Start) StorageLayer.getStorageLayer(process.getProcess());
+        SessionCache cache = SessionCache.getInstance(storage);
+        JsonObject data = new JsonObject();
+        for (int i = 0; i < 1000; i++) {
+            storage.createNewSession("handle" + i, "userId", "refresh" + i, data,
+                    System.currentTimeMillis() + 100000, data, System.currentTimeMillis());
+            assertNotNull(storage.getSession("handle" + i));
+        }
+        assertTrue(cache.getEvictionCount() > 0);
+        assertTrue(cache.getSizeInBytes() <= 32000);
+
+        storage.createNewSession("expiring", "userId", "refreshExpiring", data, System.currentTimeMillis() + 500,
+                data, System.currentTimeMillis());
+        assertNotNull(storage.getSession("expiring"));
+        Thread.sleep(600);
+        storage.deleteAllExpiredSessions();
+        assertNull(storage.getSession("expiring"));
+
+        process.kill();
+        assertNotNull(process.checkOrWaitForEvent(ProcessState.PROCESS_STATE.STOPPED));
+    }
+}
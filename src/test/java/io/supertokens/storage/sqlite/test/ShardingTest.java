@@ -0,0 +1,90 @@
+/*
+ *    Copyright (c) 2020, VRAI Labs and/or its affiliates. All rights reserved.
+ *
+ *    This software is licensed under the Apache License, Version 2.0 (the
+ *    "License") as published by the Apache Software Foundation.
+ *
+ *    You may not use this file except in compliance with the License. You may
+ *    obtain a copy of the License at http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *    Unless required by applicable law or agreed to in writing, software
+ *    distributed under the License is distributed on an "AS IS" BASIS, WITHOUT
+ *    WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied. See the
+ *    License for the specific language governing permissions and limitations
+ *    under the License.
+ *
+ */
+
+package io.supertokens.storage.sqlite.test;
+
+import com.google.gson.JsonObject;
+import io.supertokens.ProcessState;
+import io.supertokens.pluginInterface.tokenInfo.PastTokenInfo;
+import io.supertokens.storage.sqlite.RowCounts;
+import io.supertokens.storage.sqlite.Start;
+import io.supertokens.storageLayer.StorageLayer;
+import org.junit.AfterClass;
+import org.junit.Before;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TestRule;
+
+import static org.junit.Assert.*;
+
+public class ShardingTest {
+
+    @Rule
+    public TestRule watchman = Utils.getOnFailure();
+
+    @AfterClass
+    public static void afterTesting() {
+        Utils.afterTesting();
+    }
+
+    @Before
+    public void beforeEach() {
+        Utils.reset();
+    }
+
+    @Test
+    public void sessionsAndPastTokensAreFoundAcrossShards() throws Exception {
+        String[] args = {"../"};
+
+        Utils.setValueInConfig("sqlite_number_of_shards", "3");
+
+        TestingProcessManager.TestingProcess process = TestingProcessManager.start(args);
+        assertNotNull(process.checkOrWaitForEvent(ProcessState.PROCESS_STATE.STARTED));
+
+        Start storage = (Start) StorageLayer.getStorageLayer(process.getProcess());
+        JsonObject data = new JsonObject();
+        for (int i = 0; i < 30; i++) {
+            storage.createNewSession("handle" + i, "userId" + (i % 2), "refresh" + i, data,
+                    System.currentTimeMillis() + 100000, data, System.currentTimeMillis());
+            storage.insertPastToken(new PastTokenInfo("token" + i, "handle" + i, "refresh" + i, 0));
+        }
+
+        assertEquals(storage.getNumberOfSessions(), 30);
+        assertEquals(storage.getNumberOfPastTokens(), 30);
+        assertEquals(storage.getAllSessionHandlesForUser("userId1").length, 15);
+        for (int i = 0; i < 30; i++) {
+            assertEquals(storage.getSession("handle" + i).userId, "userId" + (i % 2));
+            assertEquals(storage.getPastTokenInfo("token" + i).sessionHandle, "handle" + i);
+        }
+
+        String[] handles = new String[10];
+        for (int i = 0; i < handles.length; i++) {
+            handles[i] = "handle" + i;
+        }
+        assertEquals(storage.deleteSession(handles), 10);
+        assertEquals(storage.getNumberOfSessions(), 20);
+        assertNull(storage.getSession("handle0"));
+
+        // only the tokens of the deleted sessions are orphaned
+        storage.deletePastOrphanedTokens(1);
+        assertEquals(storage.getNumberOfPastTokens(), 20);
+        assertEquals(RowCounts.recount(storage), 0);
+
+        process.kill();
+        assertNotNull(process.checkOrWaitForEvent(ProcessState.PROCESS_STATE.STOPPED));
+    }
+}
@@ -0,0 +1,91 @@
+/*
+ *    Copyright (c) 2020, VRAI Labs and/or its affiliates. All rights reserved.
+ *
+ *    This software is licensed under the Apache License, Version 2.0 (the
+ *    "License") as published by the Apache Software Foundation.
+ *
+ *    You may not use this file except in compliance with the License. You may
+ *    obtain a copy of the License at http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *    Unless required by applicable law or agreed to in writing, software
+ *    distributed under the License is distributed on an "AS IS" BASIS, WITHOUT
+ *    WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied. See the
+ *    License for the specific language governing permissions and limitations
+ *    under the License.
+ *
+ */
+
+package io.supertokens.storage.sqlite.test;
+
+import com.google.gson.JsonObject;
+import io.supertokens.ProcessState;
+import io.supertokens.storage.sqlite.SlowQueryLog;
+import io.supertokens.storage.sqlite.Start;
+import io.supertokens.storageLayer.StorageLayer;
+import org.junit.AfterClass;
+import org.junit.Before;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TestRule;
+
+import static org.junit.Assert.*;
+
+public class SlowQueryLogTest {
+
+    @Rule
+    public TestRule watchman = Utils.getOnFailure();
+
+    @AfterClass
+    public static void afterTesting() {
+        Utils.afterTesting();
+    }
+
+    @Before
+    public void beforeEach() {
+        Utils.reset();
+    }
+
+    @Test
+    public void slowQueriesAreLoggedWithinTheRateLimit() throws Exception {
+        String[] args = {"../"};
+
+        Utils.setValueInConfig("sqlite_slow_query_log_enabled", "true");
+        Utils.setValueInConfig("sqlite_slow_query_threshold_millis", "0");
+        Utils.setValueInConfig("sqlite_slow_query_max_logs_per_minute", "5");
+
+        TestingProcessManager.TestingProcess process = TestingProcessManager.start(args);
+        assertNotNull(process.checkOrWaitForEvent(ProcessState.PROCESS_STATE.STARTED));
+
+        Start storage = (Start) StorageLayer.getStorageLayer(process.getProcess());
+        SlowQueryLog slowQueryLog = SlowQueryLog.getInstance(storage);
+        assertNotNull(slowQueryLog);
+
+        for (int i = 0; i < 10; i++) {
+            storage.createNewSession("handle" + i, "userId", "refresh" + i, new JsonObject(),
+                    System.currentTimeMillis() + 100000, new JsonObject(), System.currentTimeMillis());
+        }
+        assertEquals(storage.getAllSessionHandlesForUser("userId").length, 10);
+
+        // with a threshold of 0, every statement is slow, and all but the first few are over the rate limit
+        long slowQueries = slowQueryLog.getSlowQueryCount();
+        assertTrue(slowQueries >= 11);
+        assertTrue(slowQueryLog.getSuppressedCount() >= slowQueries - 5);
+        assertTrue(slowQueryLog.getPlanCount() <= 5);
+
+        process.kill();
+        assertNotNull(process.checkOrWaitForEvent(ProcessState.PROCESS_STATE.STOPPED));
+    }
+
+    @Test
+    public void nothingIsTimedByDefault() throws Exception {
+        String[] args = {"../"};
+
+        TestingProcessManager.TestingProcess process = TestingProcessManager.start(args);
+        assertNotNull(process.checkOrWaitForEvent(ProcessState.PROCESS_STATE.STARTED));
+
+        assertNull(SlowQueryLog.getInstance((Start) StorageLayer.getStorageLayer(process.getProcess())));
+
+        process.kill();
+        assertNotNull(process.checkOrWaitForEvent(ProcessState.PROCESS_STATE.STOPPED));
+    }
+}
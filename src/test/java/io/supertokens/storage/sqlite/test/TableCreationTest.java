@@ -18,12 +18,22 @@
 package io.supertokens.storage.sqlite.test;
 
 import io.supertokens.ProcessState;
+import io.supertokens.storage.sqlite.Start;
+import io.supertokens.storage.sqlite.config.Config;
+import io.supertokens.storageLayer.StorageLayer;
 import org.junit.AfterClass;
 import org.junit.Before;
 import org.junit.Rule;
 import org.junit.Test;
 import org.junit.rules.TestRule;
 
+import java.sql.Connection;
+import java.sql.DriverManager;
+import java.sql.ResultSet;
+import java.sql.SQLException;
+import java.sql.Statement;
+
+import static org.junit.Assert.assertEquals;
 import static org.junit.Assert.assertNotNull;
 import static org.junit.Assert.assertNull;
 
@@ -65,4 +75,89 @@ public class TableCreationTest {
         assertNotNull(process.checkOrWaitForEvent(ProcessState.PROCESS_STATE.STOPPED));
     }
 
+    @Test
+    public void checkingSchemaMigrationRunsOnlyOnce() throws InterruptedException {
+        String[] args = {"../"};
+
+        TestingProcessManager.TestingProcess process = TestingProcessManager.start(args);
+        assertNotNull(process.checkOrWaitForEvent(ProcessState.PROCESS_STATE.STARTED));
+
+        assertNotNull(process.checkOrWaitForEventInPlugin(
+                io.supertokens.storage.sqlite.ProcessState.PROCESS_STATE.MIGRATING_SCHEMA));
+
+        process.kill();
+        assertNotNull(process.checkOrWaitForEvent(ProcessState.PROCESS_STATE.STOPPED));
+
+        process = TestingProcessManager.start(args);
+        assertNotNull(process.checkOrWaitForEvent(ProcessState.PROCESS_STATE.STARTED));
+
+        assertNull(process.checkOrWaitForEventInPlugin(
+                io.supertokens.storage.sqlite.ProcessState.PROCESS_STATE.MIGRATING_SCHEMA, 2000));
+
+        process.kill();
+        assertNotNull(process.checkOrWaitForEvent(ProcessState.PROCESS_STATE.STOPPED));
+    }
+
+    @Test
+    public void checkingIndexesAreOnlyCreatedByTheMigration() throws Exception {
+        String[] args = {"../"};
+
+        TestingProcessManager.TestingProcess process = TestingProcessManager.start(args);
+        assertNotNull(process.checkOrWaitForEvent(ProcessState.PROCESS_STATE.STARTED));
+
+        Start start = (Start) StorageLayer.getStorageLayer(process.getProcess());
+        String databasePath = io.supertokens.storage.sqlite.utils.Utils.getDatabasePath(Config.getConfig(start));
+        String index = Config.getConfig(start).getSessionInfoTable() + "_user_id_index";
+
+        process.kill();
+        assertNotNull(process.checkOrWaitForEvent(ProcessState.PROCESS_STATE.STOPPED));
+
+        try (Connection con = DriverManager.getConnection("jdbc:sqlite:" + databasePath);
+             Statement stmt = con.createStatement()) {
+            assertEquals(getUserVersion(stmt), 1);
+            assertEquals(countIndexes(stmt, index), 1);
+
+            // the database is up to date, so a missing index is not created again
+            stmt.execute("DROP INDEX " + index);
+        }
+
+        process = TestingProcessManager.start(args);
+        assertNotNull(process.checkOrWaitForEvent(ProcessState.PROCESS_STATE.STARTED));
+        process.kill();
+        assertNotNull(process.checkOrWaitForEvent(ProcessState.PROCESS_STATE.STOPPED));
+
+        try (Connection con = DriverManager.getConnection("jdbc:sqlite:" + databasePath);
+             Statement stmt = con.createStatement()) {
+            assertEquals(countIndexes(stmt, index), 0);
+
+            // a database from before the indexes
+            stmt.execute("PRAGMA user_version = 0");
+        }
+
+        process = TestingProcessManager.start(args);
+        assertNotNull(process.checkOrWaitForEvent(ProcessState.PROCESS_STATE.STARTED));
+        assertNotNull(process.checkOrWaitForEventInPlugin(
+                io.supertokens.storage.sqlite.ProcessState.PROCESS_STATE.MIGRATING_SCHEMA));
+        process.kill();
+        assertNotNull(process.checkOrWaitForEvent(ProcessState.PROCESS_STATE.STOPPED));
+
+        try (Connection con = DriverManager.getConnection("jdbc:sqlite:" + databasePath);
+             Statement stmt = con.createStatement()) {
+            assertEquals(getUserVersion(stmt), 1);
+            assertEquals(countIndexes(stmt, index), 1);
+        }
+    }
+
+    private static int getUserVersion(Statement stmt) throws SQLException {
+        try (ResultSet result = stmt.executeQuery("PRAGMA user_version")) {
+            return result.getInt(1);
+        }
+    }
+
+    private static int countIndexes(Statement stmt, String name) throws SQLException {
+        try (ResultSet result = stmt.executeQuery(
+                "SELECT count(*) FROM sqlite_master WHERE type = 'index' AND name = '" + name + "'")) {
+            return result.getInt(1);
+        }
+    }
 }
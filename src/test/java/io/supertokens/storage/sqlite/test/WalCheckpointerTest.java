@@ -0,0 +1,100 @@
+/*
+ *    Copyright (c) 2020, VRAI Labs and/or its affiliates. All rights reserved.
+ *
+ *    This software is licensed under the Apache License, Version 2.0 (the
+ *    "License") as published by the Apache Software Foundation.
+ *
+ *    You may not use this file except in compliance with the License. You may
+ *    obtain a copy of the License at http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *    Unless required by applicable law or agreed to in writing, software
+ *    distributed under the License is distributed on an "AS IS" BASIS, WITHOUT
+ *    WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied. See the
+ *    License for the specific language governing permissions and limitations
+ *    under the License.
+ *
+ */
+
+package io.supertokens.storage.sqlite.test;
+
+import com.google.gson.JsonObject;
+import io.supertokens.ProcessState;
+import io.supertokens.storage.sqlite.Start;
+import io.supertokens.storage.sqlite.WalCheckpointer;
+import io.supertokens.storageLayer.StorageLayer;
+import org.junit.AfterClass;
+import org.junit.Before;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TestRule;
+
+import static org.junit.Assert.*;
+
+public class WalCheckpointerTest {
+
+    @Rule
+    public TestRule watchman = Utils.getOnFailure();
+
+    @AfterClass
+    public static void afterTesting() {
+        Utils.afterTesting();
+    }
+
+    @Before
+    public void beforeEach() {
+        Utils.reset();
+    }
+
+    @Test
+    public void walIsCheckpointedAndTruncatedOnceQuiet() throws Exception {
+        String[] args = {"../"};
+
+        Utils.setValueInConfig("sqlite_wal_checkpoint_interval_millis", "100");
+        Utils.setValueInConfig("sqlite_wal_truncate_size_bytes", "1");
+
+        TestingProcessManager.TestingProcess process = TestingProcessManager.start(args);
+        assertNotNull(process.checkOrWaitForEvent(ProcessState.PROCESS_STATE.STARTED));
+
+        Start storage = (Start) StorageLayer.getStorageLayer(process.getProcess());
+        WalCheckpointer checkpointer = WalCheckpointer.getInstance(storage);
+        assertNotNull(checkpointer);
+
+        JsonObject data = new JsonObject();
+        for (int i = 0; i < 500; i++) {
+            storage.createNewSession("handle" + i, "userId", "refresh" + i, data,
+                    System.currentTimeMillis() + 100000, data, System.currentTimeMillis());
+        }
+
+        // nothing is written from now on, so the WAL is truncated
+        long deadline = System.currentTimeMillis() + 10000;
+        while (checkpointer.getTruncateCount() == 0 || checkpointer.getWalSizeBytes() != 0) {
+            assertTrue(System.currentTimeMillis() < deadline);
+            Thread.sleep(50);
+        }
+        assertTrue(checkpointer.getCheckpointCount() > 0);
+        assertTrue(checkpointer.getFramesCheckpointedCount() > 0);
+        assertTrue(checkpointer.getMaxWalSizeBytes() > 0);
+        assertTrue(checkpointer.getMaxCheckpointNanos() > 0);
+        assertEquals(checkpointer.getFailedCheckpointCount(), 0);
+        assertEquals(storage.getNumberOfSessions(), 500);
+
+        process.kill();
+        assertNotNull(process.checkOrWaitForEvent(ProcessState.PROCESS_STATE.STOPPED));
+    }
+
+    @Test
+    public void sqliteCheckpointsItselfIfTheIntervalIsZero() throws Exception {
+        String[] args = {"../"};
+
+        Utils.setValueInConfig("sqlite_wal_checkpoint_interval_millis", "0");
+
+        TestingProcessManager.TestingProcess process = TestingProcessManager.start(args);
+        assertNotNull(process.checkOrWaitForEvent(ProcessState.PROCESS_STATE.STARTED));
+
+        Start storage = (Start) StorageLayer.getStorageLayer(process.getProcess());
+        assertNull(WalCheckpointer.getInstance(storage));
+
+        process.kill();
+        assertNotNull(process.checkOrWaitForEvent(ProcessState.PROCESS_STATE.STOPPED));
+    }
+}
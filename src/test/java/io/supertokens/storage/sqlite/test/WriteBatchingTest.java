@@ -0,0 +1,100 @@
+/*
+ *    Copyright (c) 2020, VRAI Labs and/or its affiliates. All rights reserved.
+ *
+ *    This software is licensed under the Apache License, Version 2.0 (the
+ *    "License") as published by the Apache Software Foundation.
+ *
+ *    You may not use this file except in compliance with the License. You may
+ *    obtain a copy of the License at http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *    Unless required by applicable law or agreed to in writing, software
+ *    distributed under the License is distributed on an "AS IS" BASIS, WITHOUT
+ *    WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied. See the
+ *    License for the specific language governing permissions and limitations
+ *    under the License.
+ *
+ */
+
+package io.supertokens.storage.sqlite.test;
+
+import com.google.gson.JsonObject;
+import io.supertokens.ProcessState;
+import io.supertokens.pluginInterface.KeyValueInfoWithLastUpdated;
+import io.supertokens.pluginInterface.noSqlStorage.NoSQLStorage_1;
+import io.supertokens.storageLayer.StorageLayer;
+import org.junit.AfterClass;
+import org.junit.Before;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TestRule;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+
+import static org.junit.Assert.*;
+
+public class WriteBatchingTest {
+
+    @Rule
+    public TestRule watchman = Utils.getOnFailure();
+
+    @AfterClass
+    public static void afterTesting() {
+        Utils.afterTesting();
+    }
+
+    @Before
+    public void beforeEach() {
+        Utils.reset();
+    }
+
+    @Test
+    public void concurrentWritesAreAllCommittedWithTheirOwnResults() throws Exception {
+        String[] args = {"../"};
+
+        Utils.setValueInConfig("sqlite_write_batching_enabled", "true");
+
+        TestingProcessManager.TestingProcess process = TestingProcessManager.start(args);
+        assertNotNull(process.checkOrWaitForEvent(ProcessState.PROCESS_STATE.STARTED));
+
+        NoSQLStorage_1 storage = (NoSQLStorage_1) StorageLayer.getStorageLayer(process.getProcess());
+        JsonObject data = new JsonObject();
+        data.addProperty("key", "value");
+
+        ExecutorService executor = Executors.newFixedThreadPool(10);
+        List<Future<?>> futures = new ArrayList<>();
+        for (int i = 0; i < 100; i++) {
+            String sessionHandle = "handle" + i;
+            futures.add(executor.submit(() -> {
+                storage.createNewSession(sessionHandle, "userId", "refresh" + sessionHandle, data,
+                        System.currentTimeMillis() + 100000, data, System.currentTimeMillis());
+                return null;
+            }));
+        }
+        for (Future<?> future : futures) {
+            future.get();
+        }
+        executor.shutdown();
+
+        assertEquals(storage.getNumberOfSessions(), 100);
+
+        // a failing write must not affect the others, and every caller must get its own update count
+        NoSQLStorage_1.SessionInfoWithLastUpdated info = storage.getSessionInfo_Transaction("handle0");
+        assertTrue(storage.updateSessionInfo_Transaction("handle0", "newRefresh", info.expiry,
+                info.lastUpdatedSign));
+        assertFalse(storage.updateSessionInfo_Transaction("handle0", "newRefresh2", info.expiry,
+                info.lastUpdatedSign));
+        assertEquals(storage.updateSession("handle1", data, null), 1);
+        assertEquals(storage.updateSession("unknownHandle", data, null), 0);
+
+        assertTrue(storage.setKeyValue_Transaction("key", new KeyValueInfoWithLastUpdated("value", 1, null)));
+        assertFalse(storage.setKeyValue_Transaction("key", new KeyValueInfoWithLastUpdated("value", 1, null)));
+
+        process.kill();
+        assertNotNull(process.checkOrWaitForEvent(ProcessState.PROCESS_STATE.STOPPED));
+    }
+
+}